@@ -0,0 +1,173 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Tests the block encoding of {@link BodyCompression}
+ */
+public class BodyCompressionTest extends ApplicationTestCase<Application> {
+
+    private Random   random;
+    private Inflater inflater;
+
+    public BodyCompressionTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        random   = new Random(7);
+        inflater = new Inflater();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        inflater.end();
+        super.tearDown();
+    }
+
+    /**
+     * A compressible body spanning several blocks, the last partial, decodes to the original
+     * whether read from an array or a direct buffer
+     */
+    public void testRoundTrip() throws DataFormatException {
+        byte[] body = createText(3 * BodyCompression.BLOCK_BYTES + 100);
+
+        byte[] encoded = BodyCompression.encode(ByteBuffer.wrap(body), body.length);
+        assertNotNull(encoded);
+        assertTrue(encoded.length < body.length);
+        assertTrue(Arrays.equals(body, decode(encoded, body.length)));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(body.length);
+        direct.put(body);
+        assertTrue(Arrays.equals(encoded, BodyCompression.encode(direct, body.length)));
+
+        // Only the given length is encoded
+        int length = BodyCompression.BLOCK_BYTES + 1;
+        assertTrue(Arrays.equals(Arrays.copyOf(body, length),
+                                 decode(BodyCompression.encode(ByteBuffer.wrap(body), length), length)));
+    }
+
+    /**
+     * A block that would not shrink is stored as is, while the rest of the body is deflated
+     */
+    public void testIncompressibleBlockStored() throws DataFormatException {
+        int noiseBytes = 1000;
+        byte[] body  = createText(2 * BodyCompression.BLOCK_BYTES + noiseBytes);
+        byte[] noise = new byte[noiseBytes];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, body, 2 * BodyCompression.BLOCK_BYTES, noiseBytes);
+
+        byte[] encoded = BodyCompression.encode(ByteBuffer.wrap(body), body.length);
+        assertNotNull(encoded);
+
+        int[] flags = blockFlags(encoded);
+        assertTrue(Arrays.equals(new int[] { BodyCompression.BLOCK_DEFLATED,
+                                             BodyCompression.BLOCK_DEFLATED,
+                                             BodyCompression.BLOCK_STORED }, flags));
+        assertTrue(Arrays.equals(body, decode(encoded, body.length)));
+    }
+
+    /**
+     * Bodies the entropy probe finds already compressed, and bodies too small to gain, are not
+     * encoded
+     */
+    public void testNotEncoded() {
+        byte[] noise = new byte[4 * BodyCompression.BLOCK_BYTES];
+        random.nextBytes(noise);
+        assertNull(BodyCompression.encode(ByteBuffer.wrap(noise), noise.length));
+
+        byte[] small = createText(100);
+        assertNull(BodyCompression.encode(ByteBuffer.wrap(small), small.length));
+    }
+
+    /**
+     * A block that is truncated, overruns the body, or has an unknown encoding is rejected
+     */
+    public void testMalformedBlocksRejected() {
+        byte[] block = createText(BodyCompression.BLOCK_BYTES);
+        byte[] deflated = deflate(block);
+
+        assertDecodeFails(BodyCompression.BLOCK_DEFLATED, deflated, deflated.length / 2, new byte[block.length]);
+
+        // Room for less than the block holds
+        assertDecodeFails(BodyCompression.BLOCK_DEFLATED, deflated, deflated.length, new byte[block.length - 1]);
+        assertDecodeFails(BodyCompression.BLOCK_STORED, block, block.length, new byte[block.length - 1]);
+
+        assertDecodeFails(2, block, block.length, new byte[block.length]);
+    }
+
+    /**
+     * @return length bytes of hex digit text, which deflates to about half its size
+     */
+    private byte[] createText(int length) {
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++)
+            text[i] = (byte) Character.forDigit(random.nextInt(16), 16);
+        return text;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        while (!deflater.finished())
+            out.write(buffer, 0, deflater.deflate(buffer));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static int[] blockFlags(byte[] encoded) {
+        int[] flags = new int[0];
+        for (int offset = 0; offset < encoded.length; offset += BodyCompression.BLOCK_HEADER_BYTES + blockLength(encoded, offset)) {
+            flags = Arrays.copyOf(flags, flags.length + 1);
+            flags[flags.length - 1] = encoded[offset];
+        }
+        return flags;
+    }
+
+    private static int blockLength(byte[] encoded, int offset) {
+        return (encoded[offset + 1] & 0xFF) | (encoded[offset + 2] & 0xFF) << 8;
+    }
+
+    /**
+     * Decode each block of encoded in turn, as the recipient does
+     */
+    private byte[] decode(byte[] encoded, int bodyLength) throws DataFormatException {
+        byte[] body = new byte[bodyLength];
+        int bodyOffset = 0;
+        int offset = 0;
+        while (offset < encoded.length) {
+            int length = blockLength(encoded, offset);
+            bodyOffset += BodyCompression.decodeBlock(inflater, encoded[offset],
+                                                      encoded, offset + BodyCompression.BLOCK_HEADER_BYTES, length,
+                                                      body, bodyOffset);
+            offset += BodyCompression.BLOCK_HEADER_BYTES + length;
+        }
+        assertEquals(encoded.length, offset);
+        assertEquals(bodyLength, bodyOffset);
+        return body;
+    }
+
+    private void assertDecodeFails(int flag, byte[] data, int length, byte[] out) {
+        try {
+            BodyCompression.decodeBlock(inflater, flag, data, 0, length, out, 0);
+            fail("Decoded malformed block");
+        } catch (DataFormatException e) {
+            // expected
+        }
+    }
+}
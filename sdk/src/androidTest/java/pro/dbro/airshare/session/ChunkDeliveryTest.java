@@ -0,0 +1,214 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import timber.log.Timber;
+
+/**
+ * Tests the delivery of {@link pro.dbro.airshare.session.SessionMessage}s serialized by
+ * {@link SessionMessageSerializer} when chunks fail to send, or are lost or corrupted in transit,
+ * reassembled by {@link SessionMessageDeserializer}
+ */
+public class ChunkDeliveryTest extends ApplicationTestCase<Application> {
+
+    private static final int CHUNK_BYTES = 512;
+
+    private List<SessionMessage> messages;
+    private MessageRecorder      recorder;
+
+    public ChunkDeliveryTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Timber.plant(new Timber.DebugTree());
+
+        Random random = new Random(7);
+        messages = new ArrayList<>();
+        recorder = new MessageRecorder();
+
+        for (int i = 0; i < 3; i++) {
+            byte[] payload = new byte[3000];
+            random.nextBytes(payload);
+            messages.add(DataTransferMessage.createOutgoing(null, payload));
+        }
+    }
+
+    /**
+     * A transport fails a chunk, and so every chunk queued behind it. Each is sent again in order.
+     */
+    public void testFailedChunkIsSentAgain() {
+        SessionMessageSerializer sender = new SessionMessageSerializer(messages);
+        sender.setAdaptiveWindow(false);
+        sender.setWindowChunks(4);
+
+        SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+
+        // Chunks handed to the transport, in the order it sends them
+        ArrayDeque<byte[]> transportQueue = new ArrayDeque<>();
+        int chunksSent = 0;
+        int chunksFailed = 0;
+
+        while (true) {
+            byte[] chunk;
+            while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null)
+                transportQueue.offer(chunk);
+
+            if (transportQueue.isEmpty()) break;
+
+            if (++chunksSent == 3) {
+                // The chunk and those queued behind it are reported undelivered
+                while (!transportQueue.isEmpty()) {
+                    sender.nackChunkDelivery(transportQueue.poll());
+                    chunksFailed++;
+                }
+                continue;
+            }
+
+            receiver.dataReceived(transportQueue.poll());
+            sender.ackChunkDelivery();
+        }
+
+        assertEquals(4, chunksFailed);
+        assertEquals(0, sender.getChunksInFlight());
+        assertTrue(sender.getUndeliveredMessages().isEmpty());
+        assertReceivedMessages();
+    }
+
+    public void testLostChunkIsRequestedOnce() {
+        assertChunkRecovered(false);
+    }
+
+    public void testCorruptChunkIsRequestedOnce() {
+        assertChunkRecovered(true);
+    }
+
+    /**
+     * Lose or corrupt one checksummed chunk in transit, which the recipient requests again
+     */
+    private void assertChunkRecovered(boolean corrupt) {
+        SessionMessageSerializer sender = new SessionMessageSerializer(messages);
+        sender.setChecksums(true);
+
+        SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+        int chunksSent = 0;
+        int nacksSent  = 0;
+
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            assertEquals(SessionMessageSerializer.ENVELOPE_MARKER, chunk[0] & 0xFF);
+
+            if (++chunksSent == 3) {
+                if (corrupt) {
+                    byte[] corrupted = Arrays.copyOf(chunk, chunk.length);
+                    corrupted[chunk.length / 2] ^= 0x01;
+                    receiver.dataReceived(corrupted);
+                }
+            } else
+                receiver.dataReceived(chunk);
+
+            // The transport delivered the chunk as far as the sender can tell
+            sender.ackChunkDelivery();
+
+            // Requests reach the sender before its next chunk
+            while (nacksSent < recorder.missingChunks.size())
+                sender.retransmit(recorder.missingChunks.get(nacksSent++));
+        }
+
+        assertEquals(1, recorder.missingChunks.size());
+        assertEquals(Arrays.asList(2), recorder.missingChunks.get(0));
+        assertReceivedMessages();
+    }
+
+    /**
+     * One recipient of a message sent to two disconnects part way through it, and is sent it
+     * again encoded for its new link. The other recipient's stream is unaffected.
+     */
+    public void testResendToDisconnectedRecipientLeavesOthersIntact() {
+        // Hex digits, which compress to about half
+        Random random = new Random(7);
+        byte[] payload = new byte[50 * 1000];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) Character.forDigit(random.nextInt(16), 16);
+
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, payload);
+        assertSame(message, SessionManager.encodeForSending(message, SessionMessage.CURRENT_HEADER_VERSION, true, true));
+        assertTrue(message.isBodyCompressed());
+        assertTrue(message.hasBodyDigest());
+
+        MessageRecorder stayingRecorder = new MessageRecorder();
+        SessionMessageSerializer toStaying = new SessionMessageSerializer(message);
+        SessionMessageDeserializer staying = stayingRecorder.createReceiver(mContext);
+
+        SessionMessageSerializer toLeaving = new SessionMessageSerializer(message);
+        SessionMessageDeserializer leaving = recorder.createReceiver(mContext);
+
+        sendChunks(toStaying, staying, 3);
+        sendChunks(toLeaving, leaving, 2);
+        assertTrue(message.isSerializationStarted());
+
+        // The message being sent may no longer be encoded differently
+        try {
+            message.setBodyDigest(false);
+            fail("Changed digest of a message being sent");
+        } catch (IllegalStateException expected) {}
+
+        // The leaving recipient reconnects over a link without checksums or compression
+        List<SessionMessage> undelivered = toLeaving.getUndeliveredMessages();
+        assertEquals(Arrays.<SessionMessage>asList(message), undelivered);
+
+        DataTransferMessage resent = (DataTransferMessage) SessionManager.encodeForSending(undelivered.get(0),
+                SessionMessage.HEADER_VERSION_JSON, false, false);
+        assertNotSame(message, resent);
+        assertFalse(resent.isBodyCompressed());
+        assertFalse(resent.hasBodyDigest());
+        assertTrue(message.isBodyCompressed());
+        assertTrue(message.hasBodyDigest());
+
+        sendChunks(new SessionMessageSerializer(resent), recorder.createReceiver(mContext), Integer.MAX_VALUE);
+        sendChunks(toStaying, staying, Integer.MAX_VALUE);
+
+        for (MessageRecorder received : Arrays.asList(recorder, stayingRecorder)) {
+            assertTrue(received.failures.isEmpty());
+            assertEquals(1, received.messages.size());
+            SessionMessage got = received.messages.peek();
+            assertTrue(Arrays.equals(payload, got.getBodyAtOffset(0, got.getBodyLengthBytes())));
+        }
+    }
+
+    /**
+     * Deliver up to maxChunks chunks from sender to receiver
+     */
+    private static void sendChunks(SessionMessageSerializer sender, SessionMessageDeserializer receiver, int maxChunks) {
+        byte[] chunk;
+        for (int i = 0; i < maxChunks && (chunk = sender.getNextChunk(CHUNK_BYTES)) != null; i++) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+    }
+
+    private void assertReceivedMessages() {
+        List<SessionMessage> received = recorder.getMessages();
+        assertTrue(recorder.failures.isEmpty());
+        assertEquals(messages.size(), received.size());
+
+        for (int i = 0; i < messages.size(); i++) {
+            SessionMessage sent = messages.get(i);
+            SessionMessage got  = received.get(i);
+
+            assertEquals(sent, got);
+            assertTrue(Arrays.equals(sent.getBodyAtOffset(0, sent.getBodyLengthBytes()),
+                                     got.getBodyAtOffset(0, got.getBodyLengthBytes())));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+/**
+ * Tests the additive increase and multiplicative decrease of {@link ChunkSizeController}, and
+ * its bounds following the transport's
+ */
+public class ChunkSizeControllerTest extends ApplicationTestCase<Application> {
+
+    private static final int  MIN_CHUNK_BYTES = 512;
+    private static final int  INCREASE_BYTES  = 1024;
+    private static final int  MAX_CHUNK_BYTES = MIN_CHUNK_BYTES + ChunkSizeController.INCREASE_STEPS * INCREASE_BYTES;
+    /** Spacing of acks, over which goodput is controlled by the bytes each reports */
+    private static final long ACK_SPACING_MS  = 2;
+
+    private ChunkSizeController controller;
+
+    public ChunkSizeControllerTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        controller = new ChunkSizeController(MIN_CHUNK_BYTES, MIN_CHUNK_BYTES, MAX_CHUNK_BYTES);
+    }
+
+    /**
+     * The chunk size grows by a fixed step while goodput holds up, and shrinks by
+     * {@link ChunkSizeController#DECREASE_FACTOR} once it falls
+     */
+    public void testGrowsWhileGoodputHoldsAndShrinksWhenItFalls() throws InterruptedException {
+        assertEquals(MIN_CHUNK_BYTES, controller.getChunkBytes());
+
+        // The first evaluation has nothing to compare against
+        deliverSample(1000);
+        assertEquals(MIN_CHUNK_BYTES + INCREASE_BYTES, controller.getChunkBytes());
+
+        deliverSample(10 * 1000);
+        assertEquals(MIN_CHUNK_BYTES + 2 * INCREASE_BYTES, controller.getChunkBytes());
+
+        deliverSample(100);
+        assertEquals((int) ((MIN_CHUNK_BYTES + 2 * INCREASE_BYTES) * ChunkSizeController.DECREASE_FACTOR),
+                     controller.getChunkBytes());
+    }
+
+    /**
+     * The chunk size never grows beyond the ceiling, and is halved at once by a failed send,
+     * no lower than the floor
+     */
+    public void testBoundedGrowthAndFailure() throws InterruptedException {
+        controller = new ChunkSizeController(MAX_CHUNK_BYTES - INCREASE_BYTES / 2, MIN_CHUNK_BYTES, MAX_CHUNK_BYTES);
+        deliverSample(1000);
+        assertEquals(MAX_CHUNK_BYTES, controller.getChunkBytes());
+        deliverSample(10 * 1000);
+        assertEquals(MAX_CHUNK_BYTES, controller.getChunkBytes());
+
+        controller.onChunkSent();
+        controller.onChunkFailed();
+        assertEquals((int) (MAX_CHUNK_BYTES * ChunkSizeController.FAILURE_DECREASE_FACTOR), controller.getChunkBytes());
+
+        for (int i = 0; i < 8; i++) {
+            controller.onChunkSent();
+            controller.onChunkFailed();
+        }
+        assertEquals(MIN_CHUNK_BYTES, controller.getChunkBytes());
+    }
+
+    /**
+     * A chunk size at the ceiling follows the transport's MTU as it is negotiated up or down.
+     * One below it stays, unless the new ceiling is lower.
+     */
+    public void testMaxChunkBytesFollowsMtu() throws InterruptedException {
+        ChunkSizeController atCeiling = new ChunkSizeController(MAX_CHUNK_BYTES, MIN_CHUNK_BYTES, MAX_CHUNK_BYTES);
+
+        atCeiling.setMaxChunkBytes(2 * MAX_CHUNK_BYTES);
+        assertEquals(2 * MAX_CHUNK_BYTES, atCeiling.getChunkBytes());
+
+        atCeiling.setMaxChunkBytes(MAX_CHUNK_BYTES);
+        assertEquals(MAX_CHUNK_BYTES, atCeiling.getChunkBytes());
+
+        // An unlimited MTU is bounded by the serializer
+        atCeiling.setMaxChunkBytes(0);
+        assertEquals(SessionMessageSerializer.MAX_CHUNK_BYTES, atCeiling.getChunkBytes());
+
+        controller.setMaxChunkBytes(2 * MAX_CHUNK_BYTES);
+        assertEquals(MIN_CHUNK_BYTES, controller.getChunkBytes());
+
+        deliverSample(1000);
+        int grown = controller.getChunkBytes();
+        controller.setMaxChunkBytes(grown - 1);
+        assertEquals(grown - 1, controller.getChunkBytes());
+
+        // A ceiling below the floor lowers the floor with it
+        controller.setMaxChunkBytes(MIN_CHUNK_BYTES / 2);
+        assertEquals(MIN_CHUNK_BYTES / 2, controller.getChunkBytes());
+    }
+
+    /**
+     * Deliver one evaluation's worth of chunks, each reporting bytes, while the link is kept busy
+     */
+    private void deliverSample(int bytes) throws InterruptedException {
+        for (int i = 0; i <= ChunkSizeController.SAMPLE_CHUNKS; i++)
+            controller.onChunkSent();
+
+        // The first ack begins the interval the rest are sampled over
+        controller.onChunkDelivered(bytes);
+        for (int i = 0; i < ChunkSizeController.SAMPLE_CHUNKS; i++) {
+            Thread.sleep(ACK_SPACING_MS);
+            controller.onChunkDelivered(bytes);
+        }
+    }
+}
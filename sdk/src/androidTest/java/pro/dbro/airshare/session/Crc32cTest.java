@@ -0,0 +1,57 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Tests {@link Crc32c} against the CRC-32C check value and across split updates
+ */
+public class Crc32cTest extends ApplicationTestCase<Application> {
+
+    public Crc32cTest() {
+        super(Application.class);
+    }
+
+    public void testKnownAnswer() {
+        byte[] data = "123456789".getBytes();
+
+        Crc32c crc = new Crc32c();
+        crc.update(data, 0, data.length);
+        assertEquals(0xE3069283, crc.getValue());
+
+        crc.reset();
+        crc.update(new byte[0], 0, 0);
+        assertEquals(0, crc.getValue());
+    }
+
+    public void testSplitUpdatesMatchSingleUpdate() {
+        byte[] data = new byte[10000];
+        new Random(15).nextBytes(data);
+
+        Crc32c whole = new Crc32c();
+        whole.update(data, 0, data.length);
+
+        // Splits straddle the eight byte stride
+        int[] splits = {1, 3, 7, 8, 9, 15, 64, 1000};
+        for (int split : splits) {
+            Crc32c pieces = new Crc32c();
+            for (int offset = 0; offset < data.length; offset += split)
+                pieces.update(data, offset, Math.min(split, data.length - offset));
+
+            assertEquals("Split of " + split, whole.getValue(), pieces.getValue());
+        }
+
+        // Buffers without an accessible array are read in slices
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 3);
+        direct.position(3);
+        direct.put(data);
+
+        Crc32c buffered = new Crc32c();
+        buffered.update(direct, 3, 5000);
+        buffered.update(direct, 5003, data.length - 5000);
+        assertEquals(whole.getValue(), buffered.getValue());
+    }
+}
@@ -0,0 +1,223 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Tests the receipt of {@link pro.dbro.airshare.session.SessionMessage} bodies over
+ * {@link SessionMessageDeserializer#BODY_SIZE_CUTOFF_BYTES}, which are written to disk by a
+ * {@link BodyFileWriter}
+ */
+public class DiskBackedReceiveTest extends ApplicationTestCase<Application> {
+
+    private static final int  CHUNK_BYTES   = 16 * 1024;
+    private static final int  BODY_BYTES    = SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES + 100 * 1000;
+    private static final long TIMEOUT_MS    = 10 * 1000;
+    private static final long DISK_STALL_MS = 300;
+
+    private Random random;
+
+    public DiskBackedReceiveTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Timber.plant(new Timber.DebugTree());
+        random = new Random(7);
+    }
+
+    /**
+     * A body over the cutoff is delivered in a file, while one under it is held in memory
+     */
+    public void testLargeBodyStoredOnDisk() throws Exception {
+        DataTransferMessage large = createMessage(BODY_BYTES);
+        DataTransferMessage small = createMessage(SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES);
+
+        MessageRecorder recorder = new MessageRecorder();
+        SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(Arrays.<SessionMessage>asList(large, small));
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+
+        DataTransferMessage receivedLarge = (DataTransferMessage) recorder.awaitMessage(TIMEOUT_MS);
+        assertReceived(large, receivedLarge);
+        File bodyFile = receivedLarge.getBodyFile();
+        assertNotNull(bodyFile);
+        assertEquals(BODY_BYTES, bodyFile.length());
+
+        DataTransferMessage receivedSmall = (DataTransferMessage) recorder.awaitMessage(TIMEOUT_MS);
+        assertReceived(small, receivedSmall);
+        assertNull(receivedSmall.getBodyFile());
+        assertTrue(recorder.failures.isEmpty());
+    }
+
+    /**
+     * Two large bodies arrive back to back on a thread holding the lock the app's callback takes,
+     * as {@link SessionManager} does, while the disk is slow to drain the writer's blocks.
+     */
+    public void testBackToBackBodiesThroughSlowWriter() throws Exception {
+        final Object sessionLock = new Object();
+        final List<SessionMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            messages.add(createMessage(BODY_BYTES));
+
+        final MessageRecorder recorder = new MessageRecorder() {
+            @Override
+            public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+                synchronized (sessionLock) {
+                    super.onComplete(receiver, message, e);
+                }
+            }
+        };
+        final SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+
+        stallDisk(DISK_STALL_MS);
+
+        Thread transport = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (sessionLock) {
+                    SessionMessageSerializer sender = new SessionMessageSerializer(messages);
+                    byte[] chunk;
+                    while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+                        receiver.dataReceived(chunk);
+                        sender.ackChunkDelivery();
+                    }
+                }
+            }
+        }, "Transport");
+        transport.setDaemon(true);
+        transport.start();
+        transport.join(TIMEOUT_MS);
+        assertFalse("Receipt deadlocked", transport.isAlive());
+
+        for (SessionMessage sent : messages)
+            assertReceived(sent, recorder.awaitMessage(TIMEOUT_MS));
+        assertTrue(recorder.failures.isEmpty());
+    }
+
+    /**
+     * A message following a disk-backed message still being written takes its body through a
+     * {@link DataTransferMessage.BodySink} set as its header is reported
+     */
+    public void testBodySinkAfterDiskBackedMessage() throws Exception {
+        DataTransferMessage diskBacked = createMessage(BODY_BYTES);
+        DataTransferMessage sunk       = createMessage(10 * 1000);
+        // Sent behind the disk-backed message rather than alongside it
+        sunk.setPriority(SessionMessage.Priority.BULK);
+
+        final ByteArrayOutputStream  slices  = new ByteArrayOutputStream();
+        final BlockingQueue<Object>  bodyEnd = new LinkedBlockingQueue<>();
+
+        final DataTransferMessage.BodySink sink = new DataTransferMessage.BodySink() {
+            @Override
+            public void onBodySlice(DataTransferMessage message, byte[] data, int offset, int length) {
+                slices.write(data, offset, length);
+            }
+
+            @Override
+            public void onBodyEnd(DataTransferMessage message, Exception exception) {
+                bodyEnd.add(exception != null ? exception : message);
+            }
+        };
+
+        MessageRecorder recorder = new MessageRecorder() {
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {
+                super.onHeaderReady(receiver, message);
+                if (message.getBodyLengthBytes() <= SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES)
+                    ((DataTransferMessage) message).setBodySink(sink);
+            }
+        };
+        SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+
+        // The disk-backed message remains to be written once the next header arrives
+        stallDisk(DISK_STALL_MS);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(Arrays.<SessionMessage>asList(diskBacked, sunk));
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+        assertEquals(2, recorder.headers.size());
+
+        Object end = bodyEnd.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(end instanceof DataTransferMessage);
+        assertTrue(Arrays.equals(sunk.getBodyAtOffset(0, sunk.getBodyLengthBytes()), slices.toByteArray()));
+
+        // Still delivered in order
+        assertReceived(diskBacked, recorder.awaitMessage(TIMEOUT_MS));
+        assertEquals(sunk, recorder.awaitMessage(TIMEOUT_MS));
+        assertTrue(recorder.failures.isEmpty());
+    }
+
+    /**
+     * Hold the shared disk thread for stallMs, as a slow disk would
+     */
+    private void stallDisk(final long stallMs) throws Exception {
+        final CountDownLatch diskHeld = new CountDownLatch(1);
+        final CountDownLatch release  = new CountDownLatch(1);
+
+        File file = File.createTempFile("stall", ".body", mContext.getCacheDir());
+        BodyFileWriter writer = new BodyFileWriter(file);
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                diskHeld.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.abort();
+        diskHeld.await();
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(stallMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                release.countDown();
+            }
+        }).start();
+    }
+
+    private DataTransferMessage createMessage(int bodyBytes) {
+        byte[] payload = new byte[bodyBytes];
+        random.nextBytes(payload);
+        return DataTransferMessage.createOutgoing(null, payload);
+    }
+
+    private static void assertReceived(SessionMessage sent, SessionMessage received) {
+        assertNotNull(received);
+        assertEquals(sent, received);
+        assertTrue(Arrays.equals(sent.getBodyAtOffset(0, sent.getBodyLengthBytes()),
+                                 received.getBodyAtOffset(0, received.getBodyLengthBytes())));
+    }
+}
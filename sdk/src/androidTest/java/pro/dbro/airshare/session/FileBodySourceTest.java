@@ -0,0 +1,177 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import timber.log.Timber;
+
+/**
+ * Tests the reads of {@link FileBodySource} from its windows and their read-ahead, and the
+ * sending of {@link DataTransferMessage} bodies from a file
+ */
+public class FileBodySourceTest extends ApplicationTestCase<Application> {
+
+    /** Spans several read-ahead windows, ending partway through one */
+    private static final int  BODY_BYTES  = 3 * FileBodySource.WINDOW_BYTES + 123;
+    /** Not a divisor of the window size, so reads straddle windows */
+    private static final int  READ_BYTES  = 1000;
+    private static final int  CHUNK_BYTES = 16 * 1024;
+    private static final long TIMEOUT_MS  = 10 * 1000;
+
+    private byte[] body;
+    private File   file;
+
+    public FileBodySourceTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Timber.plant(new Timber.DebugTree());
+
+        body = new byte[BODY_BYTES];
+        new Random(7).nextBytes(body);
+
+        file = File.createTempFile("source", ".body", mContext.getCacheDir());
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Sequential reads return the body across window boundaries, and a source whose file was
+     * released after its final byte reopens it to be read again
+     */
+    public void testSequentialReads() throws IOException {
+        FileBodySource source = new FileBodySource(file);
+        assertEquals(BODY_BYTES, source.getLength());
+
+        assertTrue(Arrays.equals(body, readAll(source, ByteBuffer.allocate(BODY_BYTES))));
+        assertTrue(Arrays.equals(body, readAll(source, ByteBuffer.allocateDirect(BODY_BYTES))));
+    }
+
+    /**
+     * Reads out of sequence, which miss the read-ahead window, return the bytes requested
+     */
+    public void testReadsOutOfSequence() throws IOException {
+        FileBodySource source = new FileBodySource(file);
+
+        int[] offsets = { 2 * FileBodySource.WINDOW_BYTES - READ_BYTES / 2,
+                          10,
+                          BODY_BYTES - READ_BYTES,
+                          FileBodySource.WINDOW_BYTES,
+                          FileBodySource.WINDOW_BYTES - 1 };
+
+        for (int offset : offsets) {
+            ByteBuffer out = ByteBuffer.allocate(READ_BYTES);
+            source.read(offset, out, READ_BYTES);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(body, offset, offset + READ_BYTES), out.array()));
+        }
+    }
+
+    /**
+     * A source given a FileChannel reads the channel's content and leaves it open
+     */
+    public void testChannelLeftOpen() throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileBodySource source = new FileBodySource(randomAccessFile.getChannel());
+            assertNull(source.getFile());
+
+            InputStream stream = source.openStream();
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buffer = new byte[READ_BYTES];
+            int count;
+            while ((count = stream.read(buffer, 0, buffer.length)) != -1)
+                read.write(buffer, 0, count);
+
+            assertTrue(Arrays.equals(body, read.toByteArray()));
+            assertTrue(randomAccessFile.getChannel().isOpen());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Reads beyond the body, or of a file that shrank since the source was created, fail
+     */
+    public void testReadsBeyondBodyFail() throws IOException {
+        FileBodySource source = new FileBodySource(file);
+        assertReadFails(source, BODY_BYTES - READ_BYTES + 1);
+        assertReadFails(source, -1);
+
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        try {
+            truncated.setLength(BODY_BYTES / 2);
+        } finally {
+            truncated.close();
+        }
+        assertReadFails(source, BODY_BYTES - READ_BYTES);
+    }
+
+    /**
+     * A message created with a file sends the file's content as its body
+     */
+    public void testMessageBodySentFromFile() throws Exception {
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, file);
+        assertEquals(file, message.getBodyFile());
+
+        MessageRecorder recorder = new MessageRecorder();
+        SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+
+        SessionMessage received = recorder.awaitMessage(TIMEOUT_MS);
+        assertEquals(message, received);
+        assertTrue(Arrays.equals(body, received.getBodyAtOffset(0, BODY_BYTES)));
+        assertTrue(recorder.failures.isEmpty());
+    }
+
+    /**
+     * Read the entire body from source into out, sequentially as a message is sent
+     */
+    private static byte[] readAll(FileBodySource source, ByteBuffer out) throws IOException {
+        for (int offset = 0; offset < BODY_BYTES; offset += READ_BYTES)
+            source.read(offset, out, Math.min(READ_BYTES, BODY_BYTES - offset));
+
+        out.flip();
+        byte[] read = new byte[out.remaining()];
+        out.get(read);
+        return read;
+    }
+
+    private static void assertReadFails(FileBodySource source, long offset) {
+        try {
+            source.read(offset, ByteBuffer.allocate(READ_BYTES), READ_BYTES);
+            fail("Read beyond body at " + offset);
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package pro.dbro.airshare.session;
+
+import android.content.Context;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the events a {@link SessionMessageDeserializer} reports, for tests that reassemble
+ * messages. Events of disk-backed messages are reported from another thread, so are queued.
+ */
+public class MessageRecorder implements SessionMessageDeserializer.SessionMessageDeserializerCallback,
+                                        SessionMessageDeserializer.RetransmissionListener {
+
+    public final BlockingQueue<SessionMessage> headers  = new LinkedBlockingQueue<>();
+    public final BlockingQueue<SessionMessage> messages = new LinkedBlockingQueue<>();
+    public final BlockingQueue<Exception>      failures = new LinkedBlockingQueue<>();
+
+    /** Sequences of each retransmission requested */
+    public final List<List<Integer>> missingChunks = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+    /**
+     * @return a deserializer reporting to this recorder, and requesting retransmissions of it
+     */
+    public SessionMessageDeserializer createReceiver(Context context) {
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(context, this);
+        receiver.setRetransmissionListener(this);
+        return receiver;
+    }
+
+    /**
+     * @return the next message delivered, or null if none is within timeoutMs
+     */
+    public SessionMessage awaitMessage(long timeoutMs) throws InterruptedException {
+        return messages.poll(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the messages delivered so far, in order
+     */
+    public List<SessionMessage> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    @Override
+    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {
+        headers.add(message);
+    }
+
+    @Override
+    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {}
+
+    @Override
+    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+        if (e != null) failures.add(e);
+        else messages.add(message);
+    }
+
+    @Override
+    public void onChunksMissing(SessionMessageDeserializer receiver, List<Integer> sequences) {
+        missingChunks.add(sequences);
+    }
+}
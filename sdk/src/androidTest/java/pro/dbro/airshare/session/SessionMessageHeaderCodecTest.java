@@ -0,0 +1,202 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the round trip of {@link pro.dbro.airshare.session.SessionMessage} headers through
+ * {@link SessionMessageHeaderCodec} and {@link LazyHeaders}, in both header formats, and that
+ * received headers are sent on as received unless modified
+ */
+public class SessionMessageHeaderCodecTest extends ApplicationTestCase<Application> {
+
+    private static final int PREFIX_BYTES = SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES;
+
+    public SessionMessageHeaderCodecTest() {
+        super(Application.class);
+    }
+
+    public void testCodecRoundTrip() {
+        Map<String, Object> headers = createHeaders();
+        byte[] encoded = SessionMessageHeaderCodec.encode(headers);
+
+        HashMap<String, Object> decoded = SessionMessageHeaderCodec.decode(ByteBuffer.wrap(encoded), 0, encoded.length);
+        assertTrue(Arrays.equals((byte[]) headers.remove("bytes"), (byte[]) decoded.remove("bytes")));
+        assertEquals(headers, decoded);
+    }
+
+    public void testBinaryLazyHeadersMatchCodec() {
+        Map<String, Object> headers = createHeaders();
+        headers.remove("bytes");
+        byte[] encoded = SessionMessageHeaderCodec.encode(headers);
+
+        // Headers are read from within a larger buffer, as the deserializer's
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 8);
+        buffer.position(5);
+        buffer.put(encoded);
+
+        LazyHeaders lazyHeaders = LazyHeaders.decode(buffer, 5, encoded.length, SessionMessage.HEADER_VERSION_BINARY);
+        assertLazyHeadersMatch(headers, lazyHeaders, encoded);
+    }
+
+    public void testJsonLazyHeadersMatchParsedJson() throws JSONException {
+        String json = "{\"type\":\"datatransfer\",\"id\":\"a1\",\"body-length\":42,\"body-digest\":true," +
+                      "\"extra\":{\"name\":\"cats \\\"and\\\" dogs\",\"sizes\":[1,2,3],\"none\":null}," +
+                      "\"ratio\":0.5,\"big\":9876543210}";
+        byte[] encoded = json.getBytes();
+
+        Map<String, Object> headers = SessionMessageDeserializer.toMap(new JSONObject(json));
+        LazyHeaders lazyHeaders = LazyHeaders.decode(ByteBuffer.wrap(encoded), 0, encoded.length, SessionMessage.HEADER_VERSION_JSON);
+        assertLazyHeadersMatch(headers, lazyHeaders, encoded);
+    }
+
+    public void testUnmodifiedBinaryHeadersSentOnAsReceived() {
+        assertUnmodifiedHeadersSentOn(SessionMessage.HEADER_VERSION_BINARY);
+    }
+
+    public void testUnmodifiedJsonHeadersSentOnAsReceived() {
+        assertUnmodifiedHeadersSentOn(SessionMessage.HEADER_VERSION_JSON);
+    }
+
+    public void testModifiedBinaryHeadersReencoded() throws JSONException {
+        assertModifiedHeadersReencoded(SessionMessage.HEADER_VERSION_BINARY);
+    }
+
+    public void testModifiedJsonHeadersReencoded() throws JSONException {
+        assertModifiedHeadersReencoded(SessionMessage.HEADER_VERSION_JSON);
+    }
+
+    public void testMistypedHeadersAbortMessage() {
+        String[][] mistyped = {
+                {SessionMessage.HEADER_BODY_LENGTH, "42"},
+                {SessionMessage.HEADER_ID, null},
+                {DataTransferMessage.HEADER_BODY_DIGEST, "yes"},
+                {DataTransferMessage.HEADER_RESUME_OFFSET, "7"}
+        };
+
+        for (String[] field : mistyped) {
+            Map<String, Object> headers = createHeaders();
+            headers.remove("bytes");
+            headers.put(field[0], field[1]);
+
+            byte[] header = SessionMessageHeaderCodec.encode(headers);
+            ByteBuffer message = ByteBuffer.allocate(PREFIX_BYTES + header.length);
+            message.put((byte) SessionMessage.HEADER_VERSION_BINARY);
+            message.put((byte) header.length);
+            message.put((byte) (header.length >> 8));
+            message.put(header);
+
+            MessageRecorder recorder = new MessageRecorder();
+            SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+            receiver.dataReceived(message.array());
+
+            assertTrue(field[0], recorder.messages.isEmpty());
+            assertTrue(field[0], recorder.failures.poll() instanceof IllegalArgumentException);
+
+            // The receiver is left ready for the next message
+            receiver.dataReceived(createMessage(SessionMessage.HEADER_VERSION_BINARY).serialize());
+            assertNotNull(field[0], recorder.messages.poll());
+            assertTrue(recorder.failures.isEmpty());
+        }
+    }
+
+    private void assertUnmodifiedHeadersSentOn(int headerVersion) {
+        SessionMessage sent = createMessage(headerVersion);
+        SessionMessage got  = receive(sent);
+
+        got.setHeaderVersion(headerVersion);
+        assertTrue(Arrays.equals(getSerializedHeaders(sent), getSerializedHeaders(got)));
+    }
+
+    private void assertModifiedHeadersReencoded(int headerVersion) throws JSONException {
+        SessionMessage sent = createMessage(headerVersion);
+        SessionMessage got  = receive(sent);
+
+        got.setHeaderVersion(headerVersion);
+        got.getHeaders().put("forwarded", true);
+
+        byte[] header = getSerializedHeaders(got);
+        Map<String, Object> decoded = headerVersion == SessionMessage.HEADER_VERSION_JSON ?
+                SessionMessageDeserializer.toMap(new JSONObject(new String(header))) :
+                SessionMessageHeaderCodec.decode(ByteBuffer.wrap(header), 0, header.length);
+
+        assertEquals(Boolean.TRUE, decoded.remove("forwarded"));
+        assertEquals(sent.getHeaders().get(SessionMessage.HEADER_ID), decoded.get(SessionMessage.HEADER_ID));
+        assertEquals(sent.getHeaders().get(DataTransferMessage.HEADER_EXTRA), decoded.get(DataTransferMessage.HEADER_EXTRA));
+        assertEquals(sent.getHeaders().size(), decoded.size());
+    }
+
+    private void assertLazyHeadersMatch(Map<String, Object> expected, LazyHeaders lazyHeaders, byte[] encoded) {
+        assertEquals(expected.size(), lazyHeaders.size());
+        for (String key : expected.keySet()) {
+            assertTrue(key, lazyHeaders.containsKey(key));
+            assertEquals(key, expected.get(key), lazyHeaders.get(key));
+        }
+        assertFalse(lazyHeaders.containsKey("absent"));
+        assertNull(lazyHeaders.get("absent"));
+
+        // Reading and iterating do not modify
+        assertEquals(expected, new HashMap<>(lazyHeaders));
+        assertFalse(lazyHeaders.isModified());
+        assertTrue(Arrays.equals(encoded, lazyHeaders.getEncoded()));
+
+        lazyHeaders.put("added", 1);
+        assertTrue(lazyHeaders.isModified());
+        assertEquals(1, lazyHeaders.get("added"));
+        assertEquals(expected.size() + 1, lazyHeaders.size());
+    }
+
+    private static Map<String, Object> createHeaders() {
+        HashMap<String, Object> extra = new HashMap<>();
+        extra.put("name", "cats.jpg");
+        extra.put("sizes", Arrays.<Object>asList(1, -2, 300000));
+
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put(SessionMessage.HEADER_TYPE, DataTransferMessage.HEADER_TYPE);
+        headers.put(SessionMessage.HEADER_ID, "a1");
+        headers.put(SessionMessage.HEADER_BODY_LENGTH, 42);
+        headers.put(DataTransferMessage.HEADER_EXTRA, extra);
+        headers.put(DataTransferMessage.HEADER_BODY_DIGEST, false);
+        headers.put("none", null);
+        headers.put("big", 9876543210L);
+        headers.put("ratio", 0.5);
+        headers.put("bytes", new byte[] {0, 1, (byte) 0xFF});
+        return headers;
+    }
+
+    private static SessionMessage createMessage(int headerVersion) {
+        HashMap<String, Object> extra = new HashMap<>();
+        extra.put("name", "cats.jpg");
+
+        DataTransferMessage message = DataTransferMessage.createOutgoing(extra, new byte[] {1, 2, 3, 4});
+        message.setHeaderVersion(headerVersion);
+        return message;
+    }
+
+    /**
+     * @return the message deserialized from the serialization of sent
+     */
+    private SessionMessage receive(SessionMessage sent) {
+        MessageRecorder recorder = new MessageRecorder();
+        recorder.createReceiver(mContext).dataReceived(sent.serialize());
+
+        SessionMessage received = recorder.messages.poll();
+        assertTrue(recorder.failures.isEmpty());
+        assertNotNull(received);
+        assertTrue(received.getHeaders() instanceof LazyHeaders);
+        return received;
+    }
+
+    private static byte[] getSerializedHeaders(SessionMessage message) {
+        return Arrays.copyOfRange(message.serialize(), PREFIX_BYTES, PREFIX_BYTES + message.getHeaderLengthBytes());
+    }
+
+}
@@ -63,8 +63,13 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
         DataTransferMessage shortDataTransferMessage = new DataTransferMessage(null, shortPayload);
         DataTransferMessage longDataTransferMessage = new DataTransferMessage(null, longPayload);
 
+        // Peers predating the binary header format are sent JSON headers
+        DataTransferMessage jsonHeaderMessage = DataTransferMessage.createOutgoing(null, shortPayload);
+        jsonHeaderMessage.setHeaderVersion(SessionMessage.HEADER_VERSION_JSON);
+
         messages.add(shortDataTransferMessage);
         messages.add(longDataTransferMessage);
+        messages.add(jsonHeaderMessage);
     }
 
 //    private void initializeFileTransferMessages(List<SessionMessage> messages) throws IOException {
@@ -174,7 +179,7 @@ public class SessionMessageSerializationTest extends ApplicationTestCase<Applica
             serializedBytes.addAndGet(chunk.length);
 
             receiver.dataReceived(chunk);
-
+            sender.ackChunkDelivery();
         }
 
         assertEquals(onCompleteCount.get(), messages.size());
@@ -0,0 +1,248 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import timber.log.Timber;
+
+/**
+ * Tests the scheduling of {@link pro.dbro.airshare.session.SessionMessage}s by
+ * {@link SessionMessageSerializer}, each chunk delivered to a {@link SessionMessageDeserializer}
+ */
+public class SessionMessageSerializerTest extends ApplicationTestCase<Application> {
+
+    private static final int CHUNK_BYTES = 1024;
+
+    private Random                     random;
+    private MessageRecorder            recorder;
+    private SessionMessageDeserializer receiver;
+
+    public SessionMessageSerializerTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Timber.plant(new Timber.DebugTree());
+
+        random   = new Random(7);
+        recorder = new MessageRecorder();
+        receiver = recorder.createReceiver(mContext);
+    }
+
+    /**
+     * Small messages queued behind a large one of the same priority are interleaved with it as
+     * frames, so complete first, and every message is reassembled intact
+     */
+    public void testInterleavedStreamsReassemble() {
+        List<SessionMessage> messages = new ArrayList<>();
+        messages.add(createMessage(200 * 1000));
+        for (int i = 0; i < 5; i++)
+            messages.add(createMessage(2000));
+        for (SessionMessage message : messages)
+            message.setPriority(SessionMessage.Priority.INTERACTIVE);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(messages);
+        sender.setMaxStreams(4);
+
+        int chunks = 0;
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            assertTrue((chunk[0] & SessionMessageSerializer.FRAME_FLAG) != 0);
+            deliver(chunk, sender);
+            chunks++;
+        }
+
+        // The large message spans many chunks, and is delivered last
+        List<SessionMessage> received = recorder.getMessages();
+        assertTrue(chunks > messages.size());
+        assertEquals(messages.size(), received.size());
+        assertSame(received.get(received.size() - 1), findEqual(received, messages.get(0)));
+        for (SessionMessage message : messages)
+            assertReceivedIntact(message, findEqual(received, message));
+    }
+
+    /**
+     * Without frames, messages are serialized one after another
+     */
+    public void testSingleStreamPreservesOrder() {
+        List<SessionMessage> messages = new ArrayList<>();
+        messages.add(createMessage(20 * 1000));
+        messages.add(createMessage(2000));
+        for (SessionMessage message : messages)
+            message.setPriority(SessionMessage.Priority.INTERACTIVE);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(messages);
+
+        // Begins with the first message's version byte rather than a frame
+        byte[] chunk = sender.getNextChunk(CHUNK_BYTES);
+        assertEquals(SessionMessage.CURRENT_HEADER_VERSION, chunk[0]);
+
+        do {
+            deliver(chunk, sender);
+        } while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null);
+
+        List<SessionMessage> received = recorder.getMessages();
+        assertEquals(messages, received);
+        for (int i = 0; i < messages.size(); i++)
+            assertReceivedIntact(messages.get(i), received.get(i));
+    }
+
+    /**
+     * A control message queued during a bulk transfer is sent in the next chunk, ahead of the
+     * rest of the transfer
+     */
+    public void testControlOvertakesBulkAtChunkBoundary() {
+        DataTransferMessage bulk = createMessage(300 * 1000);
+        assertEquals(SessionMessage.Priority.BULK, bulk.getPriority());
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(bulk);
+        sender.setMaxStreams(4);
+
+        for (int i = 0; i < 5; i++)
+            deliver(sender.getNextChunk(CHUNK_BYTES), sender);
+
+        DataTransferMessage control = createMessage(100);
+        control.setPriority(SessionMessage.Priority.CONTROL);
+        sender.queueMessage(control);
+
+        deliver(sender.getNextChunk(CHUNK_BYTES), sender);
+        assertEquals(Arrays.<SessionMessage>asList(control), recorder.getMessages());
+
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null)
+            deliver(chunk, sender);
+
+        List<SessionMessage> received = recorder.getMessages();
+        assertEquals(Arrays.<SessionMessage>asList(control, bulk), received);
+        assertReceivedIntact(bulk, received.get(1));
+    }
+
+    /**
+     * Without frames, a message once begun is finished first, and priority orders those queued
+     */
+    public void testPriorityOrdersQueuedMessagesWithoutFrames() {
+        DataTransferMessage bulk        = createMessage(100 * 1000);
+        DataTransferMessage interactive = createMessage(1000);
+        DataTransferMessage control     = createMessage(100);
+        control.setPriority(SessionMessage.Priority.CONTROL);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(bulk);
+        deliver(sender.getNextChunk(CHUNK_BYTES), sender);
+
+        sender.queueMessage(interactive);
+        sender.queueMessage(control);
+
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null)
+            deliver(chunk, sender);
+
+        assertEquals(Arrays.<SessionMessage>asList(bulk, control, interactive), recorder.getMessages());
+    }
+
+    /**
+     * Small messages queued together share chunks, and are each delivered intact
+     */
+    public void testSmallMessagesCoalesced() {
+        List<SessionMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+            messages.add(createMessage(50));
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(messages);
+
+        int chunks = 0;
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            deliver(chunk, sender);
+            chunks++;
+        }
+
+        // Every chunk but the last is filled
+        long totalBytes = 0;
+        for (SessionMessage message : messages)
+            totalBytes += message.getTotalLengthBytes();
+        assertEquals((totalBytes + CHUNK_BYTES - 1) / CHUNK_BYTES, chunks);
+
+        List<SessionMessage> received = recorder.getMessages();
+        assertEquals(messages, received);
+        for (int i = 0; i < messages.size(); i++)
+            assertReceivedIntact(messages.get(i), received.get(i));
+    }
+
+    /**
+     * A partially filled chunk is held while an earlier chunk is in flight, until the linger
+     * time passes or the earlier chunk is acknowledged
+     */
+    public void testPartialChunkHeldNoLongerThanLinger() throws InterruptedException {
+        long lingerMs = 50;
+        SessionMessageSerializer sender = new SessionMessageSerializer(createMessage(50));
+        sender.setLingerMs(lingerMs);
+
+        // Nothing in flight, so sent at once
+        byte[] first = sender.getNextChunk(CHUNK_BYTES);
+        assertNotNull(first);
+        assertEquals(0, sender.getLingerRemainingMs());
+
+        sender.queueMessage(createMessage(50));
+        long heldAtMs = System.currentTimeMillis();
+        assertNull(sender.getNextChunk(CHUNK_BYTES));
+        long remainingMs = sender.getLingerRemainingMs();
+        assertTrue(remainingMs > 0 && remainingMs <= lingerMs);
+
+        // More messages join the held chunk
+        sender.queueMessage(createMessage(50));
+        assertNull(sender.getNextChunk(CHUNK_BYTES));
+
+        Thread.sleep(sender.getLingerRemainingMs());
+        byte[] lingered = sender.getNextChunk(CHUNK_BYTES);
+        assertNotNull(lingered);
+        assertTrue(System.currentTimeMillis() - heldAtMs >= lingerMs);
+        assertEquals(0, sender.getLingerRemainingMs());
+
+        // Acknowledging every chunk in flight releases a held chunk before the linger time
+        sender.queueMessage(createMessage(50));
+        assertNull(sender.getNextChunk(CHUNK_BYTES));
+        deliver(first, sender);
+        assertNull(sender.getNextChunk(CHUNK_BYTES));
+        deliver(lingered, sender);
+        byte[] released = sender.getNextChunk(CHUNK_BYTES);
+        assertNotNull(released);
+        deliver(released, sender);
+
+        assertEquals(4, recorder.getMessages().size());
+        assertTrue(recorder.failures.isEmpty());
+    }
+
+    private DataTransferMessage createMessage(int bodyBytes) {
+        byte[] payload = new byte[bodyBytes];
+        random.nextBytes(payload);
+        return DataTransferMessage.createOutgoing(null, payload);
+    }
+
+    /**
+     * Deliver chunk to the receiver and acknowledge it
+     */
+    private void deliver(byte[] chunk, SessionMessageSerializer sender) {
+        receiver.dataReceived(chunk);
+        sender.ackChunkDelivery();
+    }
+
+    private static SessionMessage findEqual(List<SessionMessage> received, SessionMessage sent) {
+        int index = received.indexOf(sent);
+        assertTrue("Not received " + sent.getHeaders().get(SessionMessage.HEADER_ID), index != -1);
+        return received.get(index);
+    }
+
+    private static void assertReceivedIntact(SessionMessage sent, SessionMessage received) {
+        assertEquals(sent, received);
+        assertTrue(Arrays.equals(sent.getBodyAtOffset(0, sent.getBodyLengthBytes()),
+                                 received.getBodyAtOffset(0, received.getBodyLengthBytes())));
+    }
+}
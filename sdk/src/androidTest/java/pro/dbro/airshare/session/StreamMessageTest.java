@@ -0,0 +1,200 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Tests the segment framing of {@link StreamMessage} bodies, and their delivery through a
+ * {@link StreamPlayoutBuffer} by {@link SessionMessageDeserializer}
+ */
+public class StreamMessageTest extends ApplicationTestCase<Application> {
+
+    private static final int  CHUNK_BYTES = 1024;
+    private static final long TIMEOUT_MS  = 5 * 1000;
+
+    private Random           random;
+    private ScriptedProducer producer;
+
+    public StreamMessageTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Timber.plant(new Timber.DebugTree());
+
+        random   = new Random(7);
+        producer = new ScriptedProducer();
+    }
+
+    /**
+     * Each batch produced is framed as a segment of its length and timestamp, and the body is
+     * ended by a zero length marker. Serialization waits while the producer has nothing.
+     */
+    public void testSegmentFraming() {
+        StreamMessage message = StreamMessage.createOutgoing(null, producer);
+        assertEquals(SessionMessage.BODY_LENGTH_UNKNOWN, message.getTotalLengthBytes());
+
+        final AtomicInteger notified = new AtomicInteger();
+        message.setDataAvailableListener(new StreamMessage.DataAvailableListener() {
+            @Override
+            public void onDataAvailable(@NonNull StreamMessage message) {
+                notified.incrementAndGet();
+            }
+        });
+
+        byte[] first  = createSegment(3);
+        byte[] second = createSegment(4);
+        producer.segments.add(first);
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        int offset = serialize(message, 0, serialized);
+
+        // Nothing more is available
+        assertEquals(offset, serialize(message, offset, serialized));
+        assertFalse(message.isSerializationComplete(offset));
+
+        producer.segments.add(second);
+        producer.ended = true;
+        message.notifyDataAvailable();
+        assertEquals(1, notified.get());
+
+        offset = serialize(message, offset, serialized);
+        assertTrue(message.isSerializationComplete(offset));
+
+        ByteBuffer body = ByteBuffer.wrap(serialized.toByteArray());
+        body.position(SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + message.getHeaderLengthBytes());
+
+        assertSegment(first, body);
+        assertSegment(second, body);
+        assertEquals(0, getUint(body, StreamMessage.SEGMENT_LENGTH_BYTES));
+        assertFalse(body.hasRemaining());
+    }
+
+    /**
+     * Segments spanning several chunks are reassembled and released to the playout buffer's
+     * listener in order, followed by the end of the stream
+     */
+    public void testSegmentsDeliveredThroughPlayoutBuffer() throws InterruptedException {
+        List<byte[]> sent = new ArrayList<>();
+        for (int length : new int[] {10, 3 * CHUNK_BYTES, 1, 500}) {
+            byte[] segment = createSegment(length);
+            sent.add(segment);
+            producer.segments.add(segment);
+        }
+        producer.ended = true;
+
+        final List<byte[]> received = new ArrayList<>();
+        final AtomicInteger dropped = new AtomicInteger(-1);
+        final StreamPlayoutBuffer.Listener listener = new StreamPlayoutBuffer.Listener() {
+            @Override
+            public void onSegment(@NonNull StreamMessage message, @NonNull byte[] segment, long timestampMs) {
+                received.add(segment);
+            }
+
+            @Override
+            public void onStreamEnd(@NonNull StreamMessage message, int droppedSegmentCount) {
+                dropped.set(droppedSegmentCount);
+            }
+        };
+
+        MessageRecorder recorder = new MessageRecorder() {
+            @Override
+            public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {
+                super.onHeaderReady(receiver, message);
+                ((StreamMessage) message).getPlayoutBuffer().setListener(listener);
+            }
+        };
+        SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+
+        StreamMessage message = StreamMessage.createOutgoing(null, producer);
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+
+        assertEquals(message, recorder.awaitMessage(TIMEOUT_MS));
+        assertTrue(recorder.failures.isEmpty());
+
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++)
+            assertTrue(Arrays.equals(sent.get(i), received.get(i)));
+        assertEquals(0, dropped.get());
+    }
+
+    private byte[] createSegment(int length) {
+        byte[] segment = new byte[length];
+        random.nextBytes(segment);
+        return segment;
+    }
+
+    /**
+     * Serialize message from offset into out until it has nothing more to write
+     *
+     * @return the offset following the last byte written
+     */
+    private static int serialize(StreamMessage message, int offset, ByteArrayOutputStream out) {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+        int written;
+        while ((written = message.serialize(offset, chunk)) > 0) {
+            out.write(chunk.array(), 0, written);
+            offset += written;
+            chunk.clear();
+        }
+        return offset;
+    }
+
+    private static void assertSegment(byte[] expected, ByteBuffer body) {
+        assertEquals(expected.length, getUint(body, StreamMessage.SEGMENT_LENGTH_BYTES));
+
+        // Timestamps are relative to the first segment, produced moments before
+        long timestampMs = getUint(body, StreamMessage.SEGMENT_TIMESTAMP_BYTES);
+        assertTrue(timestampMs >= 0 && timestampMs < TIMEOUT_MS);
+
+        byte[] payload = new byte[expected.length];
+        body.get(payload);
+        assertTrue(Arrays.equals(expected, payload));
+    }
+
+    private static long getUint(ByteBuffer buffer, int bytes) {
+        long value = 0;
+        for (int i = 0; i < bytes; i++)
+            value |= (long) (buffer.get() & 0xFF) << (8 * i);
+        return value;
+    }
+
+    /**
+     * Produces the queued segments one per call, then the end of the stream once ended
+     */
+    private static class ScriptedProducer implements StreamMessage.BodyProducer {
+
+        final ArrayDeque<byte[]> segments = new ArrayDeque<>();
+        boolean                  ended;
+
+        @Override
+        public int produce(@NonNull ByteBuffer out) {
+            byte[] segment = segments.poll();
+            if (segment != null) {
+                out.put(segment);
+                return segment.length;
+            }
+            return ended ? -1 : 0;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the release schedule and drops of {@link StreamPlayoutBuffer}
+ */
+public class StreamPlayoutBufferTest extends ApplicationTestCase<Application> {
+
+    private static final long PLAYOUT_DELAY_MS = 100;
+    private static final long TIMEOUT_MS       = 5 * 1000;
+
+    private StreamMessage   message;
+    private SegmentRecorder recorder;
+
+    public StreamPlayoutBufferTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        message = StreamMessage.createOutgoing(null, new StreamMessage.BodyProducer() {
+            @Override
+            public int produce(@NonNull ByteBuffer out) {
+                return -1;
+            }
+        });
+        recorder = new SegmentRecorder();
+    }
+
+    /**
+     * A segment arriving after it was due is dropped. Those in time are released once due.
+     */
+    public void testLateSegmentDropped() throws InterruptedException {
+        StreamPlayoutBuffer buffer = new StreamPlayoutBuffer(message, StreamPlayoutBuffer.DEFAULT_CAPACITY, PLAYOUT_DELAY_MS);
+        buffer.setListener(recorder);
+
+        long startMs = System.currentTimeMillis();
+        buffer.offer(segment(0), 0);
+
+        // Due PLAYOUT_DELAY_MS after the first, so late by the time it arrives
+        Thread.sleep(3 * PLAYOUT_DELAY_MS);
+        buffer.offer(segment(1), 1);
+        assertEquals(1, buffer.getDroppedSegmentCount());
+
+        long aheadMs = 5 * PLAYOUT_DELAY_MS;
+        buffer.offer(segment(2), aheadMs);
+        buffer.end();
+
+        assertTrue(recorder.ended.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // Held until due, rather than released as it arrived
+        assertTrue(System.currentTimeMillis() - startMs >= aheadMs);
+        assertEquals(Arrays.asList(0, 2), recorder.segments);
+        assertEquals(1, recorder.droppedSegmentCount);
+    }
+
+    /**
+     * Without a playout delay segments are released as they arrive, however late
+     */
+    public void testNoDelayReleasesImmediately() throws InterruptedException {
+        StreamPlayoutBuffer buffer = new StreamPlayoutBuffer(message, StreamPlayoutBuffer.DEFAULT_CAPACITY, 0);
+        buffer.setListener(recorder);
+
+        buffer.offer(segment(0), 0);
+        Thread.sleep(PLAYOUT_DELAY_MS);
+        buffer.offer(segment(1), 1);
+        assertEquals(Arrays.asList(0, 1), recorder.segments);
+
+        buffer.end();
+        assertEquals(0, recorder.ended.getCount());
+        assertEquals(0, recorder.droppedSegmentCount);
+    }
+
+    /**
+     * The oldest held segment is dropped when the buffer is full
+     */
+    public void testOldestDroppedAtCapacity() {
+        int capacity = 3;
+        StreamPlayoutBuffer buffer = new StreamPlayoutBuffer(message, capacity, 0);
+
+        // Held until a listener is set
+        for (int i = 0; i < capacity + 2; i++)
+            buffer.offer(segment(i), i);
+        assertEquals(2, buffer.getDroppedSegmentCount());
+
+        buffer.end();
+        buffer.setListener(recorder);
+        assertEquals(Arrays.asList(2, 3, 4), recorder.segments);
+        assertEquals(0, recorder.ended.getCount());
+        assertEquals(2, recorder.droppedSegmentCount);
+    }
+
+    private static byte[] segment(int index) {
+        return new byte[] {(byte) index};
+    }
+
+    /**
+     * Records the index each segment released carries
+     */
+    private static class SegmentRecorder implements StreamPlayoutBuffer.Listener {
+
+        final List<Integer>  segments = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch ended    = new CountDownLatch(1);
+        volatile int         droppedSegmentCount;
+
+        @Override
+        public void onSegment(@NonNull StreamMessage message, @NonNull byte[] segment, long timestampMs) {
+            segments.add((int) segment[0]);
+        }
+
+        @Override
+        public void onStreamEnd(@NonNull StreamMessage message, int droppedSegmentCount) {
+            this.droppedSegmentCount = droppedSegmentCount;
+            ended.countDown();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package pro.dbro.airshare.session;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import timber.log.Timber;
+
+/**
+ * Tests the resumption of an interrupted {@link DataTransferMessage} from the offset its
+ * recipient's {@link TransferCheckpoints} hold, across restarts of either peer
+ */
+public class TransferResumeTest extends ApplicationTestCase<Application> {
+
+    private static final int  CHUNK_BYTES = 16 * 1024;
+    private static final int  BODY_BYTES  = SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES + 100 * 1000;
+    private static final long TIMEOUT_MS  = 10 * 1000;
+
+    private byte[]          body;
+    private File            file;
+    private String          transferId;
+    private MessageRecorder recorder;
+
+    public TransferResumeTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Timber.plant(new Timber.DebugTree());
+
+        body = new byte[BODY_BYTES];
+        new Random(7).nextBytes(body);
+
+        file = File.createTempFile("resume", ".body", mContext.getCacheDir());
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        transferId = UUID.randomUUID().toString();
+        recorder   = new MessageRecorder();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    /**
+     * A transfer interrupted partway is checkpointed, and a message resuming it from the
+     * checkpoint completes the body already on disk
+     */
+    public void testResumeFromCheckpoint() throws Exception {
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, file, transferId);
+
+        SessionMessageDeserializer receiver = createReceiver(new TransferCheckpoints(mContext));
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        int sentBytes = 0;
+        while (sentBytes < BODY_BYTES / 2) {
+            byte[] chunk = sender.getNextChunk(CHUNK_BYTES);
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+            sentBytes += chunk.length;
+        }
+
+        // The link drops, and the recipient restarts
+        receiver.reset();
+        awaitDisk();
+        TransferCheckpoints checkpoints = new TransferCheckpoints(mContext);
+
+        int resumeOffset = checkpoints.getResumeOffset(transferId, BODY_BYTES);
+        assertTrue(resumeOffset > 0 && resumeOffset < sentBytes);
+        // A transfer of another body under the same id is not resumed
+        assertEquals(0, checkpoints.getResumeOffset(transferId, BODY_BYTES + 1));
+
+        DataTransferMessage resumed = message.resumeFrom(resumeOffset);
+        assertEquals(message, resumed);
+        assertEquals(resumeOffset, resumed.getResumeOffset());
+        // Only the body from the offset is sent
+        assertEquals(message.getTotalLengthBytes() - message.getHeaderLengthBytes() - resumeOffset,
+                     resumed.getTotalLengthBytes() - resumed.getHeaderLengthBytes());
+
+        receiver = createReceiver(checkpoints);
+        sender = new SessionMessageSerializer(resumed);
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+
+        SessionMessage received = recorder.awaitMessage(TIMEOUT_MS);
+        assertEquals(message, received);
+        assertTrue(Arrays.equals(body, received.getBodyAtOffset(0, BODY_BYTES)));
+        assertTrue(recorder.failures.isEmpty());
+
+        // A completed transfer is no longer checkpointed
+        assertEquals(0, new TransferCheckpoints(mContext).getResumeOffset(transferId, BODY_BYTES));
+    }
+
+    /**
+     * A message resuming a transfer the recipient holds nothing of fails rather than
+     * delivering a partial body
+     */
+    public void testResumeWithoutCheckpointFails() throws Exception {
+        DataTransferMessage resumed = DataTransferMessage.createOutgoing(null, file, transferId)
+                                                         .resumeFrom(BODY_BYTES / 2);
+
+        SessionMessageDeserializer receiver = createReceiver(new TransferCheckpoints(mContext));
+        SessionMessageSerializer sender = new SessionMessageSerializer(resumed);
+        byte[] chunk;
+        while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+            receiver.dataReceived(chunk);
+            sender.ackChunkDelivery();
+        }
+        awaitDisk();
+
+        assertFalse(recorder.failures.isEmpty());
+        assertTrue(recorder.getMessages().isEmpty());
+    }
+
+    private SessionMessageDeserializer createReceiver(TransferCheckpoints checkpoints) {
+        SessionMessageDeserializer receiver = new SessionMessageDeserializer(mContext, recorder, checkpoints);
+        receiver.setRetransmissionListener(recorder);
+        return receiver;
+    }
+
+    /**
+     * Wait for the shared disk thread to finish the writes queued before this call
+     */
+    private void awaitDisk() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+
+        File marker = File.createTempFile("marker", ".body", mContext.getCacheDir());
+        BodyFileWriter writer = new BodyFileWriter(marker);
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        writer.abort();
+        written.await();
+    }
+}
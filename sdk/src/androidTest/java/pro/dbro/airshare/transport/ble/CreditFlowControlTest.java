@@ -0,0 +1,272 @@
+package pro.dbro.airshare.transport.ble;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the credit window and sequenced frames of {@link CreditFlowControl}, as a sender and a
+ * receiver of the same link
+ */
+public class CreditFlowControlTest extends ApplicationTestCase<Application> {
+
+    private static final long NOW_MS = 10 * 1000;
+
+    private CreditFlowControl sender;
+    private CreditFlowControl receiver;
+
+    public CreditFlowControlTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        sender   = new CreditFlowControl();
+        receiver = new CreditFlowControl();
+    }
+
+    /**
+     * The sender fills its window, and each ack the receiver sends returns the credit of the
+     * frames it covers
+     */
+    public void testWindowExhaustionAndAcks() {
+        assertEquals(CreditFlowControl.WINDOW_FRAMES, fillWindow(NOW_MS));
+        assertFalse(sender.hasCredit());
+        assertEquals(CreditFlowControl.WINDOW_FRAMES, sender.getFramesUnacknowledged());
+
+        int acks = 0;
+        for (int i = 0; i < CreditFlowControl.WINDOW_FRAMES; i++) {
+            receiver.onDataReceived();
+            if (!receiver.isAckDue()) continue;
+
+            byte[] ack = receiver.createAck();
+            receiver.onAckSent();
+            assertEquals(CreditFlowControl.ACK_FRAME_BYTES, ack.length);
+            assertEquals(CreditFlowControl.FRAME_ACK, ack[0]);
+
+            assertTrue(sender.onAckReceived(ack, NOW_MS));
+            acks++;
+            assertEquals(CreditFlowControl.WINDOW_FRAMES - acks * CreditFlowControl.ACK_INTERVAL_FRAMES,
+                         sender.getFramesUnacknowledged());
+            assertTrue(sender.hasCredit());
+
+            // A repeated ack returns nothing more
+            assertFalse(sender.onAckReceived(ack, NOW_MS));
+        }
+        assertEquals(CreditFlowControl.WINDOW_FRAMES / CreditFlowControl.ACK_INTERVAL_FRAMES, acks);
+        assertEquals(0, sender.getFramesUnacknowledged());
+        assertFalse(receiver.isAckDue());
+
+        // Credit is never returned beyond the frames sent
+        assertFalse(sender.onAckReceived(ack(CreditFlowControl.WINDOW_FRAMES * 2), NOW_MS));
+        assertEquals(0, sender.getFramesUnacknowledged());
+    }
+
+    /**
+     * The ack count is taken modulo 2^32, so credit is returned as the count wraps, and a late
+     * ack from before the wrap returns none
+     */
+    public void testAckCountWrap() {
+        // Bring the count the sender last saw to 16 below the wrap. Acks cannot return more
+        // credit than is outstanding, however many frames they claim
+        fillWindow(NOW_MS);
+        assertTrue(sender.onAckReceived(ack(0x7FFFFFFF), NOW_MS));
+        assertEquals(0, sender.getFramesUnacknowledged());
+        assertFalse(sender.onAckReceived(ack(0xFFFFFFF0), NOW_MS));
+
+        fillWindow(NOW_MS);
+        assertTrue(sender.onAckReceived(ack(0xFFFFFFF8), NOW_MS));
+        assertEquals(CreditFlowControl.WINDOW_FRAMES - 8, sender.getFramesUnacknowledged());
+
+        // Wraps to 8
+        assertTrue(sender.onAckReceived(ack(8), NOW_MS));
+        assertEquals(CreditFlowControl.WINDOW_FRAMES - 24, sender.getFramesUnacknowledged());
+
+        // Arriving after the wrap
+        assertFalse(sender.onAckReceived(ack(0xFFFFFFFC), NOW_MS));
+        assertEquals(CreditFlowControl.WINDOW_FRAMES - 24, sender.getFramesUnacknowledged());
+
+        assertTrue(sender.onAckReceived(ack(16), NOW_MS));
+        assertEquals(0, sender.getFramesUnacknowledged());
+    }
+
+    /**
+     * A window that stays full for {@link CreditFlowControl#STALL_TIMEOUT_MS} is stalled, and its
+     * credit is not restored. Returned credit postpones the stall.
+     */
+    public void testStallDetection() {
+        fillWindow(NOW_MS);
+        long halfTimeout = CreditFlowControl.STALL_TIMEOUT_MS / 2;
+
+        assertFalse(sender.isStalled(NOW_MS + halfTimeout));
+        assertEquals(halfTimeout, sender.getStallRemainingMs(NOW_MS + halfTimeout));
+
+        // An ack returns credit, and the window fills again
+        assertTrue(sender.onAckReceived(ack(CreditFlowControl.ACK_INTERVAL_FRAMES), NOW_MS + halfTimeout));
+        assertFalse(sender.isStalled(NOW_MS + CreditFlowControl.STALL_TIMEOUT_MS));
+        assertEquals(CreditFlowControl.ACK_INTERVAL_FRAMES, fillWindow(NOW_MS + halfTimeout));
+
+        long filledMs = NOW_MS + halfTimeout;
+        assertFalse(sender.isStalled(filledMs + CreditFlowControl.STALL_TIMEOUT_MS - 1));
+        assertEquals(1, sender.getStallRemainingMs(filledMs + CreditFlowControl.STALL_TIMEOUT_MS - 1));
+
+        assertTrue(sender.isStalled(filledMs + CreditFlowControl.STALL_TIMEOUT_MS));
+        assertEquals(0, sender.getStallRemainingMs(filledMs + 2 * CreditFlowControl.STALL_TIMEOUT_MS));
+        assertFalse(sender.hasCredit());
+        assertEquals(CreditFlowControl.WINDOW_FRAMES, sender.getFramesUnacknowledged());
+    }
+
+    /**
+     * A frame that failed to send returns its credit
+     */
+    public void testFailedFrameReturnsCredit() {
+        fillWindow(NOW_MS);
+        sender.onDataFailed();
+        assertTrue(sender.hasCredit());
+        assertEquals(CreditFlowControl.WINDOW_FRAMES - 1, sender.getFramesUnacknowledged());
+    }
+
+    /**
+     * Sequence numbers wrap at 2^16 without interrupting delivery
+     */
+    public void testSequenceWrap() {
+        int frames = (1 << 16) + 100;
+        for (int i = 0; i < frames; i++) {
+            byte[] frame = sendSequenced(i);
+            if (i == 1 << 16) assertEquals(0, sequenceOf(frame));
+
+            List<byte[]> delivered = receiver.onSequencedDataReceived(frame);
+            assertEquals(1, delivered.size());
+            assertEquals(i, payloadOf(delivered.get(0)));
+        }
+        assertFalse(receiver.isSequenceBroken());
+    }
+
+    /**
+     * Frames reordered within {@link CreditFlowControl#REORDER_LIMIT_FRAMES} are delivered in
+     * sequence, and duplicates are ignored
+     */
+    public void testReorderingWithinLimit() {
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 4 * CreditFlowControl.REORDER_LIMIT_FRAMES; i++)
+            frames.add(sendSequenced(i));
+
+        // Each run of frames arrives in reverse, the first of it held up the longest
+        List<Integer> delivered = new ArrayList<>();
+        for (int run = 0; run < frames.size(); run += CreditFlowControl.REORDER_LIMIT_FRAMES) {
+            List<byte[]> reversed = new ArrayList<>(frames.subList(run, run + CreditFlowControl.REORDER_LIMIT_FRAMES));
+            Collections.reverse(reversed);
+            for (byte[] frame : reversed) {
+                receive(frame, delivered);
+
+                // A repeated frame is ignored, whether held or delivered
+                assertTrue(receiver.onSequencedDataReceived(reversed.get(0)).isEmpty());
+            }
+        }
+
+        assertFalse(receiver.isSequenceBroken());
+        assertEquals(frames.size(), delivered.size());
+        for (int i = 0; i < delivered.size(); i++)
+            assertEquals(i, (int) delivered.get(i));
+    }
+
+    /**
+     * A frame missing while {@link CreditFlowControl#REORDER_LIMIT_FRAMES} later frames are held
+     * is presumed lost. Nothing after it is delivered or acknowledged.
+     */
+    public void testLostFrameBreaksSequence() {
+        int lost = 5;
+        List<Integer> delivered = new ArrayList<>();
+
+        for (int i = 0; i <= lost + CreditFlowControl.REORDER_LIMIT_FRAMES; i++) {
+            byte[] frame = sendSequenced(i);
+            if (i == lost) continue;
+
+            receive(frame, delivered);
+            assertEquals(i >= lost + CreditFlowControl.REORDER_LIMIT_FRAMES, receiver.isSequenceBroken());
+        }
+        assertEquals(lost, delivered.size());
+
+        // Later frames, and the lost frame arriving late, are dropped
+        receive(sendSequenced(lost + CreditFlowControl.REORDER_LIMIT_FRAMES + 1), delivered);
+        assertEquals(lost, delivered.size());
+
+        // Only the frames delivered are acknowledged, so the sender's credit for the rest is not returned
+        assertTrue(sender.onAckReceived(receiver.createAck(), NOW_MS));
+        assertEquals(CreditFlowControl.REORDER_LIMIT_FRAMES + 2, sender.getFramesUnacknowledged());
+    }
+
+    /**
+     * A frame that failed to send has its sequence number reused by the next
+     */
+    public void testFailedFrameReusesSequence() {
+        List<Integer> delivered = new ArrayList<>();
+        receive(sendSequenced(0), delivered);
+
+        byte[] failed = sender.frameSequencedData(new byte[] {1});
+        sender.onDataSent(NOW_MS);
+        sender.onDataFailed();
+
+        byte[] resent = sendSequenced(1);
+        assertEquals(sequenceOf(failed), sequenceOf(resent));
+        receive(resent, delivered);
+        receive(sendSequenced(2), delivered);
+
+        assertFalse(receiver.isSequenceBroken());
+        assertEquals(3, delivered.size());
+        assertEquals(3, sender.getFramesUnacknowledged());
+    }
+
+    /**
+     * @return a sequenced frame from the sender carrying the little endian payload. Credit is not
+     * checked, as the frames' sequence numbers rather than the window are under test
+     */
+    private byte[] sendSequenced(int payload) {
+        byte[] frame = sender.frameSequencedData(new byte[] {(byte) payload, (byte) (payload >> 8), (byte) (payload >> 16)});
+        sender.onDataSent(NOW_MS);
+        return frame;
+    }
+
+    /**
+     * Pass frame to the receiver, recording the payloads it delivers
+     */
+    private void receive(byte[] frame, List<Integer> delivered) {
+        for (byte[] chunk : receiver.onSequencedDataReceived(frame))
+            delivered.add(payloadOf(chunk));
+    }
+
+    private static int sequenceOf(byte[] frame) {
+        return (frame[1] & 0xFF) | (frame[2] & 0xFF) << 8;
+    }
+
+    private static int payloadOf(byte[] chunk) {
+        return (chunk[0] & 0xFF) | (chunk[1] & 0xFF) << 8 | (chunk[2] & 0xFF) << 16;
+    }
+
+    /**
+     * Send data frames until the sender's window is full
+     *
+     * @return the frames sent
+     */
+    private int fillWindow(long nowMs) {
+        int sent = 0;
+        while (sender.hasCredit()) {
+            sender.onDataSent(nowMs);
+            sent++;
+        }
+        return sent;
+    }
+
+    private static byte[] ack(int count) {
+        return new byte[] { CreditFlowControl.FRAME_ACK,
+                            (byte) count,
+                            (byte) (count >> 8),
+                            (byte) (count >> 16),
+                            (byte) (count >> 24) };
+    }
+}
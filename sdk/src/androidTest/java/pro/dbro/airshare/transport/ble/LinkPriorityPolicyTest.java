@@ -0,0 +1,85 @@
+package pro.dbro.airshare.transport.ble;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+/**
+ * Tests the hysteresis of {@link LinkPriorityPolicy} between connection priorities
+ */
+public class LinkPriorityPolicyTest extends ApplicationTestCase<Application> {
+
+    private LinkPriorityPolicy policy;
+
+    public LinkPriorityPolicyTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        policy = new LinkPriorityPolicy();
+    }
+
+    /**
+     * A large backlog moves the link to high priority at once. It is held there until the
+     * backlog has stayed drained for {@link LinkPriorityPolicy#HIGH_HOLD_MS}, then moves to
+     * balanced, and to low power once idle for {@link LinkPriorityPolicy#IDLE_LOW_POWER_MS}
+     */
+    public void testHighHeldThenBalancedThenLowPower() {
+        assertEquals(LinkPriorityPolicy.Priority.BALANCED, policy.getPriority());
+        assertNull(policy.onBacklog(LinkPriorityPolicy.HIGH_BACKLOG_BYTES - 1, 0));
+        assertEquals(-1, policy.getEvaluationDelayMs(0));
+
+        assertEquals(LinkPriorityPolicy.Priority.HIGH, policy.onBacklog(LinkPriorityPolicy.HIGH_BACKLOG_BYTES, 10));
+
+        // Above drained, the hold does not begin
+        assertNull(policy.onBacklog(LinkPriorityPolicy.DRAINED_BACKLOG_BYTES + 1, 20));
+        assertEquals(-1, policy.getEvaluationDelayMs(20));
+
+        assertNull(policy.onBacklog(LinkPriorityPolicy.DRAINED_BACKLOG_BYTES, 100));
+        assertEquals(LinkPriorityPolicy.HIGH_HOLD_MS, policy.getEvaluationDelayMs(100));
+        assertEquals(LinkPriorityPolicy.HIGH_HOLD_MS - 400, policy.getEvaluationDelayMs(500));
+
+        // A pause between messages does not leave high priority
+        assertNull(policy.onBacklog(LinkPriorityPolicy.HIGH_BACKLOG_BYTES * 2, 1000));
+        assertEquals(LinkPriorityPolicy.Priority.HIGH, policy.getPriority());
+
+        long drainedMs = 1500;
+        assertNull(policy.onBacklog(0, drainedMs));
+        assertNull(policy.evaluate(drainedMs + LinkPriorityPolicy.HIGH_HOLD_MS - 1));
+        assertEquals(1, policy.getEvaluationDelayMs(drainedMs + LinkPriorityPolicy.HIGH_HOLD_MS - 1));
+
+        long balancedMs = drainedMs + LinkPriorityPolicy.HIGH_HOLD_MS;
+        assertEquals(LinkPriorityPolicy.Priority.BALANCED, policy.evaluate(balancedMs));
+
+        // Idle from the move to balanced
+        assertEquals(LinkPriorityPolicy.IDLE_LOW_POWER_MS, policy.getEvaluationDelayMs(balancedMs));
+        assertNull(policy.evaluate(balancedMs + LinkPriorityPolicy.IDLE_LOW_POWER_MS - 1));
+        assertEquals(LinkPriorityPolicy.Priority.LOW_POWER, policy.evaluate(balancedMs + LinkPriorityPolicy.IDLE_LOW_POWER_MS));
+        assertEquals(-1, policy.getEvaluationDelayMs(balancedMs + LinkPriorityPolicy.IDLE_LOW_POWER_MS));
+    }
+
+    /**
+     * A low power link returns to balanced as soon as it has anything to send, and idling
+     * begins again once it has nothing
+     */
+    public void testLowPowerWakesOnBacklog() {
+        assertNull(policy.onBacklog(0, 0));
+        assertEquals(LinkPriorityPolicy.Priority.LOW_POWER, policy.evaluate(LinkPriorityPolicy.IDLE_LOW_POWER_MS));
+
+        long wakeMs = 2 * LinkPriorityPolicy.IDLE_LOW_POWER_MS;
+        assertEquals(LinkPriorityPolicy.Priority.BALANCED, policy.onBacklog(1, wakeMs));
+        assertEquals(-1, policy.getEvaluationDelayMs(wakeMs));
+
+        // Sending keeps it balanced, however long
+        assertNull(policy.evaluate(wakeMs + 2 * LinkPriorityPolicy.IDLE_LOW_POWER_MS));
+
+        long idleMs = wakeMs + 3 * LinkPriorityPolicy.IDLE_LOW_POWER_MS;
+        assertNull(policy.onBacklog(0, idleMs));
+        assertEquals(LinkPriorityPolicy.IDLE_LOW_POWER_MS, policy.getEvaluationDelayMs(idleMs));
+
+        // A backlog large enough moves straight to high
+        assertEquals(LinkPriorityPolicy.Priority.HIGH, policy.onBacklog(LinkPriorityPolicy.HIGH_BACKLOG_BYTES, idleMs + 1));
+    }
+}
@@ -0,0 +1,271 @@
+package pro.dbro.airshare.transport.l2cap;
+
+import android.app.Application;
+import android.test.ApplicationTestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.airshare.session.DataTransferMessage;
+import pro.dbro.airshare.session.MessageRecorder;
+import pro.dbro.airshare.session.SessionMessage;
+import pro.dbro.airshare.session.SessionMessageDeserializer;
+import pro.dbro.airshare.session.SessionMessageSerializer;
+import pro.dbro.airshare.transport.Transport;
+import timber.log.Timber;
+
+/**
+ * Tests {@link L2capTransport} over in-process channels: a client connects to a listening host,
+ * sends it a {@link pro.dbro.airshare.session.SessionMessage}, and closes
+ */
+public class L2capTransportTest extends ApplicationTestCase<Application> {
+
+    private static final int    PSM          = 0x80;
+    private static final String HOST_ADDRESS = "00:11:22:33:44:55";
+    private static final String CLIENT_ADDRESS = "66:77:88:99:AA:BB";
+    private static final int    CHUNK_BYTES  = L2capTransport.DEFAULT_MTU_BYTES;
+    private static final long   TIMEOUT_MS   = 5000;
+
+    private PipedChannelProvider hostProvider;
+    private PipedChannelProvider clientProvider;
+
+    private RecordingCallback hostCallback;
+    private RecordingCallback clientCallback;
+
+    private L2capTransport host;
+    private L2capTransport client;
+
+    public L2capTransportTest() {
+        super(Application.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        Timber.plant(new Timber.DebugTree());
+
+        hostProvider   = new PipedChannelProvider(HOST_ADDRESS, null);
+        clientProvider = new PipedChannelProvider(CLIENT_ADDRESS, hostProvider);
+
+        hostCallback   = new RecordingCallback();
+        clientCallback = new RecordingCallback();
+
+        host   = new L2capTransport("test", hostCallback, hostProvider);
+        client = new L2capTransport("test", clientCallback, clientProvider);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.stop();
+        host.stop();
+        super.tearDown();
+    }
+
+    public void testMessageRoundTrip() throws Exception {
+        host.advertise();
+        assertEquals(PSM, host.getListeningChannel());
+
+        client.connect(HOST_ADDRESS, PSM);
+
+        // Each reports the other, and which of them hosts
+        String hostIdentifier   = clientCallback.awaitStatus(Transport.ConnectionStatus.CONNECTED, true);
+        String clientIdentifier = hostCallback.awaitStatus(Transport.ConnectionStatus.CONNECTED, false);
+        assertTrue(hostIdentifier.endsWith(HOST_ADDRESS));
+        assertTrue(clientIdentifier.endsWith(CLIENT_ADDRESS));
+
+        byte[] payload = new byte[20000];
+        new Random(7).nextBytes(payload);
+        DataTransferMessage message = DataTransferMessage.createOutgoing(null, payload);
+
+        SessionMessageSerializer sender = new SessionMessageSerializer(message);
+        ArrayDeque<byte[]> inFlight = new ArrayDeque<>();
+        int chunksSent = 0;
+
+        while (true) {
+            byte[] chunk;
+            while ((chunk = sender.getNextChunk(CHUNK_BYTES)) != null) {
+                inFlight.add(chunk);
+                assertTrue(client.sendData(chunk, hostIdentifier));
+            }
+            if (inFlight.isEmpty()) break;
+
+            // Each chunk is reported sent, in order, once flushed to the channel
+            assertSame(inFlight.poll(), clientCallback.sent.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            sender.ackChunkDelivery();
+            chunksSent++;
+        }
+        assertTrue(chunksSent > 1);
+        assertTrue(clientCallback.failures.isEmpty());
+
+        SessionMessage received = hostCallback.awaitMessage();
+        assertEquals(message, received);
+        assertTrue(Arrays.equals(payload, received.getBodyAtOffset(0, received.getBodyLengthBytes())));
+
+        // Closing the channel disconnects both ends
+        client.stop();
+        assertEquals(hostIdentifier, clientCallback.awaitStatus(Transport.ConnectionStatus.DISCONNECTED, true));
+        assertEquals(clientIdentifier, hostCallback.awaitStatus(Transport.ConnectionStatus.DISCONNECTED, false));
+        assertFalse(client.sendData(new byte[1], hostIdentifier));
+    }
+
+    public void testStopEndsListening() throws Exception {
+        host.advertise();
+        host.stop();
+        assertEquals(-1, host.getListeningChannel());
+
+        // Nothing accepts the connection
+        client.connect(HOST_ADDRESS, PSM);
+        assertNull(hostCallback.statuses.poll(200, TimeUnit.MILLISECONDS));
+        assertNull(clientCallback.statuses.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Records transport events, and reassembles messages from the data received
+     */
+    private class RecordingCallback implements Transport.TransportCallback {
+
+        final BlockingQueue<Object[]>  statuses = new LinkedBlockingQueue<>();
+        final BlockingQueue<byte[]>    sent     = new LinkedBlockingQueue<>();
+        final BlockingQueue<Exception> failures = new LinkedBlockingQueue<>();
+        final MessageRecorder          recorder = new MessageRecorder();
+
+        private final SessionMessageDeserializer receiver = recorder.createReceiver(mContext);
+
+        @Override
+        public void dataReceivedFromIdentifier(Transport transport, byte[] data, String identifier) {
+            receiver.dataReceived(data);
+        }
+
+        @Override
+        public void dataSentToIdentifier(Transport transport, byte[] data, String identifier, Exception exception) {
+            if (exception != null) failures.add(exception);
+            else sent.add(data);
+        }
+
+        @Override
+        public void identifierUpdated(Transport transport,
+                                      String identifier,
+                                      Transport.ConnectionStatus status,
+                                      boolean peerIsHost,
+                                      Map<String, Object> extraInfo) {
+
+            statuses.add(new Object[] {identifier, status, peerIsHost});
+        }
+
+        /**
+         * @return the identifier of the next status update, which must match status and peerIsHost
+         */
+        String awaitStatus(Transport.ConnectionStatus status, boolean peerIsHost) throws InterruptedException {
+            Object[] update = statuses.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("No " + status, update);
+            assertEquals(status, update[1]);
+            assertEquals(peerIsHost, update[2]);
+            return (String) update[0];
+        }
+
+        SessionMessage awaitMessage() throws InterruptedException {
+            SessionMessage message = recorder.awaitMessage(TIMEOUT_MS);
+            assertTrue(recorder.failures.isEmpty());
+            assertNotNull(message);
+            return message;
+        }
+    }
+
+    /**
+     * Opens channels to another provider in this process over a pair of piped streams
+     */
+    private static class PipedChannelProvider implements L2capTransport.ChannelProvider {
+
+        private final String               address;
+        private final PipedChannelProvider remote;
+        private final BlockingQueue<L2capTransport.Channel> accepted = new LinkedBlockingQueue<>();
+
+        private volatile boolean listening;
+
+        PipedChannelProvider(String address, PipedChannelProvider remote) {
+            this.address = address;
+            this.remote  = remote;
+        }
+
+        @Override
+        public int listen() throws IOException {
+            listening = true;
+            return PSM;
+        }
+
+        @Override
+        public L2capTransport.Channel accept() throws IOException {
+            try {
+                L2capTransport.Channel channel = accepted.take();
+                if (!listening) throw new IOException("Stopped listening");
+                return channel;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public L2capTransport.Channel connect(String address, int channel) throws IOException {
+            if (remote == null || !remote.address.equals(address) || channel != PSM || !remote.listening)
+                throw new IOException("Connection refused");
+
+            PipedInputStream toRemote   = new PipedInputStream(L2capTransport.STREAM_BUFFER_BYTES);
+            PipedInputStream fromRemote = new PipedInputStream(L2capTransport.STREAM_BUFFER_BYTES);
+
+            remote.accepted.add(new PipedChannel(this.address, toRemote, new PipedOutputStream(fromRemote)));
+            return new PipedChannel(address, fromRemote, new PipedOutputStream(toRemote));
+        }
+
+        @Override
+        public void stopListening() {
+            listening = false;
+            // Wakes the accepting thread
+            accepted.add(new PipedChannel(address, new PipedInputStream(), new PipedOutputStream()));
+        }
+    }
+
+    private static class PipedChannel implements L2capTransport.Channel {
+
+        private final String            remoteAddress;
+        private final PipedInputStream  inputStream;
+        private final PipedOutputStream outputStream;
+
+        PipedChannel(String remoteAddress, PipedInputStream inputStream, PipedOutputStream outputStream) {
+            this.remoteAddress = remoteAddress;
+            this.inputStream   = inputStream;
+            this.outputStream  = outputStream;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+            inputStream.close();
+        }
+    }
+}
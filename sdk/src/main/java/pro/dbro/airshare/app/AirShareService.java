@@ -15,9 +15,13 @@ import com.google.common.base.Objects;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
+import java.io.File;
 import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 import pro.dbro.airshare.crypto.KeyPair;
@@ -27,6 +31,10 @@ import pro.dbro.airshare.session.LocalPeer;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionManager;
 import pro.dbro.airshare.session.SessionMessage;
+import pro.dbro.airshare.session.SessionMessageRegistry;
+import pro.dbro.airshare.session.StreamMessage;
+import pro.dbro.airshare.session.StreamPlayoutBuffer;
+import pro.dbro.airshare.session.TypedMessage;
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
 
@@ -60,6 +68,93 @@ public class AirShareService extends Service implements ActivityRecevingMessages
 
     }
 
+    /**
+     * An optional extension of {@link Callback} for clients handling data too large
+     * to hold in memory. Such data is otherwise read into a byte[] for
+     * {@link Callback#onDataRecevied(ServiceBinder, byte[], Peer, Exception)} and
+     * {@link Callback#onDataSent(ServiceBinder, byte[], Peer, Exception)}
+     */
+    public interface FileCallback extends Callback {
+
+        void onDataReceived(@NonNull AirShareService.ServiceBinder binder,
+                            @NonNull File data,
+                            @NonNull Peer sender,
+                            @Nullable Exception exception);
+
+        void onDataSent(@NonNull AirShareService.ServiceBinder binder,
+                        @NonNull File data,
+                        @NonNull Peer recipient,
+                        @Nullable Exception exception);
+
+    }
+
+    /**
+     * An optional extension of {@link Callback} for clients receiving live streams sent via
+     * {@link ServiceBinder#sendStream(StreamMessage.BodyProducer, Peer)}.
+     * Streams are ignored if the registered Callback does not implement this.
+     */
+    public interface StreamCallback extends Callback {
+
+        /**
+         * Called when a remote peer begins a stream. Configure how segments are released
+         * via {@link StreamMessage#setPlayoutBuffer(int, long)} and attach a listener via
+         * {@link StreamPlayoutBuffer#setListener(StreamPlayoutBuffer.Listener)}.
+         */
+        void onStreamReceiving(@NonNull AirShareService.ServiceBinder binder,
+                               @NonNull StreamMessage stream,
+                               @NonNull Peer sender);
+
+    }
+
+    /**
+     * An optional extension of {@link Callback} for clients that process received data as it
+     * arrives rather than once complete. Data taken by a sink is not reported to
+     * {@link Callback#onDataRecevied(ServiceBinder, byte[], Peer, Exception)}
+     */
+    public interface BodySinkCallback extends Callback {
+
+        /**
+         * Called on a background thread as data from sender begins to arrive, so must not block.
+         *
+         * @return a sink to receive the data slice by slice, or null to receive it once complete
+         */
+        @Nullable DataTransferMessage.BodySink onDataReceiving(@NonNull AirShareService.ServiceBinder binder,
+                                                               @NonNull DataTransferMessage message,
+                                                               @NonNull Peer sender);
+
+    }
+
+    /**
+     * An optional extension of {@link Callback} for clients exchanging app-defined types
+     * registered with {@link SessionMessageRegistry} and sent via
+     * {@link ServiceBinder#send(TypedMessage, Peer)}.
+     * Typed messages are ignored if the registered Callback does not implement this.
+     */
+    public interface TypedMessageCallback extends Callback {
+
+        void onMessageReceived(@NonNull AirShareService.ServiceBinder binder,
+                               @NonNull TypedMessage<?> message,
+                               @NonNull Peer sender);
+
+    }
+
+    /**
+     * An optional extension of {@link Callback} for clients that observe how transports adapt
+     * the link to each peer, e.g: to correlate connection priority with throughput
+     */
+    public interface LinkCallback extends Callback {
+
+        /**
+         * @param linkInfo see {@link pro.dbro.airshare.transport.ble.BLETransport#LINK_PRIORITY}
+         *                 and neighbouring keys
+         */
+        void onPeerLinkUpdated(@NonNull AirShareService.ServiceBinder binder,
+                               @NonNull Peer peer,
+                               int transportCode,
+                               @NonNull Map<String, Object> linkInfo);
+
+    }
+
     private SessionManager sessionManager;
     private Callback callback;
     private boolean activityRecevingMessages;
@@ -159,6 +254,73 @@ public class AirShareService extends Service implements ActivityRecevingMessages
             addOutgoingTransfer(new OutgoingTransfer(data, recipient, sessionManager));
         }
 
+        /**
+         * Send data with the given priority. Transfers of a higher priority preempt those of a
+         * lower priority in progress to the same peer. By default, data over
+         * {@link DataTransferMessage#BULK_BODY_BYTES} is sent as {@link SessionMessage.Priority#BULK}
+         * and yields to smaller messages.
+         */
+        public void send(byte[] data, Peer recipient, SessionMessage.Priority priority) {
+            addOutgoingTransfer(new OutgoingTransfer(data, recipient, priority, sessionManager));
+        }
+
+        /**
+         * Send the contents of file without loading it into memory.
+         * file must not be modified until reported sent.
+         */
+        public void send(File file, Peer recipient) {
+            addOutgoingTransfer(new OutgoingTransfer(file, recipient, sessionManager));
+        }
+
+        public void send(File file, Peer recipient, SessionMessage.Priority priority) {
+            addOutgoingTransfer(new OutgoingTransfer(file, recipient, priority, sessionManager));
+        }
+
+        /**
+         * Send data to each of recipients. The data is encoded once and shared by every
+         * recipient's queue. Delivery is reported per recipient, as for a single send.
+         */
+        public void send(byte[] data, Collection<Peer> recipients) {
+            addOutgoingTransfer(new OutgoingTransfer(data, recipients, null, sessionManager));
+        }
+
+        public void send(File file, Collection<Peer> recipients) {
+            addOutgoingTransfer(new OutgoingTransfer(file, recipients, null, sessionManager));
+        }
+
+        /**
+         * Send file under transferId, which should be the same on every attempt to send it,
+         * e.g: derived from the file's name and length. A recipient holding part of an earlier
+         * attempt interrupted when either peer's service stopped is sent only the remainder.
+         * Transfers interrupted by a disconnect while this service runs resume without this.
+         */
+        public void send(File file, Peer recipient, String transferId) {
+            addOutgoingTransfer(new OutgoingTransfer(file, Collections.singleton(recipient), null, transferId, sessionManager));
+        }
+
+        /**
+         * Send a value of an app-defined type, created via {@link TypedMessage#createOutgoing(Object)}.
+         * The recipient must have registered the same type with {@link SessionMessageRegistry}.
+         */
+        public void send(TypedMessage<?> message, Peer recipient) {
+            sessionManager.sendMessage(message, recipient);
+        }
+
+        public void send(TypedMessage<?> message, Collection<Peer> recipients) {
+            sessionManager.sendMessage(message, recipients);
+        }
+
+        /**
+         * Send a live stream of unknown length pulled from producer.
+         * Call {@link StreamMessage#notifyDataAvailable()} on the result whenever producer
+         * has data after having none.
+         */
+        public StreamMessage sendStream(StreamMessage.BodyProducer producer, Peer recipient) {
+            StreamMessage stream = StreamMessage.createOutgoing(null, producer);
+            sessionManager.sendMessage(stream, recipient);
+            return stream;
+        }
+
         /**
          * Request a higher-bandwidth transport be established with the remote peer.
          * Notification of the result of this call is reported by
@@ -172,7 +334,10 @@ public class AirShareService extends Service implements ActivityRecevingMessages
          * it may require the base transport, currently {@link pro.dbro.airshare.transport.ble.BLETransport},
          * be suspended to prevent interference.
          *
-         * At this time the only available supplementary transport is
+         * Peers identified over BLE on Android 10 and later move to
+         * {@link pro.dbro.airshare.transport.l2cap.L2capTransport} without a request.
+         *
+         * At this time the only supplementary transport available on request is
          * {@link pro.dbro.airshare.transport.wifi.WifiTransport}
          * which requires the host application add the following permissions:
          *
@@ -200,7 +365,8 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         /** Get the current preferred available transport for the given peer
          *  This is generally the available transport with the highest bandwidth
          *
-         *  @return either {@link pro.dbro.airshare.transport.wifi.WifiTransport#TRANSPORT_CODE}
+         *  @return either {@link pro.dbro.airshare.transport.wifi.WifiTransport#TRANSPORT_CODE},
+         *                 {@link pro.dbro.airshare.transport.l2cap.L2capTransport#TRANSPORT_CODE}
          *                 or {@link pro.dbro.airshare.transport.ble.BLETransport#TRANSPORT_CODE},
          *                 or -1 if none available.
          */
@@ -239,15 +405,15 @@ public class AirShareService extends Service implements ActivityRecevingMessages
     }
 
     private void addOutgoingTransfer(OutgoingTransfer transfer) {
-        Peer recipient = transfer.getRecipient();
-
         incomingMessageListeners.add(transfer);
         messageDeliveryListeners.add(transfer);
 
-        if (!outPeerTransfers.containsKey(recipient))
-            outPeerTransfers.put(recipient, new ArrayDeque<OutgoingTransfer>());
+        for (Peer recipient : transfer.getRecipients()) {
+            if (!outPeerTransfers.containsKey(recipient))
+                outPeerTransfers.put(recipient, new ArrayDeque<OutgoingTransfer>());
 
-        outPeerTransfers.get(recipient).add(transfer);
+            outPeerTransfers.get(recipient).add(transfer);
+        }
     }
 
     /** Handler that processes Messages on a background thread */
@@ -328,8 +494,26 @@ public class AirShareService extends Service implements ActivityRecevingMessages
     }
 
     @Override
-    public void messageReceivingFromPeer(@NonNull SessionMessage message, @NonNull final Peer recipient, final float progress) {
-        // currently unused
+    public void messageHeaderFromPeer(@NonNull SessionMessage message, @NonNull Peer sender) {
+        if (!(message instanceof DataTransferMessage) || !(callback instanceof BodySinkCallback)) return;
+
+        // Not posted to the foreground, as the sink must be set before the body arrives
+        DataTransferMessage transferMessage = (DataTransferMessage) message;
+        transferMessage.setBodySink(((BodySinkCallback) callback).onDataReceiving(binder, transferMessage, sender));
+    }
+
+    @Override
+    public void messageReceivingFromPeer(@NonNull final SessionMessage message, @NonNull final Peer recipient, final float progress) {
+        // Only streams are reported before completion
+        if (!(message instanceof StreamMessage)) return;
+
+        foregroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (callback instanceof StreamCallback)
+                    ((StreamCallback) callback).onStreamReceiving(binder, (StreamMessage) message, recipient);
+            }
+        });
     }
 
     @Override
@@ -347,17 +531,34 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         }
 
         final IncomingTransfer incomingTransfer;
-        if(message.getType().equals(DataTransferMessage.HEADER_TYPE)) {
+        if (message instanceof DataTransferMessage && ((DataTransferMessage) message).getBodySink() != null) {
+
+            // The body was taken by the app's sink as it arrived
+            Timber.d("Body of %s message from %s was delivered to its sink", message.getType(), sender.getAlias());
+
+        } else if(message.getType().equals(DataTransferMessage.HEADER_TYPE)) {
 
             incomingTransfer = new IncomingTransfer((DataTransferMessage) message, sender);
             // No action is required for DataTransferMessage. Report complete
             foregroundHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    if (callback != null)
+                    if (callback instanceof FileCallback && incomingTransfer.getBodyFile() != null)
+                        ((FileCallback) callback).onDataReceived(binder, incomingTransfer.getBodyFile(), sender, null);
+                    else if (callback != null)
                         callback.onDataRecevied(binder, incomingTransfer.getBodyBytes(), sender, null);
                 }
             });
+        } else if (message instanceof TypedMessage) {
+
+            final TypedMessage<?> typedMessage = (TypedMessage<?>) message;
+            foregroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (callback instanceof TypedMessageCallback)
+                        ((TypedMessageCallback) callback).onMessageReceived(binder, typedMessage, sender);
+                }
+            });
         }
     }
 
@@ -386,7 +587,10 @@ public class AirShareService extends Service implements ActivityRecevingMessages
             foregroundHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    if (callback != null) callback.onDataSent(binder, outgoingTransfer.getBodyBytes(), recipient, null);
+                    if (callback instanceof FileCallback && outgoingTransfer.getBodyFile() != null)
+                        ((FileCallback) callback).onDataSent(binder, outgoingTransfer.getBodyFile(), recipient, null);
+                    else if (callback != null)
+                        callback.onDataSent(binder, outgoingTransfer.getBodyBytes(), recipient, null);
                 }
             });
         }
@@ -402,5 +606,16 @@ public class AirShareService extends Service implements ActivityRecevingMessages
         });
     }
 
+    @Override
+    public void peerLinkUpdated(@NonNull final Peer peer, final int transportCode, @NonNull final Map<String, Object> linkInfo) {
+        foregroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (callback instanceof LinkCallback)
+                    ((LinkCallback) callback).onPeerLinkUpdated(binder, peer, transportCode, linkInfo);
+            }
+        });
+    }
+
     // </editor-fold desc="SessionManagerCallback">
 }
\ No newline at end of file
@@ -1,5 +1,14 @@
 package pro.dbro.airshare.app;
 
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.airshare.session.SessionMessage;
@@ -8,8 +17,8 @@ import pro.dbro.airshare.session.SessionMessageScheduler;
 /**
  * An OutgoingTransfer wraps an outgoing data transfer.
  *
- * 1. Constructed with a byte[]
- * 2. Sends a DataTransferMessage
+ * 1. Constructed with a byte[] or File
+ * 2. Sends a DataTransferMessage to one or more recipients, tracking delivery to each
  *
  * Created by davidbrodsky on 3/13/15.
  */
@@ -24,9 +33,9 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
         COMPLETE
     }
 
-    private Peer recipient;
+    /** Delivery state of each recipient, in the order given */
+    private Map<Peer, State> recipientStates;
     private SessionMessageScheduler messageSender;
-    private State state;
 
     // <editor-fold desc="Outgoing Constructors">
 
@@ -34,29 +43,124 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
                             Peer recipient,
                             SessionMessageScheduler messageSender) {
 
-        init(recipient, messageSender);
+        this(data, recipient, null, messageSender);
+    }
+
+    /**
+     * @param priority the scheduling class of the transfer, or null for the default given its size.
+     *                 See {@link SessionMessage#getPriority()}
+     */
+    public OutgoingTransfer(byte[] data,
+                            Peer recipient,
+                            @Nullable SessionMessage.Priority priority,
+                            SessionMessageScheduler messageSender) {
+
+        this(data, Collections.singleton(recipient), priority, messageSender);
+    }
+
+    /**
+     * Send data to each of recipients. The message is encoded once for all of them.
+     */
+    public OutgoingTransfer(byte[] data,
+                            Collection<Peer> recipients,
+                            @Nullable SessionMessage.Priority priority,
+                            SessionMessageScheduler messageSender) {
+
+        init(recipients, messageSender);
 
         transferMessage = DataTransferMessage.createOutgoing(null, data);
-        messageSender.sendMessage(transferMessage, recipient);
+        send(priority);
+    }
+
+    /**
+     * Send the contents of file. The file is read as it is sent and must not be modified
+     * until the transfer is complete.
+     */
+    public OutgoingTransfer(File file,
+                            Peer recipient,
+                            SessionMessageScheduler messageSender) {
 
-        state = State.AWAITING_DATA_ACK;
+        this(file, recipient, null, messageSender);
     }
 
+    public OutgoingTransfer(File file,
+                            Peer recipient,
+                            @Nullable SessionMessage.Priority priority,
+                            SessionMessageScheduler messageSender) {
+
+        this(file, Collections.singleton(recipient), priority, messageSender);
+    }
+
+    public OutgoingTransfer(File file,
+                            Collection<Peer> recipients,
+                            @Nullable SessionMessage.Priority priority,
+                            SessionMessageScheduler messageSender) {
+
+        this(file, recipients, priority, null, messageSender);
+    }
+
+    /**
+     * @param transferId the id of an earlier transfer of file, e.g: one interrupted by a restart,
+     *                   so that recipients holding part of it are sent only the remainder.
+     *                   null for a new transfer. See {@link #getTransferId()}
+     */
+    public OutgoingTransfer(File file,
+                            Collection<Peer> recipients,
+                            @Nullable SessionMessage.Priority priority,
+                            @Nullable String transferId,
+                            SessionMessageScheduler messageSender) {
+
+        init(recipients, messageSender);
+
+        transferMessage = transferId == null ? DataTransferMessage.createOutgoing(null, file) :
+                                               DataTransferMessage.createOutgoing(null, file, transferId);
+        send(priority);
+    }
 
     // </editor-fold desc="Outgoing Constructors">
 
-    private void init(Peer recipient, SessionMessageScheduler sender) {
-        this.recipient = recipient;
+    private void init(Collection<Peer> recipients, SessionMessageScheduler sender) {
+        if (recipients.isEmpty())
+            throw new IllegalArgumentException("A transfer requires at least one recipient");
+
+        recipientStates = new LinkedHashMap<>();
+        for (Peer recipient : recipients)
+            recipientStates.put(recipient, State.AWAITING_DATA_ACK);
+
         this.messageSender = sender;
     }
 
+    private void send(@Nullable SessionMessage.Priority priority) {
+        if (priority != null)
+            transferMessage.setPriority(priority);
+
+        if (recipientStates.size() == 1)
+            messageSender.sendMessage(transferMessage, getRecipient());
+        else
+            messageSender.sendMessage(transferMessage, recipientStates.keySet());
+    }
+
     public String getTransferId() {
         if (transferMessage == null) return null;
         return (String) transferMessage.getHeaders().get(SessionMessage.HEADER_ID);
     }
 
+    /**
+     * @return the recipient of this transfer, or the first if it has several
+     */
     public Peer getRecipient() {
-        return recipient;
+        return recipientStates.keySet().iterator().next();
+    }
+
+    public Set<Peer> getRecipients() {
+        return Collections.unmodifiableSet(recipientStates.keySet());
+    }
+
+    /**
+     * @return the delivery state of this transfer to recipient, or null if not a recipient
+     */
+    public @Nullable State getState(Peer recipient) {
+        return recipientStates.get(recipient);
     }
 
     @Override
@@ -71,10 +175,10 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
     @Override
     public boolean onMessageDelivered(SessionMessage message, Peer recipient, Exception exception) {
 
-        if (state == State.AWAITING_DATA_ACK && transferMessage != null && message.equals(transferMessage)) {
+        if (getState(recipient) == State.AWAITING_DATA_ACK && transferMessage != null && message.equals(transferMessage)) {
 
-            state = State.COMPLETE;
-            return false;
+            recipientStates.put(recipient, State.COMPLETE);
+            return !isComplete();
         }
 
         return true;
@@ -84,6 +188,6 @@ public class OutgoingTransfer extends Transfer implements IncomingMessageListene
 
     @Override
     public boolean isComplete() {
-        return state == State.COMPLETE;
+        return !recipientStates.containsValue(State.AWAITING_DATA_ACK);
     }
 }
@@ -2,12 +2,14 @@ package pro.dbro.airshare.app;
 
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Map;
 
 import pro.dbro.airshare.session.DataTransferMessage;
 import pro.dbro.airshare.session.SessionMessage;
+import timber.log.Timber;
 
 /**
  * Created by davidbrodsky on 3/14/15.
@@ -19,10 +21,26 @@ public abstract class Transfer {
     public abstract boolean isComplete();
 
     public @Nullable InputStream getBody() {
+        if (transferMessage instanceof DataTransferMessage) {
+            try {
+                return ((DataTransferMessage) transferMessage).getBodyStream();
+            } catch (IOException e) {
+                Timber.e(e, "Failed to open transfer body");
+                return null;
+            }
+        } else
+            throw new IllegalStateException("Only DataTransferMessage is supported!");
+    }
+
+    /**
+     * @return the file holding this transfer's body if it was too large to hold in memory,
+     * else null. Prefer this or {@link #getBody()} to {@link #getBodyBytes()} for such bodies.
+     */
+    public @Nullable File getBodyFile() {
         if (transferMessage instanceof DataTransferMessage)
-            return new ByteArrayInputStream(getBodyBytes());
+            return ((DataTransferMessage) transferMessage).getBodyFile();
         else
-            throw new IllegalStateException("Only DataTransferMessage is supported!");
+            return null;
     }
 
     public @Nullable byte[] getBodyBytes() {
@@ -0,0 +1,164 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of {@link pro.dbro.airshare.session.DataTransferMessage} bodies for peers that
+ * {@link Peer#supportsCompression()}.
+ *
+ * A compressed body is a sequence of blocks, each encoding up to {@link #BLOCK_BYTES} of the
+ * body independently so that the recipient can decode each as it arrives:
+ *
+ * byte idx | description
+ * ---------|------------
+ * [0]      | {@link #BLOCK_STORED} or {@link #BLOCK_DEFLATED}
+ * [1-2]    | Encoded length as little endian uint16
+ * [3-X]    | The block's body bytes, as is or zlib deflated. 'X' is value specified by Encoded length
+ *
+ * Blocks that would not shrink are stored. Bodies whose sampled byte entropy suggests they are
+ * already compressed, e.g: images or archives, are not encoded at all.
+ */
+class BodyCompression {
+
+    /** Encoding of a compressed body. See {@link DataTransferMessage#HEADER_ENCODING} */
+    public static final String DEFLATE = "deflate";
+
+    /** Body bytes encoded by each block */
+    static final int BLOCK_BYTES        = 16 * 1024;
+    static final int BLOCK_HEADER_BYTES = 3;
+
+    static final int BLOCK_STORED   = 0;
+    static final int BLOCK_DEFLATED = 1;
+
+    /** Bodies smaller than this gain too little to be worth encoding */
+    private static final int MIN_BODY_BYTES = 128;
+
+    /** Windows sampled by the entropy probe, spread evenly through the body */
+    private static final int PROBE_WINDOWS      = 4;
+    private static final int PROBE_WINDOW_BYTES = 1024;
+
+    /** Bodies sampling above this many bits of entropy per byte are taken as incompressible */
+    private static final double MAX_ENTROPY_BITS = 7.0;
+
+    private static final double LOG_2 = Math.log(2);
+
+    /**
+     * @return the encoded form of the length byte body, or null if it is not worth encoding
+     */
+    static @Nullable byte[] encode(@NonNull ByteBuffer body, int length) {
+        if (length < MIN_BODY_BYTES || !isCompressible(body, length)) return null;
+
+        int blocks = (length + BLOCK_BYTES - 1) / BLOCK_BYTES;
+        byte[] encoded = new byte[length + blocks * BLOCK_HEADER_BYTES];
+        byte[] block   = body.hasArray() ? null : new byte[BLOCK_BYTES];
+        int encodedLength = 0;
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int offset = 0; offset < length; offset += BLOCK_BYTES) {
+                int blockLength = Math.min(BLOCK_BYTES, length - offset);
+
+                byte[] input;
+                int inputOffset;
+                if (block == null) {
+                    input = body.array();
+                    inputOffset = body.arrayOffset() + offset;
+                } else {
+                    ByteBuffer source = body.duplicate();
+                    source.clear();
+                    source.position(offset);
+                    source.get(block, 0, blockLength);
+                    input = block;
+                    inputOffset = 0;
+                }
+
+                // Deflate into the room the block would take stored. Output that fills it did not shrink
+                int payloadStart = encodedLength + BLOCK_HEADER_BYTES;
+                deflater.reset();
+                deflater.setInput(input, inputOffset, blockLength);
+                deflater.finish();
+                int deflatedLength = deflater.deflate(encoded, payloadStart, blockLength);
+
+                int flag;
+                int payloadLength;
+                if (deflater.finished() && deflatedLength < blockLength) {
+                    flag = BLOCK_DEFLATED;
+                    payloadLength = deflatedLength;
+                } else {
+                    flag = BLOCK_STORED;
+                    payloadLength = blockLength;
+                    System.arraycopy(input, inputOffset, encoded, payloadStart, blockLength);
+                }
+
+                encoded[encodedLength]     = (byte) flag;
+                encoded[encodedLength + 1] = (byte) payloadLength;
+                encoded[encodedLength + 2] = (byte) (payloadLength >> 8);
+                encodedLength = payloadStart + payloadLength;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        if (encodedLength >= length) return null;
+
+        return Arrays.copyOf(encoded, encodedLength);
+    }
+
+    /**
+     * Decode the block payload of length bytes at offset into out at outOffset
+     *
+     * @return the number of body bytes decoded
+     */
+    static int decodeBlock(@NonNull Inflater inflater, int flag,
+                           @NonNull byte[] data, int offset, int length,
+                           @NonNull byte[] out, int outOffset) throws DataFormatException {
+
+        int room = Math.min(BLOCK_BYTES, out.length - outOffset);
+
+        if (flag == BLOCK_STORED) {
+            if (length > room) throw new DataFormatException("Stored block of " + length + " bytes overruns body");
+            System.arraycopy(data, offset, out, outOffset, length);
+            return length;
+        }
+
+        if (flag != BLOCK_DEFLATED) throw new DataFormatException("Unknown block encoding " + flag);
+
+        inflater.reset();
+        inflater.setInput(data, offset, length);
+        int decoded = inflater.inflate(out, outOffset, room);
+        if (!inflater.finished()) throw new DataFormatException("Deflated block overruns body");
+
+        return decoded;
+    }
+
+    /**
+     * @return whether a sample of the body has low enough byte entropy to be worth deflating
+     */
+    private static boolean isCompressible(ByteBuffer body, int length) {
+        int[] counts = new int[256];
+        int sampled = 0;
+
+        int windowBytes = Math.min(PROBE_WINDOW_BYTES, length / PROBE_WINDOWS);
+        for (int window = 0; window < PROBE_WINDOWS; window++) {
+            int start = (int) ((long) (length - windowBytes) * window / (PROBE_WINDOWS - 1));
+            for (int i = start; i < start + windowBytes; i++)
+                counts[body.get(i) & 0xFF]++;
+            sampled += windowBytes;
+        }
+
+        double entropyBits = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / sampled;
+            entropyBits -= p * Math.log(p) / LOG_2;
+        }
+        return entropyBits < MAX_ENTROPY_BITS;
+    }
+}
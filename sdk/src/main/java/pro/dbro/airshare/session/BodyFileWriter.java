@@ -0,0 +1,239 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Write-behind storage of a {@link pro.dbro.airshare.session.SessionMessage} body to disk.
+ *
+ * Bytes passed to {@link #write(byte[], int, int)} are staged in memory and written to a
+ * {@link java.nio.channels.FileChannel} on a shared background thread in blocks of
+ * {@link #BLOCK_BYTES}, so callers on a transport callback thread never wait on disk.
+ * Staging blocks are recycled once written. At most {@link #MAX_STAGED_BLOCKS} are staged per writer,
+ * beyond which {@link #write(byte[], int, int)} waits for the disk, pushing back on the transport
+ * rather than letting memory grow with the lag of disk writes behind incoming data.
+ *
+ * Tasks submitted via {@link #post(Runnable)} run after all previously submitted writes.
+ */
+public class BodyFileWriter {
+
+    public interface Callback {
+
+        /**
+         * Called on the background writer thread once every written byte is on disk, or
+         * writing failed. Must not wait on a thread that may be writing, as a full writer waits
+         * on this thread.
+         */
+        void onBodyFileComplete(@NonNull File file, @Nullable IOException exception);
+
+    }
+
+    /** Size of each staged block written to disk */
+    private static final int BLOCK_BYTES = 64 * 1024;
+
+    /** Most blocks allocated per writer, so at most 512 KB awaits the disk per body */
+    static final int MAX_STAGED_BLOCKS = 8;
+
+    /** Disk writes of all BodyFileWriters are performed in order on this thread */
+    private static final Executor diskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "AirShare-BodyWriter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File                              file;
+    private final RandomAccessFile                  randomAccessFile;
+    private final FileChannel                       channel;
+    private final LinkedBlockingQueue<ByteBuffer>   freeBlocks   = new LinkedBlockingQueue<>();
+    private final AtomicInteger                     pendingTasks = new AtomicInteger();
+
+    private ByteBuffer staging;
+    private int        allocatedBlocks;
+    private boolean    closed;
+
+    /** First failure encountered by the writer thread. Later writes are skipped */
+    private volatile IOException error;
+
+    public BodyFileWriter(@NonNull File file) throws FileNotFoundException {
+        this.file = file;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * Continue writing the partial body in file from offset. Bytes beyond offset are discarded
+     * once any earlier writer's outstanding writes to file complete.
+     */
+    public BodyFileWriter(@NonNull File file, final long offset) throws FileNotFoundException {
+        this(file);
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.truncate(offset);
+                    channel.position(offset);
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to resume body file %s", BodyFileWriter.this.file.getAbsolutePath());
+                    error = e;
+                }
+            }
+        });
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stage length bytes of data beginning at offset for writing. data may be reused
+     * as soon as this method returns, which waits for the disk while {@link #MAX_STAGED_BLOCKS}
+     * blocks are staged.
+     */
+    public void write(@NonNull byte[] data, int offset, int length) {
+        if (closed)
+            throw new IllegalStateException("Attempted to write to closed BodyFileWriter");
+
+        while (length > 0) {
+            if (staging == null) staging = obtainBlock();
+
+            int toStage = Math.min(length, staging.remaining());
+            staging.put(data, offset, toStage);
+            offset += toStage;
+            length -= toStage;
+
+            if (!staging.hasRemaining()) submitStaging();
+        }
+    }
+
+    /**
+     * Flush all staged data and close the file. callback is notified on the writer thread.
+     */
+    public void close(@NonNull final Callback callback) {
+        if (closed) return;
+        closed = true;
+
+        if (staging != null && staging.position() > 0) submitStaging();
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+                callback.onBodyFileComplete(file, error);
+            }
+        });
+    }
+
+    /**
+     * Discard the body, deleting its file once outstanding writes complete.
+     */
+    public void abort() {
+        if (closed) return;
+        closed = true;
+        staging = null;
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+                if (!file.delete())
+                    Timber.w("Failed to delete aborted body file %s", file.getAbsolutePath());
+            }
+        });
+    }
+
+    /**
+     * @return whether any writes or tasks submitted to this writer have not yet completed
+     */
+    public boolean hasPendingTasks() {
+        return pendingTasks.get() > 0;
+    }
+
+    /**
+     * Run task on the writer thread after all previously submitted writes and tasks
+     */
+    public void post(@NonNull final Runnable task) {
+        pendingTasks.incrementAndGet();
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    pendingTasks.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void submitStaging() {
+        final ByteBuffer block = staging;
+        staging = null;
+        block.flip();
+
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (error == null) {
+                        while (block.hasRemaining())
+                            channel.write(block);
+                    }
+                } catch (IOException e) {
+                    Timber.e(e, "Failed to write body file %s", file.getAbsolutePath());
+                    error = e;
+                }
+                block.clear();
+                freeBlocks.offer(block);
+            }
+        });
+    }
+
+    /**
+     * @return a free block, waiting for one to be written if all that may be allocated are staged
+     */
+    private ByteBuffer obtainBlock() {
+        ByteBuffer block = freeBlocks.poll();
+        if (block != null) return block;
+
+        if (allocatedBlocks < MAX_STAGED_BLOCKS) {
+            allocatedBlocks++;
+            return ByteBuffer.allocateDirect(BLOCK_BYTES);
+        }
+
+        try {
+            return freeBlocks.take();
+        } catch (InterruptedException e) {
+            // Data must not be dropped, so exceed the bound rather than wait
+            Timber.w("Interrupted awaiting disk for %s", file.getAbsolutePath());
+            Thread.currentThread().interrupt();
+            return ByteBuffer.allocateDirect(BLOCK_BYTES);
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Timber.e(e, "Failed to close body file %s", file.getAbsolutePath());
+            if (error == null) error = e;
+        }
+    }
+}
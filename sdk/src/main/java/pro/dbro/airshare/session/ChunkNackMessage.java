@@ -0,0 +1,98 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Requests that checksummed chunks found corrupt or missing by a
+ * {@link pro.dbro.airshare.session.SessionMessageDeserializer} be sent again.
+ * See {@link SessionMessageSerializer#retransmit(List)}
+ */
+public class ChunkNackMessage extends SessionMessage {
+
+    public static final String HEADER_TYPE = "nack";
+
+    /** List of chunk sequence numbers to send again */
+    public static final String HEADER_CHUNKS = "chunks";
+
+    private List<Integer> sequences;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    ChunkNackMessage(@NonNull Map<String, Object> headers) {
+
+        super((String) headers.get(SessionMessage.HEADER_ID));
+        init();
+        sequences       = toIntegerList(headers.get(HEADER_CHUNKS));
+        this.headers    = headers;
+        bodyLengthBytes = (int) headers.get(HEADER_BODY_LENGTH);
+        status          = Status.COMPLETE;
+
+        serializeAndCacheHeaders();
+
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    public ChunkNackMessage(@NonNull List<Integer> sequences) {
+        super();
+        init();
+        this.sequences = sequences;
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    @Override
+    protected @NonNull Priority getDefaultPriority() {
+        return Priority.CONTROL;
+    }
+
+    /**
+     * @return the sequence numbers of the chunks to send again
+     */
+    public @NonNull List<Integer> getSequences() {
+        return Collections.unmodifiableList(sequences);
+    }
+
+    private void init() {
+        type = HEADER_TYPE;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+
+        headerMap.put(HEADER_CHUNKS, new ArrayList<Object>(sequences));
+
+        return headerMap;
+    }
+
+    @Nullable
+    @Override
+    public byte[] getBodyAtOffset(int offset, int length) {
+        return null;
+    }
+
+    /**
+     * Header formats may decode integers as any {@link Number}
+     */
+    private static List<Integer> toIntegerList(@Nullable Object list) {
+        ArrayList<Integer> integers = new ArrayList<>();
+        if (!(list instanceof List)) return integers;
+
+        for (Object value : (List) list) {
+            if (value instanceof Number)
+                integers.add(((Number) value).intValue());
+        }
+        return integers;
+    }
+}
@@ -0,0 +1,145 @@
+package pro.dbro.airshare.session;
+
+import timber.log.Timber;
+
+/**
+ * Chooses the size of chunks sent to a single identifier, between a floor and ceiling
+ * set by its {@link pro.dbro.airshare.transport.Transport}, by additive increase and
+ * multiplicative decrease.
+ *
+ * Goodput is sampled from the interval between acknowledgements of chunks that were in flight
+ * for the whole interval, so time the link sat idle awaiting data is not counted against it.
+ * After every {@link #SAMPLE_CHUNKS} samples the chunk size grows by a fixed step if goodput held
+ * up against the previous evaluation, else shrinks by {@link #DECREASE_FACTOR}. A failed send
+ * shrinks it by {@link #FAILURE_DECREASE_FACTOR} at once.
+ */
+class ChunkSizeController {
+
+    private static final boolean VERBOSE = false;
+
+    /** Goodput samples per evaluation */
+    static final int   SAMPLE_CHUNKS           = 8;
+
+    /** Goodput may fall to this fraction of the previous evaluation's and still permit growth, absorbing noise */
+    private static final float GOODPUT_TOLERANCE = 0.9f;
+
+    static final float DECREASE_FACTOR         = 0.75f;
+    static final float FAILURE_DECREASE_FACTOR = 0.5f;
+
+    /** Evaluations taken to grow from the floor to the ceiling */
+    static final int   INCREASE_STEPS          = 16;
+
+    /** As requested by the transport, before clamping */
+    private final int requestedMinChunkBytes;
+
+    private int minChunkBytes;
+    private int maxChunkBytes;
+    private int increaseBytes;
+
+    private int chunkBytes;
+
+    private int  chunksInFlight;
+    /** Chunks still in flight after the last acknowledgement */
+    private int  chunksInFlightAtLastAck;
+    private long lastAckNs;
+
+    private long   sampleBytes;
+    private long   sampleNs;
+    private int    samples;
+    /** Goodput of the previous evaluation in bytes per nanosecond, or 0 if none */
+    private double lastGoodput;
+
+    /**
+     * @param maxChunkBytes the largest chunk the transport accepts, or 0 if unlimited
+     */
+    ChunkSizeController(int initialChunkBytes, int minChunkBytes, int maxChunkBytes) {
+        requestedMinChunkBytes = minChunkBytes;
+        setBounds(maxChunkBytes);
+        chunkBytes = clamp(initialChunkBytes);
+    }
+
+    int getChunkBytes() {
+        return chunkBytes;
+    }
+
+    /**
+     * Follow a change in the largest chunk the transport accepts, e.g: on negotiation of a new MTU.
+     * A chunk size at the previous ceiling moves to the new one.
+     *
+     * @param maxChunkBytes the largest chunk the transport accepts, or 0 if unlimited
+     */
+    void setMaxChunkBytes(int maxChunkBytes) {
+        int previousMaxChunkBytes = this.maxChunkBytes;
+        setBounds(maxChunkBytes);
+        if (this.maxChunkBytes == previousMaxChunkBytes) return;
+
+        if (VERBOSE) Timber.d("Chunk ceiling %d -> %d bytes", previousMaxChunkBytes, this.maxChunkBytes);
+        resize(chunkBytes == previousMaxChunkBytes ? this.maxChunkBytes : chunkBytes);
+    }
+
+    private void setBounds(int maxChunkBytes) {
+        if (maxChunkBytes <= 0 || maxChunkBytes > SessionMessageSerializer.MAX_CHUNK_BYTES)
+            maxChunkBytes = SessionMessageSerializer.MAX_CHUNK_BYTES;
+
+        this.maxChunkBytes = maxChunkBytes;
+        minChunkBytes      = Math.max(1, Math.min(requestedMinChunkBytes, maxChunkBytes));
+        increaseBytes      = Math.max(minChunkBytes, (this.maxChunkBytes - minChunkBytes) / INCREASE_STEPS);
+    }
+
+    void onChunkSent() {
+        chunksInFlight++;
+    }
+
+    /**
+     * Called as each chunk is acknowledged, in the order sent
+     */
+    void onChunkDelivered(int bytes) {
+        long now = System.nanoTime();
+        if (chunksInFlight > 0) chunksInFlight--;
+
+        // Only a chunk in flight since the last ack measures the link rather than the sender
+        if (chunksInFlightAtLastAck > 0 && now > lastAckNs) {
+            sampleBytes += bytes;
+            sampleNs    += now - lastAckNs;
+
+            if (++samples == SAMPLE_CHUNKS) evaluate();
+        }
+
+        chunksInFlightAtLastAck = chunksInFlight;
+        lastAckNs = now;
+    }
+
+    void onChunkFailed() {
+        if (chunksInFlight > 0) chunksInFlight--;
+        chunksInFlightAtLastAck = 0;
+
+        resize((int) (chunkBytes * FAILURE_DECREASE_FACTOR));
+        lastGoodput = 0;
+    }
+
+    private void evaluate() {
+        double goodput = (double) sampleBytes / sampleNs;
+
+        if (goodput >= lastGoodput * GOODPUT_TOLERANCE)
+            resize(chunkBytes + increaseBytes);
+        else
+            resize((int) (chunkBytes * DECREASE_FACTOR));
+
+        lastGoodput = goodput;
+    }
+
+    private void resize(int chunkBytes) {
+        int resized = clamp(chunkBytes);
+        if (VERBOSE && resized != this.chunkBytes)
+            Timber.d("Chunk size %d -> %d bytes", this.chunkBytes, resized);
+
+        this.chunkBytes = resized;
+        sampleBytes = 0;
+        sampleNs    = 0;
+        samples     = 0;
+    }
+
+    private int clamp(int chunkBytes) {
+        return Math.max(minChunkBytes, Math.min(maxChunkBytes, chunkBytes));
+    }
+}
@@ -0,0 +1,90 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C (Castagnoli), as used by iSCSI and SCTP, computed eight bytes at a time from
+ * precomputed tables. {@link java.util.zip.CRC32C} requires API 26.
+ */
+class Crc32c {
+
+    /** Reversed Castagnoli polynomial */
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    /** TABLES[n][b] is the CRC of byte b followed by n zero bytes */
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            int crc = b;
+            for (int bit = 0; bit < 8; bit++)
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            TABLES[0][b] = crc;
+        }
+
+        for (int b = 0; b < 256; b++) {
+            for (int n = 1; n < TABLES.length; n++)
+                TABLES[n][b] = (TABLES[n - 1][b] >>> 8) ^ TABLES[0][TABLES[n - 1][b] & 0xFF];
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    void update(@NonNull byte[] data, int offset, int length) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3],
+                    t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+
+        while (length >= 8) {
+            c ^= (data[offset]     & 0xFF)        |
+                 (data[offset + 1] & 0xFF) << 8  |
+                 (data[offset + 2] & 0xFF) << 16 |
+                 (data[offset + 3] & 0xFF) << 24;
+
+            c = t7[c & 0xFF] ^ t6[(c >>> 8) & 0xFF] ^ t5[(c >>> 16) & 0xFF] ^ t4[c >>> 24] ^
+                t3[data[offset + 4] & 0xFF] ^ t2[data[offset + 5] & 0xFF] ^
+                t1[data[offset + 6] & 0xFF] ^ t0[data[offset + 7] & 0xFF];
+
+            offset += 8;
+            length -= 8;
+        }
+
+        while (length-- > 0)
+            c = (c >>> 8) ^ t0[(c ^ data[offset++]) & 0xFF];
+
+        crc = c;
+    }
+
+    /**
+     * Update with length bytes of buffer beginning at the absolute index offset. The buffer's
+     * position is unchanged. Buffers without an accessible array, e.g: direct or mapped, are
+     * read in slices.
+     */
+    void update(@NonNull ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + offset, length);
+            return;
+        }
+
+        byte[] slice = new byte[Math.min(length, 8 * 1024)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+
+        while (length > 0) {
+            int count = Math.min(length, slice.length);
+            source.get(slice, 0, count);
+            update(slice, 0, count);
+            length -= count;
+        }
+    }
+
+    int getValue() {
+        return ~crc;
+    }
+
+    void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
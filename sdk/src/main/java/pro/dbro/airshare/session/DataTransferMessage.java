@@ -3,11 +3,34 @@ package pro.dbro.airshare.session;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
 
+import timber.log.Timber;
+
 /**
+ * A message carrying an arbitrary application payload.
+ *
+ * Bodies are held in memory, or in a file for large incoming messages and outgoing messages
+ * created from a {@link java.io.File} or {@link java.nio.channels.FileChannel}.
+ * Disk-backed bodies are serialized via a read-ahead {@link pro.dbro.airshare.session.FileBodySource}
+ * and exposed via {@link #getBodyStream()} or a memory-mapped {@link #getBodyBuffer()}
+ * so they need never be loaded onto the heap in whole. A disk-backed body sent to several
+ * recipients is instead serialized from one read-only mapping they share. See {@link #shareBody()}
+ *
+ * Bodies up to {@link SessionMessageDeserializer#BODY_SIZE_CUTOFF_BYTES} may be sent compressed
+ * to peers that decode them. See {@link #setBodyCompression(boolean)}
+ *
+ * An incoming body may instead be handed to the app as it arrives, never held by the library.
+ * See {@link #setBodySink(BodySink)}
+ *
  * Created by davidbrodsky on 2/22/15.
  */
 public class DataTransferMessage extends SessionMessage {
@@ -16,8 +39,63 @@ public class DataTransferMessage extends SessionMessage {
 
     public static final String HEADER_EXTRA = "extra";
 
+    /**
+     * Offset of the first body byte sent, present when the recipient already holds those
+     * preceding it from an interrupted transfer. 'body-length' remains that of the whole body.
+     */
+    public static final String HEADER_RESUME_OFFSET = "resume-offset";
+
+    /**
+     * Present when the body is followed by a little endian CRC-32C of the body bytes sent,
+     * verified by the recipient before delivery
+     */
+    public static final String HEADER_BODY_DIGEST = "body-digest";
+
+    public static final int BODY_DIGEST_BYTES = 4;
+
+    /**
+     * Present when the body is sent encoded, e.g: {@link BodyCompression#DEFLATE}. 'body-length'
+     * is then that of the encoded body, and {@link #HEADER_DECODED_LENGTH} that of the body.
+     */
+    public static final String HEADER_ENCODING       = "encoding";
+    public static final String HEADER_DECODED_LENGTH = "decoded-length";
+
+    /** Bodies over this size are sent as {@link SessionMessage.Priority#BULK} unless set otherwise */
+    public static final int BULK_BODY_BYTES = 64 * 1024;
+
+    public interface BodySink {
+
+        /**
+         * Called with each slice of the body, in order, as it is received. Bytes are decoded
+         * if the body was sent compressed. data may be reused as soon as this method returns.
+         *
+         * Called on the thread receiving the message, so must not block.
+         */
+        void onBodySlice(@NonNull DataTransferMessage message,
+                         @NonNull byte[] data, int offset, int length);
+
+        /**
+         * Called once after the last slice. If exception is non-null the body was interrupted
+         * or does not match its digest, and the slices received should be discarded.
+         */
+        void onBodyEnd(@NonNull DataTransferMessage message, @Nullable Exception exception);
+
+    }
+
     private ByteBuffer data;
+    private FileBodySource bodySource;
+    /** View of the mapped body shared by several recipients' serialization, if any */
+    private ByteBuffer sharedBody;
     private Map<String, Object> extraHeaders;
+    private int resumeOffset;
+    private boolean bodyDigest;
+    /** Digest of the body bytes serialized so far, and the body offset it extends to */
+    private Crc32c  bodyCrc;
+    private int     bodyCrcOffset;
+    /** The body as sent, if encoded. See {@link BodyCompression} */
+    private byte[]  encodedBody;
+    /** Receives the body of an incoming message as it arrives, if set */
+    private BodySink bodySink;
 
     // <editor-fold desc="Incoming Constructors">
 
@@ -27,7 +105,11 @@ public class DataTransferMessage extends SessionMessage {
         super((String) headers.get(SessionMessage.HEADER_ID));
         init();
         this.headers      = headers;
-        bodyLengthBytes   = (int) headers.get(HEADER_BODY_LENGTH);
+        bodyLengthBytes   = headers.get(HEADER_DECODED_LENGTH) instanceof Integer ?
+                            (int) headers.get(HEADER_DECODED_LENGTH) :
+                            (int) headers.get(HEADER_BODY_LENGTH);
+        resumeOffset      = headers.containsKey(HEADER_RESUME_OFFSET) ? (int) headers.get(HEADER_RESUME_OFFSET) : 0;
+        bodyDigest        = headers.containsKey(HEADER_BODY_DIGEST) && (boolean) headers.get(HEADER_BODY_DIGEST);
         status            = body == null ? Status.HEADER_ONLY : Status.COMPLETE;
 
         if (body != null)
@@ -47,6 +129,38 @@ public class DataTransferMessage extends SessionMessage {
         return new DataTransferMessage(data, extraHeaders);
     }
 
+    /**
+     * Create a message whose body is read from file as it is sent
+     */
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @NonNull File file) {
+
+        return new DataTransferMessage(createId(), new FileBodySource(file), extraHeaders);
+    }
+
+    /**
+     * Create a message whose body is read from file as it is sent, with the id of an earlier
+     * transfer of the same file. A recipient holding part of the body from that transfer,
+     * even across restarts of either peer, is sent only the remainder.
+     */
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @NonNull File file,
+                                                     @NonNull String transferId) {
+
+        return new DataTransferMessage(transferId, new FileBodySource(file), extraHeaders);
+    }
+
+    /**
+     * Create a message whose body is read from channel as it is sent.
+     * The body is the channel's content at the time of this call. channel is not closed
+     * by this message and must remain open until the message is delivered.
+     */
+    public static DataTransferMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                                     @NonNull FileChannel channel) throws IOException {
+
+        return new DataTransferMessage(createId(), new FileBodySource(channel), extraHeaders);
+    }
+
     // To avoid confusion between the incoming constructor which takes a
     // Map of the completely deserialized headers and byte payload, we hide
     // this contstructor behind the static creator 'createOutgoing'
@@ -63,17 +177,63 @@ public class DataTransferMessage extends SessionMessage {
 
     }
 
+    private DataTransferMessage(@NonNull String id,
+                                @NonNull FileBodySource bodySource,
+                                @Nullable Map<String, Object> extraHeaders) {
+        super(id);
+        this.extraHeaders = extraHeaders;
+        init();
+        if (bodySource.getLength() > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Body exceeds maximum length of " + Integer.MAX_VALUE + " bytes");
+
+        this.bodySource = bodySource;
+        bodyLengthBytes = (int) bodySource.getLength();
+        status = Status.COMPLETE;
+        serializeAndCacheHeaders();
+
+    }
+
+    /**
+     * Copy of original that sends its body from resumeOffset, sharing its id and body
+     */
+    private DataTransferMessage(@NonNull DataTransferMessage original,
+                                int resumeOffset) {
+        super(original.id);
+        init();
+        extraHeaders      = original.extraHeaders;
+        data              = original.data;
+        bodySource        = original.bodySource;
+        sharedBody        = original.sharedBody != null ? original.sharedBody.duplicate() : null;
+        bodyLengthBytes   = original.bodyLengthBytes;
+        status            = original.status;
+        version           = original.version;
+        bodyDigest        = original.bodyDigest;
+        this.resumeOffset = resumeOffset;
+        setPriority(original.getPriority());
+        serializeAndCacheHeaders();
+
+    }
+
     // </editor-fold desc="Outgoing Constructors">
 
     private void init() {
         type = HEADER_TYPE;
     }
 
+    @Override
+    protected @NonNull Priority getDefaultPriority() {
+        return bodyLengthBytes > BULK_BODY_BYTES ? Priority.BULK : Priority.INTERACTIVE;
+    }
+
     @Override
     protected HashMap<String, Object> populateHeaders() {
         HashMap<String, Object> headerMap = super.populateHeaders();
         if (extraHeaders != null)
             headerMap.put(HEADER_EXTRA, extraHeaders);
+        if (resumeOffset > 0)
+            headerMap.put(HEADER_RESUME_OFFSET, resumeOffset);
+        if (bodyDigest)
+            headerMap.put(HEADER_BODY_DIGEST, true);
 
         // The following three lines should be deleted
 //        headerMap.put(HEADER_TYPE,        type);
@@ -83,14 +243,187 @@ public class DataTransferMessage extends SessionMessage {
         return headerMap;
     }
 
+    /**
+     * @return the offset of the first body byte sent, or 0 if this message is not resuming an
+     * interrupted transfer. See {@link #HEADER_RESUME_OFFSET}
+     */
+    public int getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * @return a message equal to this one that sends only the body bytes from resumeOffset on,
+     * for a recipient holding those preceding it. See {@link pro.dbro.airshare.session.ResumeMessage}
+     */
+    DataTransferMessage resumeFrom(int resumeOffset) {
+        if (resumeOffset < 0 || resumeOffset > bodyLengthBytes)
+            throw new IllegalArgumentException("Resume offset " + resumeOffset + " outside body of " + bodyLengthBytes + " bytes");
+
+        return new DataTransferMessage(this, resumeOffset);
+    }
+
+    @Override
+    protected int getBodyStartOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * @return whether the body is followed by a digest. See {@link #HEADER_BODY_DIGEST}
+     */
+    public boolean hasBodyDigest() {
+        return bodyDigest;
+    }
+
+    /**
+     * Set whether the body is followed by a digest for the recipient to verify. Only recipients
+     * that {@link Peer#supportsChecksums()} can read it.
+     *
+     * @throws IllegalStateException if bodyDigest differs and serialization has started
+     */
+    public void setBodyDigest(boolean bodyDigest) {
+        if (this.bodyDigest == bodyDigest) return;
+        checkSerializationNotStarted();
+
+        this.bodyDigest = bodyDigest;
+        if (bodyDigest)
+            headers.put(HEADER_BODY_DIGEST, true);
+        else
+            headers.remove(HEADER_BODY_DIGEST);
+        reserializeHeaders();
+    }
+
+    /**
+     * @return whether the body is sent, or was received, compressed. See {@link #HEADER_ENCODING}
+     */
+    public boolean isBodyCompressed() {
+        return BodyCompression.DEFLATE.equals(headers.get(HEADER_ENCODING));
+    }
+
+    /**
+     * Set whether the body is compressed for sending. Only recipients that
+     * {@link Peer#supportsCompression()} can decode it. The body is compressed only if it is
+     * complete, small enough to be held in memory by the recipient, not resuming an interrupted
+     * transfer and found to shrink. See {@link #isBodyCompressed()}
+     *
+     * @throws IllegalStateException if compression differs and serialization has started
+     */
+    public void setBodyCompression(boolean compression) {
+        if (compression == (encodedBody != null)) return;
+        checkSerializationNotStarted();
+
+        if (compression) {
+            if (status != Status.COMPLETE || resumeOffset > 0 ||
+                bodyLengthBytes > SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES) return;
+
+            ByteBuffer body = getData();
+            if (body == null) return;
+
+            encodedBody = BodyCompression.encode(body, bodyLengthBytes);
+            if (encodedBody == null) return;
+
+            Timber.d("Compressed body of %s from %d to %d bytes", id, bodyLengthBytes, encodedBody.length);
+            headers.put(HEADER_ENCODING,       BodyCompression.DEFLATE);
+            headers.put(HEADER_DECODED_LENGTH, bodyLengthBytes);
+            headers.put(HEADER_BODY_LENGTH,    encodedBody.length);
+        } else {
+            encodedBody = null;
+            headers.remove(HEADER_ENCODING);
+            headers.remove(HEADER_DECODED_LENGTH);
+            headers.put(HEADER_BODY_LENGTH, bodyLengthBytes);
+        }
+        reserializeHeaders();
+    }
+
+    @Override
+    protected int getSerializedBodyLengthBytes() {
+        return encodedBody != null ? encodedBody.length : bodyLengthBytes;
+    }
+
+    @Override
+    protected int getTrailerLengthBytes() {
+        return bodyDigest ? BODY_DIGEST_BYTES : 0;
+    }
+
+    @Override
+    protected synchronized void writeTrailer(int offset, @NonNull ByteBuffer outBuffer, int length) {
+        if (bodyCrcOffset != getSerializedBodyLengthBytes())
+            throw new IllegalStateException("Body digest covers " + bodyCrcOffset + " / " + getSerializedBodyLengthBytes() + " bytes");
+
+        int digest = bodyCrc.getValue();
+        for (int i = offset; i < offset + length; i++)
+            outBuffer.put((byte) (digest >> (8 * i)));
+    }
+
     public void setBody(@NonNull byte[] body) {
-        if (data != null)
+        if (data != null || bodySource != null)
             throw new IllegalStateException("Attempted to set existing message body");
 
         data = ByteBuffer.wrap(body);
         status = Status.COMPLETE;
     }
 
+    /**
+     * Set a body stored in file. The body is memory-mapped when first accessed.
+     */
+    public void setBody(@NonNull File body) {
+        if (data != null || bodySource != null)
+            throw new IllegalStateException("Attempted to set existing message body");
+
+        bodySource = new FileBodySource(body);
+        status = Status.COMPLETE;
+    }
+
+    /**
+     * Take the body of this incoming message slice by slice as it arrives rather than once
+     * complete. The message is then delivered without a body.
+     *
+     * Only takes effect if set from
+     * {@link SessionMessageDeserializer.SessionMessageDeserializerCallback#onHeaderReady(SessionMessageDeserializer, SessionMessage)}
+     * before any of the body is received, and not for a body resuming an interrupted transfer,
+     * which continues on disk.
+     */
+    public void setBodySink(@Nullable BodySink bodySink) {
+        this.bodySink = bodySink;
+    }
+
+    public @Nullable BodySink getBodySink() {
+        return bodySink;
+    }
+
+    /**
+     * @return the file this message's body is stored in, or null if the body is held in memory
+     * or read from a {@link java.nio.channels.FileChannel}
+     */
+    public @Nullable File getBodyFile() {
+        return bodySource == null ? null : bodySource.getFile();
+    }
+
+    /**
+     * @return a read-only view of the complete body, memory-mapped if stored on disk,
+     * or null if the body is not yet available
+     */
+    public @Nullable ByteBuffer getBodyBuffer() {
+        ByteBuffer body = getData();
+        if (body == null) return null;
+
+        ByteBuffer view = body.asReadOnlyBuffer();
+        view.clear();
+        return view;
+    }
+
+    /**
+     * @return a stream over the complete body, read directly from disk if stored there,
+     * or null if the body is not yet available
+     */
+    public @Nullable InputStream getBodyStream() throws IOException {
+        if (bodySource != null)
+            return bodySource.getFile() != null ? new FileInputStream(bodySource.getFile()) : bodySource.openStream();
+
+        if (data == null) return null;
+
+        return new ByteArrayInputStream(data.array(), data.arrayOffset(), bodyLengthBytes);
+    }
+
     @Override
     public byte[] getBodyAtOffset(int offset, int length) {
 
@@ -99,10 +432,99 @@ public class DataTransferMessage extends SessionMessage {
         int bytesToRead = Math.min(length, bodyLengthBytes - offset);
         byte[] result = new byte[bytesToRead];
 
-        data.position(offset);
-        data.get(result, 0, bytesToRead);
+        if (bodySource != null) {
+            readBodySource(offset, ByteBuffer.wrap(result), bytesToRead);
+        } else {
+            if (data == null) return null;
+
+            ByteBuffer src = data.duplicate();
+            src.position(offset);
+            src.get(result, 0, bytesToRead);
+        }
 
         return result;
     }
 
+    /**
+     * Serialize a disk-backed body from a single read-only mapping rather than the read-ahead
+     * {@link FileBodySource}, whose window serves one sequential reader. Called when this
+     * message is queued for several recipients, which progress through the body independently.
+     * Has no effect on a body held in memory, which is already shared.
+     */
+    synchronized void shareBody() {
+        if (bodySource == null || sharedBody != null) return;
+
+        ByteBuffer mapped = getData();
+        if (mapped != null)
+            sharedBody = mapped.duplicate();
+        else
+            Timber.w("Could not map body of message %s. Recipients will share its read-ahead", id);
+    }
+
+    @Override
+    protected void writeBodyAtOffset(int offset, @NonNull ByteBuffer outBuffer, int length) {
+        int start = outBuffer.position();
+
+        if (encodedBody != null) {
+            outBuffer.put(encodedBody, offset, length);
+        } else if (sharedBody != null) {
+            writeSharedBody(offset, outBuffer, length);
+        } else if (bodySource != null) {
+            readBodySource(offset, outBuffer, length);
+        } else {
+            // Copy straight from the backing array. Leaves data's position untouched
+            outBuffer.put(data.array(), data.arrayOffset() + offset, length);
+        }
+
+        if (bodyDigest) updateBodyDigest(offset, outBuffer, start, length);
+    }
+
+    /**
+     * Extend the body digest with the length body bytes at offset just written to outBuffer
+     * at start. The digest is taken as the body is first serialized, so when several recipients
+     * share this message it is extended only by the one furthest ahead.
+     */
+    private synchronized void updateBodyDigest(int offset, ByteBuffer outBuffer, int start, int length) {
+        if (bodyCrc == null) {
+            bodyCrc = new Crc32c();
+            bodyCrcOffset = resumeOffset;
+        }
+
+        int skip = bodyCrcOffset - offset;
+        if (skip < 0 || skip >= length) return;
+
+        bodyCrc.update(outBuffer, start + skip, length - skip);
+        bodyCrcOffset += length - skip;
+    }
+
+    private synchronized void writeSharedBody(int offset, ByteBuffer outBuffer, int length) {
+        sharedBody.clear();
+        sharedBody.position(offset);
+        sharedBody.limit(offset + length);
+        outBuffer.put(sharedBody);
+    }
+
+    private void readBodySource(int offset, ByteBuffer outBuffer, int length) {
+        try {
+            bodySource.read(offset, outBuffer, length);
+        } catch (IOException e) {
+            Timber.e(e, "Failed to read message body");
+            throw new IllegalStateException("Failed to read message body", e);
+        }
+    }
+
+    /**
+     * @return the body, mapping {@link #bodySource} into memory on first access
+     */
+    private synchronized @Nullable ByteBuffer getData() {
+        if (data == null && bodySource != null) {
+            try {
+                data = bodySource.map();
+            } catch (IOException e) {
+                Timber.e(e, "Failed to map message body");
+            }
+        }
+        return data;
+    }
+
 }
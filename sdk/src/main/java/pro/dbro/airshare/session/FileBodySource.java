@@ -0,0 +1,269 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import timber.log.Timber;
+
+/**
+ * Sequential positional reads of an outgoing {@link pro.dbro.airshare.session.SessionMessage}
+ * body from a {@link java.io.File} or {@link java.nio.channels.FileChannel}.
+ *
+ * Reads are served from a window of {@link #WINDOW_BYTES} while the following window is
+ * read ahead on a background thread, so that the next chunk is usually in memory by the time
+ * the current chunk is delivered. Only two windows are held regardless of body size.
+ *
+ * A source constructed with a File opens it on demand and closes it once the final byte has
+ * been read. A source constructed with a FileChannel never closes it.
+ */
+public class FileBodySource {
+
+    /** Size of each read-ahead window */
+    static final int WINDOW_BYTES = 64 * 1024;
+
+    /** Read-ahead of all FileBodySources is performed on this thread */
+    private static final ExecutorService readExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "AirShare-BodyReader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File file;
+    private final long length;
+
+    private FileChannel      channel;
+    private RandomAccessFile randomAccessFile;
+
+    /** Window serving reads. Holds body bytes [windowStart, windowStart + window.limit()) */
+    private ByteBuffer window;
+    private long       windowStart = -1;
+
+    /** Window being filled with the bytes following {@link #window} */
+    private ByteBuffer      aheadWindow;
+    private long            aheadStart = -1;
+    private Future<Integer> aheadFill;
+
+    public FileBodySource(@NonNull File file) {
+        this.file = file;
+        length = file.length();
+    }
+
+    public FileBodySource(@NonNull FileChannel channel) throws IOException {
+        this.channel = channel;
+        file = null;
+        length = channel.size();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the file read by this source, or null if constructed with a FileChannel
+     */
+    public @Nullable File getFile() {
+        return file;
+    }
+
+    /**
+     * Put length bytes of the body beginning at offset into outBuffer.
+     *
+     * @throws IOException if the body could not be read or ended before offset + length
+     */
+    public synchronized void read(long offset, @NonNull ByteBuffer outBuffer, int length) throws IOException {
+        if (offset < 0 || offset + length > this.length)
+            throw new IOException(String.format("Read of %d bytes at %d exceeds body length %d", length, offset, this.length));
+
+        while (length > 0) {
+            if (window == null || offset < windowStart || offset >= windowStart + window.limit())
+                loadWindow(offset);
+
+            int windowIdx = (int) (offset - windowStart);
+            int toCopy = Math.min(length, window.limit() - windowIdx);
+
+            int windowLimit = window.limit();
+            window.limit(windowIdx + toCopy);
+            window.position(windowIdx);
+            outBuffer.put(window);
+            window.limit(windowLimit);
+
+            offset += toCopy;
+            length -= toCopy;
+        }
+
+        if (offset >= this.length)
+            release();
+        else
+            readAhead(windowStart + window.limit());
+    }
+
+    /**
+     * @return a read-only memory map of the entire body
+     */
+    public synchronized ByteBuffer map() throws IOException {
+        if (file == null)
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+        RandomAccessFile mapFile = new RandomAccessFile(file, "r");
+        try {
+            return mapFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } finally {
+            // The mapping remains valid after the channel is closed
+            mapFile.close();
+        }
+    }
+
+    /**
+     * @return a stream over the body. Reading the stream does not affect other reads of this source
+     */
+    public InputStream openStream() {
+        return new InputStream() {
+
+            private long position;
+            private final byte[] single = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+                if (position >= length) return -1;
+
+                int toRead = (int) Math.min(count, length - position);
+                FileBodySource.this.read(position, ByteBuffer.wrap(buffer, offset, toRead), toRead);
+                position += toRead;
+                return toRead;
+            }
+        };
+    }
+
+    /**
+     * Fill {@link #window} with bytes beginning at offset, from the read-ahead window if it has them
+     */
+    private void loadWindow(long offset) throws IOException {
+        if (aheadFill != null) {
+            awaitReadAhead();
+
+            if (offset >= aheadStart && offset < aheadStart + aheadWindow.limit()) {
+                ByteBuffer previous = window;
+                window = aheadWindow;
+                windowStart = aheadStart;
+                aheadWindow = previous;
+                aheadStart = -1;
+                return;
+            }
+        }
+
+        // Read-ahead missed. Read synchronously
+        if (window == null) window = ByteBuffer.allocateDirect(WINDOW_BYTES);
+        fill(window, offset);
+        windowStart = offset;
+    }
+
+    /**
+     * Begin filling {@link #aheadWindow} with bytes beginning at offset, unless already done
+     */
+    private void readAhead(final long offset) throws IOException {
+        if (offset >= length || (aheadFill != null && aheadStart == offset)) return;
+
+        if (aheadFill != null) awaitReadAhead();
+        if (aheadWindow == null) aheadWindow = ByteBuffer.allocateDirect(WINDOW_BYTES);
+
+        final ByteBuffer target = aheadWindow;
+        final FileChannel source = getChannel();
+        aheadStart = offset;
+        aheadFill = readExecutor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                return fill(source, target, offset);
+            }
+        });
+    }
+
+    private void awaitReadAhead() throws IOException {
+        try {
+            aheadFill.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted awaiting body read-ahead");
+        } catch (ExecutionException e) {
+            aheadStart = -1;
+            throw new IOException("Body read-ahead failed", e.getCause());
+        } finally {
+            aheadFill = null;
+        }
+    }
+
+    private int fill(ByteBuffer target, long offset) throws IOException {
+        return fill(getChannel(), target, offset);
+    }
+
+    /**
+     * Fill target with bytes from source beginning at offset, or as many as remain.
+     * target is left positioned at zero with its limit at the number of bytes read.
+     */
+    private int fill(FileChannel source, ByteBuffer target, long offset) throws IOException {
+        target.clear();
+        target.limit((int) Math.min(target.capacity(), length - offset));
+
+        while (target.hasRemaining()) {
+            int read = source.read(target, offset + target.position());
+            if (read == -1)
+                throw new IOException(String.format("Body ended at %d of %d bytes", offset + target.position(), length));
+        }
+
+        target.flip();
+        return target.limit();
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            channel = randomAccessFile.getChannel();
+        }
+        return channel;
+    }
+
+    /**
+     * Release the read windows and close the file if opened by this source.
+     * Reading again will reopen it.
+     */
+    private void release() throws IOException {
+        if (aheadFill != null) {
+            try {
+                awaitReadAhead();
+            } catch (IOException e) {
+                Timber.w(e, "Discarding failed body read-ahead");
+            }
+        }
+
+        window = null;
+        aheadWindow = null;
+        windowStart = -1;
+        aheadStart = -1;
+
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+            channel = null;
+        }
+    }
+}
@@ -5,8 +5,11 @@ import android.util.Base64;
 
 import com.google.common.base.Objects;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -21,6 +24,11 @@ public class IdentityMessage extends SessionMessage {
     public static final String HEADER_TRANSPORTS  = "transports";
     public static final String HEADER_PUBKEY      = "pubkey";
     public static final String HEADER_ALIAS       = "alias";
+    public static final String HEADER_SUPPORTED_VERSION = "header-version";
+    public static final String HEADER_MAX_STREAMS = "streams";
+    public static final String HEADER_RESUME      = "resume";
+    public static final String HEADER_CHECKSUMS   = "checksums";
+    public static final String HEADER_ENCODINGS   = "encodings";
 
     private Peer peer;
 
@@ -30,11 +38,39 @@ public class IdentityMessage extends SessionMessage {
     public static IdentityMessage fromHeaders(Map<String, Object> headers) {
         int transports = headers.containsKey(HEADER_TRANSPORTS) ? (int) headers.get(HEADER_TRANSPORTS) : 0;
 
-        Peer peer = new Peer(Base64.decode((String) headers.get(HEADER_PUBKEY), Base64.DEFAULT),
+        // Peers predating the binary header format do not advertise a version
+        int headerVersion = headers.containsKey(HEADER_SUPPORTED_VERSION) ?
+                            (int) headers.get(HEADER_SUPPORTED_VERSION) :
+                            SessionMessage.HEADER_VERSION_JSON;
+
+        // Peers predating multiplexing receive one message at a time
+        int maxStreams = headers.containsKey(HEADER_MAX_STREAMS) ? Math.max(1, (int) headers.get(HEADER_MAX_STREAMS)) : 1;
+
+        // Peers predating resumable transfers discard partial bodies
+        boolean resumable = headers.containsKey(HEADER_RESUME) && (boolean) headers.get(HEADER_RESUME);
+
+        // Peers predating checksummed chunks neither send nor expect them
+        boolean checksums = headers.containsKey(HEADER_CHECKSUMS) && (boolean) headers.get(HEADER_CHECKSUMS);
+
+        // Peers predating body compression advertise no encodings
+        boolean compression = headers.get(HEADER_ENCODINGS) instanceof List &&
+                              ((List) headers.get(HEADER_ENCODINGS)).contains(BodyCompression.DEFLATE);
+
+        // The binary header format carries the raw public key, the JSON format its Base64 encoding
+        Object pubKey = headers.get(HEADER_PUBKEY);
+        byte[] pubKeyBytes = pubKey instanceof byte[] ? (byte[]) pubKey :
+                                                        Base64.decode((String) pubKey, Base64.DEFAULT);
+
+        Peer peer = new Peer(pubKeyBytes,
                              (String) headers.get(HEADER_ALIAS),
                              new Date(),
                              -1,
-                             transports);
+                             transports,
+                             headerVersion,
+                             maxStreams,
+                             resumable,
+                             checksums,
+                             compression);
 
         return new IdentityMessage((String) headers.get(SessionMessage.HEADER_ID),
                                    peer);
@@ -61,19 +97,42 @@ public class IdentityMessage extends SessionMessage {
 
     private void init() {
         type = HEADER_TYPE;
+        // Identity is exchanged before the remote peer's supported header version is known
+        version = HEADER_VERSION_JSON;
+    }
+
+    @Override
+    protected Priority getDefaultPriority() {
+        return Priority.CONTROL;
     }
 
     public Peer getPeer() {
         return peer;
     }
 
+    /**
+     * IdentityMessages are always serialized with {@link #HEADER_VERSION_JSON}, as
+     * every peer must be able to read them.
+     */
+    @Override
+    public void setHeaderVersion(int version) {
+        // no-op
+    }
+
     @Override
     protected HashMap<String, Object> populateHeaders() {
         HashMap<String, Object> headerMap = super.populateHeaders();
 
         headerMap.put(HEADER_ALIAS, peer.getAlias());
-        headerMap.put(HEADER_PUBKEY, Base64.encodeToString(peer.getPublicKey(), Base64.DEFAULT));
+        headerMap.put(HEADER_PUBKEY, peer.getPublicKey());
         headerMap.put(HEADER_TRANSPORTS, peer.getTransports());
+        headerMap.put(HEADER_SUPPORTED_VERSION, peer.getSupportedHeaderVersion());
+        headerMap.put(HEADER_MAX_STREAMS, peer.getMaxStreams());
+        headerMap.put(HEADER_RESUME, peer.supportsResume());
+        headerMap.put(HEADER_CHECKSUMS, peer.supportsChecksums());
+        headerMap.put(HEADER_ENCODINGS, peer.supportsCompression() ?
+                                        Collections.singletonList(BodyCompression.DEFLATE) :
+                                        Collections.emptyList());
 
         return headerMap;
     }
@@ -86,11 +145,12 @@ public class IdentityMessage extends SessionMessage {
     @Override
     public int hashCode() {
         // If we only target API 19+, we can move to java.util.Objects.hash
+        // The public key header may be raw or Base64 encoded depending on header version
         return Objects.hashCode(headers.get(HEADER_TYPE),
                                 headers.get(HEADER_BODY_LENGTH),
                                 headers.get(HEADER_ID),
                                 headers.get(HEADER_ALIAS),
-                                headers.get(HEADER_PUBKEY));
+                                Arrays.hashCode(peer.getPublicKey()));
     }
 
     @Override
@@ -105,8 +165,7 @@ public class IdentityMessage extends SessionMessage {
 
             // If we only target API 19+, we can move to the java.util.Objects.equals
             return super.equals(obj) &&
-                    Objects.equal(getHeaders().get(HEADER_PUBKEY),
-                            other.getHeaders().get(HEADER_PUBKEY)) &&
+                    Arrays.equals(peer.getPublicKey(), other.peer.getPublicKey()) &&
                     Objects.equal(getHeaders().get(HEADER_ALIAS),
                             other.getHeaders().get(HEADER_ALIAS));
         }
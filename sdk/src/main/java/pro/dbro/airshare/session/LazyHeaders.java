@@ -0,0 +1,403 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Headers of a received {@link pro.dbro.airshare.session.SessionMessage}, decoded as they are read.
+ *
+ * The encoded header is scanned once to index the extent of each top-level field. A field's value
+ * is only decoded, and then cached, when it is first read, so routing a message by its
+ * {@link SessionMessage#HEADER_TYPE}, {@link SessionMessage#HEADER_ID} and
+ * {@link SessionMessage#HEADER_BODY_LENGTH} does not build values such as
+ * {@link DataTransferMessage#HEADER_EXTRA} the app may never read.
+ *
+ * Writing to, or iterating over, the headers decodes them all into a plain map.
+ */
+class LazyHeaders extends AbstractMap<String, Object> {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_FIELDS = 12;
+
+    private static final byte[] TRUE  = "true".getBytes(UTF_8);
+    private static final byte[] FALSE = "false".getBytes(UTF_8);
+    private static final byte[] NULL  = "null".getBytes(UTF_8);
+
+    /** Keys matched against the bytes of JSON headers so they are not allocated per message */
+    private static final String[] KNOWN_KEYS = new String[] {
+            SessionMessage.HEADER_TYPE,
+            SessionMessage.HEADER_ID,
+            SessionMessage.HEADER_BODY_LENGTH,
+            DataTransferMessage.HEADER_EXTRA,
+            DataTransferMessage.HEADER_BODY_DIGEST,
+            DataTransferMessage.HEADER_ENCODING,
+            DataTransferMessage.HEADER_DECODED_LENGTH,
+            DataTransferMessage.HEADER_RESUME_OFFSET
+    };
+    private static final byte[][] KNOWN_KEY_BYTES = new byte[KNOWN_KEYS.length][];
+
+    static {
+        for (int i = 0; i < KNOWN_KEYS.length; i++)
+            KNOWN_KEY_BYTES[i] = KNOWN_KEYS[i].getBytes(UTF_8);
+    }
+
+    private final byte[] encoded;
+    private final int    version;
+
+    /** Index of top-level fields. A field's value spans [valueStarts[i], valueEnds[i]) of encoded */
+    private String[]  keys;
+    private int[]     valueStarts;
+    private int[]     valueEnds;
+    private Object[]  values;
+    private boolean[] decoded;
+    private int       fields;
+
+    /** All headers, once decoded for writing or iteration */
+    private HashMap<String, Object> materialized;
+    private boolean modified;
+
+    /**
+     * Index the headers of length bytes at the absolute index offset of buffer, encoded per
+     * version. The header bytes are copied, so buffer may be reused.
+     *
+     * @throws IllegalArgumentException if the headers are malformed
+     */
+    static LazyHeaders decode(@NonNull ByteBuffer buffer, int offset, int length, int version) {
+        byte[] encoded = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        source.position(offset);
+        source.get(encoded);
+
+        return new LazyHeaders(encoded, version);
+    }
+
+    private LazyHeaders(@NonNull byte[] encoded, int version) {
+        this.encoded = encoded;
+        this.version = version;
+        keys         = new String[INITIAL_FIELDS];
+        valueStarts  = new int[INITIAL_FIELDS];
+        valueEnds    = new int[INITIAL_FIELDS];
+
+        if (version == SessionMessage.HEADER_VERSION_JSON)
+            indexJson();
+        else
+            indexBinary();
+
+        values  = new Object[fields];
+        decoded = new boolean[fields];
+    }
+
+    /**
+     * @return the encoded headers, which may be sent on as is if {@link #isModified()} is false
+     */
+    @NonNull byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * @return the SessionMessage version the headers are encoded per
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return whether the headers have been written to since they were received
+     */
+    boolean isModified() {
+        return modified;
+    }
+
+    // <editor-fold desc="Map">
+
+    @Override
+    public Object get(Object key) {
+        if (materialized != null) return materialized.get(key);
+
+        int field = indexOf(key);
+        return field < 0 ? null : getValue(field);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (materialized != null) return materialized.containsKey(key);
+
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        if (materialized != null) return materialized.size();
+
+        return fields;
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        modified = true;
+        return materialize().put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        modified = true;
+        return materialize().remove(key);
+    }
+
+    @Override
+    public void clear() {
+        modified = true;
+        materialize().clear();
+    }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        // Writes go through put and remove so they are seen by isModified
+        return Collections.unmodifiableMap(materialize()).entrySet();
+    }
+
+    // </editor-fold desc="Map">
+
+    private int indexOf(Object key) {
+        for (int field = 0; field < fields; field++) {
+            if (keys[field].equals(key)) return field;
+        }
+        return -1;
+    }
+
+    private Object getValue(int field) {
+        if (!decoded[field]) {
+            values[field]  = decodeValue(valueStarts[field], valueEnds[field]);
+            decoded[field] = true;
+        }
+        return values[field];
+    }
+
+    private HashMap<String, Object> materialize() {
+        if (materialized == null) {
+            HashMap<String, Object> headers = new HashMap<>(fields * 2);
+            for (int field = 0; field < fields; field++)
+                headers.put(keys[field], getValue(field));
+            materialized = headers;
+        }
+        return materialized;
+    }
+
+    private void addField(String key, int valueStart, int valueEnd) {
+        // Later duplicates replace earlier, as they would decoding into a map
+        int field = indexOf(key);
+        if (field < 0) {
+            if (fields == keys.length) {
+                keys        = Arrays.copyOf(keys, fields * 2);
+                valueStarts = Arrays.copyOf(valueStarts, fields * 2);
+                valueEnds   = Arrays.copyOf(valueEnds, fields * 2);
+            }
+            field = fields++;
+            keys[field] = key;
+        }
+        valueStarts[field] = valueStart;
+        valueEnds[field]   = valueEnd;
+    }
+
+    private Object decodeValue(int start, int end) {
+        if (version != SessionMessage.HEADER_VERSION_JSON)
+            return new SessionMessageHeaderCodec.Reader(ByteBuffer.wrap(encoded), start, end).readValue();
+
+        Object value = decodeSimpleJsonValue(start, end);
+        if (value != null || isJsonNull(start, end)) return value;
+
+        try {
+            String json = new String(encoded, start, end - start, UTF_8);
+            return SessionMessageDeserializer.fromJson(new JSONTokener(json).nextValue());
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Malformed header value", e);
+        }
+    }
+
+    // <editor-fold desc="Binary">
+
+    private void indexBinary() {
+        SessionMessageHeaderCodec.Reader reader =
+                new SessionMessageHeaderCodec.Reader(ByteBuffer.wrap(encoded), 0, encoded.length);
+
+        while (reader.hasRemaining()) {
+            String key = reader.readKey();
+            int valueStart = reader.position();
+            reader.skipValue();
+            addField(key, valueStart, reader.position());
+        }
+    }
+
+    // </editor-fold desc="Binary">
+
+    // <editor-fold desc="JSON">
+
+    private void indexJson() {
+        int index = skipWhitespace(0);
+        if (index >= encoded.length || encoded[index] != '{')
+            throw new IllegalArgumentException("Header is not a JSON object");
+
+        index = skipWhitespace(index + 1);
+        if (index < encoded.length && encoded[index] == '}') return;
+
+        while (true) {
+            if (index >= encoded.length || encoded[index] != '"')
+                throw new IllegalArgumentException("Expected header key at " + index);
+
+            int keyEnd = skipJsonString(index);
+            String key = decodeJsonKey(index, keyEnd);
+
+            index = skipWhitespace(keyEnd);
+            if (index >= encoded.length || encoded[index] != ':')
+                throw new IllegalArgumentException("Expected ':' at " + index);
+
+            int valueStart = skipWhitespace(index + 1);
+            int valueEnd   = skipJsonValue(valueStart);
+            addField(key, valueStart, valueEnd);
+
+            index = skipWhitespace(valueEnd);
+            if (index >= encoded.length)
+                throw new IllegalArgumentException("Header truncated");
+            else if (encoded[index] == '}')
+                return;
+            else if (encoded[index] != ',')
+                throw new IllegalArgumentException("Expected ',' at " + index);
+
+            index = skipWhitespace(index + 1);
+        }
+    }
+
+    private int skipWhitespace(int index) {
+        while (index < encoded.length &&
+               (encoded[index] == ' ' || encoded[index] == '\n' || encoded[index] == '\r' || encoded[index] == '\t'))
+            index++;
+        return index;
+    }
+
+    /**
+     * @return the index following the string whose opening quote is at index
+     */
+    private int skipJsonString(int index) {
+        for (index++; index < encoded.length; index++) {
+            if (encoded[index] == '\\')
+                index++;
+            else if (encoded[index] == '"')
+                return index + 1;
+        }
+        throw new IllegalArgumentException("Header truncated");
+    }
+
+    /**
+     * @return the index following the value beginning at index
+     */
+    private int skipJsonValue(int index) {
+        if (index >= encoded.length) throw new IllegalArgumentException("Header truncated");
+
+        byte first = encoded[index];
+        if (first == '"') return skipJsonString(index);
+
+        if (first == '{' || first == '[') {
+            int depth = 0;
+            while (index < encoded.length) {
+                byte b = encoded[index];
+                if (b == '"') {
+                    index = skipJsonString(index);
+                    continue;
+                }
+                if (b == '{' || b == '[')
+                    depth++;
+                else if ((b == '}' || b == ']') && --depth == 0)
+                    return index + 1;
+                index++;
+            }
+            throw new IllegalArgumentException("Header truncated");
+        }
+
+        // Number or literal
+        int start = index;
+        while (index < encoded.length) {
+            byte b = encoded[index];
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\n' || b == '\r' || b == '\t') break;
+            index++;
+        }
+        if (index == start) throw new IllegalArgumentException("Expected header value at " + start);
+        return index;
+    }
+
+    private String decodeJsonKey(int start, int end) {
+        int length = end - start - 2;
+        for (int known = 0; known < KNOWN_KEY_BYTES.length; known++) {
+            if (regionEquals(start + 1, length, KNOWN_KEY_BYTES[known]))
+                return KNOWN_KEYS[known];
+        }
+        Object key = decodeSimpleJsonValue(start, end);
+        return key != null ? (String) key : (String) decodeValue(start, end);
+    }
+
+    /**
+     * @return strings without escapes, integers, and booleans decoded directly, otherwise null
+     */
+    private @Nullable Object decodeSimpleJsonValue(int start, int end) {
+        byte first = encoded[start];
+
+        if (first == '"') {
+            for (int i = start + 1; i < end - 1; i++) {
+                if (encoded[i] == '\\') return null;
+            }
+            return new String(encoded, start + 1, end - start - 2, UTF_8);
+        }
+
+        if (first == 't' && regionEquals(start, end - start, TRUE)) return Boolean.TRUE;
+        if (first == 'f' && regionEquals(start, end - start, FALSE)) return Boolean.FALSE;
+
+        if (first == '-' || (first >= '0' && first <= '9')) {
+            int index = first == '-' ? start + 1 : start;
+            // Leave values that may overflow a long to the JSON parser
+            if (index == end || end - index > 18) return null;
+
+            long value = 0;
+            for (; index < end; index++) {
+                byte digit = encoded[index];
+                if (digit < '0' || digit > '9') return null;
+                value = value * 10 + (digit - '0');
+            }
+            if (first == '-') value = -value;
+
+            // Integral values are decoded as they would be by JSONObject
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE)
+                return (int) value;
+            return value;
+        }
+
+        return null;
+    }
+
+    private boolean isJsonNull(int start, int end) {
+        return regionEquals(start, end - start, NULL);
+    }
+
+    private boolean regionEquals(int start, int length, byte[] expected) {
+        if (length != expected.length) return false;
+
+        for (int i = 0; i < length; i++) {
+            if (encoded[start + i] != expected[i]) return false;
+        }
+        return true;
+    }
+
+    // </editor-fold desc="JSON">
+}
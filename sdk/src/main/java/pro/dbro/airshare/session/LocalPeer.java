@@ -5,6 +5,7 @@ import android.content.pm.FeatureInfo;
 import android.content.pm.PackageManager;
 
 import pro.dbro.airshare.crypto.KeyPair;
+import pro.dbro.airshare.transport.l2cap.L2capTransport;
 import pro.dbro.airshare.transport.wifi.WifiTransport;
 import timber.log.Timber;
 
@@ -21,12 +22,20 @@ public class LocalPeer extends Peer {
 
         super(keyPair.publicKey, alias, null, 0, 0);
         this.privateKey = keyPair.secretKey;
+        headerVersion = SessionMessage.CURRENT_HEADER_VERSION;
+        maxStreams = SessionMessageSerializer.MAX_STREAMS;
+        resumable = true;
+        checksums = true;
+        compression = true;
         transports = doesDeviceSupportWifiDirect(context) ?
                         transports | WifiTransport.TRANSPORT_CODE :
                         transports;
 
         Timber.d("LocalPeer supports WifiDirect %b %b", doesDeviceSupportWifiDirect(context), supportsTransportWithCode(WifiTransport.TRANSPORT_CODE));
 
+        if (L2capTransport.isSupported(context))
+            transports |= L2capTransport.TRANSPORT_CODE;
+
     }
 
     private static boolean doesDeviceSupportWifiDirect(Context ctx) {
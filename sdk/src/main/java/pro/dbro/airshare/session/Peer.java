@@ -14,6 +14,11 @@ public class Peer {
     private Date lastSeen;
     private int rssi;
     protected int transports;
+    protected int headerVersion;
+    protected int maxStreams;
+    protected boolean resumable;
+    protected boolean checksums;
+    protected boolean compression;
 
     public Peer(byte[] publicKey,
                    String alias,
@@ -21,11 +26,76 @@ public class Peer {
                    int rssi,
                    int transports) {
 
+        this(publicKey, alias, lastSeen, rssi, transports, SessionMessage.HEADER_VERSION_JSON);
+    }
+
+    public Peer(byte[] publicKey,
+                   String alias,
+                   Date lastSeen,
+                   int rssi,
+                   int transports,
+                   int headerVersion) {
+
+        this(publicKey, alias, lastSeen, rssi, transports, headerVersion, 1);
+    }
+
+    public Peer(byte[] publicKey,
+                   String alias,
+                   Date lastSeen,
+                   int rssi,
+                   int transports,
+                   int headerVersion,
+                   int maxStreams) {
+
+        this(publicKey, alias, lastSeen, rssi, transports, headerVersion, maxStreams, false);
+    }
+
+    public Peer(byte[] publicKey,
+                   String alias,
+                   Date lastSeen,
+                   int rssi,
+                   int transports,
+                   int headerVersion,
+                   int maxStreams,
+                   boolean resumable) {
+
+        this(publicKey, alias, lastSeen, rssi, transports, headerVersion, maxStreams, resumable, false);
+    }
+
+    public Peer(byte[] publicKey,
+                   String alias,
+                   Date lastSeen,
+                   int rssi,
+                   int transports,
+                   int headerVersion,
+                   int maxStreams,
+                   boolean resumable,
+                   boolean checksums) {
+
+        this(publicKey, alias, lastSeen, rssi, transports, headerVersion, maxStreams, resumable, checksums, false);
+    }
+
+    public Peer(byte[] publicKey,
+                   String alias,
+                   Date lastSeen,
+                   int rssi,
+                   int transports,
+                   int headerVersion,
+                   int maxStreams,
+                   boolean resumable,
+                   boolean checksums,
+                   boolean compression) {
+
         this.publicKey = publicKey;
         this.alias = alias;
         this.lastSeen = lastSeen;
         this.rssi = rssi;
         this.transports = transports;
+        this.headerVersion = headerVersion;
+        this.maxStreams = maxStreams;
+        this.resumable = resumable;
+        this.checksums = checksums;
+        this.compression = compression;
     }
 
     public byte[] getPublicKey() {
@@ -48,6 +118,46 @@ public class Peer {
         return transports;
     }
 
+    /**
+     * @return the newest {@link pro.dbro.airshare.session.SessionMessage} header version
+     * this peer can deserialize
+     */
+    public int getSupportedHeaderVersion() {
+        return headerVersion;
+    }
+
+    /**
+     * @return the number of multiplexed messages this peer can reassemble at once. 1 if this
+     * peer cannot reassemble frames. See {@link pro.dbro.airshare.session.SessionMessageSerializer}
+     */
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    /**
+     * @return whether this peer checkpoints interrupted incoming transfers and answers a
+     * {@link pro.dbro.airshare.session.ResumeMessage} with where each may resume
+     */
+    public boolean supportsResume() {
+        return resumable;
+    }
+
+    /**
+     * @return whether this peer verifies checksummed chunks and body digests, and requests
+     * retransmission of corrupt or missing chunks. See {@link pro.dbro.airshare.session.ChunkNackMessage}
+     */
+    public boolean supportsChecksums() {
+        return checksums;
+    }
+
+    /**
+     * @return whether this peer decodes compressed {@link pro.dbro.airshare.session.DataTransferMessage}
+     * bodies. See {@link DataTransferMessage#setBodyCompression(boolean)}
+     */
+    public boolean supportsCompression() {
+        return compression;
+    }
+
     public boolean supportsTransportWithCode(int transportCode) {
         return (transports & transportCode) == transportCode;
     }
@@ -0,0 +1,67 @@
+package pro.dbro.airshare.session;
+
+/**
+ * Process-wide limit on the heap held by the bodies of messages being received, shared by every
+ * {@link pro.dbro.airshare.session.SessionMessageDeserializer}.
+ *
+ * A deserializer reserves a message's announced body length when its header arrives, and releases
+ * it when the message is delivered or abandoned. A body that does not fit the remaining budget is
+ * received to disk instead, as bodies over {@link SessionMessageDeserializer#BODY_SIZE_CUTOFF_BYTES}
+ * always are, so heap used receiving bodies stays within the limit however many peers send at once.
+ */
+public class ReceiveMemoryBudget {
+
+    /** Default limit. The lesser of 8 MB and an eighth of the heap */
+    public static final long DEFAULT_LIMIT_BYTES = Math.min(8 * 1000 * 1000, Runtime.getRuntime().maxMemory() / 8);
+
+    private static long limitBytes = DEFAULT_LIMIT_BYTES;
+    private static long usedBytes;
+    private static long peakBytes;
+
+    private ReceiveMemoryBudget() {
+        // Util
+    }
+
+    /**
+     * Set the limit. Reservations already held are kept if the new limit is lower.
+     */
+    public static synchronized void setLimitBytes(long limitBytes) {
+        if (limitBytes < 0)
+            throw new IllegalArgumentException("Limit may not be negative");
+
+        ReceiveMemoryBudget.limitBytes = limitBytes;
+    }
+
+    public static synchronized long getLimitBytes() {
+        return limitBytes;
+    }
+
+    /**
+     * @return the bytes currently reserved by message bodies being received
+     */
+    public static synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the most bytes reserved at once since the process started
+     */
+    public static synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * @return whether bytes were reserved. If false, nothing was reserved.
+     */
+    static synchronized boolean tryReserve(int bytes) {
+        if (usedBytes + bytes > limitBytes) return false;
+
+        usedBytes += bytes;
+        peakBytes = Math.max(peakBytes, usedBytes);
+        return true;
+    }
+
+    static synchronized void release(int bytes) {
+        usedBytes -= bytes;
+    }
+}
@@ -0,0 +1,126 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Negotiates where interrupted {@link pro.dbro.airshare.session.DataTransferMessage}s resume.
+ *
+ * Before sending a large transfer to a peer that {@link Peer#supportsResume()}, a sender requests
+ * the offset from which to send its body. The recipient replies with the number of body bytes it
+ * holds for each transfer requested, or 0. See {@link pro.dbro.airshare.session.TransferCheckpoints}
+ */
+public class ResumeMessage extends SessionMessage {
+
+    public static final String HEADER_TYPE = "resume";
+
+    /** Map of transfer id to body length, present in a request */
+    public static final String HEADER_REQUEST = "request";
+
+    /** Map of transfer id to resume offset, present in a reply */
+    public static final String HEADER_OFFSETS = "offsets";
+
+    private Map<String, Integer> transfers;
+    private boolean              reply;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    @SuppressWarnings("unchecked")
+    ResumeMessage(@NonNull Map<String, Object> headers) {
+
+        super((String) headers.get(SessionMessage.HEADER_ID));
+        init();
+        reply           = headers.containsKey(HEADER_OFFSETS);
+        transfers       = toIntegerMap((Map<String, Object>) headers.get(reply ? HEADER_OFFSETS : HEADER_REQUEST));
+        this.headers    = headers;
+        bodyLengthBytes = (int) headers.get(HEADER_BODY_LENGTH);
+        status          = Status.COMPLETE;
+
+        serializeAndCacheHeaders();
+
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    /**
+     * @param bodyLengths the body length of each transfer to resume, by transfer id
+     */
+    public static ResumeMessage createRequest(@NonNull Map<String, Integer> bodyLengths) {
+        return new ResumeMessage(bodyLengths, false);
+    }
+
+    /**
+     * @param offsets the offset from which each requested transfer should be sent, by transfer id
+     */
+    public static ResumeMessage createReply(@NonNull Map<String, Integer> offsets) {
+        return new ResumeMessage(offsets, true);
+    }
+
+    private ResumeMessage(@NonNull Map<String, Integer> transfers, boolean reply) {
+        super();
+        init();
+        this.transfers = transfers;
+        this.reply     = reply;
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    @Override
+    protected @NonNull Priority getDefaultPriority() {
+        return Priority.CONTROL;
+    }
+
+    /**
+     * @return whether this message answers a request, rather than requesting offsets
+     */
+    public boolean isReply() {
+        return reply;
+    }
+
+    /**
+     * @return body lengths by transfer id if this is a request, else offsets by transfer id
+     */
+    public @NonNull Map<String, Integer> getTransfers() {
+        return Collections.unmodifiableMap(transfers);
+    }
+
+    private void init() {
+        type = HEADER_TYPE;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+
+        headerMap.put(reply ? HEADER_OFFSETS : HEADER_REQUEST, new HashMap<String, Object>(transfers));
+
+        return headerMap;
+    }
+
+    @Nullable
+    @Override
+    public byte[] getBodyAtOffset(int offset, int length) {
+        return null;
+    }
+
+    /**
+     * Header formats may decode integers as any {@link Number}
+     */
+    private static Map<String, Integer> toIntegerMap(@Nullable Map<String, Object> map) {
+        HashMap<String, Integer> integers = new HashMap<>();
+        if (map == null) return integers;
+
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            if (entry.getValue() instanceof Number)
+                integers.put(entry.getKey(), ((Number) entry.getValue()).intValue());
+        }
+        return integers;
+    }
+}
@@ -3,37 +3,60 @@ package pro.dbro.airshare.session;
 import android.content.Context;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import android.util.Pair;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.SetMultimap;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import hugo.weaving.DebugLog;
 import pro.dbro.airshare.transport.Transport;
 import pro.dbro.airshare.transport.TransportState;
 import pro.dbro.airshare.transport.ble.BLETransport;
+import pro.dbro.airshare.transport.l2cap.L2capTransport;
 import pro.dbro.airshare.transport.wifi.WifiTransport;
 import timber.log.Timber;
 
 /**
  * Created by davidbrodsky on 2/21/15.
  */
-public class SessionManager implements Transport.TransportCallback,
+public class SessionManager implements Transport.LinkCallback,
                                        SessionMessageDeserializer.SessionMessageDeserializerCallback,
+                                       SessionMessageDeserializer.RetransmissionListener,
                                        SessionMessageScheduler {
 
     private static final boolean VERBOSE = true;
 
+    /** Backlog reported to transports is counted no further than this */
+    private static final int BACKLOG_LIMIT_BYTES = 1024 * 1024;
+
+    /** Partially filled chunks held by lingering senders are released on this thread */
+    private static final ScheduledExecutorService lingerExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "AirShare-Linger");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     public interface SessionManagerCallback {
 
         void peerStatusUpdated       (@NonNull Peer peer,
@@ -44,6 +67,14 @@ public class SessionManager implements Transport.TransportCallback,
                                       int newTransportCode,
                                       @Nullable Exception exception);
 
+        /**
+         * Called as the header of message arrives, before any of its body. Called on the
+         * receiving thread so that a {@link DataTransferMessage.BodySink} may be set in time,
+         * so must not block. May precede the receipt of an earlier message still being written to disk.
+         */
+        void messageHeaderFromPeer   (@NonNull SessionMessage message,
+                                      @NonNull Peer sender);
+
         void messageReceivingFromPeer(@NonNull SessionMessage message,
                                       @NonNull Peer recipient,
                                       float progress);
@@ -59,6 +90,13 @@ public class SessionManager implements Transport.TransportCallback,
                                       @NonNull Peer recipient,
                                       @Nullable Exception exception);
 
+        /**
+         * Called when a transport changes the link to peer, e.g: its connection priority
+         */
+        void peerLinkUpdated         (@NonNull Peer peer,
+                                      int transportCode,
+                                      @NonNull Map<String, Object> linkInfo);
+
     }
 
     private Context                                   context;
@@ -77,6 +115,14 @@ public class SessionManager implements Transport.TransportCallback,
     private Set<String>                               hostIdentifiers            = new HashSet<>();
     private HashMap<Peer, Transport>                  peerUpgradeRequests        = new HashMap<>();
     private TransportState                            baseTransportState         = new TransportState(false, false, false);
+    private HashMap<String, ChunkSizeController>      identifierChunkSizes       = new HashMap<>();
+    private Set<String>                               lingeringIdentifiers       = new HashSet<>();
+    private long                                      lingerMs                   = SessionMessageSerializer.DEFAULT_LINGER_MS;
+    private TransferCheckpoints                       checkpoints;
+    /** Transfers left undelivered by disconnection, resent when the peer is next identified */
+    private HashMap<Peer, List<SessionMessage>>       peerRetainedMessages       = new HashMap<>();
+    /** Transfers awaiting the recipient's reply to a {@link ResumeMessage} request */
+    private HashMap<String, List<DataTransferMessage>> identifierResumingMessages = new HashMap<>();
 
     // <editor-fold desc="Public API">
 
@@ -91,6 +137,7 @@ public class SessionManager implements Transport.TransportCallback,
         this.callback    = callback;
 
         localIdentityMessage = new IdentityMessage(this.context, this.localPeer);
+        checkpoints          = new TransferCheckpoints(this.context);
 
         initializeTransports(serviceName);
     }
@@ -114,51 +161,107 @@ public class SessionManager implements Transport.TransportCallback,
     /**
      * Send a message to the given recipient. If the recipient is not currently available,
      * delivery will occur next time the peer is available
+     *
+     * A {@link DataTransferMessage} interrupted by disconnection is sent again once the recipient
+     * reconnects. A recipient that {@link Peer#supportsResume()} is sent only the body bytes it
+     * does not already hold.
+     *
+     * The message is encoded as {@link #sendMessage(SessionMessage, Collection)} encodes it for
+     * a single recipient.
      */
     // TODO : This  method needs to be re-evaluated to be more robust
     // If preferred transport not available, queue on base transport?
     @DebugLog
     public synchronized void sendMessage(SessionMessage message, Peer recipient) {
+        sendMessage(message, Collections.singletonList(recipient));
+    }
 
-        Set<String> recipientIdentifiers = peerIdentifiers.get(recipient);
-        String targetRecipientIdentifier = null;
+    /**
+     * Send one message to several recipients. The message is encoded once, in the newest header
+     * format all recipients advertised, and the encoding is shared by every recipient's queue
+     * rather than copied. Delivery to each recipient is reported separately.
+     *
+     * A message already being sent keeps its encoding, as other recipients may be part way through
+     * it. A {@link DataTransferMessage} is instead sent as a copy encoded for these recipients.
+     *
+     * A {@link StreamMessage} may only be sent to a single recipient.
+     */
+    @Override
+    @DebugLog
+    public synchronized void sendMessage(SessionMessage message, Collection<Peer> recipients) {
+        if (message instanceof StreamMessage && recipients.size() > 1)
+            throw new IllegalArgumentException("A StreamMessage may only be sent to a single recipient");
 
-        if (recipientIdentifiers == null || recipientIdentifiers.size() == 0) { // TODO: Does HashMultiMap return null or empty collection?
-            Timber.e("No Identifiers for peer %s", recipient.getAlias());
-            return;
-        }
+        // Each recipient is sent the message once, however often it appears in recipients
+        Set<String> targetIdentifiers = new LinkedHashSet<>();
+        int headerVersion = SessionMessage.CURRENT_HEADER_VERSION;
+        boolean checksums = true;
+        boolean compression = true;
 
-        Transport transport = getPreferredTransportForPeer(recipient);
+        for (Peer recipient : recipients) {
+            String targetRecipientIdentifier = getTargetIdentifier(recipient);
+            if (targetRecipientIdentifier == null) continue;
 
-        if (transport == null) {
-            Timber.e("No transport for %s", recipient.getAlias());
-            return;
-        }
+            targetIdentifiers.add(targetRecipientIdentifier);
 
-        for (String recipientIdentifier : recipientIdentifiers) {
-            if (identifierTransports.get(recipientIdentifier).equals(transport))
-                targetRecipientIdentifier = recipientIdentifier;
+            Peer identifiedRecipient = identifiedPeers.get(targetRecipientIdentifier);
+            if (identifiedRecipient != null)
+                headerVersion = Math.min(headerVersion, identifiedRecipient.getSupportedHeaderVersion());
+
+            checksums &= identifiedRecipient != null && identifiedRecipient.supportsChecksums();
+            compression &= identifiedRecipient != null && identifiedRecipient.supportsCompression();
         }
 
-        if (targetRecipientIdentifier == null) {
-            Timber.e("Could not find identifier for %s on preferred transport %d", recipient.getAlias(), transport.getTransportCode());
-            return;
-            // TODO : Fall back to base transport
+        if (targetIdentifiers.isEmpty()) return;
+
+        // A shared body is compressed, or carries a digest, only if every recipient decodes it
+        message = encodeForSending(message, headerVersion, compression, checksums);
+
+        if (targetIdentifiers.size() > 1 && message instanceof DataTransferMessage)
+            ((DataTransferMessage) message).shareBody();
+
+        for (String targetRecipientIdentifier : targetIdentifiers)
+            queueMessage(message, targetRecipientIdentifier);
+    }
+
+    /**
+     * @return message encoded with headerVersion, and its body compressed and digested as given.
+     * A message already being sent keeps its encoding, except a {@link DataTransferMessage},
+     * for which a copy so encoded is returned.
+     */
+    static SessionMessage encodeForSending(SessionMessage message, int headerVersion,
+                                           boolean compression, boolean checksums) {
+
+        // e.g: a transfer retained after disconnection, which may still be sending to others
+        if (message.isSerializationStarted() && message instanceof DataTransferMessage) {
+            DataTransferMessage transfer = (DataTransferMessage) message;
+            message = transfer.resumeFrom(transfer.getResumeOffset());
         }
 
-        if (!identifierSenders.containsKey(targetRecipientIdentifier))
-            identifierSenders.put(targetRecipientIdentifier, new SessionMessageSerializer(message));
-        else
-            identifierSenders.get(targetRecipientIdentifier).queueMessage(message);
+        if (message.isSerializationStarted()) return message;
 
-        SessionMessageSerializer sender = identifierSenders.get(targetRecipientIdentifier);
+        message.setHeaderVersion(headerVersion);
+        if (message instanceof DataTransferMessage) {
+            ((DataTransferMessage) message).setBodyCompression(compression);
+            ((DataTransferMessage) message).setBodyDigest(checksums);
+        }
+        return message;
+    }
 
-        transport.sendData(sender.getNextChunk(transport.getMtuForIdentifier(targetRecipientIdentifier)),
-                               targetRecipientIdentifier);
-//        else
-//            Timber.d("Send queued. No transport available for identifier %s", targetRecipientIdentifier);
+    @Override
+    public synchronized void sendMessage(SessionMessage message, Peer recipient, SessionMessage.Priority priority) {
+        message.setPriority(priority);
+        sendMessage(message, recipient);
+    }
 
-        // If no transport for the peer is available, data will be sent next time peer is available
+    /**
+     * Set the longest a partially filled chunk may be held awaiting further messages to
+     * coalesce with. See {@link SessionMessageSerializer#setLingerMs(long)}
+     */
+    public synchronized void setLingerMs(long lingerMs) {
+        this.lingerMs = lingerMs;
+        for (SessionMessageSerializer sender : identifierSenders.values())
+            sender.setLingerMs(lingerMs);
     }
 
     public Set<Peer> getAvailablePeers() {
@@ -231,7 +334,8 @@ public class SessionManager implements Transport.TransportCallback,
      * Get the current preferred available transport for the given peer
      * This is generally the available transport with the highest bandwidth
      *
-     * @return either {@link pro.dbro.airshare.transport.wifi.WifiTransport#TRANSPORT_CODE}
+     * @return either {@link pro.dbro.airshare.transport.wifi.WifiTransport#TRANSPORT_CODE},
+     *                 {@link pro.dbro.airshare.transport.l2cap.L2capTransport#TRANSPORT_CODE}
      *                 or {@link pro.dbro.airshare.transport.ble.BLETransport#TRANSPORT_CODE},
      *                 or -1 if none available.
      */
@@ -247,15 +351,22 @@ public class SessionManager implements Transport.TransportCallback,
 
     private void reset() {
 
+        // Keep partial bodies being received for their transfers to resume
+        for (SessionMessageDeserializer receiver : identifierReceivers.values())
+            receiver.reset();
+
         identifierTransports.clear();
         peerTransports.clear();
         identifierReceivers.clear();
         identifierSenders.clear();
+        identifierChunkSizes.clear();
         identifiedPeers.clear();
         identifyingPeers.clear();
         hostIdentifiers.clear();
         peerUpgradeRequests.clear();
         peerIdentifiers.clear();
+        peerRetainedMessages.clear();
+        identifierResumingMessages.clear();
 
         baseTransportState = new TransportState(false, false, false);
     }
@@ -266,6 +377,10 @@ public class SessionManager implements Transport.TransportCallback,
         // will only be activated upon request
         transports = new TreeSet<>();
         transports.add(new BLETransport(context, serviceName, this));
+        // Peers identified over BLE move to an L2CAP channel where both support one,
+        // and otherwise remain on BLE
+        if (L2capTransport.isSupported(context))
+            transports.add(new L2capTransport(context, serviceName, this));
         transports.add(new WifiTransport(context, serviceName, this));
     }
 
@@ -299,6 +414,30 @@ public class SessionManager implements Transport.TransportCallback,
     }
 
 
+    /**
+     * Offer the client peer identified over BLE at identifier an L2CAP channel, to which
+     * session traffic moves once it connects
+     */
+    private void offerL2capChannel(Peer peer, String identifier) {
+        Transport transport = getAvailableTransportByCode(L2capTransport.TRANSPORT_CODE);
+
+        if (!(transport instanceof L2capTransport) || !peer.supportsTransportWithCode(L2capTransport.TRANSPORT_CODE))
+            return;
+
+        L2capTransport l2capTransport = (L2capTransport) transport;
+        l2capTransport.advertise();
+
+        int channel = l2capTransport.getListeningChannel();
+        if (channel == -1) {
+            Timber.w("Unable to offer L2CAP channel to %s. Remaining on BLE", peer.getAlias());
+            return;
+        }
+
+        Timber.d("Offering L2CAP channel %d to %s", channel, peer.getAlias());
+        peerUpgradeRequests.put(peer, l2capTransport);
+        sendControlMessage(new TransportUpgradeMessage(L2capTransport.TRANSPORT_CODE, channel), identifier);
+    }
+
     private @Nullable Transport getPreferredTransportForPeer(Peer peer) {
 
         if (!peerTransports.containsKey(peer) || peerTransports.get(peer).size() == 0)
@@ -309,6 +448,265 @@ public class SessionManager implements Transport.TransportCallback,
                              .last();
     }
 
+    /**
+     * @return the identifier of recipient on its preferred transport, or null if it has none
+     */
+    private @Nullable String getTargetIdentifier(Peer recipient) {
+        Set<String> recipientIdentifiers = peerIdentifiers.get(recipient);
+        String targetRecipientIdentifier = null;
+
+        if (recipientIdentifiers == null || recipientIdentifiers.size() == 0) { // TODO: Does HashMultiMap return null or empty collection?
+            Timber.e("No Identifiers for peer %s", recipient.getAlias());
+            return null;
+        }
+
+        Transport transport = getPreferredTransportForPeer(recipient);
+
+        if (transport == null) {
+            Timber.e("No transport for %s", recipient.getAlias());
+            return null;
+        }
+
+        for (String recipientIdentifier : recipientIdentifiers) {
+            if (identifierTransports.get(recipientIdentifier).equals(transport))
+                targetRecipientIdentifier = recipientIdentifier;
+        }
+
+        if (targetRecipientIdentifier == null) {
+            Timber.e("Could not find identifier for %s on preferred transport %d", recipient.getAlias(), transport.getTransportCode());
+            // TODO : Fall back to base transport
+        }
+
+        return targetRecipientIdentifier;
+    }
+
+    /**
+     * Queue message, whose header version is already set, for the recipient with the given
+     * identifier. A transfer the recipient may hold part of is queued once the recipient
+     * replies with where it should resume.
+     */
+    private void queueMessage(SessionMessage message, String targetRecipientIdentifier) {
+        Peer identifiedRecipient = identifiedPeers.get(targetRecipientIdentifier);
+
+        if (message instanceof DataTransferMessage &&
+            message.getBodyLengthBytes() > SessionMessageDeserializer.BODY_SIZE_CUTOFF_BYTES &&
+            identifiedRecipient != null && identifiedRecipient.supportsResume()) {
+
+            requestResume((DataTransferMessage) message, targetRecipientIdentifier);
+        } else
+            queueForSending(message, targetRecipientIdentifier);
+    }
+
+    /**
+     * Queue message, whose header version is already set, for the recipient with the given
+     * identifier and send what the window permits
+     */
+    private void queueForSending(SessionMessage message, final String targetRecipientIdentifier) {
+        Transport transport = identifierTransports.get(targetRecipientIdentifier);
+        Peer identifiedRecipient = identifiedPeers.get(targetRecipientIdentifier);
+
+        if (message instanceof StreamMessage) {
+            ((StreamMessage) message).setDataAvailableListener(new StreamMessage.DataAvailableListener() {
+                @Override
+                public void onDataAvailable(@NonNull StreamMessage message) {
+                    resumeSending(targetRecipientIdentifier);
+                }
+            });
+        }
+
+        SessionMessageSerializer sender = identifierSenders.get(targetRecipientIdentifier);
+        if (sender == null) {
+            sender = new SessionMessageSerializer(message);
+            sender.setLingerMs(lingerMs);
+            identifierSenders.put(targetRecipientIdentifier, sender);
+        } else
+            sender.queueMessage(message);
+
+        // Interleave messages if the recipient advertised it can reassemble them
+        if (identifiedRecipient != null) {
+            sender.setMaxStreams(Math.min(identifiedRecipient.getMaxStreams(),
+                                          SessionMessageSerializer.MAX_STREAMS));
+            sender.setChecksums(identifiedRecipient.supportsChecksums());
+        }
+
+        sendNextChunks(transport, targetRecipientIdentifier, sender);
+//        else
+//            Timber.d("Send queued. No transport available for identifier %s", targetRecipientIdentifier);
+
+        // If no transport for the peer is available, data will be sent next time peer is available
+    }
+
+    // <editor-fold desc="Resumption">
+
+    /**
+     * Ask the recipient with the given identifier where message should resume, holding
+     * message until it replies
+     */
+    private void requestResume(DataTransferMessage message, String targetRecipientIdentifier) {
+        List<DataTransferMessage> resuming = identifierResumingMessages.get(targetRecipientIdentifier);
+        if (resuming == null) {
+            resuming = new ArrayList<>();
+            identifierResumingMessages.put(targetRecipientIdentifier, resuming);
+        }
+        resuming.add(message);
+
+        HashMap<String, Integer> bodyLengths = new HashMap<>();
+        bodyLengths.put((String) message.getHeaders().get(SessionMessage.HEADER_ID), message.getBodyLengthBytes());
+
+        Timber.d("Requesting resume offset of %s from %s", message.getHeaders().get(SessionMessage.HEADER_ID), targetRecipientIdentifier);
+        sendControlMessage(ResumeMessage.createRequest(bodyLengths), targetRecipientIdentifier);
+    }
+
+    /**
+     * Reply to a request with the body bytes held of each transfer, or queue the transfers
+     * awaiting a reply from where the recipient says to resume
+     */
+    private void handleResumeMessage(ResumeMessage message, String senderIdentifier) {
+        if (!message.isReply()) {
+            HashMap<String, Integer> offsets = new HashMap<>();
+            for (Map.Entry<String, Integer> transfer : message.getTransfers().entrySet())
+                offsets.put(transfer.getKey(), checkpoints.getResumeOffset(transfer.getKey(), transfer.getValue()));
+
+            sendControlMessage(ResumeMessage.createReply(offsets), senderIdentifier);
+            return;
+        }
+
+        List<DataTransferMessage> resuming = identifierResumingMessages.get(senderIdentifier);
+        if (resuming == null) return;
+
+        Iterator<DataTransferMessage> iterator = resuming.iterator();
+        while (iterator.hasNext()) {
+            DataTransferMessage transfer = iterator.next();
+            Integer offset = message.getTransfers().get(transfer.getHeaders().get(SessionMessage.HEADER_ID));
+            if (offset == null) continue;
+
+            iterator.remove();
+            Timber.d("Resuming %s to %s from %d / %d bytes", transfer.getHeaders().get(SessionMessage.HEADER_ID),
+                                                             senderIdentifier, offset, transfer.getBodyLengthBytes());
+
+            queueForSending(offset == transfer.getResumeOffset() ? transfer : transfer.resumeFrom(offset),
+                            senderIdentifier);
+        }
+
+        if (resuming.isEmpty()) identifierResumingMessages.remove(senderIdentifier);
+    }
+
+    private void sendControlMessage(SessionMessage message, String targetRecipientIdentifier) {
+        Peer identifiedRecipient = identifiedPeers.get(targetRecipientIdentifier);
+        if (identifiedRecipient != null)
+            message.setHeaderVersion(Math.min(identifiedRecipient.getSupportedHeaderVersion(),
+                                              SessionMessage.CURRENT_HEADER_VERSION));
+
+        queueForSending(message, targetRecipientIdentifier);
+    }
+
+    /**
+     * Keep the transfers to peer left undelivered by the disconnection of identifier, and send
+     * them again over another of its identifiers if one remains
+     */
+    private void retainUndeliveredTransfers(@Nullable Peer peer, String identifier, @Nullable SessionMessageSerializer sender) {
+        List<SessionMessage> undelivered = new ArrayList<>();
+
+        List<DataTransferMessage> resuming = identifierResumingMessages.remove(identifier);
+        if (resuming != null) undelivered.addAll(resuming);
+
+        if (sender != null) {
+            for (SessionMessage message : sender.getUndeliveredMessages()) {
+                // Other messages belong to the session or cannot be replayed
+                if (message instanceof DataTransferMessage) undelivered.add(message);
+            }
+        }
+
+        if (peer == null || undelivered.isEmpty()) return;
+
+        Timber.d("Retaining %d undelivered transfers to %s", undelivered.size(), peer.getAlias());
+        List<SessionMessage> retained = peerRetainedMessages.get(peer);
+        if (retained == null)
+            peerRetainedMessages.put(peer, undelivered);
+        else
+            retained.addAll(undelivered);
+
+        if (!peerIdentifiers.get(peer).isEmpty()) resendRetainedTransfers(peer);
+    }
+
+    private void resendRetainedTransfers(Peer peer) {
+        List<SessionMessage> retained = peerRetainedMessages.remove(peer);
+        if (retained == null) return;
+
+        Timber.d("Resending %d interrupted transfers to %s", retained.size(), peer.getAlias());
+        for (SessionMessage message : retained)
+            sendMessage(message, peer);
+    }
+
+    // </editor-fold desc="Resumption">
+
+    /**
+     * Send chunks queued for identifier until the sender's window of chunks awaiting
+     * delivery is full. More will be sent as those are delivered.
+     */
+    private void sendNextChunks(Transport transport, String identifier, SessionMessageSerializer sender) {
+        ChunkSizeController chunkSize = getChunkSizeController(transport, identifier);
+        byte[] toSend;
+
+        while ((toSend = sender.getNextChunk(chunkSize.getChunkBytes())) != null) {
+            chunkSize.onChunkSent();
+            if (!transport.sendData(toSend, identifier)) {
+                // The link cannot take more now. Its disconnection retains what is undelivered
+                Timber.w("Transport %d did not send %d bytes to %s", transport.getTransportCode(),
+                                                                   toSend.length, identifier);
+                break;
+            }
+        }
+
+        transport.setBacklogForIdentifier(identifier, sender.getBacklogBytes(BACKLOG_LIMIT_BYTES));
+
+        // A held chunk is released by the next acknowledgement or the linger deadline, whichever is first
+        long lingerRemainingMs = sender.getLingerRemainingMs();
+        if (lingerRemainingMs > 0 && lingeringIdentifiers.add(identifier)) {
+            final String lingeringIdentifier = identifier;
+            lingerExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    resumeLingering(lingeringIdentifier);
+                }
+            }, lingerRemainingMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the controller adapting the size of chunks sent to identifier within the bounds
+     * its transport permits, which may change as the link's MTU is negotiated
+     */
+    private ChunkSizeController getChunkSizeController(Transport transport, String identifier) {
+        ChunkSizeController chunkSize = identifierChunkSizes.get(identifier);
+        if (chunkSize == null) {
+            chunkSize = new ChunkSizeController(transport.getInitialChunkBytesForIdentifier(identifier),
+                                                transport.getMinChunkBytesForIdentifier(identifier),
+                                                transport.getMtuForIdentifier(identifier));
+            identifierChunkSizes.put(identifier, chunkSize);
+        } else
+            chunkSize.setMaxChunkBytes(transport.getMtuForIdentifier(identifier));
+
+        return chunkSize;
+    }
+
+    private synchronized void resumeLingering(String identifier) {
+        lingeringIdentifiers.remove(identifier);
+        resumeSending(identifier);
+    }
+
+    /**
+     * Resume sending to identifier after an outgoing {@link StreamMessage} had no data available,
+     * or a partially filled chunk lingered
+     */
+    private synchronized void resumeSending(String identifier) {
+        SessionMessageSerializer sender = identifierSenders.get(identifier);
+        Transport transport = identifierTransports.get(identifier);
+
+        if (sender != null && transport != null)
+            sendNextChunks(transport, identifier, sender);
+    }
+
     private boolean shouldIdentifyPeer(String identifier) {
         // TODO : Might have banned peers etc.
         return !identifyingPeers.contains(identifier);
@@ -354,8 +752,11 @@ public class SessionManager implements Transport.TransportCallback,
         // so we use this opportunity to associate the identifier with its transport
         registerTransportForIdentifier(transport, identifier);
 
-        if (!identifierReceivers.containsKey(identifier))
-            identifierReceivers.put(identifier, new SessionMessageDeserializer(context, this));
+        if (!identifierReceivers.containsKey(identifier)) {
+            SessionMessageDeserializer receiver = new SessionMessageDeserializer(context, this, checkpoints);
+            receiver.setRetransmissionListener(this);
+            identifierReceivers.put(identifier, receiver);
+        }
 
         identifierReceivers.get(identifier)
                            .dataReceived(data);
@@ -365,77 +766,84 @@ public class SessionManager implements Transport.TransportCallback,
     @DebugLog
     public synchronized void dataSentToIdentifier(Transport transport, byte[] data, String identifier, Exception exception) {
 
+        ChunkSizeController chunkSize = identifierChunkSizes.get(identifier);
+        SessionMessageSerializer sender = identifierSenders.get(identifier);
+
         if (exception != null) {
             Timber.w("Data failed to send to %s", identifier);
+            if (chunkSize != null) chunkSize.onChunkFailed();
+
+            // Sent again once the chunks queued behind it are also reported
+            if (sender != null) {
+                sender.nackChunkDelivery(data);
+                sendNextChunks(transport, identifier, sender);
+            }
             return;
         }
 
-        SessionMessageSerializer sender = identifierSenders.get(identifier);
+        if (chunkSize != null) chunkSize.onChunkDelivered(data.length);
 
         if (sender == null) {
             Timber.w("No sender for dataSentToIdentifier to %s", identifier);
             return;
         }
 
-        Pair<SessionMessage, Float> messagePair = sender.ackChunkDelivery();
+        int ackedMessages = sender.ackChunkDelivery();
 
-        if (messagePair != null) {
+        // A chunk may carry several coalesced messages, or none if it was retransmitted
+        for (int i = 0; i < ackedMessages; i++)
+            reportMessageSending(sender.getAckedMessage(i), sender.getAckedProgress(i), identifier);
 
-            SessionMessage message = messagePair.first;
-            float progress = messagePair.second;
+        sendNextChunks(transport, identifier, sender);
+    }
 
-            if (VERBOSE) Timber.d("%d %s bytes (%.0f pct) sent to %s",
-                                  data.length,
-                                  message.getType(),
-                                  progress * 100,
-                                  identifier);
+    private void reportMessageSending(SessionMessage message, float progress, String identifier) {
 
-            if (progress == 1 && message.equals(localIdentityMessage)) {
-                Timber.d("Local identity acknowledged by recipient");
-                identifyingPeers.add(identifier);
-            }
+        if (VERBOSE) Timber.d("%s message (%.0f pct) sent to %s",
+                              message.getType(),
+                              progress * 100,
+                              identifier);
 
-            Peer recipient = identifiedPeers.get(identifier);
-            if (recipient != null) {
-                if (progress == 1) {
-
-                    // Process completely sent AirShare messages, pass non-AirShare messages
-                    // up via messageSentToPeer
-                    if (message.equals(localIdentityMessage)) {
+        if (progress == 1 && message.equals(localIdentityMessage)) {
+            Timber.d("Local identity acknowledged by recipient");
+            identifyingPeers.add(identifier);
+        }
 
-                        if (peerIdentifiers.get(recipient).size() == 1) {
-                            Timber.d("Reporting peer connected after last id sent");
-                            callback.peerStatusUpdated(recipient,
-                                                       Transport.ConnectionStatus.CONNECTED,
-                                                       hostIdentifiers.contains(identifier));
-                        }
+        Peer recipient = identifiedPeers.get(identifier);
+        if (recipient != null) {
+            if (progress == 1) {
 
-                    } else if (message.getType().equals(TransportUpgradeMessage.HEADER_TYPE)) {
-                        // Report transport upgraded once peer connects over new transport
-                        // don't report to #messageSendingToPeer
-                        Timber.d("Sent TranportUpgradeMessage");
+                // Process completely sent AirShare messages, pass non-AirShare messages
+                // up via messageSentToPeer
+                if (message.equals(localIdentityMessage)) {
 
-                    } else {
-                        callback.messageSentToPeer(message,
-                                identifiedPeers.get(identifier),
-                                null);
+                    if (peerIdentifiers.get(recipient).size() == 1) {
+                        Timber.d("Reporting peer connected after last id sent");
+                        callback.peerStatusUpdated(recipient,
+                                                   Transport.ConnectionStatus.CONNECTED,
+                                                   hostIdentifiers.contains(identifier));
                     }
 
-                } else {
+                } else if (message.getType().equals(TransportUpgradeMessage.HEADER_TYPE)) {
+                    // Report transport upgraded once peer connects over new transport
+                    // don't report to #messageSendingToPeer
+                    Timber.d("Sent TranportUpgradeMessage");
 
-                    callback.messageSendingToPeer(message,
+                } else {
+                    callback.messageSentToPeer(message,
                             identifiedPeers.get(identifier),
-                            progress);
+                            null);
                 }
-            } else
-                Timber.w("Cannot report %s message send, %s not yet identified",
-                    message.getType(), identifier);
 
-            byte[] toSend = sender.getNextChunk(transport.getMtuForIdentifier(identifier));
-            if (toSend != null)
-                transport.sendData(toSend, identifier);
+            } else {
+
+                callback.messageSendingToPeer(message,
+                        identifiedPeers.get(identifier),
+                        progress);
+            }
         } else
-            Timber.w("No current message corresponding to dataSentToIdentifier");
+            Timber.w("Cannot report %s message send, %s not yet identified",
+                message.getType(), identifier);
     }
 
     @Override
@@ -454,7 +862,9 @@ public class SessionManager implements Transport.TransportCallback,
                 if (peerIsHost && shouldIdentifyPeer(identifier)) {
                     Timber.d("Queuing identity to %s", identifier);
                     if (!identifierSenders.containsKey(identifier)) {
-                        identifierSenders.put(identifier, new SessionMessageSerializer(localIdentityMessage));
+                        SessionMessageSerializer identitySender = new SessionMessageSerializer(localIdentityMessage);
+                        identitySender.setLingerMs(lingerMs);
+                        identifierSenders.put(identifier, identitySender);
                     } else
                         Timber.w("Outgoing messages already exist for unidentified peer %s", identifier);
                 }
@@ -463,23 +873,7 @@ public class SessionManager implements Transport.TransportCallback,
 
                 // Send outgoing messages to peer
                 SessionMessageSerializer sender = identifierSenders.get(identifier);
-
-                if (sender != null && sender.getCurrentMessage() != null) {
-
-                    boolean sendingIdentity = sender.getCurrentMessage() instanceof IdentityMessage;
-
-                    byte[] toSend = sender.getNextChunk(transport.getMtuForIdentifier(identifier));
-                    if (toSend == null) return;
-
-                    if (transport.sendData(toSend, identifier)) {
-                        if (sendingIdentity) {
-                            Timber.d("Sent identity to %s", identifier);
-                        }
-                    } else
-                        Timber.w("Failed to send %s message to new peer %s",
-                                sender.getCurrentMessage().getType(),
-                                identifier);
-                }
+                if (sender != null) sendNextChunks(transport, identifier, sender);
 
                 break;
 
@@ -528,25 +922,48 @@ public class SessionManager implements Transport.TransportCallback,
                 identifierTransports.remove(identifier);
                 identifyingPeers.remove(identifier);
                 identifiedPeers.remove(identifier);
-                identifierSenders.remove(identifier);
-                identifierReceivers.remove(identifier);
+                identifierChunkSizes.remove(identifier);
+
+                // Keep partial bodies being received for their transfers to resume
+                SessionMessageDeserializer receiver = identifierReceivers.remove(identifier);
+                if (receiver != null) receiver.reset();
+
+                retainUndeliveredTransfers(peer, identifier, identifierSenders.remove(identifier));
                 break;
         }
     }
 
+    @Override
+    public synchronized void linkUpdated(Transport transport, String identifier, Map<String, Object> linkInfo) {
+        Timber.d("Link to %s updated: %s", identifier, linkInfo);
+
+        Peer peer = identifiedPeers.get(identifier);
+        if (peer != null)
+            callback.peerLinkUpdated(peer, transport.getTransportCode(), linkInfo);
+    }
+
     // </editor-fold desc="TransportCallback">
 
     // <editor-fold desc="SessionMessageReceiverCallback">
 
     @Override
-    public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {
+    public synchronized void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message) {
 
         String senderIdentifier = identifierReceivers.inverse().get(receiver);
         Timber.d("Received header for %s message from %s", message.getType(), senderIdentifier);
+
+        if (!identifiedPeers.containsKey(senderIdentifier)) return;
+
+        Peer sender = identifiedPeers.get(senderIdentifier);
+        callback.messageHeaderFromPeer(message, sender);
+
+        // Streams are delivered as they arrive, so announce them before any body
+        if (message instanceof StreamMessage)
+            callback.messageReceivingFromPeer(message, sender, 0);
     }
 
     @Override
-    public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {
+    public synchronized void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress) {
 
         String senderIdentifier = identifierReceivers.inverse().get(receiver);
         if (VERBOSE) Timber.d("Received %s message with progress %f from %s", message.getType(), progress, senderIdentifier);
@@ -556,7 +973,7 @@ public class SessionManager implements Transport.TransportCallback,
 
     @Override
     @DebugLog
-    public void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
+    public synchronized void onComplete(SessionMessageDeserializer receiver, SessionMessage message, Exception e) {
 
         // Process messages belonging to the AirShare framework and propagate
         // application level messages via our callback
@@ -593,25 +1010,57 @@ public class SessionManager implements Transport.TransportCallback,
                         sendMessage(localIdentityMessage, peer); // Report peer connected after identity send ack'd
                     else if (peerIdentifiers.get(peer).size() == 1) // If peer is already connected via another transport, don't re-notify
                         callback.peerStatusUpdated(peer, Transport.ConnectionStatus.CONNECTED, hostIdentifiers.contains(senderIdentifier));
+
+                    // Transfers interrupted by an earlier disconnection follow our identity
+                    resendRetainedTransfers(peer);
+
+                    if (identifierTransport instanceof BLETransport && !hostIdentifiers.contains(senderIdentifier))
+                        offerL2capChannel(peer, senderIdentifier);
                 }
 
                 // We must notify client of new transport *after* sending identity, if necessary. Else they might queue data ahead of it
                 if (newTransport && peerIdentifiers.get(peer).size() > 1) {
                     callback.peerTransportUpdated(peer, identifierTransport.getTransportCode(), null);
 
-                    // TESTING : Stop base transport when upgrade successful
-                    Timber.d("Stopping base transport. %d identifiers for peer", peerIdentifiers.get(peer).size());
-                    baseTransportState = new TransportState(true, baseTransportState.wasAdvertising, baseTransportState.wasScanning);
-                    Transport baseTransport = transports.first();
-                    baseTransport.stop();
+                    // L2CAP channels share the BLE connection, so the base transport must remain
+                    if (!(identifierTransport instanceof L2capTransport)) {
+                        // TESTING : Stop base transport when upgrade successful
+                        Timber.d("Stopping base transport. %d identifiers for peer", peerIdentifiers.get(peer).size());
+                        baseTransportState = new TransportState(true, baseTransportState.wasAdvertising, baseTransportState.wasScanning);
+                        Transport baseTransport = transports.first();
+                        baseTransport.stop();
+                    }
                 }
 
             } else if (message instanceof TransportUpgradeMessage) {
                 Peer peer = identifiedPeers.get(senderIdentifier);
                 int transportCode = ((TransportUpgradeMessage) message).getTransportCode();
+                int channel = ((TransportUpgradeMessage) message).getChannel();
+
+                if (peer == null) {
+                    Timber.w("Ignoring TransportUpgradeMessage from unidentified %s", senderIdentifier);
+                    return;
+                }
+
                 Timber.d("Got TransportUpgradeMessage for transport %d from %s", transportCode, peer.getAlias());
-                peerUpgradeRequests.put(peer, getAvailableTransportByCode(transportCode));
-                upgradeTransport(peer, transportCode);
+                Transport requestedTransport = getAvailableTransportByCode(transportCode);
+                peerUpgradeRequests.put(peer, requestedTransport);
+
+                // The channel is opened to the device the offer arrived from over BLE
+                if (requestedTransport instanceof L2capTransport && channel != -1)
+                    ((L2capTransport) requestedTransport).connect(senderIdentifier, channel);
+                else
+                    upgradeTransport(peer, transportCode);
+
+            } else if (message instanceof ResumeMessage) {
+                handleResumeMessage((ResumeMessage) message, senderIdentifier);
+
+            } else if (message instanceof ChunkNackMessage) {
+                SessionMessageSerializer sender = identifierSenders.get(senderIdentifier);
+                if (sender != null) {
+                    sender.retransmit(((ChunkNackMessage) message).getSequences());
+                    resumeSending(senderIdentifier);
+                }
 
             } else if (identifiedPeers.containsKey(senderIdentifier)) {
                 // This message is not involved in the AirShare framework, so we notify the next layer up
@@ -630,4 +1079,16 @@ public class SessionManager implements Transport.TransportCallback,
 
     // </editor-fold desc="SessionMessageReceiverCallback">
 
+    // <editor-fold desc="RetransmissionListener">
+
+    @Override
+    public synchronized void onChunksMissing(SessionMessageDeserializer receiver, List<Integer> sequences) {
+        String senderIdentifier = identifierReceivers.inverse().get(receiver);
+        if (senderIdentifier == null) return;
+
+        sendControlMessage(new ChunkNackMessage(sequences), senderIdentifier);
+    }
+
+    // </editor-fold desc="RetransmissionListener">
+
 }
@@ -2,14 +2,13 @@ package pro.dbro.airshare.session;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import android.util.Base64;
 
 import org.json.JSONObject;
 import com.google.common.base.Objects;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -31,8 +30,30 @@ public abstract class SessionMessage {
 
     public static enum Status { HEADER_ONLY, COMPLETE }
 
+    /**
+     * Scheduling class of an outgoing message, highest first. Chunks of a message are only
+     * sent while no message of a higher class has data to send. Not transmitted.
+     */
+    public static enum Priority {
+
+        /** Session control traffic, e.g: {@link pro.dbro.airshare.session.IdentityMessage} */
+        CONTROL,
+
+        /** Small or latency-sensitive application messages */
+        INTERACTIVE,
+
+        /** Large transfers, which yield to all other traffic */
+        BULK
+    }
+
+    /** Header serialized as a JSON object */
+    public static final int HEADER_VERSION_JSON    = 1;
+
+    /** Header serialized by {@link pro.dbro.airshare.session.SessionMessageHeaderCodec} */
+    public static final int HEADER_VERSION_BINARY  = 2;
+
     /** SessionMessage version. Must be representable by {@link #HEADER_VERSION_BYTES} bytes */
-    public static final int CURRENT_HEADER_VERSION = 1;
+    public static final int CURRENT_HEADER_VERSION = HEADER_VERSION_BINARY;
 
     /** Leading byte specifies header format version */
     public static final int HEADER_VERSION_BYTES   = 1;
@@ -40,6 +61,13 @@ public abstract class SessionMessage {
     /** Next bytes specify header size in bytes as uint16. Max header size: 65.535 kB */
     public static final int HEADER_LENGTH_BYTES    = 2;
 
+    /**
+     * Value of the 'body-length' header of a message whose body is a sequence of segments
+     * ended by a marker rather than of a length known in advance.
+     * See {@link pro.dbro.airshare.session.StreamMessage}
+     */
+    public static final int BODY_LENGTH_UNKNOWN    = -1;
+
     /** Required header map keys */
     public static final String HEADER_TYPE         = "type";
     public static final String HEADER_BODY_LENGTH  = "body-length";
@@ -51,7 +79,10 @@ public abstract class SessionMessage {
     protected @NonNull String                  id;
     protected @NonNull Status                  status;
     protected @NonNull Map<String, Object>     headers;
-    private   @NonNull byte[]                  serializedHeaders;
+    private   @Nullable Priority               priority;
+    private   @Nullable byte[]                 serializedHeaders;
+    /** Whether any of this message has been serialized, after which its encoding is fixed */
+    private volatile boolean                   serializationStarted;
 
     /**
      * Construct a SessionMessage with a given id.
@@ -77,7 +108,14 @@ public abstract class SessionMessage {
      * This constructor should be used for creating new outgoing SessionMessages
      */
     public SessionMessage() {
-        this(UUID.randomUUID().toString().substring(28));
+        this(createId());
+    }
+
+    /**
+     * @return a new unique message identifier
+     */
+    static @NonNull String createId() {
+        return UUID.randomUUID().toString().substring(28);
     }
 
 
@@ -99,11 +137,81 @@ public abstract class SessionMessage {
         return type;
     }
 
+    /**
+     * @return the priority set via {@link #setPriority(Priority)}, else the default for this message
+     */
+    public @NonNull Priority getPriority() {
+        return priority != null ? priority : getDefaultPriority();
+    }
+
+    /**
+     * Set the scheduling class of this message. Must be called before the message is queued for sending.
+     */
+    public void setPriority(@NonNull Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return the priority of this message unless set otherwise. Child classes should override
+     * as appropriate.
+     */
+    protected @NonNull Priority getDefaultPriority() {
+        return Priority.INTERACTIVE;
+    }
+
+    public int getHeaderVersion() {
+        return version;
+    }
+
+    /**
+     * Set the header format used to serialize this message. A remote peer should be sent
+     * the newest version it advertised. See {@link Peer#getSupportedHeaderVersion()}
+     *
+     * @throws IllegalStateException if version differs and serialization has started
+     */
+    public void setHeaderVersion(int version) {
+        if (version < HEADER_VERSION_JSON || version > CURRENT_HEADER_VERSION)
+            throw new IllegalArgumentException("Unsupported header version " + version);
+
+        if (this.version == version) return;
+
+        this.version = version;
+        reserializeHeaders();
+    }
+
+    /**
+     * Re-encode {@link #headers} after a change
+     *
+     * @throws IllegalStateException if serialization has started
+     */
+    protected void reserializeHeaders() {
+        checkSerializationNotStarted();
+        serializedHeaders = null;
+        serializeAndCacheHeaders();
+    }
+
+    /**
+     * @return whether any of this message has been serialized, since when its encoding may not
+     * change, as a recipient may be part way through it
+     */
+    public boolean isSerializationStarted() {
+        return serializationStarted;
+    }
+
+    /**
+     * @throws IllegalStateException if serialization has started. Child classes should call before
+     * changing how the message is encoded.
+     */
+    protected void checkSerializationNotStarted() {
+        if (serializationStarted)
+            throw new IllegalStateException("Attempted to change encoding of message " + id + " after serialization started");
+    }
+
     /**
      * @return the length of the serialized headers
      */
     public int getHeaderLengthBytes() {
-        return serializedHeaders.length;
+        return getSerializedHeaders().length;
     }
 
     public @NonNull Map<String, Object> getHeaders() {
@@ -111,12 +219,70 @@ public abstract class SessionMessage {
     }
 
     /**
-     * @return the length of the blob body in bytes
+     * @return the length of the blob body in bytes, or {@link #BODY_LENGTH_UNKNOWN}
      */
     public int getBodyLengthBytes() {
         return bodyLengthBytes;
     }
 
+    /**
+     * @return the length of the body as serialized, which differs from {@link #getBodyLengthBytes()}
+     * if the body is encoded for sending. Child classes that encode their body should override.
+     */
+    protected int getSerializedBodyLengthBytes() {
+        return getBodyLengthBytes();
+    }
+
+    /**
+     * @return the number of body bytes that may currently be serialized beginning at bodyOffset.
+     * Child classes whose body is produced during serialization should override.
+     */
+    protected int getBodyBytesAvailable(int bodyOffset) {
+        return getSerializedBodyLengthBytes() - bodyOffset;
+    }
+
+    /**
+     * @return the offset into the body of the first body byte serialized. Body bytes preceding it
+     * are already held by the recipient, e.g: from an interrupted transfer. Child classes that
+     * may resume should override.
+     */
+    protected int getBodyStartOffset() {
+        return 0;
+    }
+
+    /**
+     * @return the length of the trailer serialized after the body, e.g: a digest of it.
+     * Child classes with a trailer should override, along with {@link #writeTrailer(int, java.nio.ByteBuffer, int)}
+     */
+    protected int getTrailerLengthBytes() {
+        return 0;
+    }
+
+    /**
+     * Write exactly length trailer bytes beginning at offset into the trailer into outBuffer.
+     * Called once every body byte has been serialized.
+     */
+    protected void writeTrailer(int offset, @NonNull ByteBuffer outBuffer, int length) {
+        // No trailer by default
+    }
+
+    /**
+     * @return whether every byte of this message precedes offset. When this is false but
+     * {@link #serialize(int, java.nio.ByteBuffer)} writes no bytes, the message is awaiting
+     * body data rather than complete.
+     */
+    public boolean isSerializationComplete(int offset) {
+        return offset >= getTotalLengthBytes();
+    }
+
+    /**
+     * Called once every serialized byte preceding offset is delivered and will not be
+     * requested again. Child classes retaining produced body data may release it.
+     */
+    protected void onSerializedBytesDelivered(int offset) {
+        // Nothing is retained by default
+    }
+
     public abstract @Nullable byte[] getBodyAtOffset(int offset, int length);
 
     /**
@@ -124,94 +290,116 @@ public abstract class SessionMessage {
      * has length less than given length or is null (data ended precisely on the last call),
      * serialization is complete.
      *
+     * This method allocates a new byte[] per call. Callers serializing many chunks
+     * should prefer {@link #serialize(int, java.nio.ByteBuffer)}
+     *
+     * @param length should never be less than {@link #HEADER_LENGTH_BYTES} + {@link #HEADER_VERSION_BYTES}
+     *
+     */
+    public @Nullable byte[] serialize(int offset, int length) {
+        if (isSerializationComplete(offset)) return null;
+
+        long bytesRemaining = bodyLengthBytes == BODY_LENGTH_UNKNOWN ? length : getTotalLengthBytes() - offset;
+        ByteBuffer outBuffer = ByteBuffer.allocate((int) Math.min(length, bytesRemaining));
+        int bytesWritten = serialize(offset, outBuffer);
+
+        //Timber.d(String.format("Serialized %d SessionMessage bytes", bytesWritten));
+        // Do not return zero length byte[]. Use null to represent no more data
+        if (bytesWritten == 0) return null;
+
+        return bytesWritten == outBuffer.capacity() ? outBuffer.array() :
+                                                      Arrays.copyOf(outBuffer.array(), bytesWritten);
+    }
+
+    /**
+     * Serialize up to {@link ByteBuffer#remaining()} bytes of this SessionMessage, beginning at
+     * offset, directly into outBuffer. Header prefix, cached header and body bytes are written
+     * without intermediate copies, so outBuffer may be reused across calls and may be direct.
+     *
      * The general format of the serialized bytestream:
      *
      * byte idx | description
      * ---------|------------
      * [0]      | SessionMessage version
      * [1-2]    | Header length
-     * [3-X]    | Header JSON. 'X' is value specified by Header length
-     * [X-Y]    | Body. 'Y' is value specified in 'body-length' entry of Header JSON.
+     * [3-X]    | Header. JSON or {@link SessionMessageHeaderCodec} binary, per version. 'X' is value specified by Header length
+     * [X-Y]    | Body. 'Y' is value specified in 'body-length' entry of Header, or the end of
+     *          | stream marker if 'body-length' is {@link #BODY_LENGTH_UNKNOWN}
      *
-     * @param length should never be less than {@link #HEADER_LENGTH_BYTES} + {@link #HEADER_VERSION_BYTES}
+     * The body is serialized from {@link #getBodyStartOffset()}, so the bytes following the header
+     * may begin partway through it. A body of known length may be followed by a trailer of
+     * {@link #getTrailerLengthBytes()} bytes.
      *
+     * @return the number of bytes written. 0 indicates serialization is complete.
      */
-    public @Nullable byte[] serialize(int offset, int length) {
+    public int serialize(int offset, @NonNull ByteBuffer outBuffer) {
         if (offset < 0)
             throw new IllegalArgumentException("Serialization offset may not be negative");
 
-        if (serializedHeaders == null)
+        if (headers == null)
             throw new IllegalStateException("Must call serializeAndCacheHeaders() before serialization");
 
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
-        try {
-            int bytesWritten = 0;
+        serializationStarted = true;
 
-            // Write SessionMessage header version if offset dictates
-            if (offset + bytesWritten < HEADER_LENGTH_BYTES) {
+        final byte[] serializedHeaders = getSerializedHeaders();
+        final int startPosition = outBuffer.position();
+        final int prefixLength  = HEADER_VERSION_BYTES + HEADER_LENGTH_BYTES;
+        final int headerEnd     = prefixLength + serializedHeaders.length;
 
-                outputStream.write((byte) CURRENT_HEADER_VERSION);
-
-                bytesWritten += HEADER_VERSION_BYTES;
-            }
+        // Write SessionMessage header version if offset dictates
+        if (offset < HEADER_VERSION_BYTES && outBuffer.hasRemaining()) {
+            outBuffer.put((byte) version);
+            offset += HEADER_VERSION_BYTES;
+        }
 
-            // Write SessionMessage header length if offset dictates
-            if (offset + bytesWritten < HEADER_LENGTH_BYTES) {
+        // Write SessionMessage header length as little endian uint16 if offset dictates
+        while (offset >= HEADER_VERSION_BYTES && offset < prefixLength && outBuffer.hasRemaining()) {
+            outBuffer.put((byte) (serializedHeaders.length >> (8 * (offset - HEADER_VERSION_BYTES))));
+            offset++;
+        }
 
-                ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.SIZE / 8)
-                                                    .order(ByteOrder.LITTLE_ENDIAN)
-                                                    .putInt(serializedHeaders.length);
+        // Write SessionMessage header if offset dictates
+        if (offset >= prefixLength && offset < headerEnd && outBuffer.hasRemaining()) {
+            int headerBytesToCopy = Math.min(outBuffer.remaining(), headerEnd - offset);
+            outBuffer.put(serializedHeaders, offset - prefixLength, headerBytesToCopy);
+            offset += headerBytesToCopy;
+        }
 
-                byte[] truncatedLength = new byte[HEADER_LENGTH_BYTES];
-                lengthBuffer.rewind();
-                // limit little endian value by ignoring last (most significant) bits
-                lengthBuffer.get(truncatedLength);
-                outputStream.write(truncatedLength);
+        // Write raw body if offset dictates
+        if (offset >= headerEnd && outBuffer.hasRemaining() && status == Status.COMPLETE) {
+            int bodyOffset = getBodyStartOffset() + offset - headerEnd;
+            int bodyBytesToCopy = Math.min(outBuffer.remaining(), getBodyBytesAvailable(bodyOffset));
 
-                bytesWritten += HEADER_LENGTH_BYTES;
+            if (bodyBytesToCopy > 0) {
+                writeBodyAtOffset(bodyOffset, outBuffer, bodyBytesToCopy);
+                offset += bodyBytesToCopy;
             }
+        }
 
-            // Write SessionMessage HashMap header if offset dictates
-            if (offset + bytesWritten >= HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES &&
-                offset + bytesWritten < serializedHeaders.length) {
-
-                int headerBytesToCopy = Math.min(length - bytesWritten,
-                                                 serializedHeaders.length - (bytesWritten + offset - (HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES)));
-
-                outputStream.write(serializedHeaders,
-                                   offset + bytesWritten - (HEADER_LENGTH_BYTES + HEADER_VERSION_BYTES),
-                                   headerBytesToCopy);
+        // Write trailer if offset dictates
+        final int trailerLength = getTrailerLengthBytes();
+        if (trailerLength > 0 && outBuffer.hasRemaining() && status == Status.COMPLETE) {
+            final int bodyEnd = headerEnd + getSerializedBodyLengthBytes() - getBodyStartOffset();
 
-                bytesWritten += headerBytesToCopy;
+            if (offset >= bodyEnd && offset < bodyEnd + trailerLength) {
+                int trailerBytesToCopy = Math.min(outBuffer.remaining(), bodyEnd + trailerLength - offset);
+                writeTrailer(offset - bodyEnd, outBuffer, trailerBytesToCopy);
             }
+        }
 
-            // Write raw body if offset dictates
-            if (bytesWritten < length && status == Status.COMPLETE) {
-                // If no non-body data was written and there is no body, return null
-                if (getBodyLengthBytes() == 0 && bytesWritten == 0)
-                    return null;
-
-                int bodyOffset = Math.max(0,
-                                          offset - (HEADER_LENGTH_BYTES +
-                                                    HEADER_VERSION_BYTES +
-                                                    serializedHeaders.length)
-                );
-
-                byte[] body = getBodyAtOffset(bodyOffset, length - bytesWritten);
-
-                if (body != null)
-                    outputStream.write(body);
-            }
+        return outBuffer.position() - startPosition;
+    }
 
-        } catch (IOException e) {
-            Timber.e(e, "IOException while serializing SessionMessage");
-        }
+    /**
+     * Write exactly length body bytes beginning at offset into outBuffer.
+     * The default implementation copies the result of {@link #getBodyAtOffset(int, int)}.
+     * Child classes that can write their body without an intermediate byte[] should override.
+     */
+    protected void writeBodyAtOffset(int offset, @NonNull ByteBuffer outBuffer, int length) {
+        byte[] body = getBodyAtOffset(offset, length);
 
-        byte[] result = outputStream.toByteArray();
-        //Timber.d(String.format("Serialized %d SessionMessage bytes", result.length));
-        // Do not return zero length byte[]. Use null to represent no more data
-        return result.length == 0 ? null : result;
+        if (body != null)
+            outBuffer.put(body);
     }
 
     /**
@@ -225,14 +413,18 @@ public abstract class SessionMessage {
     }
 
     /**
-     * @return the length of the total SessionMessage in bytes
+     * @return the length of the total SessionMessage in bytes, or {@link #BODY_LENGTH_UNKNOWN}
+     * if the body length is not known in advance
      */
     public long getTotalLengthBytes() {
+        if (bodyLengthBytes == BODY_LENGTH_UNKNOWN) return BODY_LENGTH_UNKNOWN;
 
         return HEADER_VERSION_BYTES +
                HEADER_LENGTH_BYTES +
-               serializedHeaders.length +
-               getBodyLengthBytes();
+               getSerializedHeaders().length +
+               getSerializedBodyLengthBytes() -
+               getBodyStartOffset() +
+               getTrailerLengthBytes();
     }
 
     /**
@@ -242,12 +434,51 @@ public abstract class SessionMessage {
     protected void serializeAndCacheHeaders() {
         if (serializedHeaders == null) {
             if (headers == null) headers = populateHeaders();
-            JSONObject jsonHeaders = new JSONObject(headers);
-            serializedHeaders = jsonHeaders.toString().getBytes();
 
+            // Received headers are only encoded if the message is sent on
+            if (!(headers instanceof LazyHeaders))
+                serializedHeaders = encodeHeaders();
         }
     }
 
+    private @NonNull byte[] getSerializedHeaders() {
+        if (serializedHeaders == null) {
+            if (headers instanceof LazyHeaders &&
+                !((LazyHeaders) headers).isModified() &&
+                ((LazyHeaders) headers).getVersion() == version)
+
+                serializedHeaders = ((LazyHeaders) headers).getEncoded();
+            else
+                serializedHeaders = encodeHeaders();
+        }
+        return serializedHeaders;
+    }
+
+    private byte[] encodeHeaders() {
+        if (version == HEADER_VERSION_JSON) {
+            JSONObject jsonHeaders = new JSONObject(toJsonCompatibleMap(headers));
+            return jsonHeaders.toString().getBytes();
+        } else
+            return SessionMessageHeaderCodec.encode(headers);
+    }
+
+    /**
+     * JSON has no representation for raw bytes, so byte[] header values are Base64 encoded
+     * as the JSON header format always has.
+     */
+    private static Map<String, Object> toJsonCompatibleMap(Map<String, Object> headers) {
+        HashMap<String, Object> jsonHeaders = null;
+
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            if (header.getValue() instanceof byte[]) {
+                if (jsonHeaders == null) jsonHeaders = new HashMap<>(headers);
+                jsonHeaders.put(header.getKey(), Base64.encodeToString((byte[]) header.getValue(), Base64.DEFAULT));
+            }
+        }
+
+        return jsonHeaders != null ? jsonHeaders : headers;
+    }
+
     @Override
     public int hashCode() {
         // If we only target API 19+, we can move to java.util.Objects.hash
@@ -1,6 +1,7 @@
 package pro.dbro.airshare.session;
 
 import android.content.Context;
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.json.JSONArray;
@@ -9,18 +10,21 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import timber.log.Timber;
 
@@ -35,8 +39,41 @@ import timber.log.Timber;
  *
  * This class assumes contiguous serialized SessionMessage chunks will be delivered in-order and
  * that any discontinuities in the data stream will be reported by the client of this class via
- * {@link #reset(boolean)}. A call to {@link #reset(boolean)} with true argument will result
- * in the loss of any partially accumulated SessionMessage.
+ * {@link #reset()}, which results in the loss of any partially accumulated SessionMessages.
+ *
+ * Data may carry SessionMessages one after another, or interleaved as the frames described by
+ * {@link pro.dbro.airshare.session.SessionMessageSerializer}. Frames of up to
+ * {@link SessionMessageSerializer#MAX_STREAMS} streams are reassembled in parallel.
+ *
+ * Each message is reassembled in a buffer that only ever holds the field being read, or an
+ * in-memory body. The buffer returns to its default capacity after a large message, so memory
+ * use is bounded by the largest in-memory message rather than by the lifetime of the connection.
+ *
+ * Bodies over {@link #BODY_SIZE_CUTOFF_BYTES} are never buffered, but written to disk by a
+ * {@link pro.dbro.airshare.session.BodyFileWriter} off the calling thread as they arrive.
+ * Such a message is delivered on a shared delivery thread once its body is on disk, and callback
+ * events for subsequent messages are held back and delivered on that thread after it, so that
+ * delivery order is preserved. Only headers are reported at once, so that the app may take the body
+ * of the message as it arrives. Callbacks never run on the writer's thread, which must stay free to
+ * drain the blocks a writer waits on while the calling thread is held.
+ * Smaller bodies are held in memory only while the {@link pro.dbro.airshare.session.ReceiveMemoryBudget}
+ * shared by all deserializers allows, and are otherwise received to disk the same way.
+ *
+ * Given {@link pro.dbro.airshare.session.TransferCheckpoints}, the partial body of a
+ * {@link pro.dbro.airshare.session.DataTransferMessage} interrupted by {@link #reset()} is kept,
+ * and continued by a message resuming the transfer. See {@link pro.dbro.airshare.session.ResumeMessage}
+ *
+ * Segments of a {@link pro.dbro.airshare.session.StreamMessage} are handed to the message as
+ * each arrives, and only the current segment is ever buffered.
+ *
+ * Once a peer that {@link Peer#supportsChecksums()} begins sending checksummed chunks, each is
+ * verified and delivered in sequence. Chunks following a corrupt or missing chunk are held, and
+ * the missing chunks requested from the sender via the {@link RetransmissionListener}, so that
+ * only those chunks are sent again. A {@link pro.dbro.airshare.session.DataTransferMessage}
+ * body digest is verified before the message is delivered.
+ *
+ * A compressed body is decoded block by block as it arrives, so only the current block of the
+ * encoded body is ever buffered. See {@link pro.dbro.airshare.session.BodyCompression}
  *
  * Created by davidbrodsky on 2/24/15.
  */
@@ -44,6 +81,11 @@ public class SessionMessageDeserializer {
 
     public static interface SessionMessageDeserializerCallback {
 
+        /**
+         * Called on the receiving thread before any of message's body is read, so that a
+         * {@link DataTransferMessage.BodySink} set here receives it. May precede the completion
+         * of an earlier message whose body is still being written to disk.
+         */
         public void onHeaderReady(SessionMessageDeserializer receiver, SessionMessage message);
 
         public void onBodyProgress(SessionMessageDeserializer receiver, SessionMessage message, float progress);
@@ -52,324 +94,1167 @@ public class SessionMessageDeserializer {
 
     }
 
+    public static interface RetransmissionListener {
+
+        /**
+         * Checksummed chunks with the given sequence numbers are corrupt or missing, and should
+         * be sent again. See {@link SessionMessageSerializer#retransmit(List)}
+         */
+        public void onChunksMissing(SessionMessageDeserializer receiver, List<Integer> sequences);
+
+    }
+
     /** Bodies over this size will be stored on disk */
-    private static final int BODY_SIZE_CUTOFF_BYTES = 2 * 1000 * 1000; // 2 MB
+    static final int BODY_SIZE_CUTOFF_BYTES = 2 * 1000 * 1000; // 2 MB
+
+    /** Capacity each message buffer is allocated with and returns to when idle */
+    private static final int DEFAULT_BUFFER_BYTES = 5 * 1000;
+
+    /** Callback events held back behind disk-backed messages are delivered in order on this thread */
+    private static final Executor deliveryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "AirShare-Delivery");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private Context                            context;
-    private ByteBuffer                         buffer;
     private SessionMessageDeserializerCallback callback;
-    private File                               bodyFile;
-    private OutputStream                       bodyStream;
-    private HashMap<String, Object>            headers;
-    private ByteBuffer                         headerLengthBuffer;
-    private SessionMessage                     sessionMessage;
-
-    private boolean gotVersion;
-    private boolean gotHeaderLength;
-    private boolean gotHeader;
-    private boolean gotBody;
-    private boolean gotBodyBoundary;
-
-    private int headerLength;
-    private int bodyLength;
-    private int bodyBytesReceived;
-    private int bufferOffset;
+    private BodyFileWriter                     lastBodyWriter;
+    /** Callback events handed to {@link #deliveryExecutor} and not yet delivered */
+    private final AtomicInteger                pendingDeliveries = new AtomicInteger();
+    private @Nullable TransferCheckpoints      checkpoints;
+    private @Nullable RetransmissionListener   retransmissionListener;
+
+    /** Reassembles messages received outside of frames */
+    private final Reassembly   unframed = new Reassembly();
+    /** Reassembles the messages of each stream, indexed by stream id */
+    private final Reassembly[] streams  = new Reassembly[SessionMessageSerializer.MAX_STREAMS];
+
+    // <editor-fold desc="Frame">
+
+    private final byte[] frameHeader = new byte[SessionMessageSerializer.FRAME_HEADER_BYTES];
+    private int frameHeaderBytes;
+    private int frameStream;
+    private int framePayloadRemaining;
+
+    // </editor-fold desc="Frame">
+
+    // <editor-fold desc="Envelope">
+    // Checksummed chunks. Those received ahead of a missing chunk are held in slot sequence % RETAINED_CHUNKS
+
+    private static final int SEQUENCE_MASK = 0xFFFF;
+
+    /** Chunks received out of order after which missing chunks are requested again */
+    private static final int RENACK_CHUNKS = 16;
+
+    private boolean        enveloped;
+    /** The envelope being accumulated across calls to {@link #dataReceived(byte[])} */
+    private byte[]         envelope      = new byte[SessionMessageSerializer.ENVELOPE_HEADER_BYTES];
+    private int            envelopeBytes;
+    private final Crc32c   envelopeCrc   = new Crc32c();
+    /** Sequence of the next chunk to deliver */
+    private int            expectedSequence;
+    private final byte[][] heldChunks    = new byte[SessionMessageSerializer.RETAINED_CHUNKS][];
+    private final int[]    heldSequences = new int[SessionMessageSerializer.RETAINED_CHUNKS];
+    private int            heldCount;
+    /** Chunks up to, but not including, this sequence have been requested */
+    private int            nackedSequence;
+    private int            chunksSinceNack;
+
+    // </editor-fold desc="Envelope">
 
     public SessionMessageDeserializer(Context context, SessionMessageDeserializerCallback callback) {
-        buffer = ByteBuffer.allocate(5 * 1000);
-        this.callback = callback;
-        this.context = context;
+        this(context, callback, null);
+    }
 
-        init();
+    /**
+     * @param checkpoints record of partial bodies kept for resumption, or null to discard them
+     */
+    public SessionMessageDeserializer(Context context,
+                                      SessionMessageDeserializerCallback callback,
+                                      @Nullable TransferCheckpoints checkpoints) {
+        this.callback    = callback;
+        this.context     = context;
+        this.checkpoints = checkpoints;
+        Arrays.fill(heldSequences, -1);
     }
 
     /**
-     * Reset the state of the receiver in preparation for a new SessionMessage.
-     *
-     * @param clear whether to delete unprocessed data in {@link #buffer}. If the data stream
-     *              is interrupted and not resumable we'd want to do this. If we want to
-     *              process the next message in stream, we do not.
-     * losing any
-     * partially accumulated SessionMessage. Call this if the incoming data stream is interrupted
-     * and not expected to be immediately resumed.
+     * Set the listener requesting retransmission of corrupt or missing checksummed chunks.
+     * Without one, such chunks are not recovered and the messages they carry are lost.
+     */
+    public void setRetransmissionListener(@Nullable RetransmissionListener listener) {
+        retransmissionListener = listener;
+    }
+
+    /**
+     * Reset the state of the receiver, losing any partially accumulated SessionMessages but
+     * checkpointed bodies. Call this if the incoming data stream is interrupted and not expected to be immediately resumed.
      * e.g: the source of incoming data becomes unavailable.
      */
-    public void reset(boolean clear) {
-        gotVersion      = false;
-        gotHeaderLength = false;
-        gotHeader       = false;
-        gotBody         = false;
-        gotBodyBoundary = false;
-
-        headerLength      = 0;
-        bodyLength        = 0;
-        bodyBytesReceived = 0;
-
-        if (clear) {
-            bufferOffset  = 0;
-            buffer.clear();
+    public void reset() {
+        resetReassembly();
+
+        enveloped        = false;
+        envelopeBytes    = 0;
+        expectedSequence = 0;
+        nackedSequence   = 0;
+        chunksSinceNack  = 0;
+        releaseHeldChunks();
+    }
 
-            bodyFile = null;
+    /**
+     * Discard partially accumulated SessionMessages, leaving the chunk sequence in place
+     */
+    private void resetReassembly() {
+        unframed.reset(true);
+        for (Reassembly reassembly : streams) {
+            if (reassembly != null) reassembly.reset(true);
+        }
 
-            if (bodyStream != null) {
-                try {
-                    bodyStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+        frameHeaderBytes      = 0;
+        framePayloadRemaining = 0;
+    }
+
+    /**
+     * Process sequential chunk of serialized {@link pro.dbro.airshare.session.SessionMessage}s
+     *
+     * Any number of SessionMessages completed by data are delivered in the order they complete.
+     *
+     * @param data sequential chunk of serialized {@link pro.dbro.airshare.session.SessionMessage}s
+     */
+    public void dataReceived(byte[] data) {
+        Timber.d("Received %d bytes", data.length);
+
+        if (enveloped)
+            receiveEnvelopes(data, 0, data.length);
+        else
+            receive(data, 0, data.length);
+    }
+
+    /**
+     * Process length sequential bytes of serialized SessionMessages or frames at offset
+     */
+    private void receive(byte[] data, int offset, int length) {
+        int end = offset + length;
+
+        while (offset < end) {
+            int consumed;
+
+            if (frameHeaderBytes == frameHeader.length)
+                consumed = receiveFramePayload(data, offset, end - offset);
+            else if (frameHeaderBytes > 0 || (!unframed.isInProgress() && isFrameStart(data[offset]))) {
+                // Checksummed chunks begin between messages, and continue for the life of the connection
+                if (!enveloped && frameHeaderBytes == 0 && isEnvelopeStart(data[offset])) {
+                    Timber.d("Receiving checksummed chunks");
+                    enveloped = true;
+                    receiveEnvelopes(data, offset, end - offset);
+                    return;
                 }
-                bodyStream = null;
+                consumed = receiveFrameHeader(data, offset, end - offset);
+            } else
+                consumed = unframed.receive(data, offset, end - offset);
+
+            // The remaining data cannot be interpreted
+            if (consumed == -1) return;
+
+            offset += consumed;
+        }
+    }
+
+    // <editor-fold desc="Frames">
+
+    /**
+     * @return whether b begins a frame rather than a SessionMessage
+     */
+    private static boolean isFrameStart(byte b) {
+        return (b & SessionMessageSerializer.FRAME_FLAG) != 0;
+    }
+
+    /**
+     * @return the number of bytes consumed, or -1 if the frame could not be deserialized
+     */
+    private int receiveFrameHeader(byte[] data, int offset, int length) {
+        int toCopy = Math.min(length, frameHeader.length - frameHeaderBytes);
+        System.arraycopy(data, offset, frameHeader, frameHeaderBytes, toCopy);
+        frameHeaderBytes += toCopy;
+
+        if (frameHeaderBytes == frameHeader.length) {
+            frameStream = (frameHeader[0] & 0xFF) & ~SessionMessageSerializer.FRAME_FLAG;
+            framePayloadRemaining = (frameHeader[1] & 0xFF) | ((frameHeader[2] & 0xFF) << 8);
+
+            if (frameStream >= streams.length) {
+                abortMessage(new UnsupportedOperationException("Frame for unsupported stream " + frameStream));
+                return -1;
             }
+
+            if (framePayloadRemaining == 0) frameHeaderBytes = 0;
         }
+
+        return toCopy;
     }
 
     /**
-     * Process sequential chunk of a serialized {@link pro.dbro.airshare.session.SessionMessage}
+     * Pass payload of the current frame to the Reassembly of its stream. The payload may complete
+     * one message and begin the next.
      *
-     * This method will call {@link #reset(boolean)} internally if data provided completes a SessionMessage.
-     *
-     * @param data sequential chunk of a serialized {@link pro.dbro.airshare.session.SessionMessage}
+     * @return the number of bytes consumed, or -1 if a message could not be deserialized
      */
-    public void dataReceived(byte[] data) {
-        if (data.length > buffer.capacity() - buffer.position())
-            resizeBuffer(data.length);
+    private int receiveFramePayload(byte[] data, int offset, int length) {
+        if (streams[frameStream] == null) streams[frameStream] = new Reassembly();
 
-        try {
+        int consumed = streams[frameStream].receive(data, offset, Math.min(length, framePayloadRemaining));
+        if (consumed == -1) return -1;
 
-            /** Write incoming data to memory buffer if accumulated bytes received (since construction
-             * or call to {@link #reset()}) indicates we are still receiving the SessionMessage prefix
-             * or header. If accumulated bytes received indicates we are receiving body, write to body OutputStream
-             */
-            if (gotHeaderLength && getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
+        framePayloadRemaining -= consumed;
+        if (framePayloadRemaining == 0) frameHeaderBytes = 0;
 
-                if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+        return consumed;
+    }
 
-                    if (bodyStream == null) prepareBodyOutputStream();
+    // </editor-fold desc="Frames">
 
-                    bodyStream.write(data);
-                } else
-                    buffer.put(data);
+    // <editor-fold desc="Envelopes">
 
-                bodyBytesReceived += Math.min(bodyLength - bodyBytesReceived, data.length);
+    private static boolean isEnvelopeStart(byte b) {
+        return (b & 0xFF) == SessionMessageSerializer.ENVELOPE_MARKER;
+    }
 
-                if (callback != null && bodyLength > 0)
-                    callback.onBodyProgress(this, sessionMessage, bodyBytesReceived / (float) bodyLength);
+    /**
+     * Verify and deliver the checksummed chunks in length bytes of data at offset. A chunk
+     * arriving whole is verified in place, otherwise it is accumulated in {@link #envelope}.
+     */
+    private void receiveEnvelopes(byte[] data, int offset, int length) {
+        final int headerBytes = SessionMessageSerializer.ENVELOPE_HEADER_BYTES;
+        final int crcBytes    = SessionMessageSerializer.ENVELOPE_CRC_BYTES;
+        int end = offset + length;
+
+        while (offset < end) {
+            if (envelopeBytes == 0 && end - offset >= headerBytes) {
+                int envelopeLength = getEnvelopeLength(data, offset);
+                if (envelopeLength == -1) {
+                    onEnvelopeCorrupt();
+                    return;
+                }
+                if (end - offset >= envelopeLength) {
+                    if (!receiveEnvelope(data, offset, envelopeLength)) return;
+                    offset += envelopeLength;
+                    continue;
+                }
             }
-            else {
-                buffer.put(data);
+
+            // Accumulate the header, then the remainder of the envelope
+            int required = envelopeBytes < headerBytes ? headerBytes : getEnvelopeLength(envelope, 0);
+            int toCopy = Math.min(end - offset, required - envelopeBytes);
+            System.arraycopy(data, offset, envelope, envelopeBytes, toCopy);
+            envelopeBytes += toCopy;
+            offset += toCopy;
+
+            if (envelopeBytes == headerBytes) {
+                int envelopeLength = getEnvelopeLength(envelope, 0);
+                if (envelopeLength == -1) {
+                    envelopeBytes = 0;
+                    onEnvelopeCorrupt();
+                    return;
+                }
+                if (envelope.length < envelopeLength)
+                    envelope = Arrays.copyOf(envelope, headerBytes + SessionMessageSerializer.MAX_ENVELOPE_PAYLOAD_BYTES + crcBytes);
+            } else if (envelopeBytes > headerBytes && envelopeBytes == getEnvelopeLength(envelope, 0)) {
+                int envelopeLength = envelopeBytes;
+                envelopeBytes = 0;
+                if (!receiveEnvelope(envelope, 0, envelopeLength)) return;
             }
+        }
+    }
+
+    /**
+     * @return the length of the envelope whose header is at offset, or -1 if no envelope begins there
+     */
+    private static int getEnvelopeLength(byte[] data, int offset) {
+        if (!isEnvelopeStart(data[offset])) return -1;
+
+        int payloadLength = (data[offset + 3] & 0xFF) | ((data[offset + 4] & 0xFF) << 8);
+        return SessionMessageSerializer.ENVELOPE_HEADER_BYTES + payloadLength + SessionMessageSerializer.ENVELOPE_CRC_BYTES;
+    }
+
+    /**
+     * Verify the complete envelope of length bytes at offset, and deliver or hold its payload
+     *
+     * @return false if the envelope is corrupt, and so the rest of the data cannot be trusted
+     */
+    private boolean receiveEnvelope(byte[] data, int offset, int length) {
+        int crcOffset = offset + length - SessionMessageSerializer.ENVELOPE_CRC_BYTES;
+
+        envelopeCrc.reset();
+        envelopeCrc.update(data, offset, crcOffset - offset);
+        int expectedCrc = (data[crcOffset] & 0xFF) | (data[crcOffset + 1] & 0xFF) << 8 |
+                          (data[crcOffset + 2] & 0xFF) << 16 | (data[crcOffset + 3] & 0xFF) << 24;
 
-        } catch (IOException e) {
-            Timber.e(e, "Failed to write data to body outputStream");
+        if (envelopeCrc.getValue() != expectedCrc) {
+            onEnvelopeCorrupt();
+            return false;
         }
 
-        processData(data.length);
+        int sequence      = (data[offset + 1] & 0xFF) | ((data[offset + 2] & 0xFF) << 8);
+        int payloadOffset = offset + SessionMessageSerializer.ENVELOPE_HEADER_BYTES;
+        int payloadLength = crcOffset - payloadOffset;
+        int distance      = (short) (sequence - expectedSequence);
 
+        if (distance < 0 || (distance > 0 && heldSequences[slotForSequence(sequence)] == sequence)) {
+            // A chunk retransmitted after it was recovered, or requested again, is redundant
+            Timber.d("Ignoring duplicate chunk %d", sequence);
 
-        if (!gotBody && gotHeader) {
-            Timber.d(String.format("Read %d / %d body bytes", bodyBytesReceived, bodyLength));
+        } else if (distance == 0) {
+            receive(data, payloadOffset, payloadLength);
+            expectedSequence = (expectedSequence + 1) & SEQUENCE_MASK;
+            deliverHeldChunks();
+
+        } else if (distance < SessionMessageSerializer.RETAINED_CHUNKS) {
+            Timber.w("Holding chunk %d awaiting %d", sequence, expectedSequence);
+            int slot = slotForSequence(sequence);
+            heldChunks[slot]    = Arrays.copyOfRange(data, payloadOffset, payloadOffset + payloadLength);
+            heldSequences[slot] = sequence;
+            heldCount++;
+
+            requestMissingChunks(sequence, ++chunksSinceNack >= RENACK_CHUNKS);
+
+        } else {
+            // The missing chunks are no longer retained by the sender
+            abortMessage(new IOException("Lost chunks " + expectedSequence + " to " + sequence));
+            releaseHeldChunks();
+            expectedSequence = (sequence + 1) & SEQUENCE_MASK;
+            nackedSequence   = expectedSequence;
         }
 
+        return true;
     }
 
-    /** @return the current index into the message currently being deserialized */
-    private int getMessageIndex() {
-        return buffer.position() - bufferOffset;
+    /**
+     * Deliver held chunks that follow, without gaps, the last chunk delivered
+     */
+    private void deliverHeldChunks() {
+        while (heldCount > 0) {
+            int slot = slotForSequence(expectedSequence);
+            if (heldSequences[slot] != expectedSequence) return;
+
+            byte[] payload = heldChunks[slot];
+            heldChunks[slot]    = null;
+            heldSequences[slot] = -1;
+            heldCount--;
+
+            receive(payload, 0, payload.length);
+            expectedSequence = (expectedSequence + 1) & SEQUENCE_MASK;
+        }
+        chunksSinceNack = 0;
     }
 
-    private void processData(int bytesJustReceived) {
-        Timber.d("Received %d bytes", bytesJustReceived);
-        int dataBytesProcessed = 0;
+    /**
+     * The envelope at hand failed verification. Its sequence cannot be trusted, so request the
+     * chunk awaited and any others missing.
+     */
+    private void onEnvelopeCorrupt() {
+        Timber.w("Discarding corrupt chunk awaiting %d", expectedSequence);
 
-        /** Deserialize SessionMessage Header version byte, if not yet done since construction
-         * or last call to {@link #reset()}
-         */
-        if (!gotVersion && getMessageIndex() >= SessionMessage.HEADER_VERSION_BYTES) {
-            // Get version int from first byte
-            // Check we can deserialize this version
-            int version = new BigInteger(new byte[]{buffer.get(bufferOffset)}).intValue();
-            Timber.d("Deserialized header version %d at idx %d", version, bufferOffset);
-            if (version != SessionMessage.CURRENT_HEADER_VERSION) {
-                Timber.e("Unknown SessionMessage version");
-                if (callback != null)
-                    callback.onComplete(this, null, new UnsupportedOperationException("Unknown SessionMessage version " + version));
-                return;
-            }
-            dataBytesProcessed += SessionMessage.HEADER_VERSION_BYTES;
-            gotVersion = true;
+        int through = expectedSequence;
+        for (int slot = 0; slot < heldSequences.length; slot++) {
+            if (heldSequences[slot] != -1 && (short) (heldSequences[slot] - through) > 0)
+                through = heldSequences[slot];
+        }
+        requestMissingChunks(through == expectedSequence ? (through + 1) & SEQUENCE_MASK : through, true);
+    }
+
+    /**
+     * Request retransmission of chunks missing before sequence. Each is requested once unless
+     * again is set.
+     */
+    private void requestMissingChunks(int sequence, boolean again) {
+        int from = again || (short) (nackedSequence - expectedSequence) < 0 ? expectedSequence : nackedSequence;
+
+        ArrayList<Integer> missing = new ArrayList<>();
+        for (int missingSequence = from; (short) (sequence - missingSequence) > 0;
+             missingSequence = (missingSequence + 1) & SEQUENCE_MASK) {
+
+            if (heldSequences[slotForSequence(missingSequence)] != missingSequence)
+                missing.add(missingSequence);
         }
 
-        /** Deserialize SessionMessage Header length bytes, if not yet done since construction
-         * or last call to {@link #reset()}
+        if ((short) (sequence - nackedSequence) > 0) nackedSequence = sequence;
+        if (missing.isEmpty()) return;
+
+        chunksSinceNack = 0;
+        Timber.w("Requesting retransmission of %d chunks from %d", missing.size(), missing.get(0));
+        if (retransmissionListener != null)
+            retransmissionListener.onChunksMissing(this, missing);
+    }
+
+    private void releaseHeldChunks() {
+        Arrays.fill(heldChunks, null);
+        Arrays.fill(heldSequences, -1);
+        heldCount = 0;
+    }
+
+    private static int slotForSequence(int sequence) {
+        return sequence % SessionMessageSerializer.RETAINED_CHUNKS;
+    }
+
+    // </editor-fold desc="Envelopes">
+
+    /**
+     * Report a SessionMessage that cannot be deserialized. Since the extent of the offending
+     * message is unknown, all partially accumulated messages are discarded.
+     */
+    private void abortMessage(Exception e) {
+        Timber.e(e, "Aborting SessionMessage deserialization");
+        if (callback != null)
+            notifyComplete(null, e);
+
+        resetReassembly();
+    }
+
+    /**
+     * Deserialization state of a single SessionMessage. Holds only the bytes of the field
+     * being read.
+     */
+    private class Reassembly {
+
+        private ByteBuffer              buffer = ByteBuffer.allocate(DEFAULT_BUFFER_BYTES);
+        private BodyFileWriter          bodyWriter;
+        /** Transfer id of the body being written, if it is checkpointed */
+        private String                  checkpointId;
+        private Map<String, Object>     headers;
+        private SessionMessage          sessionMessage;
+        /** Takes the body of the current message as it arrives, if the app set one */
+        private DataTransferMessage.BodySink bodySink;
+
+        private boolean gotVersion;
+        private boolean gotHeaderLength;
+        private boolean gotHeader;
+        private boolean gotBody;
+
+        /** Whether the body is followed by a digest, and the digest of the body bytes received */
+        private boolean      bodyDigest;
+        private final Crc32c bodyCrc = new Crc32c();
+
+        /** Decoded body of a compressed message, and the block being read */
+        private boolean  encoded;
+        private byte[]   decodedBody;
+        private int      decodedLength;
+        private int      decodedBytes;
+        /** Decoded block of a compressed body being received to disk */
+        private byte[]   decodedBlock;
+        private Inflater inflater;
+        private boolean  gotBlockHeader;
+        private int      blockFlag;
+        private int      blockLength;
+
+        private int headerVersion;
+        private int headerLength;
+        private int bodyLength;
+        private int bodyBytesReceived;
+
+        /** Bytes of the {@link ReceiveMemoryBudget} held by an in-memory body */
+        private int reservedBytes;
+
+        /** Current {@link pro.dbro.airshare.session.StreamMessage} segment */
+        private boolean gotSegmentLength;
+        private boolean gotSegmentTimestamp;
+        private int     segmentLength;
+        private long    segmentTimestampMs;
+
+        /**
+         * Reset in preparation for a new SessionMessage.
+         *
+         * @param abort whether a partially accumulated SessionMessage is being discarded
          */
-        if (!gotHeaderLength && getMessageIndex() >= SessionMessage.HEADER_VERSION_BYTES +
-                                                     SessionMessage.HEADER_LENGTH_BYTES) {
+        void reset(boolean abort) {
+            if (bodySink != null)
+                endBodySink(new IOException("Body of " + headers.get(SessionMessage.HEADER_ID) + " was interrupted"));
+
+            gotVersion      = false;
+            gotHeaderLength = false;
+            gotHeader       = false;
+            gotBody         = false;
+
+            bodyDigest = false;
+            bodyCrc.reset();
+
+            encoded        = false;
+            decodedBody    = null;
+            decodedLength  = 0;
+            decodedBytes   = 0;
+            decodedBlock   = null;
+            gotBlockHeader = false;
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+
+            headerVersion     = 0;
+            headerLength      = 0;
+            bodyLength        = 0;
+            bodyBytesReceived = 0;
 
-            // Get header length and store. Deserialize header when possible
-            byte[] headerLengthBytes = new byte[SessionMessage.HEADER_LENGTH_BYTES];
-            int originalPosition = buffer.position();
-            buffer.position(bufferOffset + dataBytesProcessed);
-            buffer.get(headerLengthBytes, 0, headerLengthBytes.length);
-            buffer.position(originalPosition);
+            gotSegmentLength    = false;
+            gotSegmentTimestamp = false;
+            segmentLength       = 0;
 
-            headerLengthBuffer.clear();
-            headerLengthBuffer.put(headerLengthBytes);
-            headerLengthBuffer.rewind();
+            headers        = null;
+            sessionMessage = null;
+
+            buffer.clear();
+            shrinkBuffer();
 
-            headerLength = headerLengthBuffer.getInt();
-            Timber.d("Deserialized header length " + headerLength);
-            gotHeaderLength = true;
-            dataBytesProcessed += SessionMessage.HEADER_LENGTH_BYTES;
+            if (reservedBytes > 0) {
+                ReceiveMemoryBudget.release(reservedBytes);
+                reservedBytes = 0;
+            }
+
+            if (abort && bodyWriter != null) {
+                if (checkpointId != null)
+                    keepPartialBody(bodyWriter);
+                else
+                    bodyWriter.abort();
+                bodyWriter = null;
+            }
+            checkpointId = null;
         }
 
-        /** Deserialize SessionMessage Header content, if not yet done since construction
-         * or last call to {@link #reset()}
+        /**
+         * @return whether part of a SessionMessage has been received
+         */
+        boolean isInProgress() {
+            return gotVersion || buffer.position() > 0;
+        }
+
+        /**
+         * Consume up to length bytes of data, stopping at the end of the current SessionMessage.
+         * Deserialization events are reported as they occur.
+         *
+         * @return the number of bytes consumed, or -1 if the message could not be deserialized
          */
-        if (!gotHeader && gotHeaderLength && getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
+        int receive(byte[] data, int offset, int length) {
+            int consumed = 0;
+
+            while (true) {
+                int fieldLength = getFieldLength();
+
+                if (isBodyUnbuffered()) {
+                    /** Bodies stored on disk or taken by a sink bypass {@link #buffer} */
+                    int toWrite = Math.min(length - consumed, bodyLength - bodyBytesReceived);
+                    if (toWrite > 0) {
+                        if (bodyWriter != null)
+                            bodyWriter.write(data, offset + consumed, toWrite);
+                        else
+                            bodySink.onBodySlice((DataTransferMessage) sessionMessage, data, offset + consumed, toWrite);
+                        if (bodyDigest) bodyCrc.update(data, offset + consumed, toWrite);
+                        consumed += toWrite;
+                        onBodyBytesReceived(toWrite);
+                    }
+                    if (bodyBytesReceived < bodyLength) break;
+
+                } else {
+                    int toCopy = Math.min(length - consumed, fieldLength - buffer.position());
+                    if (toCopy > 0) {
+                        buffer.put(data, offset + consumed, toCopy);
+                        consumed += toCopy;
+                        if (gotHeader && !gotBody && bodyLength != SessionMessage.BODY_LENGTH_UNKNOWN)
+                            onBodyBytesReceived(toCopy);
+                    }
+                    if (buffer.position() < fieldLength) break;
+                }
 
-            byte[] headerString = new byte[headerLength];
-            int originalBufferPosition = buffer.position();
-            buffer.position(bufferOffset + SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES);
-            buffer.get(headerString, 0, headerLength);
-            buffer.position(originalBufferPosition);
+                if (!completeField()) return -1;
 
-            try {
-                JSONObject jsonHeader = new JSONObject(new String(headerString, "UTF-8"));
-                headers = toMap(jsonHeader);
-                bodyLength = (int) headers.get(SessionMessage.HEADER_BODY_LENGTH);
-                sessionMessage = sessionMessageFromHeaders(headers);
-                Timber.d(String.format("Deserialized %s header indicating body length %d", (String) headers.get(SessionMessage.HEADER_TYPE), (int) headers.get(SessionMessage.HEADER_BODY_LENGTH)));
-                if (sessionMessage != null && callback != null)
-                    callback.onHeaderReady(this, sessionMessage);
-            } catch (JSONException | UnsupportedEncodingException e) {
-                // TODO : We should reset or otherwise abort this message
-                e.printStackTrace();
+                // Stop at the end of the message
+                if (!gotVersion) break;
+            }
+
+            return consumed;
+        }
+
+        /**
+         * @return the number of bytes in the field being read
+         */
+        private int getFieldLength() {
+            if (!gotVersion)      return SessionMessage.HEADER_VERSION_BYTES;
+            if (!gotHeaderLength) return SessionMessage.HEADER_LENGTH_BYTES;
+            if (!gotHeader)       return headerLength;
+
+            if (bodyLength != SessionMessage.BODY_LENGTH_UNKNOWN) {
+                if (gotBody) return DataTransferMessage.BODY_DIGEST_BYTES;
+                if (encoded) return gotBlockHeader ? blockLength : BodyCompression.BLOCK_HEADER_BYTES;
+                return bodyLength;
             }
 
-            gotHeader = true;
-            dataBytesProcessed += headerLength;
+            if (!gotSegmentLength)    return StreamMessage.SEGMENT_LENGTH_BYTES;
+            if (!gotSegmentTimestamp) return StreamMessage.SEGMENT_TIMESTAMP_BYTES;
+            return segmentLength;
         }
-//        else if (!gotHeader)
-//            Timber.d(String.format("Got %d / %d header bytes", buffer.position(), SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + headerLength));
 
-        /** If the boundary between header content and body content occurred within {@link data},
-         * update {@link #bodyBytesReceived} appropriately. Additionally, if this SessionMessage
-         * requires off-memory body storage we remove body data from {@link buffer} and insert it into
-         * the {@link bodyStream}. Must be performed before determining body completion.
+        /**
+         * @return whether body bytes are passed straight to {@link #bodyWriter} or
+         * {@link #bodySink}. A compressed body is decoded first.
+         */
+        private boolean isBodyUnbuffered() {
+            return gotHeader && !gotBody && !encoded && (bodyWriter != null || bodySink != null);
+        }
+
+        /**
+         * Deserialize the field read into {@link #buffer}, or complete a disk-backed body
          *
-         * Performed at most once per SessionMessage
+         * @return false if the message could not be deserialized
          */
-        if (!gotBodyBoundary &&
-                gotHeader &&
-                bodyLength > 0 &&
-                getMessageIndex() >= getPrefixAndHeaderLengthBytes()) {
+        private boolean completeField() {
+
+            if (!gotVersion) {
+                /** Deserialize SessionMessage Header version byte */
+                headerVersion = buffer.get(0);
+                Timber.d("Deserialized header version %d", headerVersion);
+                if (headerVersion < SessionMessage.HEADER_VERSION_JSON ||
+                    headerVersion > SessionMessage.CURRENT_HEADER_VERSION) {
+                    abortMessage(new UnsupportedOperationException("Unknown SessionMessage version " + headerVersion));
+                    return false;
+                }
+                gotVersion = true;
 
-            try {
-                int bodyBytesJustReceived = bytesJustReceived - dataBytesProcessed;
+            } else if (!gotHeaderLength) {
+                /** Deserialize SessionMessage Header length bytes (little endian uint16) */
+                headerLength = (int) getUint(0, SessionMessage.HEADER_LENGTH_BYTES);
+                Timber.d("Deserialized header length %d", headerLength);
+                gotHeaderLength = true;
+                ensureBufferCapacity(headerLength);
+
+            } else if (!gotHeader) {
+                /** Deserialize SessionMessage Header content */
+                try {
+                    // Only the fields read here are decoded. See LazyHeaders
+                    headers = LazyHeaders.decode(buffer, 0, headerLength, headerVersion);
+                    validateHeaders(headers);
+
+                    bodyLength = (int) headers.get(SessionMessage.HEADER_BODY_LENGTH);
+                    sessionMessage = sessionMessageFromHeaders(headers);
+                } catch (IllegalArgumentException e) {
+                    abortMessage(e);
+                    return false;
+                } catch (ClassCastException | NullPointerException e) {
+                    // Fields particular to a message type are read by its constructor
+                    abortMessage(new IllegalArgumentException("Malformed " + headers.get(SessionMessage.HEADER_TYPE) + " header", e));
+                    return false;
+                }
 
-                if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                Timber.d("Deserialized %s header indicating body length %d", headers.get(SessionMessage.HEADER_TYPE), bodyLength);
+                gotHeader = true;
 
-                    if (bodyStream == null) prepareBodyOutputStream();
+                // Peers predating body digests send none
+                bodyDigest = Boolean.TRUE.equals(headers.get(DataTransferMessage.HEADER_BODY_DIGEST));
 
-                    byte[] bodyBytes = new byte[bodyBytesJustReceived];
-                    buffer.position(buffer.position() - bodyBytesJustReceived);
-                    buffer.get(bodyBytes, 0, bodyBytesJustReceived);
-                    buffer.position(buffer.position() - bodyBytesJustReceived);
-                    bodyStream.write(bodyBytes, 0, bodyBytesJustReceived);
+                int resumeOffset = sessionMessage instanceof DataTransferMessage ?
+                                   ((DataTransferMessage) sessionMessage).getResumeOffset() : 0;
+
+                encoded = headers.containsKey(DataTransferMessage.HEADER_ENCODING);
+                if (encoded) {
+                    Object decodedLengthHeader = headers.get(DataTransferMessage.HEADER_DECODED_LENGTH);
+                    if (!BodyCompression.DEFLATE.equals(headers.get(DataTransferMessage.HEADER_ENCODING)) ||
+                        !(decodedLengthHeader instanceof Integer) || (int) decodedLengthHeader > BODY_SIZE_CUTOFF_BYTES ||
+                        bodyLength <= 0 || bodyLength > BODY_SIZE_CUTOFF_BYTES || resumeOffset > 0) {
+
+                        abortMessage(new UnsupportedOperationException("Unsupported encoding of " + headers.get(SessionMessage.HEADER_ID)));
+                        return false;
+                    }
+                    decodedLength = (int) decodedLengthHeader;
+                    inflater      = new Inflater();
                 }
 
-                bodyBytesReceived += bodyBytesJustReceived;
+                if (sessionMessage instanceof TypedMessage && bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                    abortMessage(new UnsupportedOperationException("Typed message bodies are held in memory"));
+                    return false;
+                }
 
-                if (callback != null && bodyLength > 0)
-                    callback.onBodyProgress(this, sessionMessage, bodyBytesReceived / (float) bodyLength);
+                if (resumeOffset > 0) {
+                    // Only disk-backed bodies are checkpointed
+                    if (bodyLength <= BODY_SIZE_CUTOFF_BYTES) {
+                        abortMessage(new UnsupportedOperationException("Cannot resume in-memory body of " + headers.get(SessionMessage.HEADER_ID)));
+                        return false;
+                    }
+                    if (!openBodyWriterOrAbort(resumeOffset)) return false;
+                }
 
-                Timber.d(String.format("Splitting received data between header (%d bytes) and body (%d bytes)", dataBytesProcessed, bodyBytesJustReceived));
-                gotBodyBoundary = true;
+                // Reported at once, not held back, as the body sink is read right after
+                if (sessionMessage != null && callback != null)
+                    callback.onHeaderReady(SessionMessageDeserializer.this, sessionMessage);
+
+                // The app may take the body as it arrives. See DataTransferMessage#setBodySink
+                if (bodyWriter == null && bodyLength > 0 && sessionMessage instanceof DataTransferMessage)
+                    bodySink = ((DataTransferMessage) sessionMessage).getBodySink();
+
+                if (bodySink != null) {
+                    if (encoded) decodedBlock = new byte[BodyCompression.BLOCK_BYTES];
+
+                } else if (bodyWriter == null && bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+                    if (!openBodyWriterOrAbort(0)) return false;
+
+                } else if (bodyWriter == null && bodyLength > 0) {
+                    // Hold the body in memory if the process-wide budget allows, otherwise on disk
+                    int heapBytes = encoded ? decodedLength : bodyLength;
+                    if (ReceiveMemoryBudget.tryReserve(heapBytes)) {
+                        reservedBytes = heapBytes;
+                        if (encoded) {
+                            decodedBody = new byte[decodedLength];
+                        } else {
+                            // Reserve room for an in-memory body up front rather than growing chunk by chunk
+                            buffer.clear();
+                            ensureBufferCapacity(bodyLength);
+                        }
+                    } else {
+                        Timber.d("Receive memory budget exhausted, receiving %d byte body to disk", heapBytes);
+                        if (!openBodyWriterOrAbort(0)) return false;
+                        if (encoded) decodedBlock = new byte[BodyCompression.BLOCK_BYTES];
+                    }
+                }
 
-            } catch (IOException e) {
-                Timber.d(e, "IOException");
-            }
-        }
+            } else if (encoded && !gotBody) {
+                /** Decode each block of a compressed body as it arrives */
+                if (bodyDigest) bodyCrc.update(buffer, 0, buffer.position());
+
+                if (!gotBlockHeader) {
+                    blockFlag      = buffer.get(0) & 0xFF;
+                    blockLength    = (int) getUint(1, 2);
+                    gotBlockHeader = true;
+                    ensureBufferCapacity(blockLength);
+                } else {
+                    try {
+                        if (decodedBlock != null) {
+                            // Decoded blocks are passed on rather than held
+                            int decoded = BodyCompression.decodeBlock(inflater, blockFlag,
+                                                                      buffer.array(), buffer.arrayOffset(), blockLength,
+                                                                      decodedBlock, 0);
+                            if (decodedBytes + decoded > decodedLength)
+                                throw new DataFormatException("Deflated block overruns body");
+
+                            if (bodyWriter != null)
+                                bodyWriter.write(decodedBlock, 0, decoded);
+                            else
+                                bodySink.onBodySlice((DataTransferMessage) sessionMessage, decodedBlock, 0, decoded);
+                            decodedBytes += decoded;
+                        } else
+                            decodedBytes += BodyCompression.decodeBlock(inflater, blockFlag,
+                                                                        buffer.array(), buffer.arrayOffset(), blockLength,
+                                                                        decodedBody, decodedBytes);
+                    } catch (DataFormatException e) {
+                        abortMessage(e);
+                        return false;
+                    }
+                    gotBlockHeader = false;
+                }
 
-        /** Construct and deliver complete SessionMessage if deserialized header and body are received */
-        if (gotHeader && !gotBody && bodyBytesReceived == bodyLength) {
+                if (bodyBytesReceived == bodyLength) {
+                    if (gotBlockHeader || decodedBytes != decodedLength) {
+                        abortMessage(new DataFormatException("Decoded " + decodedBytes + " / " + decodedLength + " body bytes"));
+                        return false;
+                    }
+
+                    Timber.d("Got body!");
+                    if (sessionMessage instanceof DataTransferMessage && decodedBody != null)
+                        ((DataTransferMessage) sessionMessage).setBody(decodedBody);
+                    gotBody = true;
+
+                    if (!bodyDigest) {
+                        completeBody();
+                        return true;
+                    }
+                }
 
-            Timber.d("Got body!");
-            // Construct appropriate SessionMessage or child object
-            if (bodyLength > BODY_SIZE_CUTOFF_BYTES) {
+            } else if (bodyLength != SessionMessage.BODY_LENGTH_UNKNOWN && !gotBody) {
+                Timber.d("Got body!");
+                if (!isBodyUnbuffered()) {
+                    if (sessionMessage instanceof DataTransferMessage || sessionMessage instanceof TypedMessage) {
+                        byte[] body = new byte[bodyLength];
+                        System.arraycopy(buffer.array(), buffer.arrayOffset(), body, 0, bodyLength);
+                        if (sessionMessage instanceof DataTransferMessage)
+                            ((DataTransferMessage) sessionMessage).setBody(body);
+                        else
+                            ((TypedMessage) sessionMessage).setBody(body);
+                    }
+                    if (bodyDigest) bodyCrc.update(buffer, 0, bodyLength);
+                }
+                gotBody = true;
 
-                if (sessionMessage instanceof DataTransferMessage) {
-                    // TODO This shouldn't happen. We should enforce an upper limit on DataTransferMessage
-                    throw new UnsupportedOperationException("Cannot have a disk-backed DataTransferMessage");
+                if (!bodyDigest) {
+                    completeBody();
+                    return true;
                 }
+
+            } else if (bodyLength != SessionMessage.BODY_LENGTH_UNKNOWN) {
+                /** Verify the body digest before delivering the message */
+                int digest = (int) getUint(0, DataTransferMessage.BODY_DIGEST_BYTES);
+                if (digest != bodyCrc.getValue()) {
+                    discardCorruptBody();
+                    return true;
+                }
+
+                completeBody();
+                return true;
+
+            } else if (!gotSegmentLength) {
+                /** Deliver stream segments as they arrive until the end of stream marker */
+                segmentLength = (int) getUint(0, StreamMessage.SEGMENT_LENGTH_BYTES);
+
+                if (segmentLength == 0) {
+                    Timber.d("Stream ended after %d bytes", bodyBytesReceived);
+                    if (sessionMessage instanceof StreamMessage)
+                        ((StreamMessage) sessionMessage).onStreamEnded();
+
+                    if (sessionMessage != null && callback != null)
+                        notifyComplete(sessionMessage, null);
+
+                    completeMessage();
+                    return true;
+                }
+                gotSegmentLength = true;
+
+            } else if (!gotSegmentTimestamp) {
+                segmentTimestampMs = getUint(0, StreamMessage.SEGMENT_TIMESTAMP_BYTES);
+                gotSegmentTimestamp = true;
+                ensureBufferCapacity(segmentLength);
+
             } else {
-                byte[] body = new byte[bodyLength];
-                int originalPos = buffer.position();
-                buffer.position(bufferOffset + getPrefixAndHeaderLengthBytes());
-                buffer.get(body, 0, bodyLength);
-                buffer.position(originalPos);
-
-                if (sessionMessage instanceof DataTransferMessage) {
-                    ((DataTransferMessage) sessionMessage).setBody(body);
+                if (sessionMessage instanceof StreamMessage) {
+                    byte[] segment = new byte[segmentLength];
+                    System.arraycopy(buffer.array(), buffer.arrayOffset(), segment, 0, segmentLength);
+                    ((StreamMessage) sessionMessage).onSegmentReceived(segment, segmentTimestampMs);
                 }
-                dataBytesProcessed += bodyLength;
+
+                bodyBytesReceived  += segmentLength;
+                gotSegmentLength    = false;
+                gotSegmentTimestamp = false;
+            }
+
+            buffer.clear();
+            return true;
+        }
+
+        private void onBodyBytesReceived(int count) {
+            bodyBytesReceived += count;
+
+            if (callback != null && sessionMessage != null)
+                notifyBodyProgress(sessionMessage, getCurrentMessageProgress());
+
+            if (bodyBytesReceived < bodyLength)
+                Timber.d(String.format("Read %d / %d body bytes", bodyBytesReceived, bodyLength));
+        }
+
+        /**
+         * Deliver the SessionMessage whose body is complete
+         */
+        private void completeBody() {
+            if (bodySink != null)
+                endBodySink(null);
+
+            if (bodyWriter != null) {
+                completeDiskBackedMessage(sessionMessage);
+            } else if (sessionMessage != null && callback != null)
+                notifyComplete(sessionMessage, null);
+
+            completeMessage();
+        }
+
+        /**
+         * Report a body that does not match its digest. A disk-backed body is deleted rather
+         * than checkpointed, as the bytes on disk cannot be trusted.
+         */
+        private void discardCorruptBody() {
+            String id = (String) headers.get(SessionMessage.HEADER_ID);
+            Timber.e("Body of %s does not match its digest", id);
+
+            if (bodyWriter != null) {
+                if (checkpointId != null) checkpoints.remove(checkpointId);
+                bodyWriter.abort();
+                bodyWriter   = null;
+                checkpointId = null;
             }
 
-            if (callback != null) callback.onComplete(this, sessionMessage, null);
+            IOException exception = new IOException("Body of " + id + " does not match its digest");
+            if (bodySink != null)
+                endBodySink(exception);
 
-            gotBody = true;
+            if (callback != null)
+                notifyComplete(null, exception);
+
+            completeMessage();
+        }
+
+        /**
+         * Report the end of the body to {@link #bodySink}, which is then released
+         */
+        private void endBodySink(@Nullable Exception exception) {
+            DataTransferMessage.BodySink sink = bodySink;
+            bodySink = null;
+            sink.onBodyEnd((DataTransferMessage) sessionMessage, exception);
+        }
+
+        /**
+         * @return false if a writer of the body could not be opened, in which case the message
+         * is aborted. See {@link #openBodyWriter(int)}
+         */
+        private boolean openBodyWriterOrAbort(int resumeOffset) {
+            try {
+                bodyWriter = openBodyWriter(resumeOffset);
+                return true;
+            } catch (FileNotFoundException e) {
+                abortMessage(e);
+                return false;
+            }
+        }
+
+        /**
+         * Prepare for the next incoming message
+         */
+        private void completeMessage() {
+            if (sessionMessage == null)
+                Timber.w("Discarding undeserializable %s message", headers.get(SessionMessage.HEADER_TYPE));
 
-            // Prepare for next incoming message
-            bufferOffset += (getPrefixAndHeaderLengthBytes() + bodyLength); // The next message begins at this offset. We can't simply use dataBytesProcessed because this message may have been processed over prior calls to this method
-            Timber.d("Message complete. Buffer offset %d, dataBytes processed %d", bufferOffset, dataBytesProcessed);
             reset(false);
-            if (dataBytesProcessed < bytesJustReceived) {
-                Timber.d("%d / %d bytes deserialized in complete msg. Proceeding to next msg", dataBytesProcessed, bytesJustReceived);
-                processData(bytesJustReceived - dataBytesProcessed);
+        }
+
+        /**
+         * @return a writer of the disk-backed body of the current message. A body resumed from
+         * resumeOffset continues its checkpointed partial body, and a new body of a
+         * {@link pro.dbro.airshare.session.DataTransferMessage} over {@link #BODY_SIZE_CUTOFF_BYTES}
+         * is checkpointed.
+         */
+        private BodyFileWriter openBodyWriter(int resumeOffset) throws FileNotFoundException {
+            String transferId = checkpoints != null && sessionMessage instanceof DataTransferMessage &&
+                                bodyLength > BODY_SIZE_CUTOFF_BYTES ?
+                                (String) headers.get(SessionMessage.HEADER_ID) : null;
+
+            if (resumeOffset > 0) {
+                File partialBody = transferId != null ? checkpoints.getBodyFile(transferId, bodyLength) : null;
+                if (partialBody == null || partialBody.length() < resumeOffset)
+                    throw new FileNotFoundException("No partial body to resume " + headers.get(SessionMessage.HEADER_ID) + " from " + resumeOffset);
+
+                Timber.d("Resuming body of %s from %d / %d bytes", transferId, resumeOffset, bodyLength);
+                checkpointId      = transferId;
+                bodyBytesReceived = resumeOffset;
+                return new BodyFileWriter(partialBody, resumeOffset);
             }
+
+            File bodyFile = createBodyFile();
+            BodyFileWriter writer = new BodyFileWriter(bodyFile);
+
+            if (transferId != null) {
+                checkpoints.put(transferId, bodyLength, bodyFile);
+                checkpointId = transferId;
+            }
+            return writer;
+        }
+
+        /**
+         * Close writer, keeping its partial body to be resumed
+         */
+        private void keepPartialBody(BodyFileWriter writer) {
+            final String transferId = checkpointId;
+            Timber.d("Keeping partial body of %s after %d / %d bytes", transferId, bodyBytesReceived, bodyLength);
+
+            writer.close(new BodyFileWriter.Callback() {
+                @Override
+                public void onBodyFileComplete(@NonNull File file, @Nullable IOException exception) {
+                    // The body file's length remains a valid resume offset whatever was written
+                    if (exception != null)
+                        Timber.w("Partial body of %s may be incomplete: %s", transferId, exception.getMessage());
+                }
+            });
+        }
+
+        /**
+         * Close {@link #bodyWriter} and deliver message on {@link #deliveryExecutor} once its body is on disk.
+         * Bodies of messages other than {@link pro.dbro.airshare.session.DataTransferMessage} and
+         * {@link pro.dbro.airshare.session.TypedMessage} have no use and are deleted.
+         */
+        private void completeDiskBackedMessage(@Nullable final SessionMessage message) {
+            final String transferId = checkpointId;
+            lastBodyWriter = bodyWriter;
+            bodyWriter = null;
+
+            // Events that follow are held back until this delivery is made
+            pendingDeliveries.incrementAndGet();
+            lastBodyWriter.close(new BodyFileWriter.Callback() {
+                @Override
+                public void onBodyFileComplete(@NonNull File file, @Nullable final IOException exception) {
+                    boolean keepFile = exception == null &&
+                                       (message instanceof DataTransferMessage || message instanceof TypedMessage);
+
+                    if (transferId != null)
+                        checkpoints.remove(transferId);
+
+                    if (keepFile && message instanceof DataTransferMessage)
+                        ((DataTransferMessage) message).setBody(file);
+                    else if (keepFile)
+                        ((TypedMessage) message).setBody(file);
+                    else if (!file.delete())
+                        Timber.w("Failed to delete body file %s", file.getAbsolutePath());
+
+                    if (callback == null || (message == null && exception == null)) {
+                        pendingDeliveries.decrementAndGet();
+                        return;
+                    }
+
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (exception != null)
+                                callback.onComplete(SessionMessageDeserializer.this, null, exception);
+                            else
+                                callback.onComplete(SessionMessageDeserializer.this, message, null);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * Grow {@link #buffer}, preserving its contents, so that it can hold at least
+         * requiredBytes
+         */
+        private void ensureBufferCapacity(int requiredBytes) {
+            if (requiredBytes <= buffer.capacity()) return;
+
+            int curLen = buffer.capacity();
+            int newLen = Math.max(requiredBytes, (int) (curLen * 1.5));
+            resizeBuffer(newLen);
+            Timber.d("Buffer grown from %d to %d. %d bytes avail", curLen, newLen, buffer.capacity() - buffer.position());
+        }
+
+        /**
+         * Return {@link #buffer} to its default capacity after a large message, if its
+         * contents allow.
+         */
+        private void shrinkBuffer() {
+            if (buffer.capacity() > DEFAULT_BUFFER_BYTES && buffer.position() <= DEFAULT_BUFFER_BYTES)
+                resizeBuffer(DEFAULT_BUFFER_BYTES);
+        }
+
+        private void resizeBuffer(int newLen) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(newLen);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+
+        /**
+         * @return the little endian unsigned integer of length bytes at the absolute index of {@link #buffer}
+         */
+        private long getUint(int index, int bytes) {
+            long value = 0;
+            for (int i = 0; i < bytes; i++)
+                value |= (long) (buffer.get(index + i) & 0xFF) << (8 * i);
+            return value;
         }
-    }
 
-    private void init() {
-        headerLengthBuffer = ByteBuffer.allocate(Integer.SIZE / 8).order(ByteOrder.LITTLE_ENDIAN);
+        private float getCurrentMessageProgress() {
+            if (bodyLength == 0) return 0;
+            return bodyBytesReceived / (float) bodyLength;
+        }
     }
 
-    private void resizeBuffer(int minLength) {
-        int curLen = buffer.capacity();
-        int curOccupied = buffer.position();
-        int newLen = Math.max(minLength, (int) (curLen * 1.5));
-        ByteBuffer newBuffer = ByteBuffer.allocate(newLen);
-        buffer.limit(buffer.position());
-        buffer.position(0);
-        newBuffer.put(buffer);
-        buffer = newBuffer;
-        Timber.d("Buffer resized from %d (%d used) to %d. %d bytes avail", curLen, curOccupied, newLen, buffer.capacity() - buffer.position());
+    // <editor-fold desc="Ordered Callback Delivery">
+
+    /**
+     * @return whether callback events must be deferred behind a disk-backed message
+     * that is still being written or delivered
+     */
+    private boolean mustDeferCallbacks() {
+        return pendingDeliveries.get() > 0 || (lastBodyWriter != null && lastBodyWriter.hasPendingTasks());
     }
 
-    private void prepareBodyOutputStream() {
-        bodyFile = new File(context.getExternalFilesDir(null), UUID.randomUUID().toString().replace("-","") + ".body");
-        try {
-            bodyStream = new FileOutputStream(bodyFile);
-        } catch (FileNotFoundException e) {
-            String msg = "Failed to open body File: " + bodyFile.getAbsolutePath();
-            Timber.e(e, msg);
-            throw new IllegalArgumentException(msg);
+    /**
+     * Run event now, or after the events it must follow if {@link #mustDeferCallbacks()}
+     */
+    private void notifyInOrder(final Runnable event) {
+        if (!mustDeferCallbacks()) {
+            event.run();
+            return;
         }
+
+        pendingDeliveries.incrementAndGet();
+        if (lastBodyWriter != null && lastBodyWriter.hasPendingTasks()) {
+            // Queue behind the writer's own delivery, which it hands off once on disk
+            lastBodyWriter.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(event);
+                }
+            });
+        } else
+            deliver(event);
+    }
+
+    /**
+     * Run event on {@link #deliveryExecutor}, counted by {@link #pendingDeliveries} beforehand
+     */
+    private void deliver(final Runnable event) {
+        deliveryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    event.run();
+                } finally {
+                    pendingDeliveries.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void notifyBodyProgress(final SessionMessage message, final float progress) {
+        notifyInOrder(new Runnable() {
+            @Override
+            public void run() {
+                callback.onBodyProgress(SessionMessageDeserializer.this, message, progress);
+            }
+        });
     }
 
-    private float getCurrentMessageProgress() {
-        if (bodyLength == 0) return 0;
-        return bodyBytesReceived / (float) bodyLength;
+    private void notifyComplete(final SessionMessage message, final Exception e) {
+        notifyInOrder(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(SessionMessageDeserializer.this, message, e);
+            }
+        });
+    }
+
+    // </editor-fold desc="Ordered Callback Delivery">
+
+    private File createBodyFile() {
+        return new File(context.getExternalFilesDir(null), UUID.randomUUID().toString().replace("-","") + ".body");
     }
 
     /**
-     * @return the number of bytes which the prefix and header occupy
-     * This method only returns a valid value if {@link #gotHeaderLength} is {@code true}
+     * Check the fields read of every message have the expected types, as a remote peer's may not
+     *
+     * @throws IllegalArgumentException if a field is missing or of the wrong type
      */
-    private int getPrefixAndHeaderLengthBytes() {
-        return SessionMessage.HEADER_VERSION_BYTES + SessionMessage.HEADER_LENGTH_BYTES + headerLength;
+    private static void validateHeaders(Map<String, Object> headers) {
+        if (!(headers.get(SessionMessage.HEADER_TYPE) instanceof String) ||
+            !(headers.get(SessionMessage.HEADER_ID) instanceof String))
+            throw new IllegalArgumentException("Header must have a type and id");
+
+        Object bodyLength = headers.get(SessionMessage.HEADER_BODY_LENGTH);
+        if (!(bodyLength instanceof Integer) || (int) bodyLength < SessionMessage.BODY_LENGTH_UNKNOWN)
+            throw new IllegalArgumentException("Invalid body length " + bodyLength);
+
+        Object bodyDigest = headers.get(DataTransferMessage.HEADER_BODY_DIGEST);
+        if (bodyDigest != null && !(bodyDigest instanceof Boolean))
+            throw new IllegalArgumentException("Invalid body digest flag " + bodyDigest);
+
+        Object resumeOffset = headers.get(DataTransferMessage.HEADER_RESUME_OFFSET);
+        if (resumeOffset != null && (!(resumeOffset instanceof Integer) || (int) resumeOffset < 0))
+            throw new IllegalArgumentException("Invalid resume offset " + resumeOffset);
     }
 
-    private static @Nullable SessionMessage sessionMessageFromHeaders(HashMap<String, Object> headers) {
+    private static @Nullable SessionMessage sessionMessageFromHeaders(Map<String, Object> headers) {
         if (!headers.containsKey(SessionMessage.HEADER_TYPE))
             throw new IllegalArgumentException("headers map must have 'type' entry");
 
@@ -384,6 +1269,26 @@ public class SessionMessageDeserializer {
             case DataTransferMessage.HEADER_TYPE:
                 return new DataTransferMessage(headers, null);
 
+            case StreamMessage.HEADER_TYPE:
+                return new StreamMessage(headers);
+
+            case ResumeMessage.HEADER_TYPE:
+                return new ResumeMessage(headers);
+
+            case ChunkNackMessage.HEADER_TYPE:
+                return new ChunkNackMessage(headers);
+
+            case TypedMessage.HEADER_TYPE:
+                Object typeId = headers.get(TypedMessage.HEADER_TYPE_ID);
+                SessionMessageRegistry.Registration<?> registration = typeId instanceof Integer ?
+                        SessionMessageRegistry.getRegistration((int) typeId) : null;
+
+                if (registration == null) {
+                    Timber.w("Unable to deserialize message of unregistered type id %s", typeId);
+                    return null;
+                }
+                return new TypedMessage<>(headers, registration);
+
             default:
                 Timber.w("Unable to deserialize %s message", headerType);
                 return null;
@@ -403,7 +1308,7 @@ public class SessionMessageDeserializer {
         return map;
     }
 
-    private static Object fromJson(Object json) throws JSONException {
+    static Object fromJson(Object json) throws JSONException {
         if (json == JSONObject.NULL) {
             return null;
         } else if (json instanceof JSONObject) {
@@ -0,0 +1,374 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of {@link pro.dbro.airshare.session.SessionMessage} headers used by
+ * {@link SessionMessage#HEADER_VERSION_BINARY}.
+ *
+ * A header is a sequence of tagged fields filling the header length given in the message prefix:
+ *
+ * field    | description
+ * ---------|------------
+ * tag      | varint. Well-known header keys have a fixed tag. Tag 0 is followed by a string key
+ * value    | type byte followed by the value encoding below
+ *
+ * type     | encoding
+ * ---------|------------
+ * NULL     | -
+ * FALSE    | -
+ * TRUE     | -
+ * INT      | zig-zag varint
+ * LONG     | zig-zag varint
+ * DOUBLE   | 8 bytes, big endian IEEE 754
+ * STRING   | varint length, UTF-8 bytes
+ * BYTES    | varint length, raw bytes
+ * MAP      | varint entry count, then string key and value per entry
+ * LIST     | varint item count, then value per item
+ */
+public class SessionMessageHeaderCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Value types */
+    private static final int TYPE_NULL   = 0;
+    private static final int TYPE_FALSE  = 1;
+    private static final int TYPE_TRUE   = 2;
+    private static final int TYPE_INT    = 3;
+    private static final int TYPE_LONG   = 4;
+    private static final int TYPE_DOUBLE = 5;
+    private static final int TYPE_STRING = 6;
+    private static final int TYPE_BYTES  = 7;
+    private static final int TYPE_MAP    = 8;
+    private static final int TYPE_LIST   = 9;
+
+    /** Tag of a field whose key is written inline */
+    private static final int TAG_CUSTOM_KEY = 0;
+
+    /** Well-known header keys. A key's tag is its index. Append only */
+    private static final String[] TAG_KEYS = new String[] {
+            null,
+            SessionMessage.HEADER_TYPE,
+            SessionMessage.HEADER_ID,
+            SessionMessage.HEADER_BODY_LENGTH,
+            DataTransferMessage.HEADER_EXTRA,
+            IdentityMessage.HEADER_ALIAS,
+            IdentityMessage.HEADER_PUBKEY,
+            IdentityMessage.HEADER_TRANSPORTS,
+            IdentityMessage.HEADER_SUPPORTED_VERSION,
+            TransportUpgradeMessage.HEADER_TRANSPORT_CODE
+    };
+
+    private static final HashMap<String, Integer> KEY_TAGS = new HashMap<>();
+
+    static {
+        for (int tag = TAG_CUSTOM_KEY + 1; tag < TAG_KEYS.length; tag++)
+            KEY_TAGS.put(TAG_KEYS[tag], tag);
+    }
+
+    private SessionMessageHeaderCodec() {
+        // Util
+    }
+
+    // <editor-fold desc="Encoding">
+
+    public static byte[] encode(@NonNull Map<String, Object> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            Integer tag = KEY_TAGS.get(header.getKey());
+
+            if (tag != null) {
+                writeVarint(out, tag);
+            } else {
+                writeVarint(out, TAG_CUSTOM_KEY);
+                writeString(out, header.getKey());
+            }
+            writeValue(out, header.getValue());
+        }
+
+        return out.toByteArray();
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null) {
+            out.write(TYPE_NULL);
+
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.write(TYPE_INT);
+            writeVarint(out, zigZag(((Number) value).longValue()));
+
+        } else if (value instanceof Long) {
+            out.write(TYPE_LONG);
+            writeVarint(out, zigZag((Long) value));
+
+        } else if (value instanceof Number) {
+            out.write(TYPE_DOUBLE);
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.write((int) (bits >>> shift));
+
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.write(TYPE_BYTES);
+            writeVarint(out, bytes.length);
+            out.write(bytes, 0, bytes.length);
+
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.write(TYPE_MAP);
+            writeVarint(out, map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(out, String.valueOf(entry.getKey()));
+                writeValue(out, entry.getValue());
+            }
+
+        } else if (value instanceof Collection) {
+            Collection<?> list = (Collection<?>) value;
+            out.write(TYPE_LIST);
+            writeVarint(out, list.size());
+            for (Object item : list)
+                writeValue(out, item);
+
+        } else {
+            out.write(TYPE_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    // </editor-fold desc="Encoding">
+
+    // <editor-fold desc="Decoding">
+
+    /**
+     * Decode length header bytes beginning at the absolute index offset of buffer.
+     * The position of buffer is not modified.
+     *
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static HashMap<String, Object> decode(@NonNull ByteBuffer buffer, int offset, int length) {
+        Reader reader = new Reader(buffer, offset, offset + length);
+        HashMap<String, Object> headers = new HashMap<>();
+
+        while (reader.hasRemaining())
+            headers.put(reader.readKey(), reader.readValue());
+
+        return headers;
+    }
+
+    /** Sequential reader over a region of a ByteBuffer using absolute gets */
+    static class Reader {
+
+        private final ByteBuffer buffer;
+        private final int end;
+        private int index;
+
+        Reader(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.index = start;
+            this.end = end;
+        }
+
+        boolean hasRemaining() {
+            return index < end;
+        }
+
+        /**
+         * @return the absolute index of the next byte to be read
+         */
+        int position() {
+            return index;
+        }
+
+        /**
+         * @return the key of the field beginning at the current position. Well-known keys
+         * are not allocated.
+         */
+        String readKey() {
+            int tag = (int) readVarint();
+
+            if (tag == TAG_CUSTOM_KEY)
+                return readString();
+            else if (tag > TAG_CUSTOM_KEY && tag < TAG_KEYS.length)
+                return TAG_KEYS[tag];
+            else
+                throw new IllegalArgumentException("Unknown header tag " + tag);
+        }
+
+        /**
+         * Advance past the value beginning at the current position without decoding it
+         */
+        void skipValue() {
+            int type = readByte();
+            switch (type) {
+                case TYPE_NULL:
+                case TYPE_FALSE:
+                case TYPE_TRUE:
+                    return;
+
+                case TYPE_INT:
+                case TYPE_LONG:
+                    readVarint();
+                    return;
+
+                case TYPE_DOUBLE:
+                    skip(8);
+                    return;
+
+                case TYPE_STRING:
+                case TYPE_BYTES:
+                    skip((int) readVarint());
+                    return;
+
+                case TYPE_MAP:
+                    int entries = (int) readVarint();
+                    for (int i = 0; i < entries; i++) {
+                        skip((int) readVarint());
+                        skipValue();
+                    }
+                    return;
+
+                case TYPE_LIST:
+                    int items = (int) readVarint();
+                    for (int i = 0; i < items; i++)
+                        skipValue();
+                    return;
+
+                default:
+                    throw new IllegalArgumentException("Unknown header value type " + type);
+            }
+        }
+
+        private void skip(int length) {
+            if (length < 0 || length > end - index)
+                throw new IllegalArgumentException("Header truncated");
+
+            index += length;
+        }
+
+        int readByte() {
+            if (index >= end)
+                throw new IllegalArgumentException("Header truncated");
+
+            return buffer.get(index++) & 0xFF;
+        }
+
+        long readVarint() {
+            long value = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (shift > 63)
+                    throw new IllegalArgumentException("Malformed varint");
+
+                b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        long readZigZag() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        byte[] readBytes() {
+            int length = (int) readVarint();
+            if (length < 0 || length > end - index)
+                throw new IllegalArgumentException("Header truncated");
+
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++)
+                bytes[i] = buffer.get(index++);
+
+            return bytes;
+        }
+
+        String readString() {
+            return new String(readBytes(), UTF_8);
+        }
+
+        Object readValue() {
+            int type = readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    return null;
+
+                case TYPE_FALSE:
+                    return false;
+
+                case TYPE_TRUE:
+                    return true;
+
+                case TYPE_INT:
+                    return (int) readZigZag();
+
+                case TYPE_LONG:
+                    return readZigZag();
+
+                case TYPE_DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++)
+                        bits = (bits << 8) | readByte();
+                    return Double.longBitsToDouble(bits);
+
+                case TYPE_STRING:
+                    return readString();
+
+                case TYPE_BYTES:
+                    return readBytes();
+
+                case TYPE_MAP:
+                    int entries = (int) readVarint();
+                    HashMap<String, Object> map = new HashMap<>();
+                    for (int i = 0; i < entries; i++)
+                        map.put(readString(), readValue());
+                    return map;
+
+                case TYPE_LIST:
+                    int items = (int) readVarint();
+                    List<Object> list = new ArrayList<>();
+                    for (int i = 0; i < items; i++)
+                        list.add(readValue());
+                    return list;
+
+                default:
+                    throw new IllegalArgumentException("Unknown header value type " + type);
+            }
+        }
+    }
+
+    // </editor-fold desc="Decoding">
+}
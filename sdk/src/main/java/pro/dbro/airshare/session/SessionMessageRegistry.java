@@ -0,0 +1,89 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide registry of the app-defined types sent as {@link TypedMessage}s.
+ *
+ * Register each type, with the same id and an equivalent codec on every peer, before
+ * sending or receiving it. Received messages are dispatched by type id through a table
+ * indexed by id, so ids should be small and dense.
+ */
+public class SessionMessageRegistry {
+
+    /** Largest registrable type id */
+    public static final int MAX_TYPE_ID = 0xFF;
+
+    static class Registration<T> {
+
+        final int                       typeId;
+        final Class<T>                  type;
+        final TypedMessage.BodyCodec<T> codec;
+
+        Registration(int typeId, @NonNull Class<T> type, @NonNull TypedMessage.BodyCodec<T> codec) {
+            this.typeId = typeId;
+            this.type   = type;
+            this.codec  = codec;
+        }
+    }
+
+    /** Registrations indexed by type id. Replaced, not modified, on registration */
+    private static volatile Registration<?>[] byTypeId = new Registration<?>[MAX_TYPE_ID + 1];
+
+    private static final HashMap<Class<?>, Registration<?>> byType = new HashMap<>();
+
+    private SessionMessageRegistry() {
+        // Util
+    }
+
+    /**
+     * Register type for sending and receiving as {@link TypedMessage}s encoded by codec
+     *
+     * @throws IllegalArgumentException if typeId is out of range, or either typeId or type
+     * is already registered
+     */
+    public static synchronized <T> void register(int typeId,
+                                                 @NonNull Class<T> type,
+                                                 @NonNull TypedMessage.BodyCodec<T> codec) {
+
+        if (typeId < 0 || typeId > MAX_TYPE_ID)
+            throw new IllegalArgumentException("Type id must be between 0 and " + MAX_TYPE_ID);
+
+        if (byTypeId[typeId] != null)
+            throw new IllegalArgumentException("Type id " + typeId + " is registered to " + byTypeId[typeId].type.getName());
+
+        if (byType.containsKey(type))
+            throw new IllegalArgumentException(type.getName() + " is already registered");
+
+        Registration<T> registration = new Registration<>(typeId, type, codec);
+        Registration<?>[] table = byTypeId.clone();
+        table[typeId] = registration;
+        byType.put(type, registration);
+        byTypeId = table;
+    }
+
+    /**
+     * Remove the registration of typeId, if any
+     */
+    public static synchronized void unregister(int typeId) {
+        if (typeId < 0 || typeId > MAX_TYPE_ID || byTypeId[typeId] == null) return;
+
+        Registration<?>[] table = byTypeId.clone();
+        byType.remove(table[typeId].type);
+        table[typeId] = null;
+        byTypeId = table;
+    }
+
+    static @Nullable Registration<?> getRegistration(int typeId) {
+        Registration<?>[] table = byTypeId;
+        return typeId >= 0 && typeId < table.length ? table[typeId] : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    static synchronized @Nullable <T> Registration<T> getRegistration(@NonNull Class<T> type) {
+        return (Registration<T>) byType.get(type);
+    }
+}
@@ -1,5 +1,7 @@
 package pro.dbro.airshare.session;
 
+import java.util.Collection;
+
 /**
  * An item that schedules {@link pro.dbro.airshare.session.SessionMessage}s for delivery
  * to a {@link pro.dbro.airshare.session.Peer}
@@ -10,4 +12,14 @@ public interface SessionMessageScheduler {
 
     public void sendMessage(SessionMessage message, Peer recipient);
 
+    /**
+     * Send message with the given priority, overriding {@link SessionMessage#getPriority()}
+     */
+    public void sendMessage(SessionMessage message, Peer recipient, SessionMessage.Priority priority);
+
+    /**
+     * Send one message to each of recipients, encoding it once
+     */
+    public void sendMessage(SessionMessage message, Collection<Peer> recipients);
+
 }
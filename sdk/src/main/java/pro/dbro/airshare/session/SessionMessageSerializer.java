@@ -1,17 +1,69 @@
 package pro.dbro.airshare.session;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import android.util.Pair;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
 /**
  * This class facilitates queuing {@link pro.dbro.airshare.session.SessionMessage}s
- * for sequential serialization
+ * for serialization.
+ *
+ * By default messages are serialized one after another. Once {@link #setMaxStreams(int)} permits,
+ * several messages are serialized at once, each on its own stream, and chunks are taken from each
+ * stream in turn so that a small message is not held behind a large one. Each such chunk is a frame:
+ *
+ * byte idx | description
+ * ---------|------------
+ * [0]      | {@link #FRAME_FLAG} | stream id. The flag is never set in a SessionMessage version byte
+ * [1-2]    | Payload length as little endian uint16
+ * [3-X]    | Payload. The next bytes of the stream's messages. 'X' is value specified by Payload length
+ *
+ * A stream id is reused for another message once its previous message is fully serialized.
+ *
+ * Messages are scheduled by {@link SessionMessage#getPriority()}. Queued messages begin in order of
+ * priority, and each frame is taken from the highest priority stream with data to send, so bulk
+ * transfers are preempted at chunk boundaries. One stream is kept free of bulk messages so that
+ * other traffic may always begin. Without frames, priority orders messages not yet begun.
+ *
+ * Small messages are coalesced: a chunk is filled with as many messages or frames as fit, up to
+ * {@link #MAX_CHUNK_MESSAGES}. While earlier chunks are unacknowledged, a chunk that would be
+ * partially filled is held for up to the linger time in expectation of more messages, since it
+ * could not be delivered sooner anyway. See {@link #setLingerMs(long)}.
+ *
+ * Up to a window of chunks may be awaiting acknowledgement at once, so a transport can
+ * be handed its next chunk before the previous is delivered. Acknowledgements are
+ * cumulative: each call to {@link #ackChunkDelivery()} acknowledges the oldest outstanding chunk.
+ * A chunk reported undelivered via {@link #nackChunkDelivery(byte[])} is sent again ahead of new chunks.
+ * Unless disabled, the window adapts to observed acknowledgement latency, growing while
+ * latency stays near its observed minimum and shrinking when chunks begin to queue.
+ *
+ * Once {@link #setChecksums(boolean)} permits, each chunk begun between messages and every chunk
+ * thereafter is checksummed, so that the recipient may verify it and request only corrupt or
+ * missing chunks again via {@link #retransmit(List)}:
+ *
+ * byte idx | description
+ * ---------|------------
+ * [0]      | {@link #ENVELOPE_MARKER}. Neither a SessionMessage version byte nor a valid frame
+ * [1-2]    | Sequence number as little endian uint16, from 0 and wrapping
+ * [3-4]    | Payload length as little endian uint16
+ * [5-X]    | Payload. Messages or frames as above. 'X' is value specified by Payload length
+ * [X+1-X+4]| CRC-32C of all preceding bytes of the chunk, little endian
+ *
+ * The last {@link #RETAINED_CHUNKS} checksummed chunks are retained for retransmission.
+ *
+ * Chunks are serialized into reusable storage and acknowledged without allocation, so a sustained
+ * transfer produces no per-chunk garbage. A chunk is only valid until the corresponding call to
+ * {@link #ackChunkDelivery()}. The serializer retains no reference to a message once the
+ * acknowledgement following that of its final chunk.
  *
  * Created by davidbrodsky on 3/12/15.
  */
@@ -19,104 +71,925 @@ public class SessionMessageSerializer {
 
     private static final boolean VERBOSE = false;
 
-    private ArrayList<Pair<Integer, SessionMessage>> completedMessages;
-    private ArrayDeque<SessionMessage> messages;
-    private byte[] lastChunk;
-    private int marker;
-    private int serializeCount;
-    private int ackCount;
+    /** Upper bound on chunk size, used when the transport reports an unlimited MTU */
+    static final int MAX_CHUNK_BYTES = 500 * 1024;
+
+    /** Chunks that may await acknowledgement at once, unless configured otherwise */
+    public static final int DEFAULT_WINDOW_CHUNKS = 4;
+
+    /** Upper bound on the window, and so on the storage for chunks in flight */
+    public static final int MAX_WINDOW_CHUNKS = 32;
+
+    /** Window growth is permitted while ack latency is within this factor of the minimum */
+    private static final float GROW_LATENCY_FACTOR   = 1.5f;
+
+    /** The window shrinks when ack latency exceeds this factor of the minimum */
+    private static final float SHRINK_LATENCY_FACTOR = 2.0f;
+
+    /** Latency differences below this are attributed to timer and scheduling noise */
+    private static final long LATENCY_TOLERANCE_NS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    /** Acks after which the minimum latency is re-sampled, tracking changes in link conditions */
+    private static final int MIN_LATENCY_SAMPLE_ACKS = 256;
+
+    /** Set in the first byte of a frame, whose remaining bits are the stream id */
+    public static final int FRAME_FLAG         = 0x80;
+    public static final int FRAME_HEADER_BYTES = 3;
+    public static final int MAX_FRAME_PAYLOAD_BYTES = 0xFFFF;
+
+    /** First byte of a checksummed chunk */
+    public static final int ENVELOPE_MARKER       = 0xC0;
+    public static final int ENVELOPE_HEADER_BYTES = 5;
+    public static final int ENVELOPE_CRC_BYTES    = 4;
+    public static final int MAX_ENVELOPE_PAYLOAD_BYTES = 0xFFFF;
+
+    /** Checksummed chunks retained for retransmission, and so the furthest a recipient may hold chunks ahead of a missing one */
+    public static final int RETAINED_CHUNKS = 64;
+
+    /** Most messages serialized at once, and so the number of stream ids in use */
+    public static final int MAX_STREAMS = 8;
+
+    private static final int PRIORITIES = SessionMessage.Priority.values().length;
+
+    /** Most messages, or parts of messages, carried by one chunk */
+    public static final int MAX_CHUNK_MESSAGES = 32;
+
+    /** Longest a partially filled chunk is held while earlier chunks are in flight, unless configured otherwise */
+    public static final long DEFAULT_LINGER_MS = 10;
+
+    /** Messages queued but not yet begun, indexed by {@link SessionMessage.Priority#ordinal()} */
+    private final ArrayDeque<SessionMessage>[] queues;
+
+    // <editor-fold desc="Streams">
+    // Messages being serialized, indexed by stream id. Without framing only stream 0 is used
+
+    private final SessionMessage[] streamMessages = new SessionMessage[MAX_STREAMS];
+    /** Offset into each stream's message of its next byte */
+    private final int[]            streamMarkers  = new int[MAX_STREAMS];
+    /** Order in which each stream's message was begun */
+    private final long[]           streamBegins   = new long[MAX_STREAMS];
+    /** {@link SessionMessage.Priority#ordinal()} of each stream's message */
+    private final int[]            streamPriorities = new int[MAX_STREAMS];
+    private long    messagesBegun;
+    private int     maxStreams = 1;
+    private boolean framed;
+    /** Stream considered first for the next chunk, so that streams take turns */
+    private int     nextStream;
+
+    // </editor-fold desc="Streams">
+
+    // <editor-fold desc="In-flight chunks">
+    // A ring of MAX_WINDOW_CHUNKS slots. The chunk with sequence n occupies slot n % MAX_WINDOW_CHUNKS
+
+    private final byte[][]         chunks         = new byte[MAX_WINDOW_CHUNKS][];
+    private final ByteBuffer[]     chunkBuffers   = new ByteBuffer[MAX_WINDOW_CHUNKS];
+    /** Number of messages each chunk carries bytes of */
+    private final int[]            chunkParts     = new int[MAX_WINDOW_CHUNKS];
+    private final long[]           chunkSendTimes = new long[MAX_WINDOW_CHUNKS];
+    /** Messages carried by each chunk. Those of slot s begin at index s * MAX_CHUNK_MESSAGES */
+    private final SessionMessage[] partMessages   = new SessionMessage[MAX_WINDOW_CHUNKS * MAX_CHUNK_MESSAGES];
+    /** Offset into each part's message following the chunk */
+    private final int[]            partEnds       = new int[MAX_WINDOW_CHUNKS * MAX_CHUNK_MESSAGES];
+    /** Sequence of the oldest chunk awaiting acknowledgement */
+    private long ackSequence;
+    /** Sequence of the next chunk to be serialized */
+    private long nextSequence;
+
+    /** Messages carried by the chunk last acknowledged, and their delivery progress */
+    private final SessionMessage[] ackedMessages = new SessionMessage[MAX_CHUNK_MESSAGES];
+    private final float[]          ackedProgress = new float[MAX_CHUNK_MESSAGES];
+    private int ackedMessageCount;
+
+    // </editor-fold desc="In-flight chunks">
+
+    // <editor-fold desc="Failed chunks">
+    // Chunks reported undelivered, sent again in their original order ahead of new chunks
+
+    private final ArrayDeque<FailedChunk> failedChunks = new ArrayDeque<>();
+    /** Sequence following the last chunk in flight when a chunk last failed. Failed chunks are held until those are reported */
+    private long resendSequence;
+
+    /** A chunk reported undelivered and the parts of messages it carries */
+    private static class FailedChunk {
+        final byte[]           data;
+        final SessionMessage[] messages;
+        final int[]            partEnds;
+
+        FailedChunk(byte[] data, SessionMessage[] messages, int[] partEnds) {
+            this.data     = data;
+            this.messages = messages;
+            this.partEnds = partEnds;
+        }
+    }
+
+    // </editor-fold desc="Failed chunks">
+
+    // <editor-fold desc="Checksums">
+    // Checksummed chunks sent most recently. The chunk with sequence n is retained in slot n % RETAINED_CHUNKS
+
+    private boolean        checksums;
+    private boolean        enveloped;
+    private int            nextEnvelopeSequence;
+    private final byte[][] retainedChunks    = new byte[RETAINED_CHUNKS][];
+    private final int[]    retainedLengths   = new int[RETAINED_CHUNKS];
+    private final int[]    retainedSequences = new int[RETAINED_CHUNKS];
+    /** Sequences of retained chunks requested again, sent ahead of new chunks */
+    private final ArrayDeque<Integer> retransmissions = new ArrayDeque<>();
+    private final Crc32c   chunkCrc = new Crc32c();
+
+    // </editor-fold desc="Checksums">
+
+    // <editor-fold desc="Linger">
+
+    private long lingerNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LINGER_MS);
+    /** When a partially filled chunk was first held, or -1 if none is */
+    private long lingerStartNs = -1;
+
+    // </editor-fold desc="Linger">
+
+    // <editor-fold desc="Window">
+
+    private int     windowChunks    = DEFAULT_WINDOW_CHUNKS;
+    private int     maxWindowChunks = MAX_WINDOW_CHUNKS;
+    private boolean adaptiveWindow  = true;
+
+    private long minAckLatencyNs = Long.MAX_VALUE;
+    private int  acksSinceMinLatencySample;
+    /** Capacity of the last chunk serialized. Latency observed at one chunk size says little of another */
+    private int  chunkCapacity;
+    /** Acks since the window last changed */
+    private int  acksSinceWindowChange;
+
+    // </editor-fold desc="Window">
 
     public SessionMessageSerializer(final SessionMessage message) {
         this(new ArrayList<SessionMessage>() {{ add(message); }});
     }
 
+    @SuppressWarnings("unchecked")
     public SessionMessageSerializer(List<SessionMessage> messages) {
-        this.messages = new ArrayDeque<>();
-        this.messages.addAll(messages);
-        this.completedMessages = new ArrayList<>();
-        marker = 0;
-        serializeCount = 0;
-        ackCount = 0;
+        queues = new ArrayDeque[PRIORITIES];
+        for (int priority = 0; priority < PRIORITIES; priority++)
+            queues[priority] = new ArrayDeque<>();
+
+        Arrays.fill(retainedSequences, -1);
+
+        for (SessionMessage message : messages)
+            queueMessage(message);
     }
 
+    /**
+     * @return the oldest message being serialized, or the next queued if none
+     */
     public @Nullable SessionMessage getCurrentMessage() {
-        return messages.peek();
+        int stream = getCurrentStream();
+        if (stream != -1) return streamMessages[stream];
+
+        for (ArrayDeque<SessionMessage> queue : queues) {
+            if (!queue.isEmpty()) return queue.peek();
+        }
+        return null;
     }
 
     public void queueMessage(SessionMessage message) {
-        messages.offer(message);
+        queues[message.getPriority().ordinal()].offer(message);
     }
 
     public float getCurrentMessageProgress() {
-        if (getCurrentMessage() == null) return 1;
+        SessionMessage message = getCurrentMessage();
+        if (message == null) return 1;
+
+        int stream = getCurrentStream();
+        long totalLength = message.getTotalLengthBytes();
+        if (stream == -1 || totalLength == SessionMessage.BODY_LENGTH_UNKNOWN) return 0;
+
+        return ((float) streamMarkers[stream]) / totalLength;
+    }
+
+    /**
+     * @return every message not yet completely acknowledged: those in flight or begun, then those
+     * queued, e.g: to be sent again once the recipient reconnects
+     */
+    public List<SessionMessage> getUndeliveredMessages() {
+        LinkedHashSet<SessionMessage> undelivered = new LinkedHashSet<>();
+
+        for (FailedChunk failed : failedChunks)
+            undelivered.addAll(Arrays.asList(failed.messages));
+
+        for (long sequence = ackSequence; sequence < nextSequence; sequence++) {
+            int slot = slotForSequence(sequence);
+            for (int part = 0; part < chunkParts[slot]; part++)
+                undelivered.add(partMessages[slot * MAX_CHUNK_MESSAGES + part]);
+        }
+
+        for (SessionMessage message : streamMessages) {
+            if (message != null) undelivered.add(message);
+        }
+
+        for (ArrayDeque<SessionMessage> queue : queues)
+            undelivered.addAll(queue);
+
+        return new ArrayList<>(undelivered);
+    }
+
+    /**
+     * Set the number of messages that may be serialized at once, interleaved as frames.
+     * Must only exceed 1 for a recipient that reassembles frames. See {@link Peer#getMaxStreams()}
+     *
+     * Frames are used from the first message begun after this permits more than one stream.
+     */
+    public void setMaxStreams(int maxStreams) {
+        if (maxStreams < 1 || maxStreams > MAX_STREAMS)
+            throw new IllegalArgumentException("Streams must be between 1 and " + MAX_STREAMS);
+
+        this.maxStreams = maxStreams;
+    }
+
+    /**
+     * Set whether chunks are checksummed. Must only be set for a recipient that verifies them.
+     * See {@link Peer#supportsChecksums()}
+     *
+     * Checksums begin with the first chunk begun between messages after this is set, and
+     * cannot be disabled once begun.
+     */
+    public void setChecksums(boolean checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * Send the retained checksummed chunks with the given sequence numbers again, ahead of
+     * any new chunk. Chunks no longer retained are skipped.
+     */
+    public void retransmit(@NonNull List<Integer> sequences) {
+        for (Integer sequence : sequences) {
+            if (!retransmissions.contains(sequence)) retransmissions.offer(sequence);
+        }
+    }
+
+    /**
+     * @return the number of chunks serialized but not yet acknowledged via {@link #ackChunkDelivery()}
+     */
+    public int getChunksInFlight() {
+        return (int) (nextSequence - ackSequence);
+    }
+
+    /**
+     * @return the number of chunks acknowledged via {@link #ackChunkDelivery()} over the life of this serializer
+     */
+    public long getChunksAcknowledged() {
+        return ackSequence;
+    }
+
+    /**
+     * @return the serialized bytes left to send, counting no further than limit. Messages of
+     * unknown length, such as open streams, count as limit.
+     */
+    public long getBacklogBytes(int limit) {
+        long bytes = 0;
+        for (FailedChunk failed : failedChunks)
+            bytes += failed.data.length;
+
+        return Math.min(limit, bytes + getQueuedBytes(limit));
+    }
+
+    public int getWindowChunks() {
+        return windowChunks;
+    }
+
+    /**
+     * Set the number of chunks that may await acknowledgement at once. If the window is adaptive,
+     * this is its current size, which will be adjusted between 1 and {@link #setMaxWindowChunks(int)}
+     */
+    public void setWindowChunks(int windowChunks) {
+        if (windowChunks < 1)
+            throw new IllegalArgumentException("Window must allow at least one chunk");
+
+        this.windowChunks = Math.min(windowChunks, maxWindowChunks);
+        acksSinceWindowChange = 0;
+    }
+
+    public void setMaxWindowChunks(int maxWindowChunks) {
+        if (maxWindowChunks < 1 || maxWindowChunks > MAX_WINDOW_CHUNKS)
+            throw new IllegalArgumentException("Maximum window must be between 1 and " + MAX_WINDOW_CHUNKS);
+
+        this.maxWindowChunks = maxWindowChunks;
+        windowChunks = Math.min(windowChunks, maxWindowChunks);
+    }
+
+    /**
+     * Set whether the window size adapts to observed acknowledgement latency. Enabled by default.
+     */
+    public void setAdaptiveWindow(boolean adaptiveWindow) {
+        this.adaptiveWindow = adaptiveWindow;
+    }
+
+    /**
+     * Set the longest a partially filled chunk may be held, while earlier chunks are in flight,
+     * awaiting more messages to fill it. 0 sends each chunk as soon as the window permits.
+     */
+    public void setLingerMs(long lingerMs) {
+        if (lingerMs < 0)
+            throw new IllegalArgumentException("Linger must not be negative");
+
+        lingerNs = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        if (lingerNs == 0) lingerStartNs = -1;
+    }
 
-        return ((float)marker) / getCurrentMessage().getTotalLengthBytes();
+    /**
+     * @return milliseconds until a held, partially filled chunk is released regardless of
+     * acknowledgements, or 0 if no chunk is held. {@link #getNextChunk(int)} should be retried then.
+     */
+    public long getLingerRemainingMs() {
+        if (lingerStartNs == -1) return 0;
+
+        long remainingNs = lingerStartNs + lingerNs - System.nanoTime();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNs + TimeUnit.MILLISECONDS.toNanos(1) - 1));
     }
 
     /**
-     * Read up to length bytes of the current outgoing SessionMessage.
+     * Read up to length bytes of the outgoing SessionMessage queue.
      * If length is 0, a fixed memory-safe size will be read.
      *
-     * If {@param length} extends beyond the bytes left in the current message,
-     * the result will be a byte[] of lesser length containing the completion of the current message.
+     * A chunk carries the next bytes of as many queued messages as fit. If {@param length} extends
+     * beyond the bytes queued, the result will be a byte[] of lesser length.
+     *
+     * Each call returns the chunk following the last, until the window of unacknowledged chunks
+     * is full. Full-length chunks share storage with previously acknowledged chunks, so the
+     * returned byte[] must not be retained past the corresponding call to {@link #ackChunkDelivery()}.
      *
-     * The chunk returned will not advance until a corresponding call to {@link #ackChunkDelivery()}
+     * @return the next chunk, or null if the window is full, no data is queued, or the current
+     * message is awaiting body data.
      */
-    public byte[] getNextChunk(int length) {
-        if (lastChunk != null) return lastChunk;
+    public @Nullable byte[] getNextChunk(int length) {
+        if (getChunksInFlight() >= windowChunks) return null;
 
-        if (messages.size() == 0) return null;
-        length = Math.min(length, 500 * 1024);
-        byte[] result = messages.peek().serialize(marker, length);
+        if (!failedChunks.isEmpty()) {
+            if (ackSequence < resendSequence) return null;
 
-        if (result == null) {
-            Timber.d("Completed %s message (%d / %d bytes)", messages.peek().getType(),
-                    marker, messages.peek().getTotalLengthBytes());
-            completedMessages.add(new Pair<>(serializeCount, messages.poll()));
-            marker = 0;
-            return getNextChunk(length);
+            FailedChunk failed = failedChunks.poll();
+            beginResend(failed);
+            return failed.data;
+        }
+
+        // A retransmission is sent as it was first sent, whatever the current chunk length
+        int retained = pollRetransmission();
+        if (retained != -1) {
+            beginRetransmission(retained);
+            return Arrays.copyOf(retainedChunks[retained], retainedLengths[retained]);
+        }
+
+        if (length <= 0 || length > MAX_CHUNK_BYTES) length = MAX_CHUNK_BYTES;
+
+        int slot = slotForSequence(nextSequence);
 
-        } else {
-            marker += result.length;
-            serializeCount++;
-            //Timber.d("getNextChunk");
+        if (chunks[slot] == null || chunks[slot].length != length) {
+            chunks[slot] = new byte[length];
+            chunkBuffers[slot] = ByteBuffer.wrap(chunks[slot]);
         }
 
-        lastChunk = result;
-        return result;
+        ByteBuffer chunkBuffer = chunkBuffers[slot];
+        chunkBuffer.clear();
+        int chunkLength = getNextChunk(chunkBuffer);
+        if (chunkLength == 0) return null;
+
+        // Only a chunk draining the queue is short, so this copy is rare under sustained load
+        return chunkLength == length ? chunks[slot] : Arrays.copyOf(chunks[slot], chunkLength);
     }
 
     /**
-     * @return a Pair containing the message delivery progress and the
-     * {@link pro.dbro.airshare.session.SessionMessage} corresponding
-     * to the chunk being acknowledged. Assumes sequential delivery of chunks returned
-     * by {@link #getNextChunk(int)}
+     * Serialize up to {@link ByteBuffer#remaining()} bytes of the outgoing SessionMessage queue
+     * directly into outBuffer, which may be direct and reused for every chunk.
+     *
+     * As with {@link #getNextChunk(int)}, each call serializes the chunk following the last until
+     * the window of unacknowledged chunks is full.
+     *
+     * @return the number of bytes written, or 0 if the window is full, no data is queued, a
+     * partially filled chunk is lingering, or the current message is awaiting body data.
+     * See {@link SessionMessage#isSerializationComplete(int)}
      */
-    public @Nullable Pair<SessionMessage, Float> ackChunkDelivery() {
-        ackCount++;
-        if (VERBOSE) Timber.d("Ack");
-        SessionMessage message = null;
-        float progress = 0;
-
-        for (Pair<Integer, SessionMessage> messagePair : completedMessages) {
-            if (messagePair.first >= ackCount) {
-                message = messagePair.second;
-                progress = ((float) ackCount) / messagePair.first;
-                if (VERBOSE) Timber.d("ackChunkDelivery reporting prev msg progress %f", progress);
-                break;
+    public int getNextChunk(@NonNull ByteBuffer outBuffer) {
+        if (getChunksInFlight() >= windowChunks) return 0;
+
+        if (!failedChunks.isEmpty()) {
+            if (ackSequence < resendSequence) return 0;
+
+            FailedChunk failed = failedChunks.peek();
+            if (failed.data.length > outBuffer.remaining())
+                throw new IllegalArgumentException("Chunk must have room for the " + failed.data.length +
+                                                   " byte chunk being sent again");
+
+            failedChunks.poll();
+            outBuffer.put(failed.data);
+            beginResend(failed);
+            return failed.data.length;
+        }
+
+        int retained;
+        while ((retained = pollRetransmission()) != -1) {
+            if (retainedLengths[retained] <= outBuffer.remaining()) {
+                outBuffer.put(retainedChunks[retained], 0, retainedLengths[retained]);
+                beginRetransmission(retained);
+                return retainedLengths[retained];
             }
+            Timber.w("Chunk %d of %d bytes does not fit %d bytes. Not retransmitting",
+                     retainedSequences[retained], retainedLengths[retained], outBuffer.remaining());
+        }
+
+        switchToFramesIfPermitted();
+        if (checksums && !enveloped && (framed || streamMessages[0] == null)) enveloped = true;
+
+        int overhead = enveloped ? ENVELOPE_HEADER_BYTES + ENVELOPE_CRC_BYTES : 0;
+
+        if (framed && outBuffer.remaining() <= overhead + FRAME_HEADER_BYTES)
+            throw new IllegalArgumentException("Chunk must have room for a frame header and payload");
+
+        if (enveloped && outBuffer.remaining() <= overhead)
+            throw new IllegalArgumentException("Chunk must have room for a checksum and payload");
+
+        if (shouldLinger(outBuffer.remaining() - overhead)) return 0;
+
+        if (outBuffer.remaining() != chunkCapacity) {
+            chunkCapacity = outBuffer.remaining();
+            minAckLatencyNs = Long.MAX_VALUE;
+            acksSinceMinLatencySample = 0;
+        }
+
+        int chunkStart = outBuffer.position();
+        int limit      = outBuffer.limit();
+        int slot = slotForSequence(nextSequence);
+        chunkParts[slot] = 0;
+
+        if (enveloped) {
+            outBuffer.position(chunkStart + ENVELOPE_HEADER_BYTES);
+            outBuffer.limit(Math.min(limit - ENVELOPE_CRC_BYTES, outBuffer.position() + MAX_ENVELOPE_PAYLOAD_BYTES));
         }
+        int payloadStart = outBuffer.position();
 
-        if (message == null) {
-            message = messages.peek();
-            progress = getCurrentMessageProgress();
-            if (VERBOSE) Timber.d("ackChunkDelivery reporting current progress %f", progress);
+        // Fill the chunk with as many messages, or frames, as fit
+        while (outBuffer.hasRemaining() && chunkParts[slot] < MAX_CHUNK_MESSAGES) {
+            switchToFramesIfPermitted();
+            int written = framed ? serializeNextFrame(outBuffer) : serializeNextMessage(outBuffer);
+            if (written == 0) break;
         }
 
-        if (message == null) return null; // Acknowledgements have fallen out of sync!
+        int payloadLength = outBuffer.position() - payloadStart;
+        outBuffer.limit(limit);
+
+        if (payloadLength == 0) {
+            outBuffer.position(chunkStart);
+            return 0;
+        }
+
+        if (enveloped) sealEnvelope(outBuffer, chunkStart, payloadLength);
+
+        chunkSendTimes[slot] = System.nanoTime();
+        nextSequence++;
+        return outBuffer.position() - chunkStart;
+    }
+
+    // <editor-fold desc="Checksums">
+
+    /**
+     * Write the header and checksum of the envelope of payloadLength bytes at start, and retain
+     * a copy of it for retransmission
+     */
+    private void sealEnvelope(ByteBuffer outBuffer, int start, int payloadLength) {
+        int sequence = nextEnvelopeSequence;
+        nextEnvelopeSequence = (sequence + 1) & 0xFFFF;
+
+        outBuffer.put(start,     (byte) ENVELOPE_MARKER);
+        outBuffer.put(start + 1, (byte) sequence);
+        outBuffer.put(start + 2, (byte) (sequence >> 8));
+        outBuffer.put(start + 3, (byte) payloadLength);
+        outBuffer.put(start + 4, (byte) (payloadLength >> 8));
+
+        int checkedLength  = ENVELOPE_HEADER_BYTES + payloadLength;
+        int envelopeLength = checkedLength + ENVELOPE_CRC_BYTES;
+        int slot = sequence % RETAINED_CHUNKS;
+
+        if (retainedChunks[slot] == null || retainedChunks[slot].length < envelopeLength)
+            retainedChunks[slot] = new byte[envelopeLength];
+        byte[] retained = retainedChunks[slot];
+
+        // Copy the envelope aside and checksum the copy, which is always array-backed
+        int end = outBuffer.position();
+        outBuffer.position(start);
+        outBuffer.get(retained, 0, checkedLength);
+
+        chunkCrc.reset();
+        chunkCrc.update(retained, 0, checkedLength);
+        int crc = chunkCrc.getValue();
+        for (int i = 0; i < ENVELOPE_CRC_BYTES; i++)
+            retained[checkedLength + i] = (byte) (crc >> (8 * i));
+
+        outBuffer.position(end);
+        outBuffer.put(retained, checkedLength, ENVELOPE_CRC_BYTES);
 
-        lastChunk = null;
-        return new Pair<>(message, progress);
+        retainedLengths[slot]   = envelopeLength;
+        retainedSequences[slot] = sequence;
+    }
+
+    /**
+     * @return the slot of the next retained chunk requested again, or -1 if none
+     */
+    private int pollRetransmission() {
+        Integer sequence;
+        while ((sequence = retransmissions.poll()) != null) {
+            int slot = sequence % RETAINED_CHUNKS;
+            if (retainedSequences[slot] == sequence) return slot;
+
+            Timber.w("Chunk %d is no longer retained for retransmission", sequence);
+        }
+        return -1;
+    }
+
+    /**
+     * Record the retransmission of a retained chunk in flight. It carries no new message bytes,
+     * so its acknowledgement reports none.
+     */
+    private void beginRetransmission(int retainedSlot) {
+        Timber.d("Retransmitting chunk %d", retainedSequences[retainedSlot]);
+
+        int slot = slotForSequence(nextSequence++);
+        chunkParts[slot]     = 0;
+        chunkSendTimes[slot] = System.nanoTime();
+    }
+
+    // </editor-fold desc="Checksums">
+
+    /**
+     * Switch to frames between messages, once the recipient may be sent several at once.
+     * The recipient distinguishes a frame from a message by its first byte, so this may
+     * happen within a chunk.
+     */
+    private void switchToFramesIfPermitted() {
+        if (!framed && maxStreams > 1 && streamMessages[0] == null) framed = true;
+    }
+
+    /**
+     * Serialize the next bytes of the current message without framing
+     *
+     * @return the number of bytes written, or 0 if none are queued or the current message
+     * is awaiting body data
+     */
+    private int serializeNextMessage(ByteBuffer outBuffer) {
+        while (streamMessages[0] != null || beginStream(0, true)) {
+            int written = serializeStream(0, outBuffer);
+
+            // Move on to the next message only if this one completed without writing
+            if (written > 0 || streamMessages[0] != null) return written;
+        }
+        return 0;
+    }
+
+    /**
+     * Serialize a frame of the highest priority stream with data to send, its streams taking turns
+     *
+     * @return the number of bytes written, or 0 if there is no room for a frame or every stream
+     * is empty or awaiting body data
+     */
+    private int serializeNextFrame(ByteBuffer outBuffer) {
+        if (outBuffer.remaining() <= FRAME_HEADER_BYTES) return 0;
+
+        beginStreams();
+
+        for (int priority = 0; priority < PRIORITIES; priority++) {
+            for (int i = 0; i < MAX_STREAMS; i++) {
+                int stream = (nextStream + i) % MAX_STREAMS;
+
+                if (streamMessages[stream] == null || streamPriorities[stream] != priority)
+                    continue;
+
+                int frameLength = serializeFrame(stream, outBuffer);
+                if (frameLength > 0) {
+                    nextStream = stream + 1;
+                    return frameLength;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Hold a chunk that would be partially filled while earlier chunks are in flight,
+     * until it could be filled or the linger time has passed since it was first held
+     *
+     * @return whether no chunk should be serialized now
+     */
+    private boolean shouldLinger(int chunkCapacity) {
+        long queuedBytes;
+        if (lingerNs == 0 || getChunksInFlight() == 0 ||
+                (queuedBytes = getQueuedBytes(chunkCapacity)) == 0 || queuedBytes >= chunkCapacity) {
+
+            lingerStartNs = -1;
+            return false;
+        }
+
+        long now = System.nanoTime();
+        if (lingerStartNs == -1) lingerStartNs = now;
+
+        if (now - lingerStartNs < lingerNs) return true;
+
+        lingerStartNs = -1;
+        return false;
+    }
+
+    /**
+     * @return the serialized bytes left to send, counting no further than limit.
+     * Messages of unknown length count as limit, as they may fill any chunk.
+     */
+    private long getQueuedBytes(int limit) {
+        int frameBytes = framed ? FRAME_HEADER_BYTES : 0;
+        long bytes = 0;
+
+        for (int stream = 0; stream < MAX_STREAMS && bytes < limit; stream++) {
+            if (streamMessages[stream] == null) continue;
+
+            long totalLength = streamMessages[stream].getTotalLengthBytes();
+            if (totalLength == SessionMessage.BODY_LENGTH_UNKNOWN) return limit;
+            bytes += totalLength - streamMarkers[stream] + frameBytes;
+        }
+
+        for (int priority = 0; priority < PRIORITIES && bytes < limit; priority++) {
+            for (SessionMessage message : queues[priority]) {
+                long totalLength = message.getTotalLengthBytes();
+                if (totalLength == SessionMessage.BODY_LENGTH_UNKNOWN) return limit;
+                bytes += totalLength + frameBytes;
+                if (bytes >= limit) break;
+            }
+        }
+        return Math.min(bytes, limit);
+    }
+
+    /**
+     * Begin queued messages on free streams, highest priority first. Bulk messages may not
+     * occupy the last free stream, so other traffic can always begin.
+     */
+    private void beginStreams() {
+        int bulkStreams = 0;
+        for (int stream = 0; stream < MAX_STREAMS; stream++) {
+            if (streamMessages[stream] != null && streamPriorities[stream] == SessionMessage.Priority.BULK.ordinal())
+                bulkStreams++;
+        }
+
+        for (int stream = 0; stream < maxStreams; stream++) {
+            if (streamMessages[stream] != null) continue;
+
+            boolean allowBulk = maxStreams == 1 || bulkStreams < maxStreams - 1;
+            if (!beginStream(stream, allowBulk)) break;
+
+            if (streamPriorities[stream] == SessionMessage.Priority.BULK.ordinal()) bulkStreams++;
+        }
+    }
+
+    /**
+     * Serialize the next frame of stream into outBuffer
+     *
+     * @return the number of bytes written, or 0 if the stream has nothing to send
+     */
+    private int serializeFrame(int stream, ByteBuffer outBuffer) {
+        int frameStart = outBuffer.position();
+        int limit      = outBuffer.limit();
+
+        outBuffer.position(frameStart + FRAME_HEADER_BYTES);
+        outBuffer.limit(Math.min(limit, outBuffer.position() + MAX_FRAME_PAYLOAD_BYTES));
+        int payloadLength = serializeStream(stream, outBuffer);
+        outBuffer.limit(limit);
+
+        if (payloadLength == 0) {
+            outBuffer.position(frameStart);
+            return 0;
+        }
+
+        outBuffer.put(frameStart,     (byte) (FRAME_FLAG | stream));
+        outBuffer.put(frameStart + 1, (byte) payloadLength);
+        outBuffer.put(frameStart + 2, (byte) (payloadLength >> 8));
+        return FRAME_HEADER_BYTES + payloadLength;
+    }
+
+    /**
+     * Serialize the next bytes of stream's message into outBuffer, recording them in flight
+     *
+     * @return the number of bytes written, or 0 if the message is awaiting body data.
+     * See {@link SessionMessage#isSerializationComplete(int)}
+     */
+    private int serializeStream(int stream, ByteBuffer outBuffer) {
+        SessionMessage message = streamMessages[stream];
+        int chunkLength = message.serialize(streamMarkers[stream], outBuffer);
+
+        if (chunkLength > 0) {
+            streamMarkers[stream] += chunkLength;
+            addChunkPart(message, streamMarkers[stream]);
+        }
+
+        if (message.isSerializationComplete(streamMarkers[stream])) {
+            // Delivery of the message's chunks is tracked in flight
+            Timber.d("Completed %s message (%d / %d bytes)", message.getType(),
+                    streamMarkers[stream], message.getTotalLengthBytes());
+            streamMessages[stream] = null;
+            streamMarkers[stream] = 0;
+        }
+
+        return chunkLength;
+    }
+
+    /**
+     * Begin serializing the highest priority queued message on stream
+     *
+     * @return whether a message was begun
+     */
+    private boolean beginStream(int stream, boolean allowBulk) {
+        int priorities = allowBulk ? PRIORITIES : SessionMessage.Priority.BULK.ordinal();
+
+        SessionMessage message = null;
+        for (int priority = 0; priority < priorities && message == null; priority++) {
+            message = queues[priority].poll();
+            streamPriorities[stream] = priority;
+        }
+        if (message == null) return false;
+
+        streamMessages[stream] = message;
+        streamMarkers[stream] = 0;
+        streamBegins[stream] = messagesBegun++;
+        return true;
+    }
+
+    /**
+     * @return the stream of the message begun earliest, or -1 if none are being serialized
+     */
+    private int getCurrentStream() {
+        int current = -1;
+        for (int stream = 0; stream < MAX_STREAMS; stream++) {
+            if (streamMessages[stream] != null && (current == -1 || streamBegins[stream] < streamBegins[current]))
+                current = stream;
+        }
+        return current;
+    }
+
+    /**
+     * Acknowledge delivery of the oldest chunk in flight. Assumes sequential delivery of
+     * chunks returned by {@link #getNextChunk(int)}
+     *
+     * @return the number of {@link pro.dbro.airshare.session.SessionMessage}s the chunk being
+     * acknowledged carried bytes of, or 0 if it is a retransmission or no chunk is in flight. Each is available from
+     * {@link #getAckedMessage(int)} with its delivery progress from {@link #getAckedProgress(int)},
+     * until the next acknowledgement.
+     */
+    public int ackChunkDelivery() {
+        if (VERBOSE) Timber.d("Ack");
+
+        Arrays.fill(ackedMessages, 0, ackedMessageCount, null);
+        ackedMessageCount = 0;
+
+        if (ackSequence == nextSequence) {
+            Timber.w("No chunk in flight to acknowledge");
+            return 0;
+        }
+
+        int slot = slotForSequence(ackSequence++);
+
+        adaptWindow(System.nanoTime() - chunkSendTimes[slot]);
+
+        int base = slot * MAX_CHUNK_MESSAGES;
+        for (int part = 0; part < chunkParts[slot]; part++) {
+            SessionMessage message = partMessages[base + part];
+            int partEnd = partEnds[base + part];
+
+            // Release the message once its final chunk is acknowledged
+            partMessages[base + part] = null;
+
+            message.onSerializedBytesDelivered(partEnd);
+
+            long totalLength = message.getTotalLengthBytes();
+            float progress;
+            if (message.isSerializationComplete(partEnd))
+                progress = 1;
+            else if (totalLength == SessionMessage.BODY_LENGTH_UNKNOWN)
+                progress = 0;
+            else
+                progress = ((float) partEnd) / totalLength;
+
+            ackedMessages[part] = message;
+            ackedProgress[part] = progress;
+        }
+        ackedMessageCount = chunkParts[slot];
+
+        if (VERBOSE) Timber.d("ackChunkDelivery reporting %d messages. Window %d", ackedMessageCount, windowChunks);
+        return ackedMessageCount;
+    }
+
+    /**
+     * Report that the oldest chunk in flight was not delivered, e.g: its transport failed to send it.
+     * Assumes, as {@link #ackChunkDelivery()}, sequential reports of chunks returned by {@link #getNextChunk(int)}.
+     *
+     * The chunk is sent again ahead of any new chunk, once each chunk in flight when it failed
+     * is also reported, so failed chunks are sent again in their original order.
+     *
+     * @param chunk the chunk as returned by {@link #getNextChunk(int)}, which is copied
+     */
+    public void nackChunkDelivery(@NonNull byte[] chunk) {
+        if (ackSequence == nextSequence) {
+            Timber.w("No chunk in flight to report undelivered");
+            return;
+        }
+
+        int slot  = slotForSequence(ackSequence++);
+        int base  = slot * MAX_CHUNK_MESSAGES;
+        int parts = chunkParts[slot];
+
+        failedChunks.offer(new FailedChunk(Arrays.copyOf(chunk, chunk.length),
+                                           Arrays.copyOfRange(partMessages, base, base + parts),
+                                           Arrays.copyOfRange(partEnds, base, base + parts)));
+        Arrays.fill(partMessages, base, base + parts, null);
+        resendSequence = nextSequence;
+
+        Timber.d("Chunk of %d bytes undelivered. %d chunks to send again", chunk.length, failedChunks.size());
+    }
+
+    /**
+     * Record a failed chunk in flight again, carrying the message parts it first carried
+     */
+    private void beginResend(FailedChunk failed) {
+        int slot = slotForSequence(nextSequence++);
+        int base = slot * MAX_CHUNK_MESSAGES;
+
+        System.arraycopy(failed.messages, 0, partMessages, base, failed.messages.length);
+        System.arraycopy(failed.partEnds, 0, partEnds, base, failed.partEnds.length);
+        chunkParts[slot]     = failed.messages.length;
+        chunkSendTimes[slot] = System.nanoTime();
+    }
+
+    /**
+     * @return a message carried by the chunk last acknowledged, in the order serialized.
+     * index must be less than the count returned by {@link #ackChunkDelivery()}
+     */
+    public @NonNull SessionMessage getAckedMessage(int index) {
+        if (index < 0 || index >= ackedMessageCount)
+            throw new IndexOutOfBoundsException("No acknowledged message at " + index);
+
+        return ackedMessages[index];
+    }
+
+    /**
+     * @return the delivery progress, between 0 and 1, of {@link #getAckedMessage(int)}.
+     * Messages of unknown length report 0 until complete.
+     */
+    public float getAckedProgress(int index) {
+        if (index < 0 || index >= ackedMessageCount)
+            throw new IndexOutOfBoundsException("No acknowledged message at " + index);
+
+        return ackedProgress[index];
+    }
+
+    /**
+     * Record that the chunk being serialized carries bytes of message up to partEnd.
+     * Successive frames of one message within a chunk share a part.
+     */
+    private void addChunkPart(SessionMessage message, int partEnd) {
+        int slot = slotForSequence(nextSequence);
+        int base = slot * MAX_CHUNK_MESSAGES;
+        int parts = chunkParts[slot];
+
+        if (parts > 0 && partMessages[base + parts - 1] == message) {
+            partEnds[base + parts - 1] = partEnd;
+            return;
+        }
+
+        partMessages[base + parts] = message;
+        partEnds[base + parts]     = partEnd;
+        chunkParts[slot] = parts + 1;
+    }
+
+    private static int slotForSequence(long sequence) {
+        return (int) (sequence % MAX_WINDOW_CHUNKS);
+    }
+
+    /**
+     * Grow the window by one chunk per window of acks whose latency is near the minimum
+     * observed, indicating chunks are not queuing ahead of the link. Shrink it by one chunk
+     * per window of acks when latency rises well above the minimum.
+     */
+    private void adaptWindow(long ackLatencyNs) {
+        if (!adaptiveWindow) return;
+
+        if (ackLatencyNs < minAckLatencyNs || ++acksSinceMinLatencySample >= MIN_LATENCY_SAMPLE_ACKS) {
+            minAckLatencyNs = ackLatencyNs;
+            acksSinceMinLatencySample = 0;
+        }
+
+        if (++acksSinceWindowChange < windowChunks) return;
+
+        if (ackLatencyNs <= minAckLatencyNs * GROW_LATENCY_FACTOR + LATENCY_TOLERANCE_NS) {
+            if (windowChunks < maxWindowChunks) {
+                windowChunks++;
+                acksSinceWindowChange = 0;
+            }
+        } else if (ackLatencyNs > minAckLatencyNs * SHRINK_LATENCY_FACTOR + LATENCY_TOLERANCE_NS) {
+            if (windowChunks > 1) {
+                windowChunks--;
+                acksSinceWindowChange = 0;
+            }
+        }
     }
 
 }
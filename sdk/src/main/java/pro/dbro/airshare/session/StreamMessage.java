@@ -0,0 +1,280 @@
+package pro.dbro.airshare.session;
+
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A message carrying a live stream of unknown length, such as sensor readings or audio.
+ *
+ * The body is pulled from a {@link BodyProducer} as the message is serialized and framed
+ * as a sequence of segments ended by a marker:
+ *
+ * byte idx | description
+ * ---------|------------
+ * [0-1]    | Segment length as little endian uint16. 0 marks the end of the stream
+ * [2-5]    | Segment timestamp as little endian uint32. Milliseconds since the first segment
+ * [6-X]    | Segment payload. 'X' is value specified by Segment length
+ *
+ * Its 'body-length' header is {@link SessionMessage#BODY_LENGTH_UNKNOWN}.
+ *
+ * On receipt, segments are handed to a {@link pro.dbro.airshare.session.StreamPlayoutBuffer}
+ * as they arrive. Attach a listener via {@link #getPlayoutBuffer()}.
+ *
+ * An outgoing StreamMessage may be sent to a single recipient.
+ */
+public class StreamMessage extends SessionMessage {
+
+    public static final String HEADER_TYPE = "stream";
+
+    public static final String HEADER_EXTRA = DataTransferMessage.HEADER_EXTRA;
+
+    /** Segment framing */
+    public static final int SEGMENT_LENGTH_BYTES    = 2;
+    public static final int SEGMENT_TIMESTAMP_BYTES = 4;
+    public static final int SEGMENT_HEADER_BYTES    = SEGMENT_LENGTH_BYTES + SEGMENT_TIMESTAMP_BYTES;
+    public static final int MAX_SEGMENT_BYTES       = 0xFFFF;
+
+    /** Most bytes requested of a {@link BodyProducer} per segment. Bounds latency and buffering */
+    private static final int PRODUCE_SEGMENT_BYTES  = 8 * 1024;
+
+    public interface BodyProducer {
+
+        /**
+         * Write up to {@link ByteBuffer#remaining()} bytes of the stream into out.
+         * Each call's output is sent as one segment.
+         *
+         * Called on the thread serializing the message, so must not block.
+         *
+         * @return the number of bytes written, 0 if none are available now, or -1 if the
+         * stream has ended. After returning 0, call {@link #notifyDataAvailable()} when more
+         * data is available.
+         */
+        int produce(@NonNull ByteBuffer out);
+
+    }
+
+    /**
+     * Notified when an outgoing stream with no data to send has more available
+     */
+    public interface DataAvailableListener {
+
+        void onDataAvailable(@NonNull StreamMessage message);
+
+    }
+
+    private Map<String, Object> extraHeaders;
+
+    // Outgoing state
+    private BodyProducer          producer;
+    private DataAvailableListener dataAvailableListener;
+
+    /** Framed body bytes produced but not yet delivered. Holds body bytes beginning at {@link #pendingStart} */
+    private ByteBuffer pending;
+    private int        pendingStart;
+    private long       startTimeMs = -1;
+    private boolean    endWritten;
+
+    // Incoming state
+    private StreamPlayoutBuffer playoutBuffer;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    StreamMessage(@NonNull Map<String, Object> headers) {
+        super((String) headers.get(SessionMessage.HEADER_ID));
+        init();
+        this.headers = headers;
+        status = Status.HEADER_ONLY;
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    public static StreamMessage createOutgoing(@Nullable Map<String, Object> extraHeaders,
+                                               @NonNull BodyProducer producer) {
+
+        return new StreamMessage(producer, extraHeaders);
+    }
+
+    private StreamMessage(@NonNull BodyProducer producer,
+                          @Nullable Map<String, Object> extraHeaders) {
+        super();
+        this.extraHeaders = extraHeaders;
+        this.producer = producer;
+        init();
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    private void init() {
+        type = HEADER_TYPE;
+        bodyLengthBytes = BODY_LENGTH_UNKNOWN;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+        if (extraHeaders != null)
+            headerMap.put(HEADER_EXTRA, extraHeaders);
+
+        return headerMap;
+    }
+
+    @Override
+    public @Nullable byte[] getBodyAtOffset(int offset, int length) {
+        // The body is not retained beyond delivery
+        return null;
+    }
+
+    // <editor-fold desc="Outgoing">
+
+    public void setDataAvailableListener(@Nullable DataAvailableListener listener) {
+        dataAvailableListener = listener;
+    }
+
+    /**
+     * Resume sending a stream whose {@link BodyProducer} previously had no data available
+     */
+    public void notifyDataAvailable() {
+        DataAvailableListener listener = dataAvailableListener;
+        if (listener != null)
+            listener.onDataAvailable(this);
+    }
+
+    @Override
+    protected synchronized int getBodyBytesAvailable(int bodyOffset) {
+        while (bodyOffset >= getProducedEnd() && !endWritten) {
+            if (!produceSegment()) break;
+        }
+
+        return getProducedEnd() - bodyOffset;
+    }
+
+    @Override
+    protected synchronized void writeBodyAtOffset(int offset, @NonNull ByteBuffer outBuffer, int length) {
+        int pendingIdx = offset - pendingStart;
+        outBuffer.put(pending.array(), pending.arrayOffset() + pendingIdx, length);
+    }
+
+    @Override
+    public synchronized boolean isSerializationComplete(int offset) {
+        int bodyStart = HEADER_VERSION_BYTES + HEADER_LENGTH_BYTES + getHeaderLengthBytes();
+        return endWritten && offset - bodyStart >= getProducedEnd();
+    }
+
+    @Override
+    protected synchronized void onSerializedBytesDelivered(int offset) {
+        if (pending == null) return;
+
+        int bodyOffset = offset - (HEADER_VERSION_BYTES + HEADER_LENGTH_BYTES + getHeaderLengthBytes());
+        int releasable = Math.min(bodyOffset - pendingStart, pending.position());
+        if (releasable <= 0) return;
+
+        pending.flip();
+        pending.position(releasable);
+        pending.compact();
+        pendingStart += releasable;
+    }
+
+    private int getProducedEnd() {
+        return pendingStart + (pending == null ? 0 : pending.position());
+    }
+
+    /**
+     * Pull one segment from {@link #producer} into {@link #pending}, or the end of stream
+     * marker if the producer has ended.
+     *
+     * @return whether any bytes were produced
+     */
+    private boolean produceSegment() {
+        ensurePendingCapacity(SEGMENT_HEADER_BYTES + PRODUCE_SEGMENT_BYTES);
+
+        int segmentStart = pending.position();
+        pending.position(segmentStart + SEGMENT_HEADER_BYTES);
+        pending.limit(pending.position() + PRODUCE_SEGMENT_BYTES);
+
+        int produced = producer.produce(pending);
+
+        pending.limit(pending.capacity());
+
+        if (produced > 0) {
+            long now = SystemClock.elapsedRealtime();
+            if (startTimeMs == -1) startTimeMs = now;
+
+            putUint(pending, segmentStart, produced, SEGMENT_LENGTH_BYTES);
+            putUint(pending, segmentStart + SEGMENT_LENGTH_BYTES, now - startTimeMs, SEGMENT_TIMESTAMP_BYTES);
+            pending.position(segmentStart + SEGMENT_HEADER_BYTES + produced);
+            return true;
+        }
+
+        pending.position(segmentStart);
+
+        if (produced < 0) {
+            // End of stream marker
+            putUint(pending, segmentStart, 0, SEGMENT_LENGTH_BYTES);
+            pending.position(segmentStart + SEGMENT_LENGTH_BYTES);
+            endWritten = true;
+            producer = null;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void ensurePendingCapacity(int bytes) {
+        if (pending == null) {
+            pending = ByteBuffer.allocate(2 * bytes);
+        } else if (pending.remaining() < bytes) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.position() + 2 * bytes);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+    }
+
+    private static void putUint(ByteBuffer buffer, int index, long value, int bytes) {
+        for (int i = 0; i < bytes; i++)
+            buffer.put(index + i, (byte) (value >> (8 * i)));
+    }
+
+    // </editor-fold desc="Outgoing">
+
+    // <editor-fold desc="Incoming">
+
+    /**
+     * Configure the buffer segments of this incoming stream are released through.
+     * Must be called before the first segment arrives, e.g: on header receipt,
+     * else a buffer without playout delay is used.
+     */
+    public synchronized StreamPlayoutBuffer setPlayoutBuffer(int capacity, long playoutDelayMs) {
+        if (playoutBuffer == null)
+            playoutBuffer = new StreamPlayoutBuffer(this, capacity, playoutDelayMs);
+
+        return playoutBuffer;
+    }
+
+    /**
+     * @return the buffer segments of this incoming stream are released through
+     */
+    public synchronized StreamPlayoutBuffer getPlayoutBuffer() {
+        return setPlayoutBuffer(StreamPlayoutBuffer.DEFAULT_CAPACITY, 0);
+    }
+
+    void onSegmentReceived(@NonNull byte[] segment, long timestampMs) {
+        getPlayoutBuffer().offer(segment, timestampMs);
+    }
+
+    void onStreamEnded() {
+        status = Status.COMPLETE;
+        getPlayoutBuffer().end();
+    }
+
+    // </editor-fold desc="Incoming">
+}
@@ -0,0 +1,171 @@
+package pro.dbro.airshare.session;
+
+import android.os.SystemClock;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded jitter buffer releasing the segments of an incoming
+ * {@link pro.dbro.airshare.session.StreamMessage} on the schedule they were produced.
+ *
+ * Each segment is due {@link #playoutDelayMs} after the arrival of the first segment, offset
+ * by the difference of their sender timestamps. A segment arriving after it was due is
+ * dropped, as is the oldest held segment when {@link #capacity} is reached.
+ *
+ * With a playout delay of zero, segments are released immediately as they arrive and
+ * are never dropped for lateness.
+ */
+public class StreamPlayoutBuffer {
+
+    public interface Listener {
+
+        /**
+         * Called in order for each segment not dropped
+         *
+         * @param timestampMs milliseconds since the sender produced the stream's first segment
+         */
+        void onSegment(@NonNull StreamMessage message, @NonNull byte[] segment, long timestampMs);
+
+        /**
+         * Called after the final segment is released
+         */
+        void onStreamEnd(@NonNull StreamMessage message, int droppedSegmentCount);
+
+    }
+
+    /** Default number of segments held awaiting playout */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** Delayed segments of all StreamPlayoutBuffers are released on this thread */
+    private static final ScheduledExecutorService playoutExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "AirShare-Playout");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static class Segment {
+        final byte[] data;
+        final long   timestampMs;
+        final long   dueTimeMs;
+
+        Segment(byte[] data, long timestampMs, long dueTimeMs) {
+            this.data        = data;
+            this.timestampMs = timestampMs;
+            this.dueTimeMs   = dueTimeMs;
+        }
+    }
+
+    private final StreamMessage       message;
+    private final int                 capacity;
+    private final long                playoutDelayMs;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Runnable            releaseTask = new Runnable() {
+        @Override
+        public void run() {
+            release();
+        }
+    };
+
+    private @Nullable Listener listener;
+
+    /** Local arrival time and sender timestamp of the first segment */
+    private long baseTimeMs = -1;
+    private long baseTimestampMs;
+
+    private int     droppedSegmentCount;
+    private boolean ended;
+    private boolean endReported;
+
+    public StreamPlayoutBuffer(@NonNull StreamMessage message, int capacity, long playoutDelayMs) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        this.message        = message;
+        this.capacity       = capacity;
+        this.playoutDelayMs = Math.max(0, playoutDelayMs);
+    }
+
+    /**
+     * Set the listener segments are released to. Segments arriving before a listener is set
+     * are held subject to {@link #capacity} and released once due.
+     */
+    public synchronized void setListener(@Nullable Listener listener) {
+        this.listener = listener;
+        release();
+    }
+
+    public synchronized int getDroppedSegmentCount() {
+        return droppedSegmentCount;
+    }
+
+    /**
+     * Add a segment received with the given sender timestamp
+     */
+    public synchronized void offer(@NonNull byte[] segment, long timestampMs) {
+        long now = SystemClock.elapsedRealtime();
+
+        if (baseTimeMs == -1) {
+            baseTimeMs      = now;
+            baseTimestampMs = timestampMs;
+        }
+
+        long dueTimeMs = baseTimeMs + (timestampMs - baseTimestampMs) + playoutDelayMs;
+
+        if (playoutDelayMs > 0 && now > dueTimeMs) {
+            droppedSegmentCount++;
+            return;
+        }
+
+        if (segments.size() == capacity) {
+            segments.poll();
+            droppedSegmentCount++;
+        }
+
+        segments.offer(new Segment(segment, timestampMs, dueTimeMs));
+
+        if (playoutDelayMs == 0 || dueTimeMs <= now)
+            release();
+        else
+            playoutExecutor.schedule(releaseTask, dueTimeMs - now, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Mark the stream ended. The listener is notified once all held segments are released
+     */
+    public synchronized void end() {
+        ended = true;
+        release();
+    }
+
+    /**
+     * Deliver every held segment that is due
+     */
+    private synchronized void release() {
+        if (listener == null) return;
+
+        long now = SystemClock.elapsedRealtime();
+        Segment segment;
+
+        while ((segment = segments.peek()) != null &&
+               (playoutDelayMs == 0 || segment.dueTimeMs <= now)) {
+
+            segments.poll();
+            listener.onSegment(message, segment.data, segment.timestampMs);
+        }
+
+        // Any segments still held have a release scheduled for when they are due
+        if (ended && !endReported && segments.isEmpty()) {
+            endReported = true;
+            listener.onStreamEnd(message, droppedSegmentCount);
+        }
+    }
+}
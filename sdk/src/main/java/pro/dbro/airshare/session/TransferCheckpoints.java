@@ -0,0 +1,185 @@
+package pro.dbro.airshare.session;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Persistent record of incoming disk-backed {@link pro.dbro.airshare.session.DataTransferMessage}
+ * bodies not yet complete, so that a transfer interrupted by a disconnect or a restart of either
+ * peer may resume from the bytes already on disk.
+ *
+ * A body file is written sequentially, so its length is the offset from which its transfer may
+ * resume, however abruptly writing stopped. Checkpoints are identified by transfer id and
+ * validated by body length, as peers take on a new identity each time they start.
+ */
+public class TransferCheckpoints {
+
+    private static final String FILE_NAME = "airshare-checkpoints.json";
+
+    /** Partial bodies not resumed within this long are deleted */
+    private static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static final String KEY_BODY_LENGTH = "body-length";
+    private static final String KEY_BODY_FILE   = "body-file";
+    private static final String KEY_UPDATED     = "updated";
+
+    private static class Checkpoint {
+        final int  bodyLength;
+        final File bodyFile;
+        final long updatedMs;
+
+        Checkpoint(int bodyLength, File bodyFile, long updatedMs) {
+            this.bodyLength = bodyLength;
+            this.bodyFile   = bodyFile;
+            this.updatedMs  = updatedMs;
+        }
+    }
+
+    private final File                        file;
+    private final HashMap<String, Checkpoint> checkpoints = new HashMap<>();
+
+    public TransferCheckpoints(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+        load();
+    }
+
+    /**
+     * @return the partial body file of the given transfer, or null if none is checkpointed
+     */
+    public synchronized @Nullable File getBodyFile(@NonNull String transferId, int bodyLength) {
+        Checkpoint checkpoint = checkpoints.get(transferId);
+        if (checkpoint == null || checkpoint.bodyLength != bodyLength) return null;
+
+        return checkpoint.bodyFile;
+    }
+
+    /**
+     * @return the number of body bytes held for the given transfer, from which it may resume
+     */
+    public synchronized int getResumeOffset(@NonNull String transferId, int bodyLength) {
+        File bodyFile = getBodyFile(transferId, bodyLength);
+        if (bodyFile == null) return 0;
+
+        return (int) Math.min(bodyFile.length(), bodyLength);
+    }
+
+    /**
+     * Record that the body of the given transfer is being written to bodyFile, replacing and
+     * deleting any other partial body of the transfer.
+     */
+    public synchronized void put(@NonNull String transferId, int bodyLength, @NonNull File bodyFile) {
+        Checkpoint replaced = checkpoints.put(transferId, new Checkpoint(bodyLength, bodyFile, System.currentTimeMillis()));
+
+        if (replaced != null && !replaced.bodyFile.equals(bodyFile))
+            deleteBodyFile(replaced.bodyFile);
+
+        save();
+    }
+
+    /**
+     * Forget the given transfer, once its body is complete. The body file is kept.
+     */
+    public synchronized void remove(@NonNull String transferId) {
+        if (checkpoints.remove(transferId) != null) save();
+    }
+
+    // <editor-fold desc="Persistence">
+
+    private void load() {
+        if (!file.exists()) return;
+
+        boolean expired = false;
+        long now = System.currentTimeMillis();
+
+        try {
+            JSONObject json = new JSONObject(readFile());
+            Iterator keys = json.keys();
+            while (keys.hasNext()) {
+                String transferId = (String) keys.next();
+                JSONObject entry = (JSONObject) json.get(transferId);
+
+                Checkpoint checkpoint = new Checkpoint(((Number) entry.get(KEY_BODY_LENGTH)).intValue(),
+                                                       new File((String) entry.get(KEY_BODY_FILE)),
+                                                       ((Number) entry.get(KEY_UPDATED)).longValue());
+
+                if (now - checkpoint.updatedMs > MAX_AGE_MS || !checkpoint.bodyFile.exists()) {
+                    deleteBodyFile(checkpoint.bodyFile);
+                    expired = true;
+                } else
+                    checkpoints.put(transferId, checkpoint);
+            }
+        } catch (IOException | JSONException | ClassCastException e) {
+            Timber.e(e, "Failed to load transfer checkpoints. Partial transfers will restart");
+            expired = true;
+        }
+
+        if (expired) save();
+    }
+
+    private void save() {
+        HashMap<String, Object> json = new HashMap<>();
+        for (Map.Entry<String, Checkpoint> checkpoint : checkpoints.entrySet()) {
+            HashMap<String, Object> entry = new HashMap<>();
+            entry.put(KEY_BODY_LENGTH, checkpoint.getValue().bodyLength);
+            entry.put(KEY_BODY_FILE,   checkpoint.getValue().bodyFile.getAbsolutePath());
+            entry.put(KEY_UPDATED,     checkpoint.getValue().updatedMs);
+            json.put(checkpoint.getKey(), entry);
+        }
+
+        // Written aside and renamed, so a crash mid-write leaves the previous record intact
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(new JSONObject(json).toString().getBytes("UTF-8"));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Timber.e(e, "Failed to save transfer checkpoints");
+            return;
+        }
+
+        if (!tempFile.renameTo(file))
+            Timber.e("Failed to save transfer checkpoints to %s", file.getAbsolutePath());
+    }
+
+    private String readFile() throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count == -1) break;
+                read += count;
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void deleteBodyFile(File bodyFile) {
+        if (bodyFile.exists() && !bodyFile.delete())
+            Timber.w("Failed to delete partial body file %s", bodyFile.getAbsolutePath());
+    }
+
+    // </editor-fold desc="Persistence">
+}
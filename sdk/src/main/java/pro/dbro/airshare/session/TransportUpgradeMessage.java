@@ -16,7 +16,11 @@ public class TransportUpgradeMessage extends SessionMessage {
 
     public static final String HEADER_TRANSPORT_CODE = "transport-code";
 
+    /** Transport-specific channel the sender accepts connections on, e.g: an L2CAP PSM. Optional */
+    public static final String HEADER_CHANNEL = "channel";
+
     private int transportCode;
+    private int channel;
 
     // <editor-fold desc="Incoming Constructors">
 
@@ -25,6 +29,7 @@ public class TransportUpgradeMessage extends SessionMessage {
         super((String) headers.get(SessionMessage.HEADER_ID));
         init();
         this.transportCode = (int) headers.get(HEADER_TRANSPORT_CODE);
+        this.channel       = headers.containsKey(HEADER_CHANNEL) ? (int) headers.get(HEADER_CHANNEL) : -1;
         this.headers       = headers;
         bodyLengthBytes    = (int) headers.get(HEADER_BODY_LENGTH);
         status             = Status.COMPLETE;
@@ -38,18 +43,38 @@ public class TransportUpgradeMessage extends SessionMessage {
     // <editor-fold desc="Outgoing Constructors">
 
     public TransportUpgradeMessage(int transportCode) {
+        this(transportCode, -1);
+    }
+
+    /**
+     * @param channel the channel the sender accepts connections of transportCode on
+     */
+    public TransportUpgradeMessage(int transportCode, int channel) {
         super();
         init();
         this.transportCode = transportCode;
+        this.channel       = channel;
         serializeAndCacheHeaders();
     }
 
     // </editor-fold desc="Outgoing Constructors">
 
+    @Override
+    protected @NonNull Priority getDefaultPriority() {
+        return Priority.CONTROL;
+    }
+
     public int getTransportCode() {
         return transportCode;
     }
 
+    /**
+     * @return the channel the sender accepts connections on, or -1 if not given
+     */
+    public int getChannel() {
+        return channel;
+    }
+
     private void init() {
         type = HEADER_TYPE;
     }
@@ -59,6 +84,7 @@ public class TransportUpgradeMessage extends SessionMessage {
         HashMap<String, Object> headerMap = super.populateHeaders();
 
         headerMap.put(HEADER_TRANSPORT_CODE, transportCode);
+        if (channel != -1) headerMap.put(HEADER_CHANNEL, channel);
 
         return headerMap;
     }
@@ -0,0 +1,192 @@
+package pro.dbro.airshare.session;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * A message carrying a value of an app-defined type, sent as the compact binary body produced by
+ * the {@link BodyCodec} registered for the type with {@link SessionMessageRegistry}.
+ *
+ * Both peers must register the same codec under the same type id. A received message of a type
+ * id not registered locally is discarded.
+ */
+public class TypedMessage<T> extends SessionMessage {
+
+    public static final String HEADER_TYPE = "typed";
+
+    /** Id under which the body's type is registered. See {@link SessionMessageRegistry} */
+    public static final String HEADER_TYPE_ID = "type-id";
+
+    public interface BodyCodec<T> {
+
+        /**
+         * @return the binary encoding of value
+         */
+        @NonNull byte[] encode(@NonNull T value);
+
+        /**
+         * @return the value encoded as length bytes of body beginning at offset
+         * @throws IllegalArgumentException if the bytes are not a valid encoding
+         */
+        @NonNull T decode(@NonNull byte[] body, int offset, int length);
+
+    }
+
+    private final SessionMessageRegistry.Registration<T> registration;
+    private byte[] body;
+    /** Body received to disk, read when the value is first decoded */
+    private File   bodyFile;
+    private T      value;
+
+    // <editor-fold desc="Incoming Constructors">
+
+    TypedMessage(@NonNull Map<String, Object> headers,
+                 @NonNull SessionMessageRegistry.Registration<T> registration) {
+
+        super((String) headers.get(SessionMessage.HEADER_ID));
+        init();
+        this.registration = registration;
+        this.headers      = headers;
+        bodyLengthBytes   = (int) headers.get(HEADER_BODY_LENGTH);
+        status            = bodyLengthBytes == 0 ? Status.COMPLETE : Status.HEADER_ONLY;
+        body              = bodyLengthBytes == 0 ? new byte[0] : null;
+
+        serializeAndCacheHeaders();
+
+    }
+
+    // </editor-fold desc="Incoming Constructors">
+
+    // <editor-fold desc="Outgoing Constructors">
+
+    /**
+     * Create a message carrying value, whose class must be registered with
+     * {@link SessionMessageRegistry#register(int, Class, BodyCodec)}
+     */
+    public static <T> TypedMessage<T> createOutgoing(@NonNull T value) {
+        @SuppressWarnings("unchecked")
+        SessionMessageRegistry.Registration<T> registration =
+                SessionMessageRegistry.getRegistration((Class<T>) value.getClass());
+
+        if (registration == null)
+            throw new IllegalArgumentException("No codec registered for " + value.getClass().getName());
+
+        return new TypedMessage<>(registration, value);
+    }
+
+    private TypedMessage(@NonNull SessionMessageRegistry.Registration<T> registration,
+                         @NonNull T value) {
+        super();
+        init();
+        this.registration = registration;
+        this.value        = value;
+        body              = registration.codec.encode(value);
+        bodyLengthBytes   = body.length;
+        serializeAndCacheHeaders();
+    }
+
+    // </editor-fold desc="Outgoing Constructors">
+
+    private void init() {
+        type = HEADER_TYPE;
+    }
+
+    /**
+     * @return the id under which this message's type is registered
+     */
+    public int getTypeId() {
+        return registration.typeId;
+    }
+
+    /**
+     * @return the value carried by this message, decoded on first call. null if the body
+     * has not yet been received.
+     * @throws IllegalStateException if a body received to disk can no longer be read
+     */
+    public @Nullable T getValue() {
+        if (value == null && body == null && bodyFile != null)
+            body = readBodyFile();
+
+        if (value == null && body != null)
+            value = registration.codec.decode(body, 0, body.length);
+
+        return value;
+    }
+
+    void setBody(@NonNull byte[] body) {
+        this.body = body;
+        status    = Status.COMPLETE;
+    }
+
+    /**
+     * Set a body received to disk, e.g: when the receiving device was short of memory
+     */
+    void setBody(@NonNull File bodyFile) {
+        this.bodyFile = bodyFile;
+        status        = Status.COMPLETE;
+    }
+
+    private byte[] readBodyFile() {
+        byte[] bytes = new byte[bodyLengthBytes];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(bodyFile);
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) throw new IOException("Body file ended after " + read + " bytes");
+                read += count;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read body of " + id, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Already read
+                }
+            }
+        }
+
+        // Held in memory from now on
+        if (!bodyFile.delete())
+            Timber.w("Failed to delete body file %s", bodyFile.getAbsolutePath());
+        bodyFile = null;
+        return bytes;
+    }
+
+    @Override
+    protected HashMap<String, Object> populateHeaders() {
+        HashMap<String, Object> headerMap = super.populateHeaders();
+
+        headerMap.put(HEADER_TYPE_ID, registration.typeId);
+
+        return headerMap;
+    }
+
+    @Nullable
+    @Override
+    public byte[] getBodyAtOffset(int offset, int length) {
+        if (body == null && bodyFile != null) body = readBodyFile();
+        if (body == null || offset >= body.length) return null;
+
+        return Arrays.copyOfRange(body, offset, Math.min(body.length, offset + length));
+    }
+
+    @Override
+    protected void writeBodyAtOffset(int offset, @NonNull ByteBuffer outBuffer, int length) {
+        if (body == null && bodyFile != null) body = readBodyFile();
+        outBuffer.put(body, offset, length);
+    }
+}
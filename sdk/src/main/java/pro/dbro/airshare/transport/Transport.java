@@ -27,6 +27,11 @@ public abstract class Transport implements Comparable<Transport> {
                                                byte[] data,
                                                String identifier);
 
+        /**
+         * Report a chunk passed to {@link #sendData(byte[], String)} sent, in the order sent.
+         * A non-null exception reports the chunk was not delivered, after which every chunk queued
+         * behind it is also reported undelivered, so that they may be sent again in order.
+         */
         public void dataSentToIdentifier(Transport transport,
                                          byte[] data,
                                          String identifier,
@@ -40,6 +45,28 @@ public abstract class Transport implements Comparable<Transport> {
 
     }
 
+    /**
+     * An optional extension of {@link TransportCallback} for callbacks that learn of changes
+     * a transport makes to a connection's link, e.g: to correlate them with throughput
+     */
+    public static interface LinkCallback extends TransportCallback {
+
+        /**
+         * @param linkInfo transport-specific description of the change.
+         *                 See {@link pro.dbro.airshare.transport.ble.BLETransport#LINK_PRIORITY}
+         */
+        public void linkUpdated(Transport transport,
+                                String identifier,
+                                Map<String, Object> linkInfo);
+
+    }
+
+    /**
+     * Smallest chunk size a transport over a reliable byte stream, e.g: a socket, adapts to.
+     * See {@link #getMinChunkBytesForIdentifier(String)}
+     */
+    public static final int MIN_STREAM_CHUNK_BYTES = 512;
+
     protected String serviceName;
     protected WeakReference<TransportCallback> callback;
 
@@ -81,6 +108,31 @@ public abstract class Transport implements Comparable<Transport> {
      */
     public abstract int getMtuForIdentifier(String identifier);
 
+    /**
+     * @return the chunk size, in bytes, sending to identifier begins at before adapting to
+     * the link. Defaults to {@link #getMtuForIdentifier(String)}
+     */
+    public int getInitialChunkBytesForIdentifier(String identifier) {
+        return getMtuForIdentifier(identifier);
+    }
+
+    /**
+     * @return the smallest chunk size, in bytes, sending to identifier may adapt to.
+     * Defaults to {@link #getInitialChunkBytesForIdentifier(String)}, so chunks never shrink
+     */
+    public int getMinChunkBytesForIdentifier(String identifier) {
+        return getInitialChunkBytesForIdentifier(identifier);
+    }
+
+    /**
+     * Report the bytes waiting to be sent to identifier beyond those already passed to
+     * {@link #sendData(byte[], String)}, so the transport may adapt the link to the load.
+     * Ignored by default.
+     */
+    public void setBacklogForIdentifier(String identifier, long backlogBytes) {
+        // No link to adapt
+    }
+
     @Override
     public int compareTo (@NonNull Transport another) {
         return getMtuForIdentifier("") - another.getMtuForIdentifier("");
@@ -2,6 +2,7 @@ package pro.dbro.airshare.transport.ble;
 
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
@@ -25,6 +26,7 @@ import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
 import java.net.UnknownServiceException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -45,9 +47,10 @@ import timber.log.Timber;
  * A basic BLE Central device that discovers peripherals.
  *
  * Upon connection to a Peripheral this device performs a few initialization steps in order:
- * 1. Requests an MTU
+ * 1. Requests the largest MTU, {@link BLETransport#MAX_MTU_BYTES}
  * 2. (On response to the MTU request) discovers services
- * 3. (On response to service discovery) reports connection
+ * 3. (On response to service discovery) subscribes to each requested characteristic in turn
+ * 4. (On response to the last subscription) reports connection
  *
  * Created by davidbrodsky on 10/2/14.
  */
@@ -60,6 +63,18 @@ public class BLECentral {
 
     private final Set<UUID> notifyUUIDs = new HashSet<>();
 
+    /** Subset of notifyUUIDs subscribed only on peripherals offering none of the others */
+    private final Set<UUID> fallbackNotifyUUIDs = new HashSet<>();
+
+    /**
+     * Peripheral MAC Address -> Characteristics awaiting subscription.
+     * Subscriptions are made one at a time as GATT permits one operation at a time
+     */
+    private final ConcurrentHashMap<String, ArrayDeque<BluetoothGattCharacteristic>> pendingSubscriptions = new ConcurrentHashMap<>();
+
+    /** Peripherals with at least one successful subscription */
+    private final Set<String> subscribedDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /** Peripheral MAC Address -> Set of characteristics */
     private final HashMap<String, HashSet<BluetoothGattCharacteristic>> discoveredCharacteristics = new HashMap<>();
 
@@ -72,8 +87,11 @@ public class BLECentral {
      */
     private final Set<String> connectingDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
-    /** Peripheral MAC Address -> Maximum Transmission Unit */
-    private HashMap<String, Integer> mtus = new HashMap<>();
+    /** Peripheral MAC Address -> ATT Maximum Transmission Unit negotiated for the connection */
+    private final ConcurrentHashMap<String, Integer> mtus = new ConcurrentHashMap<>();
+
+    /** Peripherals whose data characteristics support unacknowledged mode. See {@link CreditFlowControl} */
+    private final Set<String> unacknowledgedDevices = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private Context context;
     private UUID serviceUUID;
@@ -106,6 +124,16 @@ public class BLECentral {
         notifyUUIDs.add(characteristic.getUuid());
     }
 
+    /**
+     * Subscribe to characteristic only on peripherals offering no characteristic requested via
+     * {@link #requestNotifyOnCharacteristic(BluetoothGattCharacteristic)}, e.g: peripherals
+     * predating those characteristics
+     */
+    public void requestFallbackNotifyOnCharacteristic(BluetoothGattCharacteristic characteristic) {
+        notifyUUIDs.add(characteristic.getUuid());
+        fallbackNotifyUUIDs.add(characteristic.getUuid());
+    }
+
     public void start() {
         startScanning();
     }
@@ -119,6 +147,20 @@ public class BLECentral {
         }
     }
 
+    /**
+     * Disconnect from the peripheral at deviceAddress. Disconnection is reported as usual
+     *
+     * @return false if not connected to deviceAddress
+     */
+    public boolean disconnect(String deviceAddress) {
+        BluetoothGatt peripheral = connectedDevices.get(deviceAddress);
+        if (peripheral == null) return false;
+
+        Timber.d("Disconnecting from %s", deviceAddress);
+        peripheral.disconnect();
+        return true;
+    }
+
     public boolean isScanning() {
         return isScanning;
     }
@@ -127,10 +169,34 @@ public class BLECentral {
         return connectedDevices.containsKey(deviceAddress);
     }
 
+    /**
+     * @return the ATT MTU negotiated with the peripheral at identifier, or null if not yet negotiated
+     */
     public @Nullable Integer getMtuForIdentifier(String identifier) {
         return mtus.get(identifier);
     }
 
+    /**
+     * @return whether data is written to, and notified by, the peripheral at deviceAddress
+     * without acknowledgement
+     */
+    public boolean isUnacknowledged(String deviceAddress) {
+        return unacknowledgedDevices.contains(deviceAddress);
+    }
+
+    /**
+     * @return whether the peripheral at deviceAddress offers a characteristic with characteristicUuid
+     */
+    public boolean hasCharacteristic(String deviceAddress, UUID characteristicUuid) {
+        Set<BluetoothGattCharacteristic> characteristics = discoveredCharacteristics.get(deviceAddress);
+        if (characteristics == null) return false;
+
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (characteristic.getUuid().equals(characteristicUuid)) return true;
+        }
+        return false;
+    }
+
     public boolean write(byte[] data,
                          UUID characteristicUuid,
                          String deviceAddress) {
@@ -149,15 +215,18 @@ public class BLECentral {
 
         discoveredCharacteristic.setValue(data);
 
-        if ((discoveredCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) !=
-                                                        BluetoothGattCharacteristic.PROPERTY_WRITE)
-            throw new IllegalArgumentException(String.format("Requested write on Characteristic %s without Notify Property",
+        int writeProperty = discoveredCharacteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE ?
+                            BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE :
+                            BluetoothGattCharacteristic.PROPERTY_WRITE;
+
+        if ((discoveredCharacteristic.getProperties() & writeProperty) != writeProperty)
+            throw new IllegalArgumentException(String.format("Requested write on Characteristic %s without Write Property",
                     characteristicUuid.toString()));
 
         BluetoothGatt recipient = connectedDevices.get(deviceAddress);
         if (recipient != null) {
             boolean success = recipient.writeCharacteristic(discoveredCharacteristic);
-            // write type should be 2 (Default)
+            // write type should be 2 (Default), or 1 (No response) in unacknowledged mode
             Timber.d("Wrote %d bytes with type %d to %s with success %b", data.length, discoveredCharacteristic.getWriteType(), deviceAddress, success);
             return success;
         }
@@ -165,6 +234,36 @@ public class BLECentral {
         return false;
     }
 
+    /**
+     * Request a connection interval for the peripheral at deviceAddress
+     *
+     * @param priority one of BluetoothGatt's CONNECTION_PRIORITY_ values
+     */
+    public boolean requestConnectionPriority(String deviceAddress, int priority) {
+        BluetoothGatt peripheral = connectedDevices.get(deviceAddress);
+        boolean success = peripheral != null && peripheral.requestConnectionPriority(priority);
+        Timber.d("Requested connection priority %d for %s with success %b", priority, deviceAddress, success);
+        return success;
+    }
+
+    /**
+     * Prefer the 2M PHY, or the 1M PHY, for the connection to the peripheral at deviceAddress.
+     * The result is reported to {@link BLETransportCallback#phyUpdated(BLETransportCallback.DeviceType, String, int, int, int)}
+     *
+     * @return false if the 2M PHY is unsupported, which requires Android 8.0, or the peripheral is not connected
+     */
+    public boolean setPreferredPhy(String deviceAddress, boolean le2M) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || btAdapter == null || !btAdapter.isLe2MPhySupported())
+            return false;
+
+        BluetoothGatt peripheral = connectedDevices.get(deviceAddress);
+        if (peripheral == null) return false;
+
+        int phy = le2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+        peripheral.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
     public BiMap<String, BluetoothGatt> getConnectedDeviceAddresses() {
         return connectedDevices;
     }
@@ -252,6 +351,10 @@ public class BLECentral {
                                     Timber.d("Disconnected from " + gatt.getDevice().getAddress());
                                     connectedDevices.remove(gatt.getDevice().getAddress());
                                     connectingDevices.remove(gatt.getDevice().getAddress());
+                                    unacknowledgedDevices.remove(gatt.getDevice().getAddress());
+                                    mtus.remove(gatt.getDevice().getAddress());
+                                    pendingSubscriptions.remove(gatt.getDevice().getAddress());
+                                    subscribedDevices.remove(gatt.getDevice().getAddress());
                                     if (transportCallback != null)
                                         transportCallback.identifierUpdated(BLETransportCallback.DeviceType.CENTRAL,
                                                 gatt.getDevice().getAddress(),
@@ -278,7 +381,8 @@ public class BLECentral {
                                     // Though we're connected, we shouldn't actually report
                                     // connection until we've discovered all service characteristics
 
-                                    boolean mtuSuccess = gatt.requestMtu(BLETransport.DEFAULT_MTU_BYTES);
+                                    // The peripheral replies with the lesser of this and the largest it supports
+                                    boolean mtuSuccess = gatt.requestMtu(BLETransport.MAX_MTU_BYTES);
 
                                     Timber.d("Connected to %s. Requested MTU success %b", gatt.getDevice().getAddress(),
                                             mtuSuccess);
@@ -296,7 +400,8 @@ public class BLECentral {
                                  gatt.getDevice().getAddress(),
                                  status == BluetoothGatt.GATT_SUCCESS);
 
-                        mtus.put(gatt.getDevice().getAddress(), mtu);
+                        // On failure mtu is the one in effect, at least the ATT default
+                        mtus.put(gatt.getDevice().getAddress(), Math.max(mtu, BLETransport.MIN_MTU_BYTES));
 
                         // TODO: Can we craft characteristics and avoid discovery step?
                         boolean discovering = gatt.discoverServices();
@@ -322,11 +427,27 @@ public class BLECentral {
                                     characteristicSet.addAll(service.getCharacteristics());
                                     discoveredCharacteristics.put(gatt.getDevice().getAddress(), characteristicSet);
 
+                                    ArrayDeque<BluetoothGattCharacteristic> subscriptions = new ArrayDeque<>();
+                                    ArrayDeque<BluetoothGattCharacteristic> fallbackSubscriptions = new ArrayDeque<>();
+
                                     for (BluetoothGattCharacteristic characteristic : characteristicSet) {
-                                        if (notifyUUIDs.contains(characteristic.getUuid())) {
-                                            setIndictaionSubscription(gatt, characteristic, true);
-                                        }
+                                        // Peripherals predating unacknowledged mode only indicate and accept acknowledged writes
+                                        if (BLEUtil.prefersWriteWithoutResponse(characteristic))
+                                            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+
+                                        if (fallbackNotifyUUIDs.contains(characteristic.getUuid()))
+                                            fallbackSubscriptions.add(characteristic);
+                                        else if (notifyUUIDs.contains(characteristic.getUuid()))
+                                            subscriptions.add(characteristic);
+                                    }
+
+                                    if (subscriptions.isEmpty()) subscriptions = fallbackSubscriptions;
+
+                                    for (BluetoothGattCharacteristic characteristic : subscriptions) {
+                                        if (BLEUtil.prefersNotification(characteristic))
+                                            unacknowledgedDevices.add(gatt.getDevice().getAddress());
                                     }
+                                    pendingSubscriptions.put(gatt.getDevice().getAddress(), subscriptions);
                                 }
                             }
 
@@ -335,6 +456,7 @@ public class BLECentral {
                                     connectedDevices.put(gatt.getDevice().getAddress(), gatt);
                                 }
                                 connectingDevices.remove(gatt.getDevice().getAddress());
+                                subscribeNext(gatt);
                             }
                         } catch (Exception e) {
                             Timber.d("Exception analyzing discovered services " + e.getLocalizedMessage());
@@ -346,7 +468,30 @@ public class BLECentral {
                     }
 
                     /**
-                     * Subscribe or Unsubscribe to/from indication of a peripheral's characteristic.
+                     * Subscribe to the next characteristic awaiting subscription, or report connection
+                     * if none remain
+                     */
+                    private void subscribeNext(BluetoothGatt gatt) {
+                        String address = gatt.getDevice().getAddress();
+                        ArrayDeque<BluetoothGattCharacteristic> subscriptions = pendingSubscriptions.get(address);
+                        BluetoothGattCharacteristic next = subscriptions == null ? null : subscriptions.poll();
+
+                        if (next != null) {
+                            setIndictaionSubscription(gatt, next, true);
+                            return;
+                        }
+
+                        pendingSubscriptions.remove(address);
+                        if (subscribedDevices.contains(address) && transportCallback != null)
+                            transportCallback.identifierUpdated(BLETransportCallback.DeviceType.CENTRAL,
+                                                                address,
+                                                                Transport.ConnectionStatus.CONNECTED,
+                                                                null);
+                    }
+
+                    /**
+                     * Subscribe or Unsubscribe to/from indication of a peripheral's characteristic,
+                     * or notification if the characteristic supports unacknowledged mode.
                      *
                      * After calling this method you must await the result via
                      * {@link #onDescriptorWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattDescriptor, int)}
@@ -359,7 +504,12 @@ public class BLECentral {
                         boolean success = peripheral.setCharacteristicNotification(characteristic, enable);
                         Timber.d("Request notification %s %s with sucess %b", enable ? "set" : "unset", characteristic.getUuid().toString(), success);
                         BluetoothGattDescriptor desc = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
-                        desc.setValue(enable ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                        if (!enable)
+                            desc.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+                        else if (BLEUtil.prefersNotification(characteristic))
+                            desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                        else
+                            desc.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
                         boolean desSuccess = peripheral.writeDescriptor(desc);
                         Timber.d("Wrote descriptor with success %b", desSuccess);
                     }
@@ -369,15 +519,21 @@ public class BLECentral {
                                                   int status) {
 
                         Timber.d("onDescriptorWrite");
-                        if (status == BluetoothGatt.GATT_SUCCESS && transportCallback != null) {
+                        boolean enabled = Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_INDICATION_VALUE) ||
+                                          Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
 
-                            if (Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)) {
-                                transportCallback.identifierUpdated(BLETransportCallback.DeviceType.CENTRAL,
-                                        gatt.getDevice().getAddress(),
-                                        Transport.ConnectionStatus.CONNECTED,
-                                        null);
+                        if (enabled) {
+                            if (status == BluetoothGatt.GATT_SUCCESS)
+                                subscribedDevices.add(gatt.getDevice().getAddress());
+                            else
+                                Timber.w("Failed to subscribe to %s with status %d", descriptor.getCharacteristic().getUuid(), status);
 
-                            } else if (Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+                            // A failed subscription leaves the characteristic unused
+                            subscribeNext(gatt);
+
+                        } else if (status == BluetoothGatt.GATT_SUCCESS && transportCallback != null) {
+
+                            if (Arrays.equals(descriptor.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
                                 Timber.d("disabled indications successfully. Closing gatt");
                                 gatt.close();
                             }
@@ -416,6 +572,18 @@ public class BLECentral {
                                                                    exception);
                     }
 
+                    @Override
+                    public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                        Timber.d("PHY tx %d rx %d for %s with status %d", txPhy, rxPhy, gatt.getDevice().getAddress(), status);
+
+                        if (transportCallback != null)
+                            transportCallback.phyUpdated(BLETransportCallback.DeviceType.CENTRAL,
+                                                         gatt.getDevice().getAddress(),
+                                                         txPhy,
+                                                         rxPhy,
+                                                         status);
+                    }
+
                     @Override
                     public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
                         Timber.d(String.format("%s rssi: %d", gatt.getDevice().getAddress(), rssi));
@@ -19,15 +19,18 @@ import android.content.Context;
 import android.os.Build;
 import android.os.ParcelUuid;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 
 import java.net.UnknownServiceException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pro.dbro.airshare.transport.ConnectionGovernor;
 import pro.dbro.airshare.transport.Transport;
@@ -45,6 +48,15 @@ public class BLEPeripheral {
     /** Map of connected device addresses to devices */
     private BiMap<String, BluetoothDevice> connectedDevices = HashBiMap.create();
 
+    /** Addresses of centrals subscribed to notifications rather than indications. See {@link CreditFlowControl} */
+    private final Set<String> unacknowledgedCentrals = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** Central address -> UUIDs of characteristics the central subscribed to */
+    private final ConcurrentHashMap<String, Set<UUID>> subscriptions = new ConcurrentHashMap<>();
+
+    /** Central address -> ATT Maximum Transmission Unit negotiated for the connection */
+    private final ConcurrentHashMap<String, Integer> mtus = new ConcurrentHashMap<>();
+
     public interface BLEPeripheralConnectionGovernor {
         public boolean shouldConnectToCentral(BluetoothDevice potentialPeer);
     }
@@ -121,7 +133,16 @@ public class BLEPeripheral {
     }
 
     /**
-     * Send data to the central at deviceAddress. If the return value of this function
+     * @return whether the central at deviceAddress subscribed to notifications, and so
+     * data is notified to it without acknowledgement
+     */
+    public boolean isUnacknowledged(String deviceAddress) {
+        return unacknowledgedCentrals.contains(deviceAddress);
+    }
+
+    /**
+     * Send data to the central at deviceAddress by indication, or notification if
+     * {@link #isUnacknowledged(String)}. If the return value of this function
      * indicates the indicate was successful, another indicate must not be requested until
      * {@link pro.dbro.airshare.transport.ble.BLETransportCallback#dataSentToIdentifier(pro.dbro.airshare.transport.ble.BLETransportCallback.DeviceType, byte[], String, Exception)}
      * is called.
@@ -143,17 +164,22 @@ public class BLEPeripheral {
 
         targetCharacteristic.setValue(data);
 
-        if ((targetCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_INDICATE) !=
-                                                    BluetoothGattCharacteristic.PROPERTY_INDICATE)
-            throw new IllegalArgumentException(String.format("Requested indicate on Characteristic %s without Notify Property",
-                                                             targetCharacteristic.getUuid()));
+        boolean confirm = !isUnacknowledged(deviceAddress);
+        int notifyProperty = confirm ? BluetoothGattCharacteristic.PROPERTY_INDICATE :
+                                       BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+
+        if ((targetCharacteristic.getProperties() & notifyProperty) != notifyProperty)
+            throw new IllegalArgumentException(String.format("Requested %s on Characteristic %s without %s Property",
+                                                             confirm ? "indicate" : "notify",
+                                                             targetCharacteristic.getUuid(),
+                                                             confirm ? "Indicate" : "Notify"));
 
         BluetoothDevice recipient = connectedDevices.get(deviceAddress);
 
         if (recipient != null && gattServer != null) {
             boolean success = gattServer.notifyCharacteristicChanged(recipient,
                                                                      targetCharacteristic,
-                                                                     true);
+                                                                     confirm);
             if (success) lastNotified = data;
             Timber.d("Notified %d bytes to %s with success %b", data.length, deviceAddress, success);
             return success;
@@ -163,10 +189,58 @@ public class BLEPeripheral {
         return false;
     }
 
+    /**
+     * Cancel the connection of the central at deviceAddress. Disconnection is reported as usual
+     *
+     * @return false if the central is not connected
+     */
+    public boolean disconnect(String deviceAddress) {
+        BluetoothDevice central = connectedDevices.get(deviceAddress);
+        if (central == null || gattServer == null) return false;
+
+        Timber.d("Cancelling connection to %s", deviceAddress);
+        gattServer.cancelConnection(central);
+        return true;
+    }
+
     public boolean isConnectedTo(String deviceAddress) {
         return connectedDevices.containsKey(deviceAddress);
     }
 
+    /**
+     * @return the UUIDs of characteristics the central at deviceAddress subscribed to
+     */
+    public Set<UUID> getSubscribedCharacteristics(String deviceAddress) {
+        Set<UUID> subscribed = subscriptions.get(deviceAddress);
+        return subscribed == null ? Collections.<UUID>emptySet() : subscribed;
+    }
+
+    /**
+     * @return the ATT MTU the central at deviceAddress negotiated, or null if it has not.
+     * Centrals negotiate before subscribing, if at all.
+     */
+    public @Nullable Integer getMtuForIdentifier(String deviceAddress) {
+        return mtus.get(deviceAddress);
+    }
+
+    /**
+     * Prefer the 2M PHY, or the 1M PHY, for the connection to the central at deviceAddress.
+     * Centrals alone choose the connection interval.
+     *
+     * @return false if the 2M PHY is unsupported, which requires Android 8.0, or the central is not connected
+     */
+    public boolean setPreferredPhy(String deviceAddress, boolean le2M) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O || btAdapter == null || !btAdapter.isLe2MPhySupported())
+            return false;
+
+        BluetoothDevice central = connectedDevices.get(deviceAddress);
+        if (central == null || gattServer == null) return false;
+
+        int phy = le2M ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+        gattServer.setPreferredPhy(central, phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
     public BiMap<String, BluetoothDevice> getConnectedDeviceAddresses() {
         return connectedDevices;
     }
@@ -236,20 +310,18 @@ public class BLEPeripheral {
                         gattServer.cancelConnection(device);
                         return;
                     } else {
-                        // Allow connection to proceed. Mark device connected
+                        // Allow connection to proceed. Mark device connected.
+                        // Connection is reported once the central subscribes, and so can receive data
                         Timber.d("Accepted connection to " + device.getAddress());
                         connectedDevices.put(device.getAddress(), device);
-                        if (transportCallback != null)
-                            transportCallback.identifierUpdated(BLETransportCallback.DeviceType.PERIPHERAL,
-                                                                device.getAddress(),
-                                                                Transport.ConnectionStatus.CONNECTED,
-                                                                null);
-
                     }
                 } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                     // We've disconnected
                     Timber.d("Disconnected from " + device.getAddress());
                     connectedDevices.remove(device.getAddress());
+                    unacknowledgedCentrals.remove(device.getAddress());
+                    mtus.remove(device.getAddress());
+                    subscriptions.remove(device.getAddress());
                     if (transportCallback != null)
                         transportCallback.identifierUpdated(BLETransportCallback.DeviceType.PERIPHERAL,
                                                             device.getAddress(),
@@ -307,9 +379,42 @@ public class BLEPeripheral {
             @Override
             public void onDescriptorWriteRequest(BluetoothDevice device, int requestId, BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded, int offset, byte[] value) {
                 Timber.d("onDescriptorWriteRequest %s", descriptor.toString());
-                if (Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE) && responseNeeded) {
-                    boolean success = gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                    Timber.d("Sent Indication sub response with success %b", success);
+                boolean indicate = Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                boolean notify   = Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+                if (indicate || notify) {
+                    // A central subscribing to notifications supports unacknowledged mode
+                    if (notify)
+                        unacknowledgedCentrals.add(device.getAddress());
+                    else
+                        unacknowledgedCentrals.remove(device.getAddress());
+
+                    if (responseNeeded) {
+                        boolean success = gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
+                        Timber.d("Sent %s sub response with success %b", notify ? "Notification" : "Indication", success);
+                    }
+
+                    // Centrals may subscribe to several characteristics. Report connection on the first
+                    Set<UUID> subscribed = subscriptions.get(device.getAddress());
+                    if (subscribed == null) {
+                        subscribed = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+                        subscriptions.put(device.getAddress(), subscribed);
+                    }
+                    boolean firstSubscription = subscribed.isEmpty();
+                    subscribed.add(descriptor.getCharacteristic().getUuid());
+
+                    if (firstSubscription && transportCallback != null && connectedDevices.containsKey(device.getAddress()))
+                        transportCallback.identifierUpdated(BLETransportCallback.DeviceType.PERIPHERAL,
+                                                            device.getAddress(),
+                                                            Transport.ConnectionStatus.CONNECTED,
+                                                            null);
+                } else if (Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+                    Set<UUID> subscribed = subscriptions.get(device.getAddress());
+                    if (subscribed != null) subscribed.remove(descriptor.getCharacteristic().getUuid());
+                    if (subscribed == null || subscribed.isEmpty())
+                        unacknowledgedCentrals.remove(device.getAddress());
+                    if (responseNeeded)
+                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, value);
                 }
                 super.onDescriptorWriteRequest(device, requestId, descriptor, preparedWrite, responseNeeded, offset, value);
             }
@@ -320,6 +425,25 @@ public class BLEPeripheral {
                 super.onExecuteWrite(device, requestId, execute);
             }
 
+            @Override
+            public void onMtuChanged(BluetoothDevice device, int mtu) {
+                // Reported from Android 5.1. Earlier, only the ATT default is assumed
+                Timber.d("Got MTU (%d bytes) for central %s", mtu, device.getAddress());
+                mtus.put(device.getAddress(), mtu);
+            }
+
+            @Override
+            public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+                Timber.d("PHY tx %d rx %d for %s with status %d", txPhy, rxPhy, device.getAddress(), status);
+
+                if (transportCallback != null)
+                    transportCallback.phyUpdated(BLETransportCallback.DeviceType.PERIPHERAL,
+                                                 device.getAddress(),
+                                                 txPhy,
+                                                 rxPhy,
+                                                 status);
+            }
+
             @Override
             public void onNotificationSent(BluetoothDevice device, int status) {
                 Timber.d("onNotificationSent");
@@ -1,20 +1,33 @@
 package pro.dbro.airshare.transport.ble;
 
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
 import android.os.Build;
+import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 
-import java.io.ByteArrayOutputStream;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import pro.dbro.airshare.transport.Transport;
 import timber.log.Timber;
@@ -30,8 +43,12 @@ import timber.log.Timber;
  */
 
 /**
- * Every Identifier gets a ByteBuffer that all outgoing data gets copied to, and
- * is read from in DEFAULT_MTU_BYTES increments for the actual sendData call.
+ * Every Identifier gets a queue of outgoing chunks, each transmitted in slices no larger than
+ * the MTU negotiated for the connection at the time the slice is sent.
+ *
+ * Slices are striped across several data characteristics in each direction, so a stack
+ * permitting more than one outstanding operation per connection may keep each busy. Peers
+ * predating these characteristics share the single {@link #dataCharacteristic}.
  *
  * *** THOUGHTS ***
  *
@@ -49,47 +66,208 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
     public static final int DEFAULT_MTU_BYTES = 155;
 
+    /** Largest ATT MTU. Requested of every peripheral */
+    public static final int MAX_MTU_BYTES = 517;
+
+    /** ATT MTU in effect until a larger one is negotiated */
+    public static final int MIN_MTU_BYTES = 23;
+
+    /** Header of an ATT write or notification */
+    private static final int ATT_HEADER_BYTES = 3;
+
+    /** Longest characteristic value */
+    private static final int MAX_ATTRIBUTE_BYTES = 512;
+
+    /** Payload of a write at the minimum ATT MTU every device supports */
+    public static final int MIN_CHUNK_BYTES = 20;
+
     public static final int TRANSPORT_CODE = 1;
 
+    /** Data characteristics offered in each direction, in addition to the legacy characteristic */
+    public static final int DEFAULT_DATA_CHARACTERISTICS_PER_DIRECTION = 2;
+
+    public static final int MAX_DATA_CHARACTERISTICS_PER_DIRECTION = 16;
+
+    /** UUID of data characteristic index for direction. Directions share the legacy characteristic's UUID but for the last group */
+    private static final String DATA_UUID_FORMAT = "72A7700C-859D-4317-9E35-D7F5A93%d%04X";
+
+    private static final int DIRECTION_CENTRAL_TO_PERIPHERAL = 1;
+    private static final int DIRECTION_PERIPHERAL_TO_CENTRAL = 2;
+
+    // <editor-fold desc="Link Info">
+    // Keys of the linkInfo reported to Transport.LinkCallback#linkUpdated
+
+    /** Connection priority chosen for the backlog: "high", "balanced" or "low-power" */
+    public static final String LINK_PRIORITY      = "priority";
+
+    /** Bytes awaiting transmission when the priority was chosen */
+    public static final String LINK_BACKLOG_BYTES = "backlog-bytes";
+
+    /** PHY in effect, as reported by the stack: "1M", "2M" or "coded" */
+    public static final String LINK_PHY           = "phy";
+
+    /** {@link SystemClock#elapsedRealtime()} at the change */
+    public static final String LINK_ELAPSED_MS    = "elapsed-ms";
+
+    // </editor-fold desc="Link Info">
+
+    /** Stands in for the chunk of an ack frame in flight, whose completion is not reported */
+    private static final byte[] ACK_IN_FLIGHT = new byte[0];
+
+    /** Stands in for the chunk of a slice in flight that does not complete it */
+    private static final byte[] SLICE_IN_FLIGHT = new byte[0];
+
+    /**
+     * Links whose credit window stays full are checked for stalls, and links whose backlog is
+     * unchanged have their priority re-evaluated, on this thread
+     */
+    private static final ScheduledExecutorService linkExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread thread = new Thread(runnable, "AirShare-BLELink");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     private final UUID serviceUUID;
     private final UUID dataUUID    = UUID.fromString("72A7700C-859D-4317-9E35-D7F5A93005B1");
 
     /** Identifier -> Queue of outgoing buffers */
     private HashMap<String, ArrayDeque<byte[]>> outBuffers = new HashMap<>();
 
+    /** Identifier -> Bytes of the head of its queue already transmitted */
+    private HashMap<String, Integer> outBufferOffsets = new HashMap<>();
+
+    /**
+     * Identifier -> Transmissions awaiting completion, in the order transmitted. At most one per
+     * characteristic. Completions are reported in order, and without the characteristic by peripherals
+     */
+    private HashMap<String, ArrayDeque<InFlight>> transmitsInFlight = new HashMap<>();
+
+    /** Identifier -> Flow control of a link in unacknowledged mode */
+    private HashMap<String, CreditFlowControl> flowControls = new HashMap<>();
+
+    /** Identifiers with a full credit window and a stall check scheduled */
+    private HashSet<String> stallChecksScheduled = new HashSet<>();
+
+    /** Identifiers of links that failed, awaiting disconnection. Nothing more is transmitted to them */
+    private HashSet<String> failedLinks = new HashSet<>();
+
+    /** Identifier -> Connection priority policy of a link the session layer has reported a backlog for */
+    private HashMap<String, LinkPriorityPolicy> linkPolicies = new HashMap<>();
+
+    /** Identifiers with a priority re-evaluation scheduled */
+    private HashSet<String> linkChecksScheduled = new HashSet<>();
+
+    /**
+     * Acknowledged writes and indications remain supported for peers predating unacknowledged mode.
+     * See {@link CreditFlowControl}
+     */
     private final BluetoothGattCharacteristic dataCharacteristic
             = new BluetoothGattCharacteristic(dataUUID,
                                               BluetoothGattCharacteristic.PROPERTY_READ |
                                               BluetoothGattCharacteristic.PROPERTY_WRITE |
-                                              BluetoothGattCharacteristic.PROPERTY_INDICATE,
+                                              BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE |
+                                              BluetoothGattCharacteristic.PROPERTY_INDICATE |
+                                              BluetoothGattCharacteristic.PROPERTY_NOTIFY,
 
                                               BluetoothGattCharacteristic.PERMISSION_READ |
                                               BluetoothGattCharacteristic.PERMISSION_WRITE);
 
+    /** Written by the central without response, in unacknowledged mode */
+    private final List<UUID> centralToPeripheralUUIDs = new ArrayList<>();
+
+    /** Notified by the peripheral, in unacknowledged mode */
+    private final List<UUID> peripheralToCentralUUIDs = new ArrayList<>();
+
     private BLECentral    central;
     private BLEPeripheral peripheral;
 
+    /** A write or notification awaiting completion */
+    private static class InFlight {
+        final UUID    characteristicUuid;
+        /** The chunk, {@link #ACK_IN_FLIGHT} or {@link #SLICE_IN_FLIGHT} */
+        final byte[]  chunk;
+        /** Whether this is the first slice of its chunk */
+        final boolean startsChunk;
+
+        InFlight(UUID characteristicUuid, byte[] chunk, boolean startsChunk) {
+            this.characteristicUuid = characteristicUuid;
+            this.chunk              = chunk;
+            this.startsChunk        = startsChunk;
+        }
+    }
+
     public BLETransport(@NonNull Context context,
                         @NonNull String serviceName,
                         @NonNull Transport.TransportCallback callback) {
 
+        this(context, serviceName, callback, DEFAULT_DATA_CHARACTERISTICS_PER_DIRECTION);
+    }
+
+    /**
+     * @param dataCharacteristicsPerDirection data characteristics to stripe data across in each
+     *                                        direction, up to {@link #MAX_DATA_CHARACTERISTICS_PER_DIRECTION}.
+     *                                        0 to use only the legacy characteristic
+     */
+    public BLETransport(@NonNull Context context,
+                        @NonNull String serviceName,
+                        @NonNull Transport.TransportCallback callback,
+                        int dataCharacteristicsPerDirection) {
+
         super(serviceName, callback);
 
+        if (dataCharacteristicsPerDirection < 0 || dataCharacteristicsPerDirection > MAX_DATA_CHARACTERISTICS_PER_DIRECTION)
+            throw new IllegalArgumentException("dataCharacteristicsPerDirection must be between 0 and " + MAX_DATA_CHARACTERISTICS_PER_DIRECTION);
+
         serviceUUID = generateUUIDFromString(serviceName);
 
-        dataCharacteristic.addDescriptor(new BluetoothGattDescriptor(BLECentral.CLIENT_CHARACTERISTIC_CONFIG,
-                                                                     BluetoothGattDescriptor.PERMISSION_WRITE |
-                                                                             BluetoothGattDescriptor.PERMISSION_READ));
+        dataCharacteristic.addDescriptor(createClientConfigDescriptor());
 
         central = new BLECentral(context, serviceUUID);
         central.setTransportCallback(this);
-        central.requestNotifyOnCharacteristic(dataCharacteristic);
+        // Subscribed only if the peripheral offers none of the striped characteristics
+        central.requestFallbackNotifyOnCharacteristic(dataCharacteristic);
 
         if (isLollipop()) {
             peripheral = new BLEPeripheral(context, serviceUUID);
             peripheral.setTransportCallback(this);
             peripheral.addCharacteristic(dataCharacteristic);
         }
+
+        for (int index = 0; index < dataCharacteristicsPerDirection; index++) {
+            BluetoothGattCharacteristic toPeripheral
+                    = new BluetoothGattCharacteristic(dataUUIDFor(DIRECTION_CENTRAL_TO_PERIPHERAL, index),
+                                                      BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE,
+                                                      BluetoothGattCharacteristic.PERMISSION_WRITE);
+
+            BluetoothGattCharacteristic toCentral
+                    = new BluetoothGattCharacteristic(dataUUIDFor(DIRECTION_PERIPHERAL_TO_CENTRAL, index),
+                                                      BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+                                                      BluetoothGattCharacteristic.PERMISSION_READ);
+            toCentral.addDescriptor(createClientConfigDescriptor());
+
+            centralToPeripheralUUIDs.add(toPeripheral.getUuid());
+            peripheralToCentralUUIDs.add(toCentral.getUuid());
+
+            central.requestNotifyOnCharacteristic(toCentral);
+
+            if (isLollipop()) {
+                peripheral.addCharacteristic(toPeripheral);
+                peripheral.addCharacteristic(toCentral);
+            }
+        }
+    }
+
+    private static UUID dataUUIDFor(int direction, int index) {
+        return UUID.fromString(String.format(Locale.US, DATA_UUID_FORMAT, direction, index));
+    }
+
+    private static BluetoothGattDescriptor createClientConfigDescriptor() {
+        return new BluetoothGattDescriptor(BLECentral.CLIENT_CHARACTERISTIC_CONFIG,
+                                           BluetoothGattDescriptor.PERMISSION_WRITE |
+                                                   BluetoothGattDescriptor.PERMISSION_READ);
     }
 
     private UUID generateUUIDFromString(String input) {
@@ -110,8 +288,8 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
     /**
      * Send data to the given identifiers. If identifier is unavailable data will be queued.
-     * TODO: Callbacks to {@link pro.dbro.airshare.transport.Transport.TransportCallback#dataSentToIdentifier(pro.dbro.airshare.transport.Transport, byte[], String, Exception)}
-     * should occur per data-sized chunk, not for each MTU-sized transmit.
+     * Callbacks to {@link pro.dbro.airshare.transport.Transport.TransportCallback#dataSentToIdentifier(pro.dbro.airshare.transport.Transport, byte[], String, Exception)}
+     * occur once per data, however many MTU-sized slices it is transmitted in.
      */
     @Override
     public boolean sendData(byte[] data, Set<String> identifiers) {
@@ -157,10 +335,55 @@ public class BLETransport extends Transport implements BLETransportCallback {
         return TRANSPORT_CODE;
     }
 
+    /**
+     * @return the payload of a single write or notification over the MTU negotiated with
+     * identifier, less the largest frame header of unacknowledged mode. See {@link CreditFlowControl}
+     */
     @Override
     public int getMtuForIdentifier(String identifier) {
         Integer mtu = central.getMtuForIdentifier(identifier);
-        return (mtu == null ? DEFAULT_MTU_BYTES : mtu ) - 10;
+
+        if (mtu == null && isLollipop()) {
+            mtu = peripheral.getMtuForIdentifier(identifier);
+            // A connected central that has not negotiated uses the default
+            if (mtu == null && peripheral.isConnectedTo(identifier)) mtu = MIN_MTU_BYTES;
+        }
+
+        if (mtu == null) mtu = DEFAULT_MTU_BYTES;
+
+        return Math.min(mtu - ATT_HEADER_BYTES, MAX_ATTRIBUTE_BYTES) - CreditFlowControl.SEQUENCED_FRAME_HEADER_BYTES;
+    }
+
+    @Override
+    public int getMinChunkBytesForIdentifier(String identifier) {
+        return Math.min(MIN_CHUNK_BYTES, getMtuForIdentifier(identifier));
+    }
+
+    /**
+     * Moves the link to identifier to high connection priority, and the 2M PHY where supported,
+     * while the backlog is large. See {@link LinkPriorityPolicy}
+     */
+    @Override
+    public void setBacklogForIdentifier(String identifier, long backlogBytes) {
+        Map<String, Object> linkInfo = null;
+
+        synchronized (this) {
+            if (!isConnectedTo(identifier)) return;
+
+            LinkPriorityPolicy policy = linkPolicies.get(identifier);
+            if (policy == null) {
+                policy = new LinkPriorityPolicy();
+                linkPolicies.put(identifier, policy);
+            }
+
+            LinkPriorityPolicy.Priority priority = policy.onBacklog(backlogBytes + getQueuedBytes(identifier),
+                                                                    SystemClock.elapsedRealtime());
+            if (priority != null) linkInfo = applyPriority(policy, identifier);
+            scheduleLinkCheck(policy, identifier);
+        }
+
+        // Reported without holding this transport, as the callback may send data
+        if (linkInfo != null) reportLinkUpdated(identifier, linkInfo);
     }
 
     // </editor-fold desc="Transport">
@@ -169,16 +392,43 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
     @Override
     public void dataReceivedFromIdentifier(DeviceType deviceType, byte[] data, String identifier) {
+        CreditFlowControl flowControl = getFlowControl(deviceType, identifier);
+
+        if (flowControl != null) {
+            if (data == null || data.length < CreditFlowControl.FRAME_HEADER_BYTES) return;
+
+            if (data[0] == CreditFlowControl.FRAME_ACK) {
+                ackReceived(flowControl, data, identifier);
+                return;
+            } else if (data[0] == CreditFlowControl.FRAME_SEQUENCED_DATA) {
+                sequencedDataReceived(flowControl, data, identifier);
+                return;
+            } else if (data[0] != CreditFlowControl.FRAME_DATA) {
+                Timber.w("Ignoring frame of unknown type %d from %s", data[0], identifier);
+                return;
+            }
+            data = CreditFlowControl.unframeData(data);
+        }
+
         if (callback.get() != null)
             callback.get().dataReceivedFromIdentifier(this, data, identifier);
+
+        // Acknowledge once the session layer has taken the data
+        if (flowControl != null)
+            dataDelivered(flowControl, identifier);
     }
 
     @Override
     public void dataSentToIdentifier(DeviceType deviceType, byte[] data, String identifier, Exception exception) {
-        Timber.d("Got receipt for %d sent bytes", data.length);
+        // Keep the link busy with any queued data before notifying the callback
+        List<byte[]> completed = transmitNextOutgoingData(identifier, data, exception);
 
-        if (callback.get() != null)
-            callback.get().dataSentToIdentifier(this, data, identifier, exception);
+        for (byte[] sent : completed) {
+            Timber.d("Got receipt for %d sent bytes", sent.length);
+
+            if (callback.get() != null)
+                callback.get().dataSentToIdentifier(this, sent, identifier, exception);
+        }
     }
 
     @Override
@@ -199,66 +449,461 @@ public class BLETransport extends Transport implements BLETransportCallback {
 
         if (status == ConnectionStatus.CONNECTED)
             transmitOutgoingDataForConnectedPeer(identifier);
+        else if (status == ConnectionStatus.DISCONNECTED)
+            clearLinkState(identifier);
+    }
+
+    @Override
+    public void phyUpdated(DeviceType deviceType, String identifier, int txPhy, int rxPhy, int status) {
+        if (status != BluetoothGatt.GATT_SUCCESS) return;
+
+        Map<String, Object> linkInfo = new HashMap<>();
+        linkInfo.put(LINK_PHY, phyName(txPhy));
+        linkInfo.put(LINK_ELAPSED_MS, SystemClock.elapsedRealtime());
+        reportLinkUpdated(identifier, linkInfo);
     }
 
     // </editor-fold desc="BLETransportCallback">
 
     /**
-     * Queue data for transmission to identifier
+     * Queue data for transmission to identifier. It is sliced to the MTU as it is transmitted,
+     * so follows any change in MTU while queued.
      */
-    private void queueOutgoingData(byte[] data, String identifier) {
+    private synchronized void queueOutgoingData(byte[] data, String identifier) {
         if (!outBuffers.containsKey(identifier)) {
             outBuffers.put(identifier, new ArrayDeque<byte[]>());
         }
 
-        int mtu = getMtuForIdentifier(identifier);
-
-        int readIdx = 0;
-        while (readIdx < data.length) {
-
-            if (data.length - readIdx > mtu) {
-                ByteArrayOutputStream bos = new ByteArrayOutputStream(mtu);
-                bos.write(data, readIdx, mtu);
-                Timber.d("Adding %d byte chunk to queue", bos.size());
-                outBuffers.get(identifier).add(bos.toByteArray());
-                readIdx += mtu;
-            } else {
-                Timber.d("Adding %d byte chunk to queue", data.length);
-                outBuffers.get(identifier).add(data);
-                break;
+        Timber.d("Adding %d byte chunk to queue", data.length);
+        outBuffers.get(identifier).add(data);
+    }
+
+    /**
+     * Transmit the next slices of the queued chunks for identifier on each of the link's data
+     * characteristics not awaiting completion, until the queue empties, the stack refuses a
+     * transmission or, in unacknowledged mode, the link is out of credit.
+     *
+     * @return false if a transmission was attempted and failed with none awaiting completion
+     */
+    // TODO: Don't think the boolean return type is meaningful here as partial success can't be handled
+    private synchronized boolean transmitOutgoingDataForConnectedPeer(String identifier) {
+        DeviceType deviceType;
+        if (central.isConnectedTo(identifier))
+            deviceType = DeviceType.CENTRAL;
+        else if (isLollipop() && peripheral.isConnectedTo(identifier))
+            deviceType = DeviceType.PERIPHERAL;
+        else
+            return false;
+
+        if (failedLinks.contains(identifier)) return false;
+
+        CreditFlowControl flowControl = getFlowControl(deviceType, identifier);
+        List<UUID> stripes = getStripes(deviceType, identifier);
+        // Frames on several characteristics may arrive out of order
+        boolean sequenced = flowControl != null && !stripes.contains(dataUUID);
+
+        ArrayDeque<InFlight> inFlight = transmitsInFlight.get(identifier);
+        if (inFlight == null) {
+            inFlight = new ArrayDeque<>();
+            transmitsInFlight.put(identifier, inFlight);
+        }
+
+        ArrayDeque<byte[]> outBuffer = outBuffers.get(identifier);
+
+        UUID stripe;
+        while ((stripe = getFreeStripe(stripes, inFlight)) != null) {
+
+            // Acks go first so the remote peer's window keeps moving
+            if (flowControl != null && flowControl.isAckDue()) {
+                if (!transmit(deviceType, stripe, flowControl.createAck(), ACK_IN_FLIGHT, false, identifier))
+                    return !inFlight.isEmpty();
+
+                flowControl.onAckSent();
+                continue;
+            }
+
+            byte[] chunk = outBuffer == null ? null : outBuffer.peek();
+            if (chunk == null) return true;
+
+            if (flowControl != null && !flowControl.hasCredit()) {
+                scheduleStallCheck(flowControl, identifier);
+                return true;
+            }
+
+            Integer offset = outBufferOffsets.get(identifier);
+            if (offset == null) offset = 0;
+
+            int length = Math.min(chunk.length - offset, getMtuForIdentifier(identifier));
+            boolean completesChunk = offset + length == chunk.length;
+            byte[] toSend = length == chunk.length ? chunk : Arrays.copyOfRange(chunk, offset, offset + length);
+
+            byte[] frame = toSend;
+            if (sequenced)
+                frame = flowControl.frameSequencedData(toSend);
+            else if (flowControl != null)
+                frame = CreditFlowControl.frameData(toSend);
+
+            if (!transmit(deviceType, stripe, frame, completesChunk ? chunk : SLICE_IN_FLIGHT, offset == 0, identifier))
+                return !inFlight.isEmpty();
+
+            Timber.d("Sent %d byte slice to %s. %d more chunks in queue", toSend.length, identifier, outBuffer.size() - 1);
+
+            if (completesChunk) {
+                outBuffer.poll();
+                outBufferOffsets.remove(identifier);
+            } else
+                outBufferOffsets.put(identifier, offset + length);
+
+            if (flowControl != null) flowControl.onDataSent(SystemClock.elapsedRealtime());
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the data characteristics to stripe transmissions to identifier across: those the
+     * peripheral offers, or the central subscribed to, else the legacy characteristic
+     */
+    private List<UUID> getStripes(DeviceType deviceType, String identifier) {
+        List<UUID> stripes = new ArrayList<>();
+
+        if (deviceType == DeviceType.CENTRAL) {
+            for (UUID uuid : centralToPeripheralUUIDs) {
+                if (central.hasCharacteristic(identifier, uuid)) stripes.add(uuid);
+            }
+        } else {
+            Set<UUID> subscribed = peripheral.getSubscribedCharacteristics(identifier);
+            for (UUID uuid : peripheralToCentralUUIDs) {
+                if (subscribed.contains(uuid)) stripes.add(uuid);
+            }
+        }
+
+        if (stripes.isEmpty()) stripes.add(dataUUID);
+        return stripes;
+    }
+
+    /**
+     * @return the first of stripes without a transmission awaiting completion, or null if none
+     */
+    private static @Nullable UUID getFreeStripe(List<UUID> stripes, ArrayDeque<InFlight> inFlight) {
+        for (UUID stripe : stripes) {
+            boolean busy = false;
+            for (InFlight transmission : inFlight) {
+                if (transmission.characteristicUuid.equals(stripe)) {
+                    busy = true;
+                    break;
+                }
             }
+            if (!busy) return stripe;
         }
+        return null;
     }
 
-    // TODO: Don't think the boolean return type is meaningful here as partial success can't be handled
-    private boolean transmitOutgoingDataForConnectedPeer(String identifier) {
-        if (!outBuffers.containsKey(identifier)) return false;
+    /**
+     * Write or notify frame to identifier on characteristicUuid, recording chunk as in flight if successful
+     */
+    private boolean transmit(DeviceType deviceType, UUID characteristicUuid, byte[] frame, byte[] chunk,
+                             boolean startsChunk, String identifier) {
+        boolean didSend;
+        if (deviceType == DeviceType.CENTRAL)
+            didSend = central.write(frame, characteristicUuid, identifier);
+        else
+            didSend = peripheral.indicate(frame, characteristicUuid, identifier);
+
+        ArrayDeque<InFlight> inFlight = transmitsInFlight.get(identifier);
+        if (didSend)
+            inFlight.add(new InFlight(characteristicUuid, chunk, startsChunk));
+        else if (inFlight.isEmpty())
+            Timber.w("Failed to send %d bytes to %s", frame.length, identifier);
+        else
+            // Many stacks permit one outstanding operation per connection
+            Timber.d("Stack refused %d bytes to %s with %d transmissions in flight", frame.length, identifier, inFlight.size());
+
+        return didSend;
+    }
 
-        byte[] toSend;
-        boolean didSendAll = true;
-        while ((toSend = outBuffers.get(identifier).peek()) != null) {
-            boolean didSend = false;
-            if (central.isConnectedTo(identifier)) {
-                didSend = central.write(toSend, dataCharacteristic.getUuid(), identifier);
+    /**
+     * Record completion of the earliest transmission in flight to identifier and transmit the next
+     *
+     * @param frame the frame the stack reports complete, reported as the chunk if none was in flight
+     * @return the chunks to report sent, or failed, in order. A chunk is reported once its
+     * last slice is sent
+     */
+    private synchronized List<byte[]> transmitNextOutgoingData(String identifier, byte[] frame, @Nullable Exception exception) {
+        // Completions on a failed link are reported by its disconnection
+        if (failedLinks.contains(identifier)) return Collections.emptyList();
+
+        ArrayDeque<InFlight> inFlight = transmitsInFlight.get(identifier);
+        InFlight completed = inFlight == null ? null : inFlight.poll();
+
+        List<byte[]> sent;
+        if (completed == null)
+            sent = Collections.singletonList(frame);
+        else if (completed.chunk == ACK_IN_FLIGHT)
+            sent = Collections.emptyList();
+        else if (exception != null)
+            sent = failTransmission(completed, identifier);
+        else if (completed.chunk == SLICE_IN_FLIGHT)
+            sent = Collections.emptyList();
+        else
+            sent = Collections.singletonList(completed.chunk);
+
+        transmitOutgoingDataForConnectedPeer(identifier);
+        return sent;
+    }
+
+    /**
+     * Handle the failure of a data transmission to identifier. If it was the first slice of its
+     * chunk and no data was transmitted after it, none of that chunk or those queued behind it
+     * reached the recipient, and each is reported failed, in order. Otherwise the recipient holds
+     * part of a chunk, or data out of order, and the link is failed.
+     *
+     * @return the chunks to report failed
+     */
+    private synchronized List<byte[]> failTransmission(InFlight failed, String identifier) {
+        boolean dataInFlight = false;
+        for (InFlight transmission : transmitsInFlight.get(identifier)) {
+            if (transmission.chunk != ACK_IN_FLIGHT) dataInFlight = true;
+        }
+
+        if (!failed.startsChunk || dataInFlight) {
+            Timber.w("Transmission to %s failed with part of its data sent. Disconnecting", identifier);
+            failLink(identifier);
+            return Collections.emptyList();
+        }
+
+        // The frame will not be acknowledged, and its sequence number is reused
+        CreditFlowControl flowControl = flowControls.get(identifier);
+        if (flowControl != null) flowControl.onDataFailed();
+
+        List<byte[]> failedChunks = new ArrayList<>();
+        // A chunk sent in slices remains at the head of the queue until its last is sent
+        if (failed.chunk == SLICE_IN_FLIGHT)
+            outBufferOffsets.remove(identifier);
+        else
+            failedChunks.add(failed.chunk);
+
+        ArrayDeque<byte[]> outBuffer = outBuffers.get(identifier);
+        if (outBuffer != null) {
+            failedChunks.addAll(outBuffer);
+            outBuffer.clear();
+        }
+
+        Timber.w("Transmission to %s failed. Reporting %d chunks undelivered", identifier, failedChunks.size());
+        return failedChunks;
+    }
+
+    /**
+     * Disconnect from identifier, whose link can no longer deliver what was transmitted in order.
+     * The session layer retains what was not delivered on disconnection.
+     */
+    private synchronized void failLink(String identifier) {
+        if (!failedLinks.add(identifier)) return;
+
+        boolean disconnecting = central.isConnectedTo(identifier) ?
+                                central.disconnect(identifier) :
+                                isLollipop() && peripheral.disconnect(identifier);
+
+        if (!disconnecting) Timber.w("Failed to disconnect from %s", identifier);
+    }
+
+    /**
+     * Forget a disconnected link. What remains queued for it was not delivered, and is retained
+     * by the session layer
+     */
+    private synchronized void clearLinkState(String identifier) {
+        transmitsInFlight.remove(identifier);
+        outBuffers.remove(identifier);
+        outBufferOffsets.remove(identifier);
+        flowControls.remove(identifier);
+        failedLinks.remove(identifier);
+        linkPolicies.remove(identifier);
+    }
+
+    // <editor-fold desc="Flow Control">
+
+    /**
+     * @return the flow control of the link to identifier, in the given role, or null if the link
+     * is acknowledged
+     */
+    private synchronized @Nullable CreditFlowControl getFlowControl(DeviceType deviceType, String identifier) {
+        boolean unacknowledged = deviceType == DeviceType.CENTRAL ?
+                                 central.isUnacknowledged(identifier) :
+                                 isLollipop() && peripheral.isUnacknowledged(identifier);
+        if (!unacknowledged) return null;
+
+        CreditFlowControl flowControl = flowControls.get(identifier);
+        if (flowControl == null) {
+            flowControl = new CreditFlowControl();
+            flowControls.put(identifier, flowControl);
+        }
+        return flowControl;
+    }
+
+    private synchronized void ackReceived(CreditFlowControl flowControl, byte[] frame, String identifier) {
+        if (flowControl.onAckReceived(frame, SystemClock.elapsedRealtime()))
+            transmitOutgoingDataForConnectedPeer(identifier);
+    }
+
+    private synchronized void dataDelivered(CreditFlowControl flowControl, String identifier) {
+        flowControl.onDataReceived();
+        if (flowControl.isAckDue())
+            transmitOutgoingDataForConnectedPeer(identifier);
+    }
+
+    /**
+     * Deliver the chunks a sequenced frame makes deliverable in order, and acknowledge them.
+     * A link on which a frame was lost is failed, with the lost frame unacknowledged.
+     */
+    private void sequencedDataReceived(CreditFlowControl flowControl, byte[] frame, String identifier) {
+        List<byte[]> chunks;
+        synchronized (this) {
+            chunks = flowControl.onSequencedDataReceived(frame);
+        }
+
+        // Delivered without holding this transport, as the callback may send data
+        for (byte[] chunk : chunks) {
+            if (callback.get() != null)
+                callback.get().dataReceivedFromIdentifier(this, chunk, identifier);
+        }
+
+        synchronized (this) {
+            if (flowControl.isSequenceBroken()) {
+                Timber.w("Lost a frame from %s. Disconnecting", identifier);
+                failLink(identifier);
+            } else if (flowControl.isAckDue())
+                transmitOutgoingDataForConnectedPeer(identifier);
+        }
+    }
+
+    private void scheduleStallCheck(CreditFlowControl flowControl, final String identifier) {
+        if (!stallChecksScheduled.add(identifier)) return;
+
+        linkExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkStall(identifier);
             }
-            else if (isLollipop() && peripheral.isConnectedTo(identifier)) {
-                didSend = peripheral.indicate(toSend, dataCharacteristic.getUuid(), identifier);
+        }, flowControl.getStallRemainingMs(SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void checkStall(String identifier) {
+        stallChecksScheduled.remove(identifier);
+
+        CreditFlowControl flowControl = flowControls.get(identifier);
+        if (flowControl == null) return;
+
+        if (flowControl.isStalled(SystemClock.elapsedRealtime())) {
+            Timber.w("No ack from %s for %d ms with %d frames unacknowledged. Disconnecting",
+                     identifier, CreditFlowControl.STALL_TIMEOUT_MS, flowControl.getFramesUnacknowledged());
+            failLink(identifier);
+        } else if (!flowControl.hasCredit())
+            scheduleStallCheck(flowControl, identifier);
+    }
+
+    // </editor-fold desc="Flow Control">
+
+    // <editor-fold desc="Link Priority">
+
+    /**
+     * @return bytes queued for identifier and not yet transmitted
+     */
+    private synchronized long getQueuedBytes(String identifier) {
+        ArrayDeque<byte[]> outBuffer = outBuffers.get(identifier);
+        if (outBuffer == null) return 0;
+
+        long bytes = 0;
+        for (byte[] chunk : outBuffer) bytes += chunk.length;
+
+        Integer offset = outBufferOffsets.get(identifier);
+        return offset == null ? bytes : bytes - offset;
+    }
+
+    /**
+     * Request the connection priority and PHY policy chose for identifier
+     *
+     * @return a description of the change to report
+     */
+    private synchronized Map<String, Object> applyPriority(LinkPriorityPolicy policy, String identifier) {
+        LinkPriorityPolicy.Priority priority = policy.getPriority();
+        boolean le2M = priority == LinkPriorityPolicy.Priority.HIGH;
+
+        // Only a central may choose the connection interval. Either role may prefer a PHY
+        if (central.isConnectedTo(identifier)) {
+            int connectionPriority;
+            switch (priority) {
+                case HIGH:
+                    connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+                    break;
+                case LOW_POWER:
+                    connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+                    break;
+                default:
+                    connectionPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
             }
+            central.requestConnectionPriority(identifier, connectionPriority);
+            central.setPreferredPhy(identifier, le2M);
+        } else if (isLollipop() && peripheral.isConnectedTo(identifier)) {
+            peripheral.setPreferredPhy(identifier, le2M);
+        }
+
+        Timber.d("Link to %s now %s priority with %d byte backlog", identifier, priority, policy.getBacklogBytes());
+
+        Map<String, Object> linkInfo = new HashMap<>();
+        linkInfo.put(LINK_PRIORITY, priority.name().toLowerCase(Locale.US).replace('_', '-'));
+        linkInfo.put(LINK_BACKLOG_BYTES, policy.getBacklogBytes());
+        linkInfo.put(LINK_ELAPSED_MS, SystemClock.elapsedRealtime());
+        return linkInfo;
+    }
 
-            if (didSend) {
-                Timber.d("Sent %d byte chunk to %s. %d more chunks in queue", toSend.length, identifier, outBuffers.get(identifier).size() - 1);
+    private void scheduleLinkCheck(LinkPriorityPolicy policy, final String identifier) {
+        long delayMs = policy.getEvaluationDelayMs(SystemClock.elapsedRealtime());
+        if (delayMs < 0 || !linkChecksScheduled.add(identifier)) return;
 
-                outBuffers.get(identifier).poll();
-            } else {
-                Timber.w("Failed to send %d bytes to %s", toSend.length, identifier);
-                didSendAll = false;
-                break;
+        linkExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                checkLink(identifier);
             }
-            break; // For now, only attempt one data chunk at a time. Wait delivery before proceeding
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkLink(String identifier) {
+        Map<String, Object> linkInfo = null;
+
+        synchronized (this) {
+            linkChecksScheduled.remove(identifier);
+
+            LinkPriorityPolicy policy = linkPolicies.get(identifier);
+            if (policy == null) return;
+
+            if (policy.evaluate(SystemClock.elapsedRealtime()) != null)
+                linkInfo = applyPriority(policy, identifier);
+            scheduleLinkCheck(policy, identifier);
         }
-        return didSendAll;
+
+        if (linkInfo != null) reportLinkUpdated(identifier, linkInfo);
     }
 
+    private void reportLinkUpdated(String identifier, Map<String, Object> linkInfo) {
+        TransportCallback transportCallback = callback.get();
+        if (transportCallback instanceof LinkCallback)
+            ((LinkCallback) transportCallback).linkUpdated(this, identifier, linkInfo);
+    }
+
+    private static String phyName(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_2M:
+                return "2M";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "coded";
+            default:
+                return "1M";
+        }
+    }
+
+    // </editor-fold desc="Link Priority">
+
     private boolean isConnectedTo(String identifier) {
         return central.isConnectedTo(identifier) || (isLollipop() && peripheral.isConnectedTo(identifier));
     }
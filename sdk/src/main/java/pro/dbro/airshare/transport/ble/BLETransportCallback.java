@@ -25,4 +25,14 @@ public interface BLETransportCallback {
                                   Transport.ConnectionStatus status,
                                   Map<String, Object> extraInfo);
 
+    /**
+     * Called when the PHY of the connection to identifier is set or changed. Phys are
+     * BluetoothDevice.PHY_LE_* values
+     */
+    public void phyUpdated(DeviceType deviceType,
+                           String identifier,
+                           int txPhy,
+                           int rxPhy,
+                           int status);
+
 }
\ No newline at end of file
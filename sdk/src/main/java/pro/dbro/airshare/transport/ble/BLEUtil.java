@@ -15,6 +15,7 @@
  */
 package pro.dbro.airshare.transport.ble;
 
+import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -50,6 +51,36 @@ public class BLEUtil {
         return enabled;
     }
 
+    /**
+     * Return whether characteristic permits writes without response and notifications,
+     * so data may be sent over it in unacknowledged mode. See {@link CreditFlowControl}
+     */
+    public static boolean supportsUnacknowledgedMode(BluetoothGattCharacteristic characteristic) {
+        int required = BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE |
+                       BluetoothGattCharacteristic.PROPERTY_NOTIFY;
+        return (characteristic.getProperties() & required) == required;
+    }
+
+    /**
+     * Return whether a central should subscribe to notifications, rather than indications,
+     * of characteristic. True if it supports unacknowledged mode or cannot indicate.
+     */
+    public static boolean prefersNotification(BluetoothGattCharacteristic characteristic) {
+        int properties = characteristic.getProperties();
+        return (properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0 &&
+               ((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) == 0 || supportsUnacknowledgedMode(characteristic));
+    }
+
+    /**
+     * Return whether a central should write to characteristic without response.
+     * True if it supports unacknowledged mode or only accepts writes without response.
+     */
+    public static boolean prefersWriteWithoutResponse(BluetoothGattCharacteristic characteristic) {
+        int properties = characteristic.getProperties();
+        return (properties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0 &&
+               ((properties & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0 || supportsUnacknowledgedMode(characteristic));
+    }
+
 
 
 }
@@ -0,0 +1,264 @@
+package pro.dbro.airshare.transport.ble;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Flow control for a single BLE link in unacknowledged mode, where writes without response and
+ * notifications complete as soon as the local stack has queued them, so their completion says
+ * nothing of whether the remote peer has kept up.
+ *
+ * Every transmission is framed with a leading type byte. A sender may have up to
+ * {@link #WINDOW_FRAMES} data frames not yet acknowledged by the remote transport, and the
+ * receiver acknowledges cumulatively with the count of data frames it has delivered after every
+ * {@link #ACK_INTERVAL_FRAMES}. If the window stays full for {@link #STALL_TIMEOUT_MS} the link
+ * is presumed failed. Its credit is not restored, as a late ack would then overcommit the window.
+ * The transport disconnects instead, and the session layer sends again what was not delivered.
+ *
+ * A link striped across several characteristics frames data with a sequence number, as frames
+ * sent on different characteristics may be received out of order, and the receiver delivers them
+ * in sequence. A frame missing while {@link #REORDER_LIMIT_FRAMES} later frames are held is
+ * presumed lost. Nothing after it can be delivered in sequence, so the link is presumed failed and
+ * the transport disconnects. A lost frame is never acknowledged, so the sender's credit for it is
+ * not returned.
+ */
+class CreditFlowControl {
+
+    private static final boolean VERBOSE = false;
+
+    /** Frame carrying a chunk of session data */
+    static final byte FRAME_DATA = 0;
+
+    /** Frame carrying the 4 byte little-endian count of data frames received, modulo 2^32 */
+    static final byte FRAME_ACK  = 1;
+
+    /** Frame carrying a 2 byte little-endian sequence number, modulo 2^16, then a chunk of session data */
+    static final byte FRAME_SEQUENCED_DATA = 2;
+
+    static final int  FRAME_HEADER_BYTES  = 1;
+    static final int  ACK_FRAME_BYTES     = FRAME_HEADER_BYTES + 4;
+    static final int  SEQUENCED_FRAME_HEADER_BYTES = FRAME_HEADER_BYTES + 2;
+
+    /** Data frames that may await acknowledgement */
+    static final int  WINDOW_FRAMES       = 32;
+
+    /** Data frames received between acknowledgements */
+    static final int  ACK_INTERVAL_FRAMES = WINDOW_FRAMES / 4;
+
+    static final long STALL_TIMEOUT_MS    = 2000;
+
+    /** Out of order frames held before a missing frame is presumed lost */
+    static final int  REORDER_LIMIT_FRAMES = WINDOW_FRAMES / 2;
+
+    private static final int SEQUENCE_MODULUS = 1 << 16;
+
+    private long framesSent;
+    private long framesAcked;
+    /** Frames the remote peer has acknowledged receiving, modulo 2^32 */
+    private int  remoteFramesReceived;
+    /** When credit was last returned or the window last filled */
+    private long lastProgressMs;
+
+    private long framesReceived;
+    private long framesReceivedAtLastAck;
+
+    /** Sequence number of the next sequenced frame sent */
+    private int  sendSequence;
+    /** Sequence number of the next sequenced frame to deliver */
+    private int  receiveSequence;
+    /** Sequence number -> chunk of sequenced frames received ahead of receiveSequence */
+    private final Map<Integer, byte[]> heldChunks = new HashMap<>();
+    /** Whether a sequenced frame was presumed lost, after which none are delivered */
+    private boolean sequenceBroken;
+
+    /**
+     * @return chunk framed as data
+     */
+    static byte[] frameData(@NonNull byte[] chunk) {
+        byte[] frame = new byte[FRAME_HEADER_BYTES + chunk.length];
+        frame[0] = FRAME_DATA;
+        System.arraycopy(chunk, 0, frame, FRAME_HEADER_BYTES, chunk.length);
+        return frame;
+    }
+
+    /**
+     * @return the chunk carried by a data frame
+     */
+    static byte[] unframeData(@NonNull byte[] frame) {
+        return Arrays.copyOfRange(frame, FRAME_HEADER_BYTES, frame.length);
+    }
+
+    /**
+     * @return chunk framed as data with the next sequence number. Call {@link #onDataSent(long)}
+     * once it is handed to the stack, or the number is reused
+     */
+    byte[] frameSequencedData(@NonNull byte[] chunk) {
+        byte[] frame = new byte[SEQUENCED_FRAME_HEADER_BYTES + chunk.length];
+        frame[0] = FRAME_SEQUENCED_DATA;
+        frame[1] = (byte) sendSequence;
+        frame[2] = (byte) (sendSequence >> 8);
+        System.arraycopy(chunk, 0, frame, SEQUENCED_FRAME_HEADER_BYTES, chunk.length);
+        return frame;
+    }
+
+    /**
+     * Called on receipt of a sequenced data frame
+     *
+     * @return the chunks now deliverable in sequence, possibly none. Each counts as received.
+     * Check {@link #isSequenceBroken()} after
+     */
+    List<byte[]> onSequencedDataReceived(@NonNull byte[] frame) {
+        if (sequenceBroken) return Collections.emptyList();
+
+        if (frame.length < SEQUENCED_FRAME_HEADER_BYTES) {
+            Timber.w("Ignoring %d byte sequenced frame", frame.length);
+            return Collections.emptyList();
+        }
+
+        int sequence = (frame[1] & 0xFF) | (frame[2] & 0xFF) << 8;
+        int distance = (sequence - receiveSequence) & (SEQUENCE_MODULUS - 1);
+
+        // Frames behind receiveSequence were delivered
+        if (distance >= SEQUENCE_MODULUS / 2 || heldChunks.containsKey(sequence)) {
+            Timber.w("Ignoring stale frame %d, expecting %d", sequence, receiveSequence);
+            return Collections.emptyList();
+        }
+
+        heldChunks.put(sequence, Arrays.copyOfRange(frame, SEQUENCED_FRAME_HEADER_BYTES, frame.length));
+
+        List<byte[]> deliverable = new ArrayList<>();
+        while (!heldChunks.isEmpty()) {
+            byte[] chunk = heldChunks.get(receiveSequence);
+            if (chunk == null) {
+                if (heldChunks.size() >= REORDER_LIMIT_FRAMES) {
+                    Timber.w("Presuming frame %d lost with %d later frames held", receiveSequence, heldChunks.size());
+                    sequenceBroken = true;
+                    heldChunks.clear();
+                }
+                break;
+            }
+            heldChunks.remove(receiveSequence);
+            receiveSequence = (receiveSequence + 1) & (SEQUENCE_MODULUS - 1);
+            deliverable.add(chunk);
+            onDataReceived();
+        }
+        return deliverable;
+    }
+
+    /**
+     * @return whether a sequenced frame was presumed lost, so the link cannot deliver in sequence
+     */
+    boolean isSequenceBroken() {
+        return sequenceBroken;
+    }
+
+    boolean hasCredit() {
+        return framesSent - framesAcked < WINDOW_FRAMES;
+    }
+
+    /**
+     * Called as each data frame is handed to the stack
+     */
+    void onDataSent(long nowMs) {
+        framesSent++;
+        sendSequence = (sendSequence + 1) & (SEQUENCE_MODULUS - 1);
+        if (!hasCredit()) lastProgressMs = nowMs;
+    }
+
+    /**
+     * Called if the stack failed to send the latest data frame, which will not be acknowledged.
+     * Its sequence number is reused
+     */
+    void onDataFailed() {
+        if (framesSent > framesAcked) framesSent--;
+        sendSequence = (sendSequence - 1) & (SEQUENCE_MODULUS - 1);
+    }
+
+    /**
+     * Called on receipt of an ack frame
+     *
+     * @return whether credit was returned
+     */
+    boolean onAckReceived(@NonNull byte[] frame, long nowMs) {
+        if (frame.length < ACK_FRAME_BYTES) {
+            Timber.w("Ignoring %d byte ack frame", frame.length);
+            return false;
+        }
+
+        int count = (frame[1] & 0xFF)         |
+                    (frame[2] & 0xFF) << 8    |
+                    (frame[3] & 0xFF) << 16   |
+                    (frame[4] & 0xFF) << 24;
+
+        // Counts wrap, so compare the difference. Acks may not arrive in order
+        int newlyReceived = count - remoteFramesReceived;
+        if (newlyReceived <= 0) return false;
+        remoteFramesReceived = count;
+
+        long acked = Math.min(framesSent, framesAcked + newlyReceived);
+        if (acked == framesAcked) return false;
+
+        if (VERBOSE) Timber.d("Ack returned %d credits", acked - framesAcked);
+        framesAcked    = acked;
+        lastProgressMs = nowMs;
+        return true;
+    }
+
+    /**
+     * @return whether the window has been full for {@link #STALL_TIMEOUT_MS}, so the link is
+     * presumed failed
+     */
+    boolean isStalled(long nowMs) {
+        return !hasCredit() && nowMs - lastProgressMs >= STALL_TIMEOUT_MS;
+    }
+
+    /**
+     * @return data frames not yet acknowledged
+     */
+    long getFramesUnacknowledged() {
+        return framesSent - framesAcked;
+    }
+
+    /**
+     * @return ms until the window, if still full, may be presumed stalled
+     */
+    long getStallRemainingMs(long nowMs) {
+        return Math.max(0, STALL_TIMEOUT_MS - (nowMs - lastProgressMs));
+    }
+
+    /**
+     * Called as each data frame is delivered to the session layer
+     */
+    void onDataReceived() {
+        framesReceived++;
+    }
+
+    boolean isAckDue() {
+        return framesReceived - framesReceivedAtLastAck >= ACK_INTERVAL_FRAMES;
+    }
+
+    /**
+     * @return an ack frame acknowledging every data frame received so far. Call
+     * {@link #onAckSent()} once it is handed to the stack
+     */
+    byte[] createAck() {
+        int count = (int) framesReceived;
+        return new byte[] { FRAME_ACK,
+                            (byte) count,
+                            (byte) (count >> 8),
+                            (byte) (count >> 16),
+                            (byte) (count >> 24) };
+    }
+
+    void onAckSent() {
+        framesReceivedAtLastAck = framesReceived;
+    }
+}
@@ -0,0 +1,103 @@
+package pro.dbro.airshare.transport.ble;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Chooses the connection priority of a single BLE link from the bytes waiting to be sent over it.
+ *
+ * A link moves to {@link Priority#HIGH} as soon as its backlog reaches {@link #HIGH_BACKLOG_BYTES},
+ * and back to {@link Priority#BALANCED} only once the backlog has stayed at or below
+ * {@link #DRAINED_BACKLOG_BYTES} for {@link #HIGH_HOLD_MS}, so a transfer pausing between
+ * messages does not flap between intervals. A link with nothing to send for
+ * {@link #IDLE_LOW_POWER_MS} moves to {@link Priority#LOW_POWER}, and back to balanced as soon
+ * as it has anything to send.
+ */
+class LinkPriorityPolicy {
+
+    enum Priority { LOW_POWER, BALANCED, HIGH }
+
+    static final long HIGH_BACKLOG_BYTES    = 32 * 1024;
+    static final long DRAINED_BACKLOG_BYTES = 2 * 1024;
+    static final long HIGH_HOLD_MS          = 2000;
+    static final long IDLE_LOW_POWER_MS     = 30 * 1000;
+
+    /** Links begin at the priority the stack connects with */
+    private Priority priority = Priority.BALANCED;
+
+    private long backlogBytes;
+    /** When the backlog last fell to drained while at high priority, or -1 */
+    private long drainedSinceMs = -1;
+    /** When the backlog last fell to empty while below high priority, or -1 */
+    private long idleSinceMs    = -1;
+
+    Priority getPriority() {
+        return priority;
+    }
+
+    long getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    /**
+     * Called as the backlog changes
+     *
+     * @return the priority to move to, or null to keep the current
+     */
+    @Nullable Priority onBacklog(long backlogBytes, long nowMs) {
+        this.backlogBytes = backlogBytes;
+        return evaluate(nowMs);
+    }
+
+    /**
+     * Re-evaluate the last backlog reported, as time passes
+     *
+     * @return the priority to move to, or null to keep the current
+     */
+    @Nullable Priority evaluate(long nowMs) {
+        Priority next = priority;
+
+        if (backlogBytes >= HIGH_BACKLOG_BYTES) {
+            next = Priority.HIGH;
+            drainedSinceMs = -1;
+
+        } else if (priority == Priority.HIGH) {
+            if (backlogBytes > DRAINED_BACKLOG_BYTES)
+                drainedSinceMs = -1;
+            else if (drainedSinceMs == -1)
+                drainedSinceMs = nowMs;
+            else if (nowMs - drainedSinceMs >= HIGH_HOLD_MS)
+                next = Priority.BALANCED;
+
+        } else if (backlogBytes > 0) {
+            next = Priority.BALANCED;
+            idleSinceMs = -1;
+
+        } else if (idleSinceMs == -1) {
+            idleSinceMs = nowMs;
+
+        } else if (nowMs - idleSinceMs >= IDLE_LOW_POWER_MS) {
+            next = Priority.LOW_POWER;
+        }
+
+        if (next == priority) return null;
+
+        priority       = next;
+        drainedSinceMs = -1;
+        idleSinceMs    = next == Priority.BALANCED && backlogBytes == 0 ? nowMs : -1;
+        return next;
+    }
+
+    /**
+     * @return ms until {@link #evaluate(long)} may change the priority though the backlog does
+     * not, or -1 if it will not
+     */
+    long getEvaluationDelayMs(long nowMs) {
+        if (priority == Priority.HIGH && drainedSinceMs != -1)
+            return Math.max(0, HIGH_HOLD_MS - (nowMs - drainedSinceMs));
+
+        if (priority == Priority.BALANCED && idleSinceMs != -1)
+            return Math.max(0, IDLE_LOW_POWER_MS - (nowMs - idleSinceMs));
+
+        return -1;
+    }
+}
@@ -0,0 +1,98 @@
+package pro.dbro.airshare.transport.l2cap;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.os.Build;
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import timber.log.Timber;
+
+/**
+ * Opens insecure LE L2CAP Connection-oriented Channels, which like the GATT service require no
+ * pairing. Requires Android 10.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+public class BluetoothL2capChannelProvider implements L2capTransport.ChannelProvider {
+
+    private final BluetoothAdapter adapter;
+    private BluetoothServerSocket  serverSocket;
+
+    public BluetoothL2capChannelProvider(@NonNull BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * @return the PSM the stack assigned
+     */
+    @Override
+    public synchronized int listen() throws IOException {
+        if (serverSocket == null) serverSocket = adapter.listenUsingInsecureL2capChannel();
+
+        return serverSocket.getPsm();
+    }
+
+    @Override
+    public L2capTransport.Channel accept() throws IOException {
+        BluetoothServerSocket socket;
+        synchronized (this) {
+            socket = serverSocket;
+        }
+        if (socket == null) throw new IOException("Not listening");
+
+        return new SocketChannel(socket.accept());
+    }
+
+    @Override
+    public L2capTransport.Channel connect(String address, int psm) throws IOException {
+        BluetoothSocket socket = adapter.getRemoteDevice(address).createInsecureL2capChannel(psm);
+        socket.connect();
+        return new SocketChannel(socket);
+    }
+
+    @Override
+    public synchronized void stopListening() {
+        if (serverSocket == null) return;
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Timber.w("Failed to close L2CAP server socket");
+        }
+        serverSocket = null;
+    }
+
+    private static class SocketChannel implements L2capTransport.Channel {
+
+        private final BluetoothSocket socket;
+
+        SocketChannel(BluetoothSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return socket.getRemoteDevice().getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
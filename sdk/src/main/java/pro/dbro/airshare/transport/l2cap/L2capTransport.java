@@ -0,0 +1,460 @@
+package pro.dbro.airshare.transport.l2cap;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.os.Build;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import pro.dbro.airshare.transport.Transport;
+import pro.dbro.airshare.transport.ble.BLEUtil;
+import timber.log.Timber;
+
+/**
+ * Bluetooth LE L2CAP Connection-oriented Channel Transport. Requires Android 10.
+ *
+ * Channels are not discovered by this transport. Once peers are identified over
+ * {@link pro.dbro.airshare.transport.ble.BLETransport}, the host listens with {@link #advertise()}
+ * and offers the channel it listens on, which the client opens with
+ * {@link #connect(String, int)}. Session data then streams over the channel without the per-packet
+ * ATT overhead and callbacks of GATT. Devices predating Android 10 remain on BLETransport.
+ *
+ * Channels are opened through a {@link ChannelProvider}, for which an in-process pair of streams
+ * may stand in, e.g: in tests.
+ */
+public class L2capTransport extends Transport {
+
+    private static final boolean VERBOSE = false;
+
+    /** Values to id transport useful in bit fields */
+    public static final int TRANSPORT_CODE = 4;
+
+    /** Largest chunk queued to a channel. Two fit its {@link #STREAM_BUFFER_BYTES} */
+    public static final int MAX_MTU_BYTES = 32 * 1024;
+
+    public static final int DEFAULT_MTU_BYTES = 4 * 1024;
+
+    /** Bytes buffered in each direction of a channel, so writes fill whole L2CAP SDUs */
+    public static final int STREAM_BUFFER_BYTES = 64 * 1024;
+
+    /** Distinguishes channel identifiers from the BLE identifiers of the same devices */
+    private static final String IDENTIFIER_PREFIX = "l2cap:";
+
+    /** Queued to a channel's writer to end it */
+    private static final byte[] CLOSE = new byte[0];
+
+    /**
+     * A bidirectional stream to a remote device, e.g: a connected L2CAP socket
+     */
+    public interface Channel {
+
+        InputStream getInputStream() throws IOException;
+
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * @return the address of the remote device
+         */
+        String getRemoteAddress();
+
+        void close() throws IOException;
+
+    }
+
+    /**
+     * Opens {@link Channel}s
+     */
+    public interface ChannelProvider {
+
+        /**
+         * Begin accepting channels, if not already
+         *
+         * @return the channel number remote devices connect to, e.g: an L2CAP PSM
+         */
+        int listen() throws IOException;
+
+        /**
+         * Block until a remote device connects to the channel listened on
+         *
+         * @throws IOException if listening stops
+         */
+        Channel accept() throws IOException;
+
+        /**
+         * Block until connected to channel on the remote device at address
+         */
+        Channel connect(String address, int channel) throws IOException;
+
+        /**
+         * Stop accepting channels. Connected channels are unaffected
+         */
+        void stopListening();
+
+    }
+
+    /** A connected channel and its queue of outgoing chunks */
+    private static class ChannelState {
+        final Channel                     channel;
+        final String                      identifier;
+        final boolean                     peerIsHost;
+        final LinkedBlockingQueue<byte[]> outQueue = new LinkedBlockingQueue<>();
+
+        ChannelState(Channel channel, String identifier, boolean peerIsHost) {
+            this.channel    = channel;
+            this.identifier = identifier;
+            this.peerIsHost = peerIsHost;
+        }
+    }
+
+    private final ChannelProvider provider;
+
+    /** Identifier -> Connected channel */
+    private final HashMap<String, ChannelState> channels = new HashMap<>();
+
+    /** Channel accepted on, or -1 if not listening */
+    private int listeningChannel = -1;
+
+    /**
+     * Transport over LE L2CAP channels. Check {@link #isSupported(Context)} first.
+     */
+    public L2capTransport(@NonNull Context context,
+                          @NonNull String serviceName,
+                          @NonNull TransportCallback callback) {
+
+        this(serviceName, callback, new BluetoothL2capChannelProvider(getAdapter(context)));
+    }
+
+    /**
+     * Transport over channels opened by provider
+     */
+    public L2capTransport(@NonNull String serviceName,
+                          @NonNull TransportCallback callback,
+                          @NonNull ChannelProvider provider) {
+
+        super(serviceName, callback);
+        this.provider = provider;
+    }
+
+    /**
+     * @return whether this device can open LE L2CAP channels, which requires Android 10
+     */
+    public static boolean isSupported(@NonNull Context context) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q &&
+               BLEUtil.isBLESupported(context) &&
+               getAdapter(context) != null;
+    }
+
+    private static @Nullable BluetoothAdapter getAdapter(Context context) {
+        BluetoothManager manager = BLEUtil.getManager(context);
+        return manager == null ? null : manager.getAdapter();
+    }
+
+    // <editor-fold desc="Transport">
+
+    @Override
+    public boolean sendData(byte[] data, Set<String> identifiers) {
+        boolean didSendAll = true;
+
+        for (String identifier : identifiers) {
+            boolean didSend = sendData(data, identifier);
+
+            if (!didSend) didSendAll = false;
+        }
+        return didSendAll;
+    }
+
+    @Override
+    public boolean sendData(@NonNull byte[] data, String identifier) {
+        ChannelState state;
+        synchronized (this) {
+            state = channels.get(identifier);
+        }
+
+        if (state == null) {
+            Timber.w("No channel to %s. Dropping %d bytes", identifier, data.length);
+            return false;
+        }
+
+        state.outQueue.add(data);
+        return true;
+    }
+
+    /**
+     * Begin accepting channels. See {@link #getListeningChannel()}
+     */
+    @Override
+    public void advertise() {
+        synchronized (this) {
+            if (listeningChannel != -1) return;
+
+            try {
+                listeningChannel = provider.listen();
+            } catch (IOException e) {
+                Timber.e(e, "Failed to listen for L2CAP channels");
+                return;
+            }
+        }
+
+        Timber.d("Accepting L2CAP channels on %d", listeningChannel);
+        startThread("AirShare-L2capAccept", new Runnable() {
+            @Override
+            public void run() {
+                acceptChannels();
+            }
+        });
+    }
+
+    /**
+     * Channels are opened with {@link #connect(String, int)} once the channel the remote
+     * peer listens on is known
+     */
+    @Override
+    public void scanForPeers() {
+        // Nothing to discover
+    }
+
+    @Override
+    public void stop() {
+        synchronized (this) {
+            if (listeningChannel != -1) {
+                listeningChannel = -1;
+                provider.stopListening();
+            }
+        }
+
+        for (String identifier : getChannelIdentifiers())
+            closeChannel(identifier);
+    }
+
+    @Override
+    public int getTransportCode() {
+        return TRANSPORT_CODE;
+    }
+
+    @Override
+    public int getMtuForIdentifier(String identifier) {
+        return MAX_MTU_BYTES;
+    }
+
+    @Override
+    public int getInitialChunkBytesForIdentifier(String identifier) {
+        return DEFAULT_MTU_BYTES;
+    }
+
+    @Override
+    public int getMinChunkBytesForIdentifier(String identifier) {
+        return MIN_STREAM_CHUNK_BYTES;
+    }
+
+    // </editor-fold desc="Transport">
+
+    /**
+     * @return the channel accepted on since {@link #advertise()}, or -1 if not listening
+     */
+    public synchronized int getListeningChannel() {
+        return listeningChannel;
+    }
+
+    /**
+     * Open channel on the remote device at address, e.g: the host's BLE identifier.
+     * Connection is reported to the callback with the remote peer as host.
+     */
+    public void connect(final String address, final int channel) {
+        synchronized (this) {
+            if (channels.containsKey(IDENTIFIER_PREFIX + address)) {
+                Timber.w("Already connected to %s", address);
+                return;
+            }
+        }
+
+        startThread("AirShare-L2capConnect", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Timber.d("Connecting to channel %d on %s", channel, address);
+                    addChannel(provider.connect(address, channel), true);
+                } catch (IOException e) {
+                    // The peer remains reachable over the transport it was identified on
+                    Timber.w(e, "Failed to connect to channel %d on %s", channel, address);
+                }
+            }
+        });
+    }
+
+    private void acceptChannels() {
+        while (getListeningChannel() != -1) {
+            try {
+                addChannel(provider.accept(), false);
+            } catch (IOException e) {
+                if (getListeningChannel() != -1) Timber.e(e, "Failed to accept L2CAP channel");
+                break;
+            }
+        }
+        Timber.d("Stopped accepting L2CAP channels");
+    }
+
+    private void addChannel(Channel channel, boolean peerIsHost) {
+        final ChannelState state = new ChannelState(channel,
+                                                    IDENTIFIER_PREFIX + channel.getRemoteAddress(),
+                                                    peerIsHost);
+
+        ChannelState existing;
+        synchronized (this) {
+            existing = channels.get(state.identifier);
+            if (existing == null) channels.put(state.identifier, state);
+        }
+
+        if (existing != null) {
+            Timber.w("Closing duplicate channel to %s", state.identifier);
+            closeQuietly(channel);
+            return;
+        }
+
+        Timber.d("Connected to %s (local is %s)", state.identifier, peerIsHost ? "client" : "host");
+
+        // Reported before reading, so data received follows connection
+        TransportCallback transportCallback = callback.get();
+        if (transportCallback != null)
+            transportCallback.identifierUpdated(this, state.identifier, ConnectionStatus.CONNECTED, peerIsHost, null);
+
+        startThread("AirShare-L2capWrite", new Runnable() {
+            @Override
+            public void run() {
+                writeChannel(state);
+            }
+        });
+
+        startThread("AirShare-L2capRead", new Runnable() {
+            @Override
+            public void run() {
+                readChannel(state);
+            }
+        });
+    }
+
+    /**
+     * Report data read from the channel until it closes
+     */
+    private void readChannel(ChannelState state) {
+        byte[] buf = new byte[STREAM_BUFFER_BYTES];
+        int len;
+
+        try {
+            InputStream inputStream = state.channel.getInputStream();
+
+            while ((len = inputStream.read(buf)) > 0) {
+                if (VERBOSE) Timber.d("Got %d bytes from %s", len, state.identifier);
+
+                TransportCallback transportCallback = callback.get();
+                if (transportCallback != null)
+                    transportCallback.dataReceivedFromIdentifier(this, Arrays.copyOf(buf, len), state.identifier);
+            }
+        } catch (IOException e) {
+            Timber.d("Channel to %s closed: %s", state.identifier, e.getMessage());
+        }
+
+        closeChannel(state.identifier);
+    }
+
+    /**
+     * Write queued chunks to the channel until it closes. The buffer is flushed whenever the
+     * queue empties, and the chunks written since reported sent once the flush succeeds.
+     *
+     * If a write or flush fails, the chunks not yet flushed and those queued behind them are
+     * reported failed, in order, before the channel closes. Chunks not flushed when the channel
+     * is closed otherwise are accounted for by its disconnection.
+     */
+    private void writeChannel(ChannelState state) {
+        // Written to the buffer since the last flush
+        List<byte[]> unflushed = new ArrayList<>();
+
+        try {
+            OutputStream outputStream = new BufferedOutputStream(state.channel.getOutputStream(),
+                                                                 STREAM_BUFFER_BYTES);
+
+            while (true) {
+                byte[] data = state.outQueue.take();
+                if (data == CLOSE) break;
+
+                outputStream.write(data);
+                unflushed.add(data);
+                if (!state.outQueue.isEmpty()) continue;
+
+                outputStream.flush();
+
+                if (VERBOSE) Timber.d("Flushed %d chunks to %s", unflushed.size(), state.identifier);
+                reportSent(unflushed, state.identifier, null);
+                unflushed.clear();
+            }
+        } catch (IOException e) {
+            Timber.d("Failed to write to %s: %s", state.identifier, e.getMessage());
+
+            byte[] queued;
+            while ((queued = state.outQueue.poll()) != null) {
+                if (queued != CLOSE) unflushed.add(queued);
+            }
+            reportSent(unflushed, state.identifier, e);
+        } catch (InterruptedException e) {
+            Timber.w("Interrupted writing to %s", state.identifier);
+        }
+
+        closeChannel(state.identifier);
+    }
+
+    private void reportSent(List<byte[]> chunks, String identifier, @Nullable Exception exception) {
+        TransportCallback transportCallback = callback.get();
+        if (transportCallback == null) return;
+
+        for (byte[] chunk : chunks)
+            transportCallback.dataSentToIdentifier(this, chunk, identifier, exception);
+    }
+
+    private void closeChannel(String identifier) {
+        ChannelState state;
+        synchronized (this) {
+            state = channels.remove(identifier);
+        }
+        // Already closed by the reader or writer
+        if (state == null) return;
+
+        state.outQueue.clear();
+        state.outQueue.add(CLOSE);
+        closeQuietly(state.channel);
+
+        Timber.d("Disconnected from %s", identifier);
+
+        TransportCallback transportCallback = callback.get();
+        if (transportCallback != null)
+            transportCallback.identifierUpdated(this, identifier, ConnectionStatus.DISCONNECTED, state.peerIsHost, null);
+    }
+
+    private synchronized String[] getChannelIdentifiers() {
+        return channels.keySet().toArray(new String[channels.size()]);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Timber.w("Failed to close channel to %s", channel.getRemoteAddress());
+        }
+    }
+
+    private static void startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
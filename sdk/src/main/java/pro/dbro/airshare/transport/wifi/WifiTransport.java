@@ -60,6 +60,9 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
 
     public static final int DEFAULT_MTU_BYTES = 1024;
 
+    /** Largest chunk written to the socket at once. Adaptive chunk sizing grows towards this */
+    public static final int MAX_MTU_BYTES = 64 * 1024;
+
     private static final int PORT = 8787;
     private static final int SOCKET_TIMEOUT_MS = 5000;
 
@@ -200,11 +203,19 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
 
     @Override
     public int getMtuForIdentifier(String identifier) {
-//        Integer mtu = central.getMtuForIdentifier(identifier);
-//        return (mtu == null ? DEFAULT_MTU_BYTES : mtu ) - 10;
+        return MAX_MTU_BYTES;
+    }
+
+    @Override
+    public int getInitialChunkBytesForIdentifier(String identifier) {
         return DEFAULT_MTU_BYTES;
     }
 
+    @Override
+    public int getMinChunkBytesForIdentifier(String identifier) {
+        return MIN_STREAM_CHUNK_BYTES;
+    }
+
     // </editor-fold desc="Transport">
 
     private void cancelConnections() {
@@ -562,7 +573,7 @@ public class WifiTransport extends Transport implements WifiP2pManager.Connectio
             InputStream inputStream = socket.getInputStream();
             OutputStream outputStream = socket.getOutputStream();
 
-            byte[] buf = new byte[DEFAULT_MTU_BYTES];
+            byte[] buf = new byte[MAX_MTU_BYTES];
             int len;
 
             while (connectionDesired) {